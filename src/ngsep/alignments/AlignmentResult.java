@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+/**
+ * Location, edit distance and CIGAR of the alignment of a read to a segment of the reference
+ * @author Jorge Duitama
+ */
+class AlignmentResult {
+	private int subjectStartIdx;
+	private int subjectLastIdx;
+	private int distance;
+	private String cigarString;
+	
+	public String getCigarString () {
+		return cigarString;
+	}
+	
+	public void setCigarString (String cigarString) {
+		this.cigarString = cigarString;
+	}
+
+	/**
+	 * @return the subjectStartIdx
+	 */
+	public int getSubjectStartIdx() {
+		return subjectStartIdx;
+	}
+
+	/**
+	 * @param subjectStartIdx the subjectStartIdx to set
+	 */
+	public void setSubjectStartIdx(int subjectStartIdx) {
+		this.subjectStartIdx = subjectStartIdx;
+	}
+
+	/**
+	 * @return the subjectLastIdx
+	 */
+	public int getSubjectLastIdx() {
+		return subjectLastIdx;
+	}
+
+	/**
+	 * @param subjectLastIdx the subjectLastIdx to set
+	 */
+	public void setSubjectLastIdx(int subjectLastIdx) {
+		this.subjectLastIdx = subjectLastIdx;
+	}
+
+	/**
+	 * @return the distance
+	 */
+	public int getDistance() {
+		return distance;
+	}
+
+	/**
+	 * @param distance the distance to set
+	 */
+	public void setDistance(int distance) {
+		this.distance = distance;
+	}
+	
+	
+}
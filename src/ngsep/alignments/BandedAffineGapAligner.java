@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+/**
+ * Banded aligner with affine gap costs used to align reads to the reference region of a k-mer cluster.
+ * The whole query is aligned and the subject may have unaligned bases at both ends.
+ * Score and traceback buffers are kept between calls, so each thread should use its own instance
+ * @author Jorge Duitama
+ */
+class BandedAffineGapAligner {
+	static final int MISMATCH_COST = 1;
+	static final int GAP_OPEN_COST = 1;
+	static final int GAP_EXTENSION_COST = 1;
+	private static final int INFINITE = Integer.MAX_VALUE/2;
+	
+	//Traceback codes
+	private static final byte FROM_DIAGONAL = 0;
+	private static final byte FROM_DELETION = 1;
+	private static final byte FROM_INSERTION = 2;
+	private static final byte MASK_SOURCE = 3;
+	//Set if the deletion (insertion) ending at the cell extends a previous deletion (insertion)
+	private static final byte EXTENDS_DELETION = 4;
+	private static final byte EXTENDS_INSERTION = 8;
+	
+	//Rolling rows of the band for the best score (H), scores ending in deletions (E) and scores ending in insertions (F)
+	private int [] scoresPrevious = new int [0];
+	private int [] scoresCurrent = new int [0];
+	private int [] insertionsPrevious = new int [0];
+	private int [] insertionsCurrent = new int [0];
+	private byte [] traceback = new byte [0];
+	//Alignment operations from the end to the start of the alignment
+	private byte [] operations = new byte [0];
+	
+	/**
+	 * Aligns the complete query to a segment of the subject. Only cells with j-i between the given diagonals are calculated,
+	 * where i is a query position and j is a subject position
+	 * @param query Sequence to align
+	 * @param subject Sequence in which the query is searched
+	 * @param minDiagonal Smallest difference between subject and query positions in the alignment 
+	 * @param maxDiagonal Largest difference between subject and query positions in the alignment
+	 * @return AlignmentResult best alignment within the band. null if no alignment is possible within the band
+	 */
+	public AlignmentResult align(CharSequence query, CharSequence subject, int minDiagonal, int maxDiagonal) {
+		int m = query.length();
+		int n = subject.length();
+		minDiagonal = Math.max(minDiagonal, -m);
+		maxDiagonal = Math.min(maxDiagonal, n);
+		if(minDiagonal>maxDiagonal) return null;
+		int width = maxDiagonal - minDiagonal + 1;
+		ensureCapacity(m, width);
+		//Row zero. The alignment can start at any position of the subject without cost
+		for(int k=0;k<width;k++) {
+			int j = k + minDiagonal;
+			scoresPrevious[k] = (j>=0 && j<=n)?0:INFINITE;
+			insertionsPrevious[k] = INFINITE;
+		}
+		for(int i=1;i<=m;i++) {
+			char queryChar = query.charAt(i-1);
+			int rowStart = i*width;
+			int deletion = INFINITE;
+			for(int k=0;k<width;k++) {
+				int j = i + k + minDiagonal;
+				if(j<0 || j>n) {
+					scoresCurrent[k] = insertionsCurrent[k] = INFINITE;
+					deletion = INFINITE;
+					continue;
+				}
+				byte trace = 0;
+				//Insertion comes from the cell above, which is in the next diagonal
+				int insertion = INFINITE;
+				if(k+1<width) {
+					int open = scoresPrevious[k+1] + GAP_OPEN_COST + GAP_EXTENSION_COST;
+					int extend = insertionsPrevious[k+1] + GAP_EXTENSION_COST;
+					if(extend<=open) {
+						insertion = extend;
+						trace |= EXTENDS_INSERTION;
+					} else {
+						insertion = open;
+					}
+				}
+				//Deletion comes from the cell in the left, which is in the previous diagonal
+				if(k>0 && j>0) {
+					int open = scoresCurrent[k-1] + GAP_OPEN_COST + GAP_EXTENSION_COST;
+					int extend = deletion + GAP_EXTENSION_COST;
+					if(extend<=open) {
+						deletion = extend;
+						trace |= EXTENDS_DELETION;
+					} else {
+						deletion = open;
+					}
+				} else {
+					deletion = INFINITE;
+				}
+				int best = INFINITE;
+				byte source = FROM_INSERTION;
+				if(j>0) {
+					best = scoresPrevious[k] + (queryChar!=subject.charAt(j-1)?MISMATCH_COST:0);
+					source = FROM_DIAGONAL;
+				}
+				if(insertion<best) {
+					best = insertion;
+					source = FROM_INSERTION;
+				}
+				if(deletion<best) {
+					best = deletion;
+					source = FROM_DELETION;
+				}
+				scoresCurrent[k] = Math.min(best, INFINITE);
+				deletion = Math.min(deletion, INFINITE);
+				insertionsCurrent[k] = Math.min(insertion, INFINITE);
+				traceback[rowStart+k] = (byte)(trace | source);
+			}
+			int [] tmp = scoresPrevious;
+			scoresPrevious = scoresCurrent;
+			scoresCurrent = tmp;
+			tmp = insertionsPrevious;
+			insertionsPrevious = insertionsCurrent;
+			insertionsCurrent = tmp;
+		}
+		//Find the best score in the last row. Ties are resolved choosing the largest subject position
+		int bestK = -1;
+		int bestScore = INFINITE;
+		for(int k=0;k<width;k++) {
+			if(scoresPrevious[k]<=bestScore && scoresPrevious[k]<INFINITE) {
+				bestScore = scoresPrevious[k];
+				bestK = k;
+			}
+		}
+		if(bestK<0) return null;
+		return backtrack(query, subject, m, minDiagonal, width, bestK);
+	}
+
+	private AlignmentResult backtrack(CharSequence query, CharSequence subject, int m, int minDiagonal, int width, int lastK) {
+		int i = m;
+		int k = lastK;
+		int j = i + k + minDiagonal;
+		AlignmentResult result = new AlignmentResult();
+		result.setSubjectLastIdx(j-1);
+		int numOperations = 0;
+		int distance = 0;
+		//0 means that the next operation is selected by the best score
+		byte state = 0;
+		while(i>0) {
+			byte trace = traceback[i*width+k];
+			byte source = state!=0?state:(byte)(trace & MASK_SOURCE);
+			if(source == FROM_DIAGONAL) {
+				if(query.charAt(i-1)!=subject.charAt(j-1)) distance++;
+				operations[numOperations++] = ReadAlignment.ALIGNMENT_MATCH;
+				i--;
+				j--;
+				state = 0;
+			} else if (source == FROM_INSERTION) {
+				operations[numOperations++] = ReadAlignment.ALIGNMENT_INSERTION;
+				distance++;
+				state = (trace & EXTENDS_INSERTION)!=0?FROM_INSERTION:0;
+				i--;
+				k++;
+			} else {
+				operations[numOperations++] = ReadAlignment.ALIGNMENT_DELETION;
+				distance++;
+				state = (trace & EXTENDS_DELETION)!=0?FROM_DELETION:0;
+				j--;
+				k--;
+			}
+		}
+		result.setSubjectStartIdx(j);
+		result.setDistance(distance);
+		result.setCigarString(buildCigar(numOperations));
+		return result;
+	}
+	
+	private String buildCigar(int numOperations) {
+		StringBuilder cigar = new StringBuilder();
+		int count = 0;
+		byte next = -1;
+		for(int i=numOperations-1;i>=0;i--) {
+			byte op = operations[i];
+			if(op!=next) {
+				if(count>0) cigar.append(count).append(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(next));
+				count = 1;
+				next = op;
+			} else {
+				count++;
+			}
+		}
+		if(count>0) cigar.append(count).append(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(next));
+		return cigar.toString();
+	}
+
+	private void ensureCapacity(int queryLength, int width) {
+		if(scoresPrevious.length<width) {
+			scoresPrevious = new int [width];
+			scoresCurrent = new int [width];
+			insertionsPrevious = new int [width];
+			insertionsCurrent = new int [width];
+		}
+		int cells = (queryLength+1)*width;
+		if(traceback.length<cells) traceback = new byte[cells];
+		//Each operation consumes at least one query or subject base
+		int maxOperations = 2*queryLength + width + 1;
+		if(operations.length<maxOperations) operations = new byte[maxOperations];
+	}
+}
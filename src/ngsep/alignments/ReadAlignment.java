@@ -741,6 +741,39 @@ public class ReadAlignment implements GenomicRegion {
 		//if(referencePos==-1) System.out.println("ReadAlignment. Read id: "+getReadName()+". Sequence: "+readCharacters.toString()+". readpos: "+readPos+". end: "+(readPos+length)+" subseq: "+readCharacters.subSequence(readPos, readPos+length)+". length subseq: "+readCharacters.subSequence(readPos, readPos+length).length());
 		return readCharacters.subSequence(readPos, readPos+length);
 	}
+	/**
+	 * Provides the read position of the single base allele call (if any) at the given reference position.
+	 * Together with getReadCharacter and getBaseQualityScoreAtReadPosition, it allows to retrieve base calls
+	 * without creating intermediate objects
+	 * @param referencePos Position to consider in the reference sequence to which this read aligned
+	 * @return int 0-based read position of the base call. -1 if the read does not have a call at the given position
+	 * or if the call has more than one base pair as in the case of insertions
+	 */
+	public int getSingleBaseCallReadPosition (int referencePos) {
+		if(readCharacters ==null) return -1;
+		int readPos = getReadPosition(referencePos);
+		if(readPos<0) return -1;
+		updateAlleleCallsInfo();
+		if(alleleCallLength[readPos]!=1) return -1;
+		return readPos;
+	}
+	/**
+	 * Returns the read character at the given read position
+	 * @param readPos 0-based read position
+	 * @return char Character of the read at the given position
+	 */
+	public char getReadCharacter (int readPos) {
+		return readCharacters.charAt(readPos);
+	}
+	/**
+	 * Returns the base quality score in phred+33 format at the given read position
+	 * @param readPos 0-based read position
+	 * @return char base quality score
+	 */
+	public char getBaseQualityScoreAtReadPosition (int readPos) {
+		if(qualityScores == null) return 33;
+		return qualityScores[readPos];
+	}
 	/**
 	 * Provides the allele call (if any) at the given reference coordinates taking into account possible
 	 * base pairs to ignore
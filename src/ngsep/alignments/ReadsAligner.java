@@ -25,11 +25,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ngsep.alignments.io.ReadAlignmentFileWriter;
@@ -53,11 +60,19 @@ public class ReadsAligner {
 
 	private Logger log = Logger.getLogger(ReadsAligner.class.getName());
 	public static final double DEF_MIN_PROPORTION_KMERS = 0.7;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_READS_BATCH_SIZE = 1000;
 	static final int SEARCH_KMER_LENGTH = 15;
 	private double minProportionKmers = DEF_MIN_PROPORTION_KMERS;
 	private boolean onlyPositiveStrand = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private int readsBatchSize = DEF_READS_BATCH_SIZE;
+	private boolean validateAlignments = false;
 	
 	private ReferenceGenomeFMIndex fMIndex;
+	//Each alignment thread reuses the buffers of its own aligner
+	private ThreadLocal<BandedAffineGapAligner> aligners = ThreadLocal.withInitial(BandedAffineGapAligner::new);
+	private AlignmentStatistics stats = new AlignmentStatistics();
 
 	public static final int MAX_SPACE_BETWEEN_KMERS = 200;
 
@@ -72,7 +87,8 @@ public class ReadsAligner {
 		QualifiedSequenceList sequences = instance.fMIndex.getSequencesMetadata();
 		
 		try (PrintStream out = new PrintStream(outFile);
-			ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out)){
+			ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out, instance.numThreads)){
+			writer.setValidateRecords(instance.validateAlignments);
 			instance.alignReads(readsFile, writer);
 		}
 	}
@@ -97,55 +113,165 @@ public class ReadsAligner {
 	public void setMinProportionKmers(Double minProportionKmers) {
 		this.setMinProportionKmers(minProportionKmers.doubleValue());
 	}
+	
+	/**
+	 * @return the number of threads used to align reads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to align reads
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param numThreads the number of threads used to align reads
+	 */
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+
+	/**
+	 * @return the number of reads sent together to each alignment thread
+	 */
+	public int getReadsBatchSize() {
+		return readsBatchSize;
+	}
+
+	/**
+	 * @param readsBatchSize the number of reads sent together to each alignment thread
+	 */
+	public void setReadsBatchSize(int readsBatchSize) {
+		if(readsBatchSize<1) throw new IllegalArgumentException("Reads batch size must be positive. Given value: "+readsBatchSize);
+		this.readsBatchSize = readsBatchSize;
+	}
+	
+	/**
+	 * @param readsBatchSize the number of reads sent together to each alignment thread
+	 */
+	public void setReadsBatchSize(Integer readsBatchSize) {
+		this.setReadsBatchSize(readsBatchSize.intValue());
+	}
+	
+	/**
+	 * @return true if alignments are validated before they are written
+	 */
+	public boolean isValidateAlignments() {
+		return validateAlignments;
+	}
+
+	/**
+	 * @param validateAlignments true if alignments should be validated before they are written
+	 */
+	public void setValidateAlignments(boolean validateAlignments) {
+		this.validateAlignments = validateAlignments;
+	}
+	
+	public void setValidateAlignments(Boolean validateAlignments) {
+		this.setValidateAlignments(validateAlignments.booleanValue());
+	}
 
 	/**
-	 * Aligns readsFile with the fMIndexFile
-	 * @param fMIndexFile Binary file with the serialization of an FMIndex
+	 * Aligns the reads in the given file to the FM-index of this aligner.
+	 * If more than one thread is used, reads are aligned in batches by a pool of threads
+	 * sharing the index and alignments are written in the same order of the input reads 
 	 * @param readsFile Fastq file with the reads to align
-	 * @param out
-	 * @throws IOException
+	 * @param writer Writer for the alignments
+	 * @throws IOException If the reads can not be read or the alignments can not be written
 	 */
 	public void alignReads( String readsFile, ReadAlignmentFileWriter writer) throws IOException {
-		 
-		
-		int totalReads = 0;
-		int readsAligned = 0;
-		int uniqueAlignments=0;
+		stats = new AlignmentStatistics();
 		long time = System.currentTimeMillis();
-		try (FastqFileReader reader = new FastqFileReader(readsFile)) {
+		try (FastqFileReader reader = new FastqFileReader(readsFile, numThreads)) {
 			//Load as DNAMaskedSequence to allow reverse complement
 			reader.setSequenceType(DNAMaskedSequence.class);
 			Iterator<RawRead> it = reader.iterator();
-			while(it.hasNext()) {
-				RawRead read = it.next();
-				List<ReadAlignment> alns = alignRead(read);
-				//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
-				for(ReadAlignment aln:alns) writer.write(aln);
-				if(alns.size()==0) {
-					ReadAlignment alnNoMap = new ReadAlignment(null, 0, 0, read.getLength(), ReadAlignment.FLAG_READ_UNMAPPED);
-					alnNoMap.setReadName(read.getName());
-					alnNoMap.setReadCharacters(read.getCharacters());
-					alnNoMap.setQualityScores(read.getQualityScores());
-					writer.write(alnNoMap);
+			if(numThreads>1) {
+				alignReadsParallel(it, writer, stats);
+			} else {
+				while(it.hasNext()) {
+					RawRead read = it.next();
+					List<ReadAlignment> alns = alignRead(read);
+					//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
+					writeAlignments(read, alns, writer, stats);
 				}
-				int numAlns = alns.size();
-				totalReads++;
-				if(numAlns>0) readsAligned++;
-				if(numAlns==1) uniqueAlignments++;
-				if(totalReads%100000==0) log.info("Processed "+totalReads+" reads. Aligned: "+readsAligned);
 			}
 		}
+		int totalReads = stats.totalReads;
+		int readsAligned = stats.readsAligned;
 		log.info("Total reads: "+totalReads);
 		log.info("Reads aligned: "+readsAligned);
-		log.info("Unique alignments: "+uniqueAlignments);
+		log.info("Unique alignments: "+stats.uniqueAlignments);
+		log.info("Clusters aligned within a clamped band: "+stats.clampedBandClusters.get());
 		log.info("Overall alignment rate: "+(100.0*readsAligned/(double)totalReads)+"%");
 		double seconds = (System.currentTimeMillis()-time);
 		seconds /=1000;
 		log.info("Time: "+seconds+" seconds");
 
 	}
-
-
+	
+	private void alignReadsParallel(Iterator<RawRead> it, ReadAlignmentFileWriter writer, AlignmentStatistics stats) throws IOException {
+		log.info("Aligning reads in batches of "+readsBatchSize+" with "+numThreads+" threads");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Only a limited number of batches is aligned ahead of the writing to bound memory usage
+		int maxBatchesInProgress = 2*numThreads;
+		LinkedList<List<RawRead>> batches = new LinkedList<>();
+		LinkedList<Future<List<List<ReadAlignment>>>> futures = new LinkedList<>();
+		try {
+			while(it.hasNext() || !futures.isEmpty()) {
+				while(it.hasNext() && futures.size()<maxBatchesInProgress) {
+					final List<RawRead> batch = new ArrayList<>(readsBatchSize);
+					while(it.hasNext() && batch.size()<readsBatchSize) batch.add(it.next());
+					batches.add(batch);
+					futures.add(pool.submit(() -> alignBatch(batch)));
+				}
+				List<RawRead> batch = batches.removeFirst();
+				List<List<ReadAlignment>> batchAlns;
+				try {
+					batchAlns = futures.removeFirst().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while aligning reads starting at "+batch.get(0).getName(), e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error aligning reads starting at "+batch.get(0).getName(), cause);
+				}
+				for(int i=0;i<batch.size();i++) {
+					writeAlignments(batch.get(i), batchAlns.get(i), writer, stats);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private List<List<ReadAlignment>> alignBatch(List<RawRead> batch) {
+		List<List<ReadAlignment>> answer = new ArrayList<>(batch.size());
+		for(RawRead read:batch) answer.add(alignRead(read));
+		return answer;
+	}
+	
+	private void writeAlignments(RawRead read, List<ReadAlignment> alns, ReadAlignmentFileWriter writer, AlignmentStatistics stats) {
+		for(ReadAlignment aln:alns) writer.write(aln);
+		if(alns.size()==0) {
+			ReadAlignment alnNoMap = new ReadAlignment(null, 0, 0, read.getLength(), ReadAlignment.FLAG_READ_UNMAPPED);
+			alnNoMap.setReadName(read.getName());
+			alnNoMap.setReadCharacters(read.getCharacters());
+			alnNoMap.setQualityScores(read.getQualityScores());
+			writer.write(alnNoMap);
+		}
+		int numAlns = alns.size();
+		stats.totalReads++;
+		if(numAlns>0) stats.readsAligned++;
+		if(numAlns==1) stats.uniqueAlignments++;
+		if(stats.totalReads%100000==0) log.info("Processed "+stats.totalReads+" reads. Aligned: "+stats.readsAligned);
+	}
 
 	public List<ReadAlignment> alignRead(RawRead read) {
 		List<ReadAlignment> alignments = kmerBasedInexactSearchAlgorithm(read);
@@ -292,9 +418,19 @@ public class ReadsAligner {
 			if(refSeq == null) return null;
 			//System.out.println(""+query);
 			//System.out.println(""+refSeq);
-			AlignmentResult result = smithWatermanLocalAlignment(query.toString(),refSeq);
+			//Band covering the diagonals of the k-mers in the cluster plus possible indels in regions not covered by k-mers
+			int minDiagonal = cluster.getFirst() - first - SEARCH_KMER_LENGTH;
+			int maxDiagonal = cluster.getLastKmerFirst() - first + SEARCH_KMER_LENGTH;
+			if(maxDiagonal-minDiagonal > 2*MAX_SPACE_BETWEEN_KMERS) {
+				//Chained k-mers spread the diagonals too much. Clamp the band around the diagonal supported by most k-mers
+				int centerDiagonal = cluster.getMostSupportedFirst() - first;
+				minDiagonal = Math.max(minDiagonal, centerDiagonal - MAX_SPACE_BETWEEN_KMERS);
+				maxDiagonal = Math.min(maxDiagonal, centerDiagonal + MAX_SPACE_BETWEEN_KMERS);
+				stats.clampedBandClusters.incrementAndGet();
+			}
+			AlignmentResult result = aligners.get().align(query, refSeq, minDiagonal, maxDiagonal);
 			//TODO: Make better score
-			if(result.getDistance()>0.5*query.length()) return null;
+			if(result==null || result.getDistance()>0.5*query.length()) return null;
 			
 			//Last must be updated before first
 			last = first+result.getSubjectLastIdx();
@@ -311,72 +447,6 @@ public class ReadsAligner {
 		return aln;
 	}
 	
-	private AlignmentResult smithWatermanLocalAlignment(CharSequence query, CharSequence subject) {
-		//Matrix for dynamic programming saves the lowest weight from 0,0 to i,j
-		int[][] scores = new int[query.length()+1][subject.length()+1]; 
-		int minLastRow = scores.length*scores[0].length;
-		int minJLastRow = -1;
-		for (int i = 0; i < scores.length; i++) {	
-			scores[i][0] = i==0?0:scores[i-1][0]+1;
-			for (int j = 1; j < scores[0].length; j++) 
-			{
-				if(i==0)
-				{
-					scores[i][j]=0;
-				}
-				//This case can be reached from upper (i-1,j)
-				//From left (i,j-1)
-				//or from upper left diagonal (i-1,j-1)
-				else
-				{
-					int d = query.charAt(i-1)!=subject.charAt(j-1)?1:0;
-					int min = scores[i-1][j-1]+d;
-					int a = 1 + scores[i-1][j];
-					if(min>a) min= a;
-					int b = 1 + scores[i][j-1];
-					if(min>b) min=b;
-					scores[i][j]=min;
-				}
-				if(i==scores.length-1 && (j==1 || minLastRow>=scores[i][j])) {
-					minLastRow = scores[i][j];
-					minJLastRow = j; 
-				}
-			}
-		}
-		//At this point we have the minimum cost to reach the corner (A.length-1,A[0].length-1)
-		//Now we have to go back and remember the decisions from the minimum of the last row
-		int i = scores.length-1;
-		int j= minJLastRow;
-		//System.out.println("Subject length: "+subject.length()+" minJ last row: "+j+" minscore: "+minLastRow);
-		AlignmentResult result = new AlignmentResult();
-		result.setSubjectLastIdx(minJLastRow-1);
-		result.setDistance(minLastRow);
-		//The algorithm keeps going back until reach origin
-		while(i>0 && j>0) {
-			//We want the path with lowest cost
-			int d = query.charAt(i-1)!=subject.charAt(j-1)?1:0;
-			int sD = scores[i-1][j-1]+d;
-			int sA = 1 + scores[i-1][j];
-			if( sD == scores[i][j]) {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_MATCH));
-				i--;
-				j--;
-			} else if( sA == scores[i][j]) {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_INSERTION));
-				i--;
-			} else {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_DELETION));
-				j--;
-			}
-		}
-		result.setSubjectStartIdx(j);
-		//System.out.println("Subject start: "+result.getSubjectStartIdx());
-		while(i>0) {
-			result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_INSERTION));
-			i--;
-		}
-		return result;
-	}
 	private List<ReadAlignment> filterAlignments(List<ReadAlignment> alignments) {
 		if (alignments.size()==0) return alignments;
 		Collections.sort(alignments, new Comparator<ReadAlignment>() {
@@ -402,82 +472,12 @@ public class ReadsAligner {
 		return filteredAlignments;
 	}
 }
-class AlignmentResult {
-	private int subjectStartIdx;
-	private int subjectLastIdx;
-	private int distance;
-	private LinkedList<Character> path = new LinkedList<>();
-	
-	public void addBacktrack(char decision) {
-		path.add(0, decision);
-	}
-	
-	public String getCigarString () {
-		StringBuilder cigar = new StringBuilder();
-		int nextCount = 0;
-		char next = 0;
-		for(char c:path) {
-			if(c!=next) {
-				if(nextCount>0) {
-					cigar.append(nextCount);
-					cigar.append(next);
-				}
-				nextCount = 1;
-				next = c;
-			} else {
-				nextCount++;
-			}
-		}
-		if(nextCount>0) {
-			cigar.append(nextCount);
-			cigar.append(next);
-		}
-		return cigar.toString();
-	}
-
-	/**
-	 * @return the subjectStartIdx
-	 */
-	public int getSubjectStartIdx() {
-		return subjectStartIdx;
-	}
-
-	/**
-	 * @param subjectStartIdx the subjectStartIdx to set
-	 */
-	public void setSubjectStartIdx(int subjectStartIdx) {
-		this.subjectStartIdx = subjectStartIdx;
-	}
-
-	/**
-	 * @return the subjectLastIdx
-	 */
-	public int getSubjectLastIdx() {
-		return subjectLastIdx;
-	}
-
-	/**
-	 * @param subjectLastIdx the subjectLastIdx to set
-	 */
-	public void setSubjectLastIdx(int subjectLastIdx) {
-		this.subjectLastIdx = subjectLastIdx;
-	}
-
-	/**
-	 * @return the distance
-	 */
-	public int getDistance() {
-		return distance;
-	}
-
-	/**
-	 * @param distance the distance to set
-	 */
-	public void setDistance(int distance) {
-		this.distance = distance;
-	}
-	
-	
+class AlignmentStatistics {
+	int totalReads = 0;
+	int readsAligned = 0;
+	int uniqueAlignments = 0;
+	//Updated by the threads aligning reads
+	AtomicInteger clampedBandClusters = new AtomicInteger();
 }
 class KmerWithStart {
 	private CharSequence kmer;
@@ -506,6 +506,8 @@ class KmerAlignmentCluster implements GenomicRegion {
 	private String sequenceName;
 	private int first;
 	private int last;
+	//Largest start of the query estimated from the k-mers of the cluster
+	private int lastKmerFirst;
 	private Set<Integer> kmerNumbers = new HashSet<>();
 	private boolean allConsistent = true;
 	private boolean repeatedNumber = false;
@@ -517,6 +519,7 @@ class KmerAlignmentCluster implements GenomicRegion {
 		int kmerQueryStart = aln.getReadNumber();
 		first = aln.getFirst() - kmerQueryStart;
 		last = aln.getFirst()+(query.length()-kmerQueryStart-1);
+		lastKmerFirst = first;
 		alns.add(aln);
 		kmerNumbers.add(kmerQueryStart);
 		lastAlnPresent = kmerQueryStart+aln.length()==query.length();
@@ -564,10 +567,36 @@ class KmerAlignmentCluster implements GenomicRegion {
 		if(kmerQueryStart+aln.length()==query.length()) lastAlnPresent=true;
 		if(first>estFirst) first = estFirst;
 		if(last<estLast) last = estLast;
+		if(lastKmerFirst<estFirst) lastKmerFirst = estFirst;
 		alns.add(aln);
 		return true;	
 	}
 
+	/**
+	 * @return Largest start of the query estimated from the k-mers of this cluster
+	 */
+	public int getLastKmerFirst() {
+		return lastKmerFirst;
+	}
+	
+	/**
+	 * @return Start of the query estimated by the largest number of k-mers of this cluster. Ties are resolved choosing the smallest start
+	 */
+	public int getMostSupportedFirst() {
+		Map<Integer,Integer> counts = new HashMap<>();
+		int answer = first;
+		int maxCount = 0;
+		for(ReadAlignment aln:alns) {
+			int estFirst = aln.getFirst() - aln.getReadNumber();
+			int count = counts.merge(estFirst, 1, Integer::sum);
+			if(count>maxCount || (count==maxCount && estFirst<answer)) {
+				answer = estFirst;
+				maxCount = count;
+			}
+		}
+		return answer;
+	}
+
 	/**
 	 * @return the query
 	 */
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -32,16 +33,22 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
+import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMUtils;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
 import ngsep.alignments.ReadAlignment;
 import ngsep.genome.ReferenceGenome;
+import ngsep.main.io.ParallelBlockCompressedInputStream;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
@@ -57,7 +64,8 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	
 	private Logger log = Logger.getLogger(ReadAlignmentFileReader.class.getName());
 	
-	private SAMRecordIterator it; 
+	private SamReader samReader;
+	private CloseableIterator<SAMRecord> it; 
 	
 	private ReadAlignmentFileIterator currentIterator = null;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
@@ -73,17 +81,27 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
 	
 	public ReadAlignmentFileReader (String filename) throws IOException {
-		init(null,new File(filename));
+		init(null,new File(filename),1);
+	}
+	/**
+	 * Creates a reader that inflates BAM files with the given number of threads while iterating over all alignments.
+	 * Queries by genomic region are always inflated by the thread reading the alignments
+	 * @param filename Name of the SAM or BAM file
+	 * @param numThreads Number of threads to inflate the file. If it is 1, data is inflated by the thread reading the alignments
+	 * @throws IOException If the file can not be opened
+	 */
+	public ReadAlignmentFileReader (String filename, int numThreads) throws IOException {
+		init(null,new File(filename),numThreads);
 	}
 	public ReadAlignmentFileReader (String filename, ReferenceGenome genome, boolean validateHeader) throws IOException {
 		sequences = genome.getSequencesMetadata();
 		this.validateHeader = validateHeader;
-		init(null,new File(filename));
+		init(null,new File(filename),1);
 	}
 	public ReadAlignmentFileReader (String filename, QualifiedSequenceList sequences, boolean validateHeader) throws IOException {
 		this.sequences = sequences;
 		this.validateHeader = validateHeader;
-		init(null,new File(filename));
+		init(null,new File(filename),1);
 	}
 	//TODO: Make more constructors
 	public Logger getLog() {
@@ -134,6 +152,14 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	@Override
 	public void close() throws IOException {
 		it.close();
+		samReader.close();
+	}
+	
+	/**
+	 * @return true if the file has an index that allows to query alignments by genomic region
+	 */
+	public boolean hasIndex() {
+		return samReader.hasIndex();
 	}
 
 	@Override
@@ -148,16 +174,42 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		return currentIterator;
 	}
 	
-	private void init (InputStream stream, File file) throws IOException {
-		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
-		if(file!=null) {
-			stream = new FileInputStream(file);
+	/**
+	 * Iterates over the alignments overlapping the given region. The file must be indexed
+	 * PRE: No other iteration has been started on this reader
+	 * @param sequenceName Name of the sequence to query
+	 * @param first First position of the region to query (1-based)
+	 * @param last Last position of the region to query (1-based)
+	 * @return Iterator<ReadAlignment> Iterator over the alignments overlapping the given region
+	 */
+	public Iterator<ReadAlignment> query(String sequenceName, int first, int last) {
+		if (it == null) {
+			throw new IllegalStateException("File reader is closed");
 		}
+		if (currentIterator != null) {
+			throw new IllegalStateException("Iteration in progress");
+		}
+		if (!samReader.hasIndex()) {
+			throw new IllegalStateException("Alignments file is not indexed");
+		}
+		//Only one htsjdk iterator can be open at the same time
+		it.close();
+		it = samReader.queryOverlapping(sequenceName, first, last);
+		currentIterator = new ReadAlignmentFileIterator();
+		return currentIterator;
+	}
+	
+	private void init (InputStream stream, File file, int numThreads) throws IOException {
+		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
 		//TODO: Use stream
-		SamReader reader = SamReaderFactory.makeDefault().open(file);
-		SAMFileHeader header = reader.getFileHeader();
+		samReader = SamReaderFactory.makeDefault().open(file);
+		SAMFileHeader header = samReader.getFileHeader();
 		if(header != null) loadHeader(header);
-		it = reader.iterator();
+		if(numThreads>1 && SamReader.Type.BAM_TYPE.equals(samReader.type())) {
+			it = new ParallelBAMRecordIterator(file, header, numThreads);
+		} else {
+			it = samReader.iterator();
+		}
 	}
 	private void loadHeader(SAMFileHeader header) throws IOException {
 		for(SAMReadGroupRecord rgRecord:header.getReadGroups()) {
@@ -270,6 +322,73 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		return true;
 	}
 	
+	/**
+	 * Iterator decoding the records of a BAM file inflated in parallel. Records are validated as htsjdk does
+	 * with the default validation stringency
+	 */
+	private static class ParallelBAMRecordIterator implements CloseableIterator<SAMRecord> {
+		private static final byte [] BAM_MAGIC = {'B','A','M',1};
+		private final ParallelBlockCompressedInputStream stream;
+		private final BAMRecordCodec codec;
+		private SAMRecord nextRecord = null;
+		private long recordIndex = 0;
+		
+		public ParallelBAMRecordIterator(File file, SAMFileHeader header, int numThreads) throws IOException {
+			stream = new ParallelBlockCompressedInputStream(new FileInputStream(file), numThreads);
+			try {
+				skipBinaryHeader(new BinaryCodec(stream));
+			} catch (RuntimeException e) {
+				stream.close();
+				throw new IOException("Can not read header of BAM file "+file.getName(), e);
+			}
+			codec = new BAMRecordCodec(header);
+			codec.setInputStream(stream, file.getName());
+		}
+		/**
+		 * Skips the binary header. The header was already loaded by the htsjdk reader
+		 * @param binaryCodec Codec reading the inflated stream
+		 * @throws IOException If the file is not a BAM file
+		 */
+		private void skipBinaryHeader(BinaryCodec binaryCodec) throws IOException {
+			byte [] magic = new byte[BAM_MAGIC.length];
+			binaryCodec.readBytes(magic);
+			if(!Arrays.equals(magic, BAM_MAGIC)) throw new IOException("Invalid BAM file header");
+			binaryCodec.readBytes(new byte[binaryCodec.readInt()]);
+			int numSequences = binaryCodec.readInt();
+			for(int i=0;i<numSequences;i++) {
+				binaryCodec.readBytes(new byte[binaryCodec.readInt()]);
+				binaryCodec.readInt();
+			}
+		}
+		@Override
+		public boolean hasNext() {
+			if(nextRecord == null) nextRecord = codec.decode();
+			return nextRecord!=null;
+		}
+		@Override
+		public SAMRecord next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			SAMRecord answer = nextRecord;
+			nextRecord = null;
+			recordIndex++;
+			answer.setValidationStringency(ValidationStringency.DEFAULT_STRINGENCY);
+			SAMUtils.processValidationErrors(answer.isValid(), recordIndex, ValidationStringency.DEFAULT_STRINGENCY);
+			return answer;
+		}
+		@Override
+		public void close() {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			}
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not supported by ParallelBAMRecordIterator");
+		}
+	}
+	
 	private class ReadAlignmentFileIterator implements Iterator<ReadAlignment> {
 		private ReadAlignment nextAln;
 		public ReadAlignmentFileIterator() {
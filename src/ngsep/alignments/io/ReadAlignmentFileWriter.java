@@ -20,31 +20,55 @@
 package ngsep.alignments.io;
 
 import java.io.Closeable;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.logging.Logger;
 
+import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
 import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.util.BinaryCodec;
 import ngsep.alignments.ReadAlignment;
+import ngsep.main.io.ParallelBlockCompressedOutputStream;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
 /**
+ * Writes read alignments in BAM format. Records are encoded by the calling thread and
+ * BGZF blocks are compressed by the given number of threads
  * @author German Andrade
  * @author Jorge Duitama 
  *
  */
 public class ReadAlignmentFileWriter implements Closeable {
 	
-	private SAMFileWriter writer;
+	private static final byte [] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+	private Logger log = Logger.getLogger(ReadAlignmentFileWriter.class.getName());
+	private ParallelBlockCompressedOutputStream compressedStream;
+	private BAMRecordCodec recordCodec;
 	private SAMFileHeader samFileHeader;
+	private boolean validateRecords = false;
 
-	public ReadAlignmentFileWriter (QualifiedSequenceList sequences, PrintStream out)
+	public ReadAlignmentFileWriter (QualifiedSequenceList sequences, OutputStream out) throws IOException
+	{
+		this(sequences, out, ParallelBlockCompressedOutputStream.DEF_NUM_THREADS);
+	}
+	
+	/**
+	 * Creates a writer of BAM records
+	 * @param sequences Reference sequences to write in the header
+	 * @param out Stream to write the BAM file
+	 * @param numThreads Number of threads to compress the output
+	 * @throws IOException If the header can not be written
+	 */
+	public ReadAlignmentFileWriter (QualifiedSequenceList sequences, OutputStream out, int numThreads) throws IOException
 	{
 		samFileHeader = new SAMFileHeader();
 		SAMSequenceDictionary sequenceDictionary = new SAMSequenceDictionary();
@@ -53,7 +77,47 @@ public class ReadAlignmentFileWriter implements Closeable {
 			sequenceDictionary.addSequence(sequenceRecord);
 		}
 		samFileHeader.setSequenceDictionary(sequenceDictionary);
-		writer= new SAMFileWriterFactory().makeBAMWriter(samFileHeader, false, out);
+		samFileHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		compressedStream = new ParallelBlockCompressedOutputStream(out, numThreads);
+		writeHeader();
+		recordCodec = new BAMRecordCodec(samFileHeader);
+		recordCodec.setOutputStream(compressedStream);
+	}
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		if (log == null) throw new NullPointerException("Log can not be null");
+		this.log = log;
+	}
+	
+	/**
+	 * @return boolean true if records are validated before they are written
+	 */
+	public boolean isValidateRecords() {
+		return validateRecords;
+	}
+	/**
+	 * @param validateRecords true if records should be validated before they are written.
+	 * Validation errors are reported in the log
+	 */
+	public void setValidateRecords(boolean validateRecords) {
+		this.validateRecords = validateRecords;
+	}
+	
+	private void writeHeader() {
+		StringWriter headerText = new StringWriter();
+		new SAMTextHeaderCodec().encode(headerText, samFileHeader);
+		BinaryCodec codec = new BinaryCodec(compressedStream);
+		codec.writeBytes(BAM_MAGIC);
+		codec.writeString(headerText.toString(), true, false);
+		SAMSequenceDictionary sequenceDictionary = samFileHeader.getSequenceDictionary();
+		codec.writeInt(sequenceDictionary.size());
+		for(SAMSequenceRecord sequenceRecord:sequenceDictionary.getSequences()) {
+			codec.writeString(sequenceRecord.getSequenceName(), true, true);
+			codec.writeInt(sequenceRecord.getSequenceLength());
+		}
 	}
 	
 	public void write(ReadAlignment readAlignment)
@@ -89,12 +153,13 @@ public class ReadAlignmentFileWriter implements Closeable {
 		samRecord.setBaseQualityString(readAlignment.getQualityScores());
 		
 		//System.out.println("Bases: "+samRecord.getReadString()+" qual: "+samRecord.getBaseQualityString());
-		List<SAMValidationError> errors= samRecord.isValid();
-		if(errors!=null) System.out.println("errors: "+errors.size());
-		writer.addAlignment(samRecord);
-		//System.out.println("Saved record ");	
+		if(validateRecords) {
+			List<SAMValidationError> errors= samRecord.isValid();
+			if(errors!=null) log.warning("Invalid record for read "+readAlignment.getReadName()+". Errors: "+errors);
+		}
+		recordCodec.encode(samRecord);
 	}
-	public void close() {
-		writer.close();
+	public void close() throws IOException {
+		compressedStream.close();
 	}
 }
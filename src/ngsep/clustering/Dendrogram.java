@@ -1,45 +1,83 @@
 package ngsep.clustering;
 
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 
 
 public class Dendrogram {
 
-  private Dendrogram leftDendro;
-  private Dendrogram rightDendro;
-  //private double leftTreeDistance;
-  //private double rightTreeDistance;
   private String label;
+  private List<Dendrogram> children = new ArrayList<>();
+  private List<Double> branchLengths = new ArrayList<>();
   
-  /*
-  Tree(Tree leftTree, Tree rightTree, double leftTreeDistance, double rightTreeDistance, String label) {
-    this.leftTree = leftTree;
-    this.rightTree = rightTree;
-    this.leftTreeDistance = leftTreeDistance;
-    this.rightTreeDistance = rightTreeDistance;
+  /**
+   * Creates a leaf or an internal node without children
+   * @param label Label of the node. Only labels of leaves are printed
+   */
+  Dendrogram(String label) {
     this.label = label;
-  }*/
+  }
   
-  Dendrogram(Dendrogram leftDendro, Dendrogram rightDendro,  String label) {
-    this.leftDendro = leftDendro;
-    this.rightDendro = rightDendro;
-    this.label = label;
+  /**
+   * Adds a child to this node
+   * @param child New child
+   * @param branchLength Length of the branch connecting this node with the child
+   */
+  void addChild(Dendrogram child, double branchLength) {
+    children.add(child);
+    branchLengths.add(branchLength);
+  }
+  
+  public String getLabel() {
+    return label;
+  }
+  
+  public boolean isLeaf() {
+    return children.isEmpty();
+  }
+  
+  public List<Dendrogram> getChildren() {
+    return children;
+  }
+  
+  public double getBranchLength(int childIdx) {
+    return branchLengths.get(childIdx);
   }
 
+  /**
+   * Prints this dendrogram in Newick format. The tree is traversed without recursion
+   * to support deep trees
+   * @param ps Stream to print the tree
+   */
   public void printTree(final PrintStream ps) {
-    
-	if (leftDendro != null) {
-		leftDendro.printTree(ps);
-    }
-    ps.print(label);
-    if (rightDendro != null) {
-    	rightDendro.printTree(ps);
+    Deque<Dendrogram> path = new ArrayDeque<>();
+    Deque<Integer> nextChildren = new ArrayDeque<>();
+    path.push(this);
+    nextChildren.push(0);
+    while (!path.isEmpty()) {
+      Dendrogram node = path.peek();
+      int next = nextChildren.pop();
+      if (node.isLeaf()) {
+        ps.print(node.label);
+      } else if (next < node.children.size()) {
+        ps.print(next == 0 ? "(" : ",");
+        nextChildren.push(next + 1);
+        path.push(node.children.get(next));
+        nextChildren.push(0);
+        continue;
+      } else {
+        ps.print(")");
+      }
+      path.pop();
+      if (!path.isEmpty()) {
+        Dendrogram parent = path.peek();
+        ps.print(":" + parent.branchLengths.get(nextChildren.peek() - 1));
+      }
     }
+    ps.print(";\n");
   }
-
-
-  
-
-
-}
\ No newline at end of file
+}
@@ -1,8 +1,12 @@
 package ngsep.clustering;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
@@ -11,10 +15,15 @@ import ngsep.main.ProgressNotifier;
 
 public class NeighborJoining {
 
+	public static final int DEF_NUM_THREADS = 1;
+	//Minimum number of active nodes to search the pair to join in parallel
+	private static final int MIN_NODES_PARALLEL = 256;
+	
 	private Logger log = Logger.getLogger(NeighborJoining.class.getName());
 	private ProgressNotifier progressNotifier=null;
 	
 	private DistanceMatrix distanceMatrix;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	
 	public Logger getLog() {
@@ -31,8 +40,17 @@ public class NeighborJoining {
 		this.progressNotifier = progressNotifier;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be a positive number. Invalid value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 	
-	 
 	 public static void main (String [ ] args) throws Exception {
 			
 	 	NeighborJoining nj = new NeighborJoining();
@@ -43,7 +61,7 @@ public class NeighborJoining {
 	 	DistanceMatrix dm = new DistanceMatrix(matrixFile);
 	 	nj.loadMatrix(dm);
 		Dendrogram njTree = nj.constructNJTree();
-		njTree.printTree(System.out);	
+		if(njTree!=null) njTree.printTree(System.out);
 	}
 	
 
@@ -57,155 +75,346 @@ public class NeighborJoining {
 	
 	
 	/**
-	  * Construct NJ tree and make newick out structure.
-	*/
+	 * Construct NJ tree and make newick out structure.
+	 * Distances between active nodes are stored in a triangular matrix that is updated in place and the
+	 * total distance of each node is updated incrementally after each join. The pair to join is searched over
+	 * rows of distances sorted in ascending order. The search of each row stops as soon as a lower bound
+	 * of the neighbor joining criterion is larger than the best value found so far
+	 * @return Dendrogram Tree built joining the samples of the distance matrix. Null if the process was cancelled
+	 */
 	public Dendrogram constructNJTree(){
+		List<String> ids = distanceMatrix.getIds();
+		int nSamples = ids.size();
+		Dendrogram [] leaves = new Dendrogram[nSamples];
+		for(int i=0;i<nSamples;i++) leaves[i] = new Dendrogram(ids.get(i));
+		if(nSamples==1) return leaves[0];
+		Dendrogram root = new Dendrogram("");
+		if(nSamples==0) return root;
+		if(nSamples==2) {
+			double branchLength = 0.5*distanceMatrix.getDistanceMatrix()[0][1];
+			root.addChild(leaves[0], branchLength);
+			root.addChild(leaves[1], branchLength);
+			return root;
+		}
+		ExecutorService pool = null;
+		if(numThreads>1 && nSamples>=MIN_NODES_PARALLEL) pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			TreeBuilder builder = new TreeBuilder(distanceMatrix.getDistanceMatrix(), leaves, pool, numThreads);
+			int progress = 0;
+			while(builder.getNumActiveNodes()>3) {
+				builder.joinNext();
+				progress++;
+				if (progressNotifier!=null && progress%100==0 && !progressNotifier.keepRunning(progress/100)) return null;
+			}
+			return builder.joinLast();
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
 	
-		double iterableMatrix[][] = distanceMatrix.getDistanceMatrix();
+	/**
+	 * Best candidate pair of nodes to join
+	 */
+	private static class JoinCandidate {
+		private double q = Double.POSITIVE_INFINITY;
+		private int slot1 = -1;
+		private int slot2 = -1;
+		private int key1;
+		private int key2;
 		
-		int nSamples = distanceMatrix.getNumSamples();
+		/**
+		 * Updates this candidate if the given pair has a smaller criterion value. Ties are broken
+		 * choosing the pair with the smallest keys to obtain the same tree regardless of the search order
+		 */
+		private void update(double q, int slotA, int keyA, int slotB, int keyB) {
+			if(keyA>keyB) {
+				update(q, slotB, keyB, slotA, keyA);
+				return;
+			}
+			if(q<this.q || (q==this.q && slot1>=0 && (keyA<key1 || (keyA==key1 && keyB<key2)))) {
+				this.q = q;
+				slot1 = slotA;
+				key1 = keyA;
+				slot2 = slotB;
+				key2 = keyB;
+			}
+		}
+		private void update (JoinCandidate other) {
+			if(other.slot1>=0) update(other.q, other.slot1, other.key1, other.slot2, other.key2);
+		}
+	}
+	
+	/**
+	 * State of the neighbor joining process. Each active node occupies a slot. The node created by a join
+	 * takes the slot of the first node joined and the slot of the second node is released.
+	 * The sorted row of each node has the distances to the nodes that were active and older than the node
+	 * when it was created. In this way each pair of active nodes is represented in exactly one row
+	 */
+	private static class TreeBuilder {
+		private int nLeaves;
+		private ExecutorService pool;
+		private int numThreads;
+		//Upper triangle of the distances by slot
+		private double [][] distances;
+		private double [] totals;
+		private Dendrogram [] trees;
+		private int [] nodeIds;
+		//Slot of each node id. Negative for nodes that are not active
+		private int [] slots;
+		private int [] activeSlots;
+		private int numActive;
+		private int nextNodeId;
+		//Sorted rows encoding distances as floats rounded down together with node ids
+		private long [][] rows;
+		private int [] rowStarts;
+		private long totalRowEntries = 0;
 		
-		int nodesToAssign = nSamples;
+		private TreeBuilder (double [][] matrix, Dendrogram [] leaves, ExecutorService pool, int numThreads) {
+			nLeaves = leaves.length;
+			this.pool = pool;
+			this.numThreads = numThreads;
+			distances = new double[nLeaves][];
+			totals = new double[nLeaves];
+			trees = Arrays.copyOf(leaves, nLeaves);
+			nodeIds = new int [nLeaves];
+			slots = new int [2*nLeaves];
+			Arrays.fill(slots, -1);
+			activeSlots = new int [nLeaves];
+			rows = new long[nLeaves][];
+			rowStarts = new int[nLeaves];
+			for(int i=0;i<nLeaves;i++) {
+				distances[i] = Arrays.copyOfRange(matrix[i], i+1, nLeaves);
+				for(int j=0;j<nLeaves;j++) totals[i]+=matrix[i][j];
+				nodeIds[i] = slots[i] = activeSlots[i] = i;
+				long [] row = new long[i];
+				for(int j=0;j<i;j++) row[j] = encodeEntry(matrix[j][i], j);
+				Arrays.sort(row);
+				rows[i] = row;
+				totalRowEntries+=i;
+			}
+			numActive = nLeaves;
+			nextNodeId = nLeaves;
+		}
 		
-		Map<String, Dendrogram> nodesMerged = new HashMap<>();
+		private int getNumActiveNodes() {
+			return numActive;
+		}
 		
-		Dendrogram njTree = new Dendrogram(null, null, "");
+		private double getDistance (int slot1, int slot2) {
+			if(slot1<slot2) return distances[slot1][slot2-slot1-1];
+			return distances[slot2][slot1-slot2-1];
+		}
 		
-		ArrayList<String> nodesList = new ArrayList<>(distanceMatrix.getIds());
+		private void setDistance (int slot1, int slot2, double distance) {
+			if(slot1<slot2) distances[slot1][slot2-slot1-1] = distance;
+			else distances[slot2][slot1-slot2-1] = distance;
+		}
 		
+		/**
+		 * Leaves have as key their index in the matrix. Internal nodes have negative keys, smaller for
+		 * the most recent nodes. This reproduces the order in which nodes were compared in the original implementation
+		 */
+		private int getKey (int nodeId) {
+			if(nodeId<nLeaves) return nodeId;
+			return nLeaves-nodeId-1;
+		}
 		
-		while(nodesToAssign>2){
-			
-			double njMatrix[][]= new double[nodesToAssign][nodesToAssign];
-			double totalDistance[]= new double[nodesToAssign];
-			
-			//Calculate total distance array
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < nodesToAssign; j++){
-					totalDistance[i] += iterableMatrix[i][j];
-				}  
-			}
-			
-			//Compute Neighbor Joining matrix
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < i; j++){
-					njMatrix[i][j] = njMatrix[j][i] = ((nodesToAssign - 2) * iterableMatrix[i][j]) - totalDistance[i] - totalDistance[j];
-				}  
+		/**
+		 * Finds and joins the pair of active nodes minimizing the neighbor joining criterion
+		 */
+		private void joinNext () {
+			if(totalRowEntries > (long)numActive*numActive) compactRows();
+			double tMax = getMaxTotal();
+			JoinCandidate best = new JoinCandidate();
+			if(pool == null || numActive<MIN_NODES_PARALLEL) {
+				searchRows(0, 1, tMax, best);
+			} else {
+				List<Future<JoinCandidate>> futures = new ArrayList<>();
+				for(int i=0;i<numThreads;i++) {
+					final int first = i;
+					futures.add(pool.submit(() -> {
+						JoinCandidate candidate = new JoinCandidate();
+						searchRows(first, numThreads, tMax, candidate);
+						return candidate;
+					}));
+				}
+				for(Future<JoinCandidate> future:futures) best.update(waitTask(future));
 			}
-			
-			int rowMin = -1;
-			int colMin = -1;
-			double minValue = Float.POSITIVE_INFINITY;
-			
-			//Minimum value in matrix
-			//need to be improve searching only in the triangle
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < nodesToAssign; j++){
-					if(njMatrix[i][j]<minValue && i != j){
-						rowMin = i;
-						colMin = j;
-						minValue = njMatrix[i][j];
-					}
-				}  
+			if(best.slot1<0) throw new IllegalArgumentException("Invalid distances to build the tree. Criterion value can not be calculated for any pair of nodes");
+			join(best.slot1, best.slot2);
+		}
+		
+		private JoinCandidate waitTask(Future<JoinCandidate> future) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while building neighbor joining tree", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new RuntimeException("Error building neighbor joining tree", cause);
 			}
-			
-						
-			nodesToAssign--;
-			
-			if(nodesToAssign > 2){
-				//branch length estimation
-				double leftTreeDistance = (0.5f * iterableMatrix[rowMin][colMin]) + ((totalDistance[rowMin] - totalDistance[colMin] ) / (2 * (nodesToAssign - 1)));
-				double rightTreeDistance  = (0.5f * iterableMatrix[rowMin][colMin]) + ((totalDistance[colMin] - totalDistance[rowMin])/ (2 * (nodesToAssign - 1)));
-
-				//Central node join and newick formatting		
-				String nodeMergeId = "("+nodesList.get(rowMin) +":"+leftTreeDistance+","+ nodesList.get(colMin)+":"+rightTreeDistance+")";
-				
-				//Try to get back existing trees
-				Dendrogram leftTree = nodesMerged.get(nodesList.get(rowMin)); 
-				Dendrogram rightTree = nodesMerged.get(nodesList.get(colMin)); 
-				
-				//If trees not exist create new ones
-				if(leftTree == null){
-					leftTree = new Dendrogram(null, null, nodesList.get(rowMin));
-				}
-				
-				if(rightTree == null){
-					rightTree = new Dendrogram(null, null, nodesList.get(colMin));
-				}
-				
-				//Make a new tree with the two joined nodes
-				njTree = new Dendrogram( leftTree, rightTree, nodeMergeId);			
-				nodesMerged.put(nodeMergeId, njTree);
-				
-				//Next iteration nodes positions
-				ArrayList<String> currentNodes = new ArrayList<>();
-				currentNodes.add(nodeMergeId);
-				for(int n=0;n<nodesList.size();n++){
-					if(n != rowMin && n != colMin){ //erase joined nodes from nodes list
-						currentNodes.add(nodesList.get(n));
-					}
-
-				}
-				
-				// distance matrix update
-				double updateDistanceMatrix[][] = new double[nodesToAssign][nodesToAssign];
-				
-				//adding new row, col and bringing back old distances
-				for(int i=1;i<nodesToAssign;i++){
-					for(int j=0;j<i;j++){
-						int index_i = nodesList.indexOf(currentNodes.get(i));
-						if(j==0){ //if new node, calculate distance
-							updateDistanceMatrix[j][i] = updateDistanceMatrix[i][j] = 0.5f * (iterableMatrix[rowMin][index_i]+iterableMatrix[colMin][index_i] - iterableMatrix[rowMin][colMin]);
-						} else { //else bring old ones
-							int index_j = nodesList.indexOf(currentNodes.get(j));
-							updateDistanceMatrix[j][i] = updateDistanceMatrix[i][j] = iterableMatrix[index_i][index_j];
-						}
-						
+		}
+		
+		private double getMaxTotal() {
+			double tMax = totals[activeSlots[0]];
+			for(int i=1;i<numActive;i++) tMax = Math.max(tMax, totals[activeSlots[i]]);
+			return tMax;
+		}
+		
+		/**
+		 * Searches the best pair to join over the rows of a subset of the active nodes
+		 * @param first Index in the active slots of the first row to search
+		 * @param step Difference between the indexes of consecutive rows to search
+		 * @param tMax Maximum total distance of an active node
+		 * @param best Candidate to update
+		 */
+		private void searchRows (int first, int step, double tMax, JoinCandidate best) {
+			double factor = numActive-2;
+			for(int i=first;i<numActive;i+=step) {
+				int slot = activeSlots[i];
+				int key = getKey(nodeIds[slot]);
+				long [] row = rows[slot];
+				double total = totals[slot];
+				int start = rowStarts[slot];
+				for(int j=start;j<row.length;j++) {
+					long entry = row[j];
+					int otherSlot = slots[(int)entry];
+					if(otherSlot<0) {
+						//Entries of nodes already joined at the start of the row are not visited again
+						if(j==start) start++;
+						continue;
 					}
-					
+					double lowerBound = factor*decodeDistance(entry) - total - tMax;
+					if(lowerBound>best.q) break;
+					int otherKey = getKey((int)entry);
+					double q = factor*getDistance(slot, otherSlot);
+					//Totals are subtracted in the same order regardless of the row to obtain exactly the same value
+					if(key>otherKey) q = q - total - totals[otherSlot];
+					else q = q - totals[otherSlot] - total;
+					best.update(q, slot, key, otherSlot, otherKey);
 				}
-				
+				rowStarts[slot] = start;
+			}
+		}
+		
+		/**
+		 * Joins the nodes in the given slots. The new node takes the first slot
+		 * @param slotA Slot of the node with the smallest key
+		 * @param slotB Slot of the node with the largest key
+		 */
+		private void join (int slotA, int slotB) {
+			double dab = getDistance(slotA, slotB);
+			double ta = totals[slotA];
+			double tb = totals[slotB];
+			double leftDistance = 0.5*dab + (ta-tb)/(2*(numActive-2));
+			double rightDistance = 0.5*dab + (tb-ta)/(2*(numActive-2));
+			Dendrogram tree = new Dendrogram("");
+			tree.addChild(trees[slotA], leftDistance);
+			tree.addChild(trees[slotB], rightDistance);
 			
-				nodesList= currentNodes;
-				
-				iterableMatrix = updateDistanceMatrix;
-				
-			} else { // FINAL JOIN ---------------------------------------------------------
-				
-				
-				double leftTreeDistance = (0.5f * iterableMatrix[1][2]) + (0.5f * (totalDistance[1] - totalDistance[2]));
-				double rightTreeDistance  = (0.5f * iterableMatrix[1][2]) + (0.5f * (totalDistance[2] - totalDistance[1]));
-				
-				double centralTreeDistance = 0.0f;
-				
-				//Calculate final distance between join node and the last two
-				if(rowMin!=0){
-					if(rowMin<colMin || colMin == 0){
-						centralTreeDistance = (0.5f * iterableMatrix[0][rowMin]) + (0.5f * (totalDistance[rowMin] - totalDistance[0]));
-					} else{
-						centralTreeDistance = (0.5f * iterableMatrix[0][colMin]) + (0.5f * (totalDistance[colMin] - totalDistance[0]));
-					}
-				} else{
-					centralTreeDistance = (0.5f * iterableMatrix[0][colMin]) + (0.5f * (totalDistance[colMin] - totalDistance[0]));
+			//Release nodes
+			slots[nodeIds[slotA]] = slots[nodeIds[slotB]] = -1;
+			for(int i=0;i<numActive;i++) {
+				if(activeSlots[i]==slotB) {
+					activeSlots[i] = activeSlots[numActive-1];
+					break;
 				}
-				
-							
-				String nodeMergeId = nodesList.get(0);
-				
-				// Newick format
-				Dendrogram leftTree = new Dendrogram(null, null, "("+nodesList.get(2)+":"+rightTreeDistance+","+nodesList.get(1)+":"+leftTreeDistance+",");
-				Dendrogram rightTree = new Dendrogram(null, null, ");\n");
+			}
+			numActive--;
+			totalRowEntries -= rows[slotA].length + rows[slotB].length;
 			
-				njTree = new Dendrogram(leftTree, rightTree, nodeMergeId+":"+centralTreeDistance);			
-
+			//Update distances and totals
+			int nodeId = nextNodeId++;
+			long [] row = new long[numActive-1];
+			int k = 0;
+			double total = 0;
+			for(int i=0;i<numActive;i++) {
+				int slot = activeSlots[i];
+				if(slot==slotA) continue;
+				double dak = getDistance(slotA, slot);
+				double dbk = getDistance(slotB, slot);
+				double duk = 0.5*(dak + dbk - dab);
+				totals[slot] += duk - dak - dbk;
+				total+=duk;
+				setDistance(slotA, slot, duk);
+				row[k++] = encodeEntry(duk, nodeIds[slot]);
 			}
+			Arrays.sort(row);
+			distances[slotB] = null;
+			rows[slotB] = null;
+			trees[slotB] = null;
 			
+			nodeIds[slotA] = nodeId;
+			slots[nodeId] = slotA;
+			totals[slotA] = total;
+			trees[slotA] = tree;
+			rows[slotA] = row;
+			rowStarts[slotA] = 0;
+			totalRowEntries += row.length;
+		}
+		
+		/**
+		 * Joins the last three nodes
+		 * @return Dendrogram Root of the tree
+		 */
+		private Dendrogram joinLast () {
+			int [] last = Arrays.copyOf(activeSlots, numActive);
+			for(int i=1;i<last.length;i++) {
+				for(int j=i;j>0 && getKey(nodeIds[last[j]])<getKey(nodeIds[last[j-1]]);j--) {
+					int aux = last[j];
+					last[j] = last[j-1];
+					last[j-1] = aux;
+				}
+			}
+			int s0 = last[0];
+			int s1 = last[1];
+			int s2 = last[2];
+			double leftDistance = 0.5*getDistance(s1, s2) + 0.5*(totals[s1] - totals[s2]);
+			double rightDistance = 0.5*getDistance(s1, s2) + 0.5*(totals[s2] - totals[s1]);
+			double centralDistance = 0.5*getDistance(s0, s1) + 0.5*(totals[s0] - totals[s1]);
+			Dendrogram root = new Dendrogram("");
+			root.addChild(trees[s2], rightDistance);
+			root.addChild(trees[s1], leftDistance);
+			root.addChild(trees[s0], centralDistance);
+			return root;
+		}
+		
+		/**
+		 * Removes from the sorted rows the entries of nodes that are not active
+		 */
+		private void compactRows() {
+			totalRowEntries = 0;
+			for(int i=0;i<numActive;i++) {
+				int slot = activeSlots[i];
+				long [] row = rows[slot];
+				int k = 0;
+				for(int j=rowStarts[slot];j<row.length;j++) {
+					if(slots[(int)row[j]]>=0) row[k++] = row[j];
+				}
+				rows[slot] = Arrays.copyOf(row, k);
+				rowStarts[slot] = 0;
+				totalRowEntries += k;
+			}
+		}
+		
+		/**
+		 * Encodes a distance and a node id in a number such that the order of entries is consistent with
+		 * the order of distances. The distance is rounded down to a float to obtain lower bounds
+		 */
+		private static long encodeEntry (double distance, int nodeId) {
+			float value = (float)distance;
+			if(value>distance) value = Math.nextDown(value);
+			int bits = Float.floatToIntBits(value);
+			if(bits<0) bits ^= 0x7fffffff;
+			return ((long)bits<<32) | nodeId;
 		}
-
 		
-		return njTree;
+		private static double decodeDistance (long entry) {
+			int bits = (int)(entry>>>32);
+			if(bits<0) bits ^= 0x7fffffff;
+			return Float.intBitsToFloat(bits);
+		}
 	}
-
-	
 }
-
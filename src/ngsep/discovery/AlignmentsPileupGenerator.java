@@ -21,15 +21,22 @@ package ngsep.discovery;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
-import ngsep.genome.GenomicRegionComparator;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
@@ -37,6 +44,8 @@ import ngsep.sequences.QualifiedSequenceList;
 public class AlignmentsPileupGenerator {
 	
 	public static final int DEF_MAX_ALNS_PER_START_POS = 5;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_SHARD_LENGTH = 1000000;
 	
 	private Logger log = Logger.getLogger(AlignmentsPileupGenerator.class.getName());
 	private List<PileupListener> listeners = new ArrayList<PileupListener>();
@@ -46,23 +55,39 @@ public class AlignmentsPileupGenerator {
 	private int queryFirst = 0;
 	private int queryLast = 1000000000;
 	
-	private boolean keepRunning = true;
+	private volatile boolean keepRunning = true;
 	private int maxAlnsPerStartPos = DEF_MAX_ALNS_PER_START_POS;
 	private boolean processNonUniquePrimaryAlignments = false;
 	private boolean processSecondaryAlignments = false;
 	private byte basesToIgnore5P = 0;
 	private byte basesToIgnore3P = 0;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int numThreads = DEF_NUM_THREADS;
+	private int shardLength = DEF_SHARD_LENGTH;
+	
+	//Limits of the positions reported to the listeners. Used to report only the pileups of a shard and its overlap with the previous shard
+	private int pileupFirst = 0;
+	private int pileupLast = Integer.MAX_VALUE;
 	
 	// Internal attributes to follow up the pileup process
 	private QualifiedSequence currentReferenceSequence = null;
 	private int currentReferencePos = 0;
 	private int currentReferenceLast = 0;
-	private List<ReadAlignment> pendingAlignments = new ArrayList<ReadAlignment>();
+	//Alignments that can span the current position sorted by arrival. Updated in place as alignments start and end
+	private ReadAlignment [] pendingAlignments = new ReadAlignment[64];
+	private int numPendingAlignments = 0;
+	//Pileup reused for every position
+	private PileupRecord pileup = new PileupRecord(null, 0);
 	
 	private List<ReadAlignment> sameStartPrimaryAlignments = new ArrayList<ReadAlignment>();
 	private List<ReadAlignment> sameStartSecondaryAlignments = new ArrayList<ReadAlignment>();
 	private int lastReadAlignmentStart = 0;
+	//Number of alignments selected for each read group at the current start position, indexed by read group id
+	private Map<String,Integer> readGroupIds = new HashMap<>();
+	private int [] alnsStartCounts = new int [16];
+	//Start group in which each count was updated. Counts of previous groups are treated as zero
+	private int [] alnsStartGroups = new int [16];
+	private int startGroup = 0;
 	
 
 	public void addListener(PileupListener listener) {
@@ -172,6 +197,38 @@ public class AlignmentsPileupGenerator {
 		this.minMQ = minMQ;
 	}
 
+	/**
+	 * @return the number of threads used to process shards in parallel, to decode alignments when
+	 * several files are processed without shards, or to inflate a single BAM file processed without shards
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to process shards in parallel, to decode alignments when
+	 * several files are processed without shards, or to inflate a single BAM file processed without shards
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @return the length of the genomic regions processed independently in sharded mode
+	 */
+	public int getShardLength() {
+		return shardLength;
+	}
+
+	/**
+	 * @param shardLength the length of the genomic regions processed independently in sharded mode
+	 */
+	public void setShardLength(int shardLength) {
+		if(shardLength<1) throw new IllegalArgumentException("Shard length must be positive. Given value: "+shardLength);
+		this.shardLength = shardLength;
+	}
+
 	public boolean isKeepRunning() {
 		return keepRunning;
 	}
@@ -207,25 +264,18 @@ public class AlignmentsPileupGenerator {
 		}
 		
 		ReadAlignmentFileReader [] readers = new ReadAlignmentFileReader[n];
-		ReadAlignment [] currentAlignments = new ReadAlignment[n];
 		List<Iterator<ReadAlignment>> iterators = new ArrayList<>();
+		SortedAlignmentsMerger merger = null;
 		try {
 			for(int i=0;i<n;i++) {
-				readers[i] = createReader(alignmentFiles.get(i));
-				Iterator<ReadAlignment> it = readers[i].iterator();
-				iterators.add(it);
-				if(it.hasNext()) {
-					currentAlignments[i] = it.next();
-					if(replaceReadGroups.size()>i) (currentAlignments[i]).setReadGroup(replaceReadGroups.get(i)); 
-				} else {
-					currentAlignments[i] = null;
-				}
+				readers[i] = createReader(alignmentFiles.get(i), 1);
+				iterators.add(readers[i].iterator());
 			}
+			//Alignments are decoded in background threads if more than one thread is available
+			merger = new SortedAlignmentsMerger(iterators, replaceReadGroups, sequencesMetadata, numThreads>1?numThreads:0);
 			boolean querySeqFound = false;
-			GenomicRegionComparator cmp = new GenomicRegionComparator(sequencesMetadata);
-			while (keepRunning) {
-				ReadAlignment aln = chooseNextAln(iterators,currentAlignments, cmp, replaceReadGroups);
-				if(aln==null) break;
+			while (keepRunning && merger.hasNext()) {
+				ReadAlignment aln = merger.next();
 				//System.out.println("Processing alignment at pos: "+alnRecord.getAlignmentStart()+". Seq: "+alnRecord.getReferenceName()+". Read name: "+alnRecord.getReadName());
 				if(querySeq!=null) {
 					if(querySeq.equals(aln.getSequenceName())) {
@@ -247,33 +297,160 @@ public class AlignmentsPileupGenerator {
 			else log.warning("Cancelled process");
 			
 		} finally {
+			if(merger!=null) merger.close();
 			for(int i=0;i<n;i++) {
 				if(readers[i]!=null)readers[i].close(); 
 			}
 		}
 	}
 
-	private ReadAlignment chooseNextAln(List<Iterator<ReadAlignment>> iterators, ReadAlignment[] currentAlignments, GenomicRegionComparator cmp, List<String> replaceReadGroups) {
-		ReadAlignment answer = null;
-		int minPos = -1;
-		for(int i=0;i<currentAlignments.length;i++) {
-			if(currentAlignments[i]!=null) {
-				if(answer == null || cmp.compare(answer, currentAlignments[i])>0) {
-					answer = currentAlignments[i];
-					minPos = i;
+	/**
+	 * Parallel processing of the given files split in genomic regions of fixed length (shards).
+	 * Each shard is processed by an independent generator using the listeners created by the given processor.
+	 * Listeners of each shard also receive the pileups of the overlap with the previous shard requested by the processor.
+	 * Results of the shards are merged back in genomic order from the calling thread. 
+	 * PRE: The alignment files are sorted by coordinate and indexed
+	 * @param alignmentFiles List of files to process
+	 * @param replaceReadGroups Read groups to use instead of the read groups within each file.
+	 * Can not be null. If empty, default read groups are used
+	 * @param processor Object creating the listeners for each shard and merging the results
+	 * @throws IOException If there is an I/O error processing the files
+	 */
+	public void processFilesSharded(List<String> alignmentFiles, List<String> replaceReadGroups, PileupShardsProcessor processor) throws IOException {
+		if(alignmentFiles.size()==0) return;
+		for(String filename:alignmentFiles) {
+			try (ReadAlignmentFileReader reader = createReader(filename, 1)) {
+				if(!reader.hasIndex()) throw new IOException("Alignments file "+filename+" must be indexed to be processed in parallel by genomic regions");
+				if(sequencesMetadata==null) sequencesMetadata = reader.getSequences();
+			}
+		}
+		List<GenomicRegion> shards = buildShards();
+		log.info("Processing "+shards.size()+" genomic regions of length "+shardLength+" with "+numThreads+" threads");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Only a limited number of shards is processed ahead of the merging to bound memory usage
+		int maxShardsInProgress = 2*numThreads;
+		LinkedList<Future<List<PileupListener>>> futures = new LinkedList<>();
+		int overlap = processor.getShardOverlap();
+		int nextShard = 0;
+		int mergedShards = 0;
+		try {
+			while(keepRunning && mergedShards<shards.size()) {
+				while(nextShard<shards.size() && futures.size()<maxShardsInProgress) {
+					final GenomicRegion shard = shards.get(nextShard);
+					futures.add(pool.submit(() -> processShard(shard, overlap, alignmentFiles, replaceReadGroups, processor)));
+					nextShard++;
 				}
+				GenomicRegion shard = shards.get(mergedShards);
+				List<PileupListener> shardListeners;
+				try {
+					shardListeners = futures.removeFirst().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while processing region "+shard.getSequenceName()+":"+shard.getFirst()+"-"+shard.getLast(), e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException) throw (IOException)cause;
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error processing region "+shard.getSequenceName()+":"+shard.getFirst()+"-"+shard.getLast(), cause);
+				}
+				//The shard is processed again from this thread if the overlap was not enough to rebuild the state of the listeners
+				int shardOverlap = overlap;
+				while(keepRunning && !processor.mergeShard(shard, shardListeners)) {
+					if(getOverlapStart(shard, shardOverlap)==getSequenceRegionFirst()) {
+						throw new IllegalStateException("Results of region "+shard.getSequenceName()+":"+shard.getFirst()+"-"+shard.getLast()+" are not consistent with the previous region");
+					}
+					shardOverlap = (int)Math.min(Integer.MAX_VALUE, Math.max(1, 2L*shardOverlap));
+					log.info("Processing again region "+shard.getSequenceName()+":"+shard.getFirst()+"-"+shard.getLast()+" with an overlap of "+shardOverlap+" bp");
+					shardListeners = processShard(shard, shardOverlap, alignmentFiles, replaceReadGroups, processor);
+				}
+				mergedShards++;
+			}
+			if(!keepRunning) log.warning("Cancelled process");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private List<GenomicRegion> buildShards() {
+		List<GenomicRegion> shards = new ArrayList<>();
+		for(QualifiedSequence seq:sequencesMetadata) {
+			String seqName = seq.getName();
+			int first = 1;
+			int last = seq.getLength();
+			if(querySeq!=null) {
+				if(!querySeq.equals(seqName)) continue;
+				first = getSequenceRegionFirst();
+				if(last<=0 || last>queryLast) last = queryLast;
+			}
+			//Length not available. The sequence is processed as a single shard
+			if(last<=0) last = Integer.MAX_VALUE-1;
+			for(int start = first; start<=last; start+=shardLength) {
+				int end = (int)Math.min((long)start+shardLength-1, last);
+				shards.add(new GenomicRegionImpl(seqName, start, end));
+				if(end==last) break;
 			}
 		}
-		if(minPos>=0) {
-			Iterator<ReadAlignment> it = iterators.get(minPos); 
-			if(it.hasNext()) {
-				currentAlignments[minPos] = it.next();
-				if(replaceReadGroups.size()>minPos) (currentAlignments[minPos]).setReadGroup(replaceReadGroups.get(minPos)); 
-			} else {
-				currentAlignments[minPos] = null;
+		return shards;
+	}
+	
+	/**
+	 * @return int First position of the region processed within each sequence
+	 */
+	private int getSequenceRegionFirst() {
+		if(querySeq!=null) return Math.max(1, queryFirst);
+		return 1;
+	}
+	
+	/**
+	 * Calculates the first position of the given shard including the overlap with the previous shard
+	 * @param shard Region to process
+	 * @param overlap Number of base pairs to process before the start of the shard
+	 * @return int First position to process for the given shard
+	 */
+	private int getOverlapStart(GenomicRegion shard, int overlap) {
+		return (int)Math.max(getSequenceRegionFirst(), (long)shard.getFirst()-overlap);
+	}
+	
+	private List<PileupListener> processShard(GenomicRegion shard, int overlap, List<String> alignmentFiles, List<String> replaceReadGroups, PileupShardsProcessor processor) throws IOException {
+		List<PileupListener> shardListeners = processor.createShardListeners(shard);
+		int overlapStart = getOverlapStart(shard, overlap);
+		AlignmentsPileupGenerator shardGenerator = createShardGenerator(overlapStart, shard.getLast());
+		for(PileupListener listener:shardListeners) shardGenerator.addListener(listener);
+		int n = alignmentFiles.size();
+		ReadAlignmentFileReader [] readers = new ReadAlignmentFileReader[n];
+		List<Iterator<ReadAlignment>> iterators = new ArrayList<>();
+		try {
+			for(int i=0;i<n;i++) {
+				readers[i] = createReader(alignmentFiles.get(i), 1);
+				iterators.add(readers[i].query(shard.getSequenceName(), overlapStart, shard.getLast()));
+			}
+			//Shards are already processed in parallel. Alignments are decoded from the thread processing the shard 
+			SortedAlignmentsMerger merger = new SortedAlignmentsMerger(iterators, replaceReadGroups, sequencesMetadata, 0);
+			while (keepRunning && merger.hasNext()) {
+				shardGenerator.processAlignment(merger.next());
+			}
+			if(keepRunning && shardGenerator.currentReferenceSequence!=null) shardGenerator.notifyEndOfAlignments();
+		} finally {
+			for(int i=0;i<n;i++) {
+				if(readers[i]!=null)readers[i].close(); 
 			}
 		}
-		return answer;
+		return shardListeners;
+	}
+	
+	private AlignmentsPileupGenerator createShardGenerator(int first, int last) {
+		AlignmentsPileupGenerator shardGenerator = new AlignmentsPileupGenerator();
+		shardGenerator.setLog(log);
+		shardGenerator.setSequencesMetadata(sequencesMetadata);
+		shardGenerator.setMaxAlnsPerStartPos(maxAlnsPerStartPos);
+		shardGenerator.setProcessNonUniquePrimaryAlignments(processNonUniquePrimaryAlignments);
+		shardGenerator.setProcessSecondaryAlignments(processSecondaryAlignments);
+		shardGenerator.setBasesToIgnore5P(basesToIgnore5P);
+		shardGenerator.setBasesToIgnore3P(basesToIgnore3P);
+		shardGenerator.setMinMQ(minMQ);
+		shardGenerator.pileupFirst = first;
+		shardGenerator.pileupLast = last;
+		return shardGenerator;
 	}
 
 	public void processFile(String filename) throws IOException {
@@ -287,7 +464,8 @@ public class AlignmentsPileupGenerator {
 	 */
 	public void processFile(String filename, String replaceReadGroup) throws IOException {		
 		int processedAlns = 0;
-		try (ReadAlignmentFileReader reader = createReader(filename)) {
+		//A single file is read sequentially. BAM blocks are inflated in parallel if more than one thread is available
+		try (ReadAlignmentFileReader reader = createReader(filename, numThreads)) {
 			sequencesMetadata = reader.getSequences();
 			boolean querySeqFound = false;
 			Iterator<ReadAlignment> it = reader.iterator();
@@ -319,8 +497,8 @@ public class AlignmentsPileupGenerator {
 		else log.warning("Cancelled process");
 	}
 	
-	private ReadAlignmentFileReader createReader(String filename) throws IOException {
-		ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename);
+	private ReadAlignmentFileReader createReader(String filename, int decompressionThreads) throws IOException {
+		ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename, decompressionThreads);
 		//reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_SEQUENCE);
 		reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_FULL);
 		int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
@@ -371,24 +549,39 @@ public class AlignmentsPileupGenerator {
 			posStart = sameStartSecondaryAlignments.get(0).getFirst();
 		}
 		if(posStart == 0 ) return;
-		Map<String,Integer> alnsPerReadGroup = new HashMap<>();
-		List<ReadAlignment> allAlnsPos = new ArrayList<>();
-		allAlnsPos.addAll(sameStartPrimaryAlignments);
-		allAlnsPos.addAll(sameStartSecondaryAlignments);
+		startGroup++;
+		selectSameStartAlns(sameStartPrimaryAlignments);
+		selectSameStartAlns(sameStartSecondaryAlignments);
 		sameStartPrimaryAlignments.clear();
 		sameStartSecondaryAlignments.clear();
-		for(ReadAlignment aln:allAlnsPos) {
-			Integer count = alnsPerReadGroup.get(aln.getReadGroup());
-			if(count == null) {
-				alnsPerReadGroup.put(aln.getReadGroup(), 1);
-			} else if (maxAlnsPerStartPos<=0 || count<maxAlnsPerStartPos) {
-				alnsPerReadGroup.put(aln.getReadGroup(), count+1);
-			} else continue;
+	}
+	
+	private void selectSameStartAlns(List<ReadAlignment> alns) {
+		for(ReadAlignment aln:alns) {
+			int readGroupId = getReadGroupId(aln.getReadGroup());
+			if(alnsStartGroups[readGroupId]!=startGroup) {
+				alnsStartGroups[readGroupId] = startGroup;
+				alnsStartCounts[readGroupId] = 0;
+			}
+			if(maxAlnsPerStartPos>0 && alnsStartCounts[readGroupId]>=maxAlnsPerStartPos) continue;
+			alnsStartCounts[readGroupId]++;
 			aln.setBasesToIgnore5P(basesToIgnore5P);
 			aln.setBasesToIgnore3P(basesToIgnore3P);
-			pendingAlignments.add(aln);
+			if(numPendingAlignments==pendingAlignments.length) pendingAlignments = Arrays.copyOf(pendingAlignments, 2*numPendingAlignments);
+			pendingAlignments[numPendingAlignments++] = aln;
 		}
-		allAlnsPos.clear();
+	}
+	
+	private int getReadGroupId(String readGroup) {
+		Integer id = readGroupIds.get(readGroup);
+		if(id!=null) return id;
+		int newId = readGroupIds.size();
+		readGroupIds.put(readGroup, newId);
+		if(newId==alnsStartCounts.length) {
+			alnsStartCounts = Arrays.copyOf(alnsStartCounts, 2*newId);
+			alnsStartGroups = Arrays.copyOf(alnsStartGroups, 2*newId);
+		}
+		return newId;
 	}
 
 	private void startSequence(ReadAlignment aln) {
@@ -397,7 +590,8 @@ public class AlignmentsPileupGenerator {
 		if(currentReferenceSequence == null) {
 			currentReferenceSequence = new QualifiedSequence(seqName);
 		}
-		log.info("Processing sequence "+aln.getSequenceName());
+		//Generators processing shards only report the first shard of each sequence
+		if(pileupFirst<=1) log.info("Processing sequence "+aln.getSequenceName());
 		currentReferencePos = aln.getFirst();
 		currentReferenceLast = aln.getLast();
 	}
@@ -413,37 +607,52 @@ public class AlignmentsPileupGenerator {
 		if(alignmentStart==currentReferencePos) return;
 		while(currentReferencePos<alignmentStart) {
 			if(!processCurrentPosition()) {
-				updatePendingAlns();
-				if(pendingAlignments.size()==0) currentReferencePos = alignmentStart;
+				updatePendingAlns(currentReferencePos);
+				if(numPendingAlignments==0) currentReferencePos = alignmentStart;
 			}
 		}
-		updatePendingAlns();
+		updatePendingAlns(currentReferencePos);
 	}
-
-	private void updatePendingAlns() {
-		List<ReadAlignment> alnsToKeep = new ArrayList<ReadAlignment>();
-		for(ReadAlignment aln:pendingAlignments) {
-			if(aln.getLast()>=currentReferencePos) alnsToKeep.add(aln);
+	/**
+	 * Removes the alignments ending before the given position keeping the order of the remaining alignments
+	 * @param position Reference position
+	 */
+	private void updatePendingAlns(int position) {
+		int j = 0;
+		for(int i=0;i<numPendingAlignments;i++) {
+			ReadAlignment aln = pendingAlignments[i];
+			if(aln.getLast()>=position) pendingAlignments[j++] = aln;
 		}
-		pendingAlignments.clear();
-		if(alnsToKeep.size()>0) pendingAlignments.addAll(alnsToKeep);
+		Arrays.fill(pendingAlignments, j, numPendingAlignments, null);
+		numPendingAlignments = j;
 	}
 
 	
 
 	private boolean processCurrentPosition() {
 		int posPrint = -1;
-		if(pendingAlignments.size()==0) {
+		if(numPendingAlignments==0) {
 			currentReferencePos++;
 			return false;
 		}
-		if(currentReferencePos==posPrint) System.out.println("Number of pending alignments: "+pendingAlignments.size());
-		
-		PileupRecord pileup = new PileupRecord(currentReferenceSequence.getName(), currentReferencePos);
-		for(ReadAlignment aln:pendingAlignments) {
+		if(currentReferencePos<pileupFirst || currentReferencePos>pileupLast) {
+			//Position outside the region assigned to this generator
+			currentReferencePos++;
+			return true;
+		}
+		if(currentReferencePos==posPrint) System.out.println("Number of pending alignments: "+numPendingAlignments);
+		pileup.restart(currentReferenceSequence.getName(), currentReferencePos);
+		//Alignments ending before this position are removed because they will not be included in any other pileup
+		int j = 0;
+		for(int i=0;i<numPendingAlignments;i++) {
+			ReadAlignment aln = pendingAlignments[i];
 			if(currentReferencePos==posPrint)System.out.println("Next pending: "+aln.getReadName()+" located at "+aln.getSequenceName()+":"+aln.getFirst()+"-"+aln.getLast()+". group: "+aln.getReadGroup()+" cigar: "+aln.getCigarString());
+			if(aln.getLast()<currentReferencePos) continue;
+			pendingAlignments[j++] = aln;
 			pileup.addAlignment(aln);
 		}
+		Arrays.fill(pendingAlignments, j, numPendingAlignments, null);
+		numPendingAlignments = j;
 		if(currentReferencePos==posPrint)System.out.println("Number of alignments in pileup: "+pileup.getNumAlignments()+". time: "+System.currentTimeMillis());
 		processPileup(pileup);
 		if(currentReferencePos==posPrint)System.out.println("Processed pileup. time: "+System.currentTimeMillis());
@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionSortedCollection;
+import ngsep.genome.SpanningRegionsSweep;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
@@ -26,8 +27,9 @@ public class BAMRelativeAlleleCountsCalculator implements PileupListener {
 	
 	private long coveredGenomeSize = 0;
 	private AlignmentsPileupGenerator generator;
-	private GenomicRegionSortedCollection<GenomicRegion> repeats;
-	private GenomicRegionSortedCollection<GenomicRegion> selectedRegions;
+	//Pileups arrive sorted by position, so region overlaps are resolved with forward sweeps
+	private SpanningRegionsSweep<GenomicRegion> repeats;
+	private SpanningRegionsSweep<GenomicRegion> selectedRegions;
 	
 	
 	private int minRD = 10;
@@ -144,14 +146,16 @@ public class BAMRelativeAlleleCountsCalculator implements PileupListener {
 		generator.setProcessSecondaryAlignments(secondaryAlns);
 		generator.setMaxAlnsPerStartPos(maxRD);
 		if(repeatsFile!=null) {
-			repeats = new GenomicRegionSortedCollection<GenomicRegion>();
+			GenomicRegionSortedCollection<GenomicRegion> repeatsCollection = new GenomicRegionSortedCollection<GenomicRegion>();
 			SimpleGenomicRegionFileHandler grfh = new SimpleGenomicRegionFileHandler();
-			repeats.addAll(grfh.loadRegions(repeatsFile));
+			repeatsCollection.addAll(grfh.loadRegions(repeatsFile));
+			repeats = repeatsCollection.createSpanningRegionsSweep();
 		}
 		if(selectedRegionsFile!=null) {
 			SimpleGenomicRegionFileHandler grfh = new SimpleGenomicRegionFileHandler();
-			selectedRegions = new GenomicRegionSortedCollection<GenomicRegion>();
-			selectedRegions.addAll(grfh.loadRegions(selectedRegionsFile));
+			GenomicRegionSortedCollection<GenomicRegion> selectedCollection = new GenomicRegionSortedCollection<GenomicRegion>();
+			selectedCollection.addAll(grfh.loadRegions(selectedRegionsFile));
+			selectedRegions = selectedCollection.createSpanningRegionsSweep();
 		}
 		generator.processFile(filename);
 		
@@ -184,11 +188,11 @@ public class BAMRelativeAlleleCountsCalculator implements PileupListener {
 	@Override
 	public void onPileup(PileupRecord pileup) {
 		if(repeats!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningRepeats = repeats.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
+			List<GenomicRegion> spanningRepeats = repeats.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
 			if(spanningRepeats.size()>0) return;
 		}
 		if(selectedRegions!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningRegions = selectedRegions.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
+			List<GenomicRegion> spanningRegions = selectedRegions.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
 			if(spanningRegions.size()==0) return;
 		}
 		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1);
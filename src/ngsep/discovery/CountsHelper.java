@@ -49,7 +49,8 @@ public class CountsHelper {
 	private byte maxBaseQS=VariantPileupListener.DEF_MAX_BASE_QS;
 	
 	private List<String> alleles;
-	private static double [][][] logProbCache;
+	//Replaced as a whole when it needs to grow, so that concurrent callers always see a complete cache
+	private static volatile double [][][] logProbCache;
 	
 	/**
 	 * Creates a default counts helper
@@ -73,21 +74,23 @@ public class CountsHelper {
 	private void updateProbabilitiesCache(int n) {
 		int m = VariantPileupListener.DEF_MAX_BASE_QS+1;
 		if(n<=GenomicVariant.MAX_NUM_ALLELES)n=GenomicVariant.MAX_NUM_ALLELES+1;
-		if(logProbCache!=null && logProbCache[0].length>=n) return;
-		logProbCache = new double [m][n][3];
+		double [][][] cache = logProbCache;
+		if(cache!=null && cache[0].length>=n) return;
+		cache = new double [m][n][3];
 		for(byte i=DEF_MIN_BASE_QS;i<m;i++) {
 			double errorProb = PhredScoreHelper.calculateProbability(i);
 			double successProb = (1 - errorProb);
-			logProbCache[i][0][0] = Math.log10(successProb);
-			logProbCache[i][0][2] = Math.log10(errorProb);
+			cache[i][0][0] = Math.log10(successProb);
+			cache[i][0][2] = Math.log10(errorProb);
 			for(int j=2;j<n;j++) {
 				double epa = errorProb/(j-1);
-				logProbCache[i][j][2] = Math.log10(epa);
+				cache[i][j][2] = Math.log10(epa);
 				double term = 0.5*(1-j*epa);
-				logProbCache[i][j][0] = Math.log10(successProb-term);
-				logProbCache[i][j][1] = Math.log10(epa+term);
+				cache[i][j][0] = Math.log10(successProb-term);
+				cache[i][j][1] = Math.log10(epa+term);
 			}
 		}
+		logProbCache = cache;
 	}
 	/**
 	 * Starts all counts to zero
@@ -110,6 +113,15 @@ public class CountsHelper {
 	 * @param negativeStrand True if the allele comes from a read aligned to the negative strand
 	 */
 	public void updateCounts (String allele, byte qualScore, boolean negativeStrand) {
+		updateCounts(alleles.indexOf(allele), qualScore, negativeStrand);
+	}
+	/**
+	 * Updates counts and conditional probabilities for the allele call with the given index
+	 * @param index Index of the allele in the list of alleles of this helper. Calls with negative indexes only update the total count
+	 * @param qualScore Quality score of the allele call in Phred scale
+	 * @param negativeStrand True if the allele comes from a read aligned to the negative strand
+	 */
+	public void updateCounts (int index, byte qualScore, boolean negativeStrand) {
 		totalCount++;
 		if(qualScore<=DEF_MIN_BASE_QS) {
 			lowBaseQualityCount++;
@@ -117,7 +129,6 @@ public class CountsHelper {
 		} else if (qualScore>maxBaseQS) {
 			qualScore = maxBaseQS;
 		}
-		int index = alleles.indexOf(allele);
 		if(index>=0) {
 			//Update raw count
 			counts[index]++;
@@ -21,16 +21,21 @@ package ngsep.discovery;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
+import ngsep.genome.GenomicRegion;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.QualifiedSequence;
 
 
-public class CoverageStatisticsCalculator implements PileupListener {
+public class CoverageStatisticsCalculator implements PileupListener, PileupShardsProcessor {
 	
 	private Logger log = Logger.getLogger(CoverageStatisticsCalculator.class.getName());
 	//Pileup generator
@@ -41,6 +46,9 @@ public class CoverageStatisticsCalculator implements PileupListener {
 	private long genomeSizeBAMFile = 0;
 	private String outFilename = null;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int numThreads = AlignmentsPileupGenerator.DEF_NUM_THREADS;
+	//Statistics for the whole file
+	private CoverageStatsPileupListener listener;
 	
 	/**
 	 * @param args
@@ -74,8 +82,26 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		this.setMinMQ(minMQ.intValue());
 	}
 	
+	/**
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the numThreads to set
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public void processFile(String filename) throws IOException {
-		CoverageStatsPileupListener listener = new CoverageStatsPileupListener();
+		listener = new CoverageStatsPileupListener();
 		coveredGenomeSize = 0;
 		loadGenomeSize(filename);
 		if(genomeSizeBAMFile == 0) genomeSizeBAMFile = 1000000000;
@@ -84,9 +110,14 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		generator.setProcessSecondaryAlignments(true);
 		generator.setMaxAlnsPerStartPos(100);
 		generator.setMinMQ(minMQ);
-		generator.addListener(listener);
-		generator.addListener(this);
-		generator.processFile(filename);
+		if(numThreads>1) {
+			generator.setNumThreads(numThreads);
+			generator.processFilesSharded(Arrays.asList(filename), new ArrayList<>(), this);
+		} else {
+			generator.addListener(listener);
+			generator.addListener(this);
+			generator.processFile(filename);
+		}
 		if(outFilename!=null) {
 			try (PrintStream outFile = new PrintStream(outFilename)){
 				listener.printCoverageStats(outFile);
@@ -111,6 +142,27 @@ public class CoverageStatisticsCalculator implements PileupListener {
 	@Override
 	public void onSequenceEnd(QualifiedSequence sequenceName) {
 		
+	}
+	@Override
+	public List<PileupListener> createShardListeners(GenomicRegion shard) {
+		List<PileupListener> shardListeners = new ArrayList<>();
+		shardListeners.add(new CoverageStatsPileupListener());
+		return shardListeners;
+	}
+	@Override
+	public int getShardOverlap() {
+		//Coverage statistics do not depend on previous positions
+		return 0;
+	}
+	@Override
+	public boolean mergeShard(GenomicRegion shard, List<PileupListener> shardListeners) {
+		listener.merge((CoverageStatsPileupListener)shardListeners.get(0));
+		coveredGenomeSize+=shard.length();
+		if(progressNotifier!=null) {
+			int progress = 10+(int)Math.round(85.0*coveredGenomeSize/genomeSizeBAMFile);
+			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+		}
+		return true;
 	}
 	public ProgressNotifier getProgressNotifier() {
 		return progressNotifier;
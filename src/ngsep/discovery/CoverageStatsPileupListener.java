@@ -74,6 +74,20 @@ public class CoverageStatsPileupListener implements PileupListener {
 		}
 	}
 	
+	/**
+	 * Adds the counts collected by the given listener to the counts of this listener
+	 * @param other Listener with the statistics to add. It must have the same maximum coverage
+	 */
+	public void merge(CoverageStatsPileupListener other) {
+		if(other.maxCoverage!=maxCoverage) throw new IllegalArgumentException("Can not merge statistics with different maximum coverage. Expected: "+maxCoverage+" given: "+other.maxCoverage);
+		for(int i=0;i<coverageCounts.length;i++) {
+			coverageCounts[i]+=other.coverageCounts[i];
+			coverageCountUniqueAlignments[i]+=other.coverageCountUniqueAlignments[i];
+		}
+		highCoverageCount+=other.highCoverageCount;
+		highCoverageCountUniqueAlignments+=other.highCoverageCountUniqueAlignments;
+	}
+	
 	public int getCoverageMaxCount() {
 		int maxIndex = 1;
 		for(int i=1;i<coverageCounts.length;i++) {
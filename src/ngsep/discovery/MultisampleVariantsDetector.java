@@ -28,6 +28,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -56,7 +58,7 @@ import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFFileWriter;
 import ngsep.vcf.VCFRecord;
 
-public class MultisampleVariantsDetector implements PileupListener {
+public class MultisampleVariantsDetector implements PileupListener, PileupShardsProcessor {
 
 	private Logger log = Logger.getLogger(MultisampleVariantsDetector.class.getName());
 	private ProgressNotifier progressNotifier=null;
@@ -69,6 +71,12 @@ public class MultisampleVariantsDetector implements PileupListener {
 	public static final byte DEF_MAX_BASE_QS = VariantPileupListener.DEF_MAX_BASE_QS;
 	public static final byte DEF_PLOIDY = GenomicVariant.DEFAULT_PLOIDY;
 	public static final String DEF_OUTPUT_FILE = "variants.vcf";
+	public static final int DEF_NUM_THREADS = AlignmentsPileupGenerator.DEF_NUM_THREADS;
+	//Maximum number of samples genotyped by a single task when samples are genotyped in parallel
+	private static final int GENOTYPING_CHUNK_SIZE = 64;
+	//Base pairs processed before each shard to rebuild the realigned alignments and the last called indel.
+	//It should be larger than the reference span of the alignments plus the length of the indels
+	private static final int SHARD_OVERLAP = 1000;
 	
 	
 	
@@ -100,8 +108,22 @@ public class MultisampleVariantsDetector implements PileupListener {
 	private byte normalPloidy = DEF_PLOIDY;
 	private boolean printSamplePloidy = false;
 	private String knownVariantsFile=null;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	private GenomicRegionSortedCollection<GenomicVariant> inputVariants = new GenomicRegionSortedCollection<>();
+	private GenomicRegionSortedCollection<? extends GenomicVariant> realignerInputVariants = null;
+	
+	//Records called within a shard. Not null only for detectors processing one shard in parallel mode
+	private List<VCFRecord> shardRecords = null;
+	//First position of the shard. Variants called before this position are part of the overlap with the previous shard
+	private int shardFirst = 0;
+	//End of the last indel called before the shard. -1 until the first pileup of the shard is processed
+	private int shardStartIndelEnd = -1;
+	//Sequence of the last merged shard and end of the last indel called within the shards merged so far for that sequence
+	private String mergedSequenceName = null;
+	private int mergedIndelEnd = 0;
+	//Pool to genotype groups of samples in parallel. Not null only if more than one thread is used
+	private ForkJoinPool genotypingPool = null;
 	
 	
 	//Control attribute to avoid calling overlapping indels and to give an embedded status to SNVs within indels or STRs
@@ -534,6 +556,40 @@ public class MultisampleVariantsDetector implements PileupListener {
 		this.knownVariantsFile = knownVariantsFile;
 	}
 	
+	/**
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the numThreads to set
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	/**
+	 * @return
+	 * @see ngsep.discovery.AlignmentsPileupGenerator#getShardLength()
+	 */
+	public int getShardLength() {
+		return generator.getShardLength();
+	}
+
+	/**
+	 * @param shardLength
+	 * @see ngsep.discovery.AlignmentsPileupGenerator#setShardLength(int)
+	 */
+	public void setShardLength(int shardLength) {
+		generator.setShardLength(shardLength);
+	}
+	
 	public void printParameters() {
 		log.info("Output file: "+outFilename);
 		log.info("Heterozygosity rate: "+getHeterozygosityRate());
@@ -555,6 +611,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 		log.info("Minimum mapping quality to consider an alignment unique: "+getMinMQ());
 		log.info("Normal ploidy: "+normalPloidy);
 		log.info("Print header with sample ploidy in the vcf file: "+printSamplePloidy);
+		log.info("Number of threads: "+numThreads);
 	}
 
 	public void findVariants() throws IOException {
@@ -572,33 +629,63 @@ public class MultisampleVariantsDetector implements PileupListener {
 			log.info("Loaded "+knownVariants.size()+" input variants");
 			inputVariants = new GenomicRegionSortedCollection<GenomicVariant>(sequences);
 			inputVariants.addAll(knownVariants);
-			indelRealigner.setInputVariants(inputVariants);
+			realignerInputVariants = inputVariants;
 		} else if(knownSTRsFile!=null) {
 			log.info("Loading input short tandem repeats from: "+knownSTRsFile);
 			//TODO: STRs loader
 			SimpleGenomicRegionFileHandler rfh = new SimpleGenomicRegionFileHandler();
 			List<GenomicRegion> strs = rfh.loadRegions(knownSTRsFile);
-			indelRealigner.setInputVariants(VariantsDetector.makeNonRedundantSTRs(genome,strs));
+			realignerInputVariants = VariantsDetector.makeNonRedundantSTRs(genome,strs);
 			log.info("Loaded "+strs.size()+" input short tandem repeats");
 		}
+		indelRealigner.setInputVariants(realignerInputVariants);
 		log.info("Finding variants");
 		
-		generator.addListener(indelRealigner);
-		generator.addListener(this);
 		try {
-			outFile = new PrintStream(outFilename);
+			writer.setNumThreads(numThreads);
+			if(outFilename.endsWith(".gz")) outFile = writer.openBlockCompressedOutput(outFilename, true);
+			else outFile = new PrintStream(outFilename);
 			vcfFileHeader = VCFFileHeader.makeDefaultEmptyHeader();
 			for(Sample s:samples) vcfFileHeader.addSample(s, printSamplePloidy);
 			writer.printHeader(vcfFileHeader, outFile);
-			generator.processFiles(alignmentFiles);
+			if(numThreads>1) genotypingPool = new ForkJoinPool(numThreads);
+			if(numThreads>1 && areAlignmentFilesIndexed()) {
+				//Sort before sharing the input variants between threads
+				inputVariants.forceSort();
+				if(realignerInputVariants!=null) realignerInputVariants.forceSort();
+				generator.setNumThreads(numThreads);
+				generator.processFilesSharded(alignmentFiles, new ArrayList<>(), this);
+			} else {
+				if(numThreads>1) {
+					log.info("Alignment files are not indexed. Genomic regions will be processed sequentially. Alignments will be decoded by "+numThreads+" threads");
+					generator.setNumThreads(numThreads);
+				}
+				generator.addListener(indelRealigner);
+				generator.addListener(this);
+				generator.processFiles(alignmentFiles);
+			}
 		} finally {
-			if(outFile!=null) outFile.close();
+			if(genotypingPool!=null) {
+				genotypingPool.shutdownNow();
+				genotypingPool = null;
+			}
+			if(outFilename.endsWith(".gz")) writer.closeBlockCompressedOutput();
+			else if(outFile!=null) outFile.close();
 			dispose();
 		}
 		log.info("Multisample Variants Detector Completed");
 	}
 
 	
+	private boolean areAlignmentFilesIndexed() throws IOException {
+		for(String filename:alignmentFiles) {
+			try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename)) {
+				if(!reader.hasIndex()) return false;
+			}
+		}
+		return true;
+	}
+	
 	private void loadSamplesFromAlignmentHeaders() throws IOException {
 		Map<String, Sample> samplesMap = new TreeMap<>();
 		log.info("Loading sample ids from: "+alignmentFiles);
@@ -624,8 +711,12 @@ public class MultisampleVariantsDetector implements PileupListener {
 
 	private int nextSIVIndex = 0;
 	private List<GenomicVariant> seqInputVariants;
+	private PileupSNVCounts snvCounts;
 	@Override
 	public void onPileup(PileupRecord pileup) {
+		boolean overlapPileup = shardRecords!=null && pileup.getPosition()<shardFirst;
+		if(shardRecords!=null && !overlapPileup && shardStartIndelEnd<0) shardStartIndelEnd = lastIndelEnd;
+		if(snvCounts!=null) snvCounts.reset();
 		GenomicVariant variant = null;
 		GenomicVariant inputVariant = null;
 		if(inputVariants.size()==0) {
@@ -643,6 +734,8 @@ public class MultisampleVariantsDetector implements PileupListener {
 		}
 		if(pileup.getPosition()==posPrint) System.out.println("Variant: "+variant);
 		if(variant == null) return;
+		//Pileups within the overlap with the previous shard are only needed to update the last called indel
+		if(overlapPileup) return;
 		
 		List<CalledGenomicVariant> calls = genotypeVariant(variant, pileup, heterozygosityRate);
 		if(inputVariant==null && (variant.getVariantQS()==0 || variant.getVariantQS() < minQuality)) return;
@@ -656,6 +749,10 @@ public class MultisampleVariantsDetector implements PileupListener {
 		record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_ALLELE_FREQUENCY_SPECTRUM, format(divStats.getAlleleCounts())));
 		if(variant.isBiallelic()) record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_MAF, divStats.getMaf()));
 		
+		if(shardRecords!=null) {
+			shardRecords.add(record);
+			return;
+		}
 		writer.printVCFRecord(record, outFile);
 		coveredGenomeSize++;
 		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
@@ -664,6 +761,61 @@ public class MultisampleVariantsDetector implements PileupListener {
 		}
 	}
 	
+	@Override
+	public List<PileupListener> createShardListeners(GenomicRegion shard) {
+		IndelRealignerPileupListener shardRealigner = new IndelRealignerPileupListener();
+		shardRealigner.setGenome(genome);
+		shardRealigner.setInputVariants(realignerInputVariants);
+		MultisampleVariantsDetector shardDetector = new MultisampleVariantsDetector();
+		shardDetector.log = log;
+		shardDetector.genome = genome;
+		shardDetector.samples = samples;
+		shardDetector.vcfFileHeader = vcfFileHeader;
+		shardDetector.heterozygosityRate = heterozygosityRate;
+		shardDetector.ignoreLowerCaseRef = ignoreLowerCaseRef;
+		shardDetector.callEmbeddedSNVs = callEmbeddedSNVs;
+		shardDetector.minAlleleFrequency = minAlleleFrequency;
+		shardDetector.minQuality = minQuality;
+		shardDetector.maxBaseQS = maxBaseQS;
+		shardDetector.inputVariants = inputVariants;
+		shardDetector.shardRecords = new ArrayList<>();
+		shardDetector.shardFirst = shard.getFirst();
+		shardDetector.genotypingPool = genotypingPool;
+		List<PileupListener> shardListeners = new ArrayList<>();
+		shardListeners.add(shardRealigner);
+		shardListeners.add(shardDetector);
+		return shardListeners;
+	}
+
+	@Override
+	public int getShardOverlap() {
+		return SHARD_OVERLAP;
+	}
+
+	@Override
+	public boolean mergeShard(GenomicRegion shard, List<PileupListener> shardListeners) {
+		MultisampleVariantsDetector shardDetector = (MultisampleVariantsDetector)shardListeners.get(1);
+		if(!shard.getSequenceName().equals(mergedSequenceName)) {
+			mergedSequenceName = shard.getSequenceName();
+			mergedIndelEnd = 0;
+		}
+		//The last indel called before the shard must be the same found at the end of the previous shard.
+		//Indels ending before the shard do not change the calls within the shard
+		int shardIndelEnd = shardDetector.shardStartIndelEnd>=0?shardDetector.shardStartIndelEnd:shardDetector.lastIndelEnd;
+		int lastBefore = shard.getFirst()-1;
+		if(Math.max(shardIndelEnd, lastBefore)!=Math.max(mergedIndelEnd, lastBefore)) return false;
+		for(VCFRecord record:shardDetector.shardRecords) {
+			writer.printVCFRecord(record, outFile);
+		}
+		mergedIndelEnd = Math.max(mergedIndelEnd, shardDetector.lastIndelEnd);
+		coveredGenomeSize+=shard.length();
+		if(progressNotifier!=null) {
+			int progress = (int)Math.round(100.0*coveredGenomeSize/referenceGenomeSize);
+			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+		}
+		return true;
+	}
+	
 	
 	@Override
 	public void onSequenceStart(QualifiedSequence sequence) {
@@ -741,7 +893,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 				pileup.setSTR(false);
 			}
 		}
-		CountsHelper helperSNV = VariantDiscoverySNVQAlgorithm.calculateCountsSNV(pileup,maxBaseQS, null);
+		CountsHelper helperSNV = getSNVCounts(pileup).getTotalCounts();
 		if(pileup.getPosition()==posPrint) System.out.println("A count: "+helperSNV.getCount("A")+" total: "+helperSNV.getTotalCount() );
 		if(pileup.getPosition()==posPrint) System.out.println("C count: "+helperSNV.getCount("C")+" total: "+helperSNV.getTotalCount() );
 		if(pileup.getPosition()==posPrint) System.out.println("G count: "+helperSNV.getCount("G")+" total: "+helperSNV.getTotalCount() );
@@ -851,12 +1003,20 @@ public class MultisampleVariantsDetector implements PileupListener {
 	 */
 	private List<CalledGenomicVariant> genotypeVariant(GenomicVariant variant, PileupRecord pileup, double h) {
 		if(pileup.getPosition()==posPrint) System.out.println("Genotyping variant type: "+variant.getType()+" is SNV: "+variant.isSNV()+" alleles: "+Arrays.asList(variant.getAlleles()));
-		List<CalledGenomicVariant> calls = new ArrayList<>();
 		int n = samples.size();
+		CalledGenomicVariant [] sampleCalls = new CalledGenomicVariant[n];
+		if(genotypingPool!=null && n>GENOTYPING_CHUNK_SIZE) {
+			//Counts shared by all samples are calculated before genotyping groups of samples in parallel
+			if(variant.isSNV()) getSNVCounts(pileup);
+			else pileup.getAlleleCalls(variant.getReference().length());
+			genotypingPool.invoke(new SamplesGenotypingTask(variant, pileup, h, sampleCalls, 0, n));
+		} else {
+			for(int i=0;i<n;i++) sampleCalls[i] = genotypeVariantSample(variant, pileup, i, samples.get(i), h);
+		}
+		List<CalledGenomicVariant> calls = new ArrayList<>(n);
 		short variantQS = 0;
 		for(int i=0;i<n;i++) {
-			Sample sample = samples.get(i);
-			CalledGenomicVariant call = genotypeVariantSample(variant, pileup, sample, h);
+			CalledGenomicVariant call = sampleCalls[i];
 			if(pileup.getPosition()==posPrint) System.out.println("Sample: "+call.getSampleId()+" Genotype: "+Arrays.asList(call.getCalledAlleles())+" GQ: "+call.getGenotypeQuality());
 			if(!call.isUndecided() && !call.isHomozygousReference() && call.getGenotypeQuality()>variantQS) {
 				variantQS = call.getGenotypeQuality();
@@ -867,12 +1027,12 @@ public class MultisampleVariantsDetector implements PileupListener {
 		return calls;
 	}
 	
-	private CalledGenomicVariant genotypeVariantSample(GenomicVariant variant, PileupRecord pileup,  Sample sample, double h) {
+	private CalledGenomicVariant genotypeVariantSample(GenomicVariant variant, PileupRecord pileup, int sampleIdx, Sample sample, double h) {
 		String referenceAllele = variant.getReference();
 		
 		CalledGenomicVariant calledVar = null;
 		if(variant.isSNV()) {
-			CountsHelper helperSNV = VariantDiscoverySNVQAlgorithm.calculateCountsSNV(pileup, maxBaseQS, sample.getReadGroups());
+			CountsHelper helperSNV = getSNVCounts(pileup).getSampleCounts(sampleIdx);
 			calledVar = VariantDiscoverySNVQAlgorithm.callSNV(pileup, helperSNV, variant, referenceAllele.charAt(0), h, false);
 		} else {
 			CountsHelper helperIndel = VariantDiscoverySNVQAlgorithm.calculateCountsIndel(pileup,variant,referenceAllele, sample.getReadGroups()); 
@@ -886,6 +1046,50 @@ public class MultisampleVariantsDetector implements PileupListener {
 		return calledVar;
 	}
 
+	/**
+	 * Task to genotype in parallel the samples within a range of indexes.
+	 * Ranges larger than GENOTYPING_CHUNK_SIZE are split in two halves 
+	 */
+	private class SamplesGenotypingTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private GenomicVariant variant;
+		private PileupRecord pileup;
+		private double h;
+		private CalledGenomicVariant [] sampleCalls;
+		private int first;
+		private int end;
+		
+		public SamplesGenotypingTask(GenomicVariant variant, PileupRecord pileup, double h, CalledGenomicVariant[] sampleCalls, int first, int end) {
+			this.variant = variant;
+			this.pileup = pileup;
+			this.h = h;
+			this.sampleCalls = sampleCalls;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if(end-first<=GENOTYPING_CHUNK_SIZE) {
+				for(int i=first;i<end;i++) sampleCalls[i] = genotypeVariantSample(variant, pileup, i, samples.get(i), h);
+				return;
+			}
+			int middle = (first+end)/2;
+			invokeAll(new SamplesGenotypingTask(variant, pileup, h, sampleCalls, first, middle), new SamplesGenotypingTask(variant, pileup, h, sampleCalls, middle, end));
+		}
+	}
+	
+	/**
+	 * Calculates if needed the SNV counts of all samples for the given pileup
+	 * @param pileup Pileup to process
+	 * @return PileupSNVCounts SNV counts for the current position
+	 */
+	private PileupSNVCounts getSNVCounts(PileupRecord pileup) {
+		if(snvCounts==null) snvCounts = new PileupSNVCounts(samples, maxBaseQS);
+		snvCounts.calculateCounts(pileup);
+		return snvCounts;
+	}
+
 	private void dispose() {
 		inputVariants =null;
 		seqInputVariants = null;
@@ -63,6 +63,24 @@ public class PileupRecord {
 		this.position = position;
 	}
 	
+	/**
+	 * Clears this record to be reused for a different position
+	 * @param sequenceName Name of the reference sequence
+	 * @param position Position in the reference sequence
+	 */
+	void restart(String sequenceName, int position) {
+		this.sequenceName = sequenceName;
+		this.position = position;
+		alignments.clear();
+		referenceSpan = 1;
+		numUniqueAlns = 0;
+		numNegativeStrandAlns = 0;
+		str = false;
+		newSTR = false;
+		embedded = false;
+		alleleCallsCache.clear();
+	}
+	
 	public String getSequenceName() {
 		return sequenceName;
 	}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ngsep.alignments.ReadAlignment;
+import ngsep.sequences.DNASequence;
+import ngsep.variants.Sample;
+
+/**
+ * Base counts and genotype conditional probabilities needed to genotype SNVs at a single pileup position
+ * for a group of samples. Counts for all samples are accumulated in a single pass over the alignments of
+ * the pileup, and the internal arrays are reused from one position to the next
+ * @author Jorge Duitama
+ */
+public class PileupSNVCounts {
+	private CountsHelper totalCounts;
+	private CountsHelper [] samplesCounts;
+	//Indexes of the samples that include each read group
+	private Map<String, int []> readGroupSamples = new HashMap<>();
+	//Indexes of the samples without read groups. These samples receive all calls
+	private int [] allReadsSamples;
+	private boolean calculated = false;
+	
+	/**
+	 * Creates the counts structures for the given samples
+	 * @param samples Samples to genotype. Order of this list determines the index of each sample
+	 * @param maxBaseQS Maximum base quality score. Ignored if it is not positive
+	 */
+	public PileupSNVCounts(List<Sample> samples, byte maxBaseQS) {
+		int n = samples.size();
+		totalCounts = createHelper(maxBaseQS);
+		samplesCounts = new CountsHelper[n];
+		Map<String, List<Integer>> samplesByReadGroup = new HashMap<>();
+		List<Integer> noReadGroups = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			samplesCounts[i] = createHelper(maxBaseQS);
+			Set<String> readGroups = samples.get(i).getReadGroups();
+			if(readGroups==null) {
+				noReadGroups.add(i);
+				continue;
+			}
+			for(String readGroup:readGroups) {
+				List<Integer> sampleIdxs = samplesByReadGroup.computeIfAbsent(readGroup, (k)->new ArrayList<>());
+				sampleIdxs.add(i);
+			}
+		}
+		allReadsSamples = toArray(noReadGroups);
+		for(Map.Entry<String, List<Integer>> entry:samplesByReadGroup.entrySet()) {
+			readGroupSamples.put(entry.getKey(), toArray(entry.getValue()));
+		}
+	}
+	private static CountsHelper createHelper (byte maxBaseQS) {
+		CountsHelper helper = new CountsHelper();
+		if(maxBaseQS>0) helper.setMaxBaseQS(maxBaseQS);
+		return helper;
+	}
+	private static int [] toArray (List<Integer> values) {
+		int [] answer = new int [values.size()];
+		for(int i=0;i<answer.length;i++) answer[i] = values.get(i);
+		return answer;
+	}
+	
+	/**
+	 * Discards the counts of the current position. The next call to calculateCounts will traverse the given pileup
+	 */
+	public void reset() {
+		calculated = false;
+	}
+	/**
+	 * Calculates the counts for all samples from the alignments of the given pileup.
+	 * Counts are calculated only once after each call to the reset method
+	 * @param pileup Pileup to process
+	 */
+	public void calculateCounts(PileupRecord pileup) {
+		if(calculated) return;
+		totalCounts.startCounts();
+		for(int i=0;i<samplesCounts.length;i++) samplesCounts[i].startCounts();
+		int position = pileup.getPosition();
+		for(ReadAlignment aln:pileup.getAlignments()) {
+			int readPos = aln.getSingleBaseCallReadPosition(position);
+			if(readPos<0) continue;
+			int baseIdx = DNASequence.BASES_STRING.indexOf(aln.getReadCharacter(readPos));
+			byte q = VariantDiscoverySNVQAlgorithm.getBaseQualityScore(aln, readPos);
+			boolean negativeStrand = aln.isNegativeStrand();
+			totalCounts.updateCounts(baseIdx, q, negativeStrand);
+			int [] sampleIdxs = readGroupSamples.get(aln.getReadGroup());
+			if(sampleIdxs!=null) {
+				for(int i=0;i<sampleIdxs.length;i++) samplesCounts[sampleIdxs[i]].updateCounts(baseIdx, q, negativeStrand);
+			}
+			for(int i=0;i<allReadsSamples.length;i++) samplesCounts[allReadsSamples[i]].updateCounts(baseIdx, q, negativeStrand);
+		}
+		calculated = true;
+	}
+	/**
+	 * Returns the counts of all alignments of the current pileup, regardless of the read group
+	 * PRE: calculateCounts was called for the current pileup
+	 * @return CountsHelper Counts for all alignments. The object is reused for the next position
+	 */
+	public CountsHelper getTotalCounts() {
+		return totalCounts;
+	}
+	/**
+	 * Returns the counts of the sample with the given index for the current pileup
+	 * PRE: calculateCounts was called for the current pileup
+	 * @param sampleIdx Index of the sample
+	 * @return CountsHelper Counts for the alignments of the given sample. The object is reused for the next position
+	 */
+	public CountsHelper getSampleCounts(int sampleIdx) {
+		return samplesCounts[sampleIdx];
+	}
+}
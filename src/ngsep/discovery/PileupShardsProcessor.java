@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.util.List;
+
+import ngsep.genome.GenomicRegion;
+
+/**
+ * Provides independent listeners for the genomic regions (shards) that an AlignmentsPileupGenerator
+ * processes in parallel, and merges back the results obtained for each shard.
+ * Listeners of a shard also receive the pileups of an overlap with the end of the previous shard
+ * to rebuild the state that a sequential process would have at the start of the shard.
+ * Results within the overlap belong to the previous shard and must not be merged
+ * @author Jorge Duitama
+ */
+public interface PileupShardsProcessor {
+	/**
+	 * Creates the listeners that will receive the pileups of the given shard.
+	 * This method is called from worker threads. Listeners created for different shards must not share mutable state 
+	 * @param shard Region that will be processed. Listeners receive pileups from the start of the overlap with the previous shard
+	 * @return List<PileupListener> Listeners that will receive the pileup records within the given shard
+	 */
+	public List<PileupListener> createShardListeners(GenomicRegion shard);
+	/**
+	 * @return int Number of base pairs before the start of each shard that must be processed
+	 * to rebuild the state of the listeners at the start of the shard
+	 */
+	public int getShardOverlap();
+	/**
+	 * Merges the results of a shard after all its pileups were processed.
+	 * This method is called from the thread that started the process, following the order of the shards along the genome
+	 * @param shard Region that was processed
+	 * @param shardListeners Listeners created for the shard through createShardListeners
+	 * @return boolean true if the results were merged. false if the state rebuilt within the overlap does not match
+	 * the state at the end of the previous shard. In this case the results are not merged and the shard is processed again with a larger overlap
+	 */
+	public boolean mergeShard(GenomicRegion shard, List<PileupListener> shardListeners);
+}
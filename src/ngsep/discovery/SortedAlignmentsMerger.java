@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ngsep.alignments.ReadAlignment;
+import ngsep.sequences.QualifiedSequenceList;
+
+/**
+ * Merges the alignments of several files sorted by coordinate. The next alignment is selected
+ * using a binary heap on the current alignment of each file. Ties are resolved by the order of the files.
+ * If decoding threads are requested, alignments of each file are read ahead in batches that are
+ * stored in bounded queues, so that decoding overlaps with the processing of the merged alignments
+ * @author Jorge Duitama
+ */
+public class SortedAlignmentsMerger implements Iterator<ReadAlignment>, Closeable {
+	//Maximum number of alignments read ahead considering all files
+	private static final int MAX_PREFETCHED_ALIGNMENTS = 65536;
+	private static final int MIN_BATCH_SIZE = 16;
+	private static final int MAX_BATCH_SIZE = 1024;
+	private static final int BATCHES_PER_FILE = 2;
+	
+	private QualifiedSequenceList sequences;
+	private AlignmentsSource [] sources;
+	private ReadAlignment [] currentAlignments;
+	private int [] currentSequenceIdxs;
+	//Heap of file indexes ordered by the current alignment of each file
+	private int [] heap;
+	private int heapSize = 0;
+	private ExecutorService decodingPool = null;
+	
+	/**
+	 * Creates a merger for the given iterators
+	 * @param iterators Iterators over alignments sorted by coordinate
+	 * @param replaceReadGroups Read groups to use instead of the read groups of the alignments returned by each iterator.
+	 * Can not be null. If it has less elements than the list of iterators, default read groups are used for the remaining iterators
+	 * @param sequences Metadata of the reference sequences defining the order of the sequence names
+	 * @param numDecodingThreads Number of threads that read alignments ahead. If zero, alignments are read from the calling thread
+	 */
+	public SortedAlignmentsMerger(List<Iterator<ReadAlignment>> iterators, List<String> replaceReadGroups, QualifiedSequenceList sequences, int numDecodingThreads) {
+		this.sequences = sequences;
+		int n = iterators.size();
+		sources = new AlignmentsSource[n];
+		currentAlignments = new ReadAlignment[n];
+		currentSequenceIdxs = new int [n];
+		heap = new int [n];
+		int batchSize = 0;
+		if(numDecodingThreads>0) {
+			decodingPool = Executors.newFixedThreadPool(numDecodingThreads);
+			batchSize = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, MAX_PREFETCHED_ALIGNMENTS/(BATCHES_PER_FILE*n)));
+		}
+		for(int i=0;i<n;i++) {
+			String readGroup = replaceReadGroups.size()>i?replaceReadGroups.get(i):null;
+			sources[i] = new AlignmentsSource(iterators.get(i), readGroup, batchSize);
+			if(decodingPool!=null) sources[i].schedule();
+		}
+		for(int i=0;i<n;i++) {
+			currentAlignments[i] = sources[i].next();
+			if(currentAlignments[i]==null) continue;
+			currentSequenceIdxs[i] = sequences.indexOf(currentAlignments[i].getSequenceName());
+			heap[heapSize] = i;
+			heapSize++;
+			siftUp(heapSize-1);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return heapSize>0;
+	}
+
+	@Override
+	public ReadAlignment next() {
+		if(heapSize==0) throw new NoSuchElementException();
+		int fileIdx = heap[0];
+		ReadAlignment answer = currentAlignments[fileIdx];
+		ReadAlignment nextAln = sources[fileIdx].next();
+		currentAlignments[fileIdx] = nextAln;
+		if(nextAln!=null) {
+			currentSequenceIdxs[fileIdx] = sequences.indexOf(nextAln.getSequenceName());
+		} else {
+			heapSize--;
+			heap[0] = heap[heapSize];
+		}
+		if(heapSize>0) siftDown(0);
+		return answer;
+	}
+	
+	/**
+	 * Stops the decoding threads. Iterators should be closed after calling this method
+	 */
+	@Override
+	public void close() {
+		if(decodingPool==null) return;
+		decodingPool.shutdownNow();
+		try {
+			decodingPool.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void siftUp(int i) {
+		int fileIdx = heap[i];
+		while(i>0) {
+			int parent = (i-1)/2;
+			if(!isBefore(fileIdx, heap[parent])) break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = fileIdx;
+	}
+	
+	private void siftDown(int i) {
+		int fileIdx = heap[i];
+		while(true) {
+			int child = 2*i+1;
+			if(child>=heapSize) break;
+			if(child+1<heapSize && isBefore(heap[child+1], heap[child])) child++;
+			if(!isBefore(heap[child], fileIdx)) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = fileIdx;
+	}
+	/**
+	 * Compares the current alignments of the given files by sequence, first and last position, and then by file index
+	 */
+	private boolean isBefore(int fileIdx1, int fileIdx2) {
+		int s1 = currentSequenceIdxs[fileIdx1];
+		int s2 = currentSequenceIdxs[fileIdx2];
+		if(s1!=s2) return s1<s2;
+		ReadAlignment aln1 = currentAlignments[fileIdx1];
+		ReadAlignment aln2 = currentAlignments[fileIdx2];
+		if(aln1.getFirst()!=aln2.getFirst()) return aln1.getFirst()<aln2.getFirst();
+		if(aln1.getLast()!=aln2.getLast()) return aln1.getLast()<aln2.getLast();
+		return fileIdx1<fileIdx2;
+	}
+	
+	/**
+	 * Alignments of a single file. If the batch size is positive, alignments are decoded in the
+	 * decoding pool and delivered in batches. A batch smaller than the batch size is the last batch of the file
+	 */
+	private class AlignmentsSource implements Runnable {
+		private Iterator<ReadAlignment> iterator;
+		private String readGroup;
+		private int batchSize;
+		private BlockingQueue<List<ReadAlignment>> batches;
+		private List<ReadAlignment> batch = null;
+		private int nextInBatch = 0;
+		//Guarded by this object
+		private boolean running = false;
+		private boolean finished = false;
+		//Published through the queue of batches
+		private RuntimeException error = null;
+		
+		public AlignmentsSource(Iterator<ReadAlignment> iterator, String readGroup, int batchSize) {
+			this.iterator = iterator;
+			this.readGroup = readGroup;
+			this.batchSize = batchSize;
+			if(batchSize>0) batches = new ArrayBlockingQueue<>(BATCHES_PER_FILE);
+		}
+		
+		/**
+		 * @return ReadAlignment next alignment of the file. null if there are no more alignments
+		 */
+		public ReadAlignment next() {
+			if(batches==null) return fetch();
+			if(batch==null || nextInBatch==batch.size()) {
+				if(batch!=null && batch.size()<batchSize) return null;
+				batch = takeBatch();
+				nextInBatch = 0;
+				if(error!=null) throw error;
+				if(batch.size()==0) return null;
+			}
+			return batch.get(nextInBatch++);
+		}
+		
+		private ReadAlignment fetch() {
+			if(!iterator.hasNext()) return null;
+			ReadAlignment aln = iterator.next();
+			if(readGroup!=null) aln.setReadGroup(readGroup);
+			return aln;
+		}
+		
+		private List<ReadAlignment> takeBatch() {
+			List<ReadAlignment> answer;
+			try {
+				answer = batches.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for decoded alignments", e);
+			}
+			schedule();
+			return answer;
+		}
+		
+		private synchronized void schedule() {
+			if(running || finished) return;
+			running = true;
+			decodingPool.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			while(true) {
+				synchronized (this) {
+					//The consumer schedules this source again when it takes a batch from a full queue
+					if(finished || batches.remainingCapacity()==0) {
+						running = false;
+						return;
+					}
+				}
+				List<ReadAlignment> nextBatch = new ArrayList<>(batchSize);
+				try {
+					while(nextBatch.size()<batchSize) {
+						ReadAlignment aln = fetch();
+						if(aln==null) break;
+						nextBatch.add(aln);
+					}
+				} catch (Throwable e) {
+					error = (e instanceof RuntimeException)?(RuntimeException)e:new RuntimeException(e);
+					nextBatch.clear();
+				}
+				synchronized (this) {
+					if(nextBatch.size()<batchSize) finished = true;
+				}
+				batches.add(nextBatch);
+			}
+		}
+	}
+}
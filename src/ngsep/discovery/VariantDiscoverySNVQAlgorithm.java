@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import ngsep.alignments.ReadAlignment;
 import ngsep.math.PhredScoreHelper;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.HammingSequenceDistanceMeasure;
@@ -26,14 +27,25 @@ public class VariantDiscoverySNVQAlgorithm {
 	public static CountsHelper calculateCountsSNV (PileupRecord pileup, byte maxBaseQS, Set<String> readGroups) {
 		CountsHelper answer = new CountsHelper();
 		if(maxBaseQS>0) answer.setMaxBaseQS(maxBaseQS);
-		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1);
-		for(PileupAlleleCall call:calls ) {
-			if(readGroups!=null && !readGroups.contains(call.getReadGroup())) continue;
-			byte q = (byte)(Math.min(VariantPileupListener.DEF_MAX_BASE_QS, call.getQualityScores().charAt(0)-33));
-			answer.updateCounts(call.getSequence().subSequence(0,1).toString(), q, call.isNegativeStrand());
+		int position = pileup.getPosition();
+		for(ReadAlignment aln:pileup.getAlignments()) {
+			int readPos = aln.getSingleBaseCallReadPosition(position);
+			if(readPos<0) continue;
+			if(readGroups!=null && !readGroups.contains(aln.getReadGroup())) continue;
+			int baseIdx = DNASequence.BASES_STRING.indexOf(aln.getReadCharacter(readPos));
+			answer.updateCounts(baseIdx, getBaseQualityScore(aln, readPos), aln.isNegativeStrand());
 		}
 		return answer;
 	}
+	/**
+	 * Calculates the base quality score of a single base call capped at the maximum value handled by the counts helper
+	 * @param aln Alignment with the call
+	 * @param readPos Read position of the call
+	 * @return byte Base quality score in Phred scale
+	 */
+	static byte getBaseQualityScore(ReadAlignment aln, int readPos) {
+		return (byte)(Math.min(VariantPileupListener.DEF_MAX_BASE_QS, aln.getBaseQualityScoreAtReadPosition(readPos)-33));
+	}
 
 	//PRE: Reference base is uppercase
 	public static CalledGenomicVariant callSNV(PileupRecord pileup, CountsHelper countsHelper, GenomicVariant variant, char refBase, double heterozygosityRate, boolean calcStrandBias) {
@@ -24,8 +24,9 @@ import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.hmm.ConstantTransitionHMM;
-import ngsep.hmm.HMM;
 import ngsep.hmm.HMMState;
+import ngsep.hmm.PrimitiveHMM;
+import ngsep.hmm.PrimitiveHMMCalculator;
 import ngsep.math.LogMath;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
@@ -69,11 +70,13 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
 		log.info("Building HMM");
-		HMM hmm = buildHMM ();
+		PrimitiveHMM hmm = buildHMM ();
+		PrimitiveHMMCalculator calculator = new PrimitiveHMMCalculator(hmm);
+		calculator.setLog(log);
 		for(String seqName:seqNames) {
 			log.info("Calling CNVs for sequence "+seqName);
 			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
+			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm.getNumStates(),calculator); 
 			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
 			answer.addAll(cnvsSeq);
 		}
@@ -107,7 +110,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return log;
 	}
 
-	private HMM buildHMM() {
+	private PrimitiveHMM buildHMM() {
 		int nStates = 4*normalPloidy+1;
 		
 		List<HMMState> states = new ArrayList<HMMState>(nStates);
@@ -125,22 +128,20 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins, HMM hmm) {
+	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins, int n, PrimitiveHMMCalculator calculator) {
 		int m = seqBins.size();
-		int n = hmm.getNumStates();
-		Double [] [] posteriorLogs = new Double [m][n];
 		List<Double> observations = buildObservations(seqBins);
-		hmm.calculatePosteriorLogs(observations, posteriorLogs);
-		//hmm.calculateBackward(observations, posteriorLogs);
-		if("chrI".equals(seqName)) printLogProbs(posteriorLogs);
+		calculator.calculatePosteriorLogs(observations);
+		double [] posteriorLogs = calculator.getPosteriorLogs();
+		if("chrI".equals(seqName)) printLogProbs(posteriorLogs, m, n);
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		int nextStartBin = -1;
 		int copies = normalPloidy;
 		for(int i=0;i<m;i++) {
-			int state = chooseState(posteriorLogs[i]);
+			int state = chooseState(posteriorLogs, i*n, n);
 			if(state!=copies) {
 				if(copies!=normalPloidy) {
-					answer.add(createCNV(seqName,seqBins,posteriorLogs,nextStartBin,i-1,copies));
+					answer.add(createCNV(seqName,seqBins,posteriorLogs,n,nextStartBin,i-1,copies));
 				}
 				copies = state;
 				nextStartBin=i;
@@ -149,10 +150,10 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return answer;
 	}
 
-	private void printLogProbs(Double[][] logProbs) {
-		for(int i=0;i<logProbs.length;i++) {
-			for(int j=0;j<logProbs[i].length;j++) {
-				System.out.print(" "+logProbs[i][j]);
+	private void printLogProbs(double [] logProbs, int m, int n) {
+		for(int i=0;i<m;i++) {
+			for(int j=0;j<n;j++) {
+				System.out.print(" "+LogMath.toObjectLog(logProbs[i*n+j]));
 			}
 			System.out.println();
 		}
@@ -166,20 +167,21 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return observations;
 	}
 	
-	private int chooseState(Double[] logProbs) {
+	private int chooseState(double [] logProbs, int offset, int n) {
 		int maxI = normalPloidy;
 		double maxVal = Double.MIN_VALUE;
-		if(logProbs[normalPloidy]!=null) maxVal = logProbs[normalPloidy];
-		for(int i=0;i<logProbs.length;i++) {
-			if(logProbs[i]!=null && maxVal<logProbs[i]) {
+		if(logProbs[offset+normalPloidy]!=Double.NEGATIVE_INFINITY) maxVal = logProbs[offset+normalPloidy];
+		for(int i=0;i<n;i++) {
+			double logProb = logProbs[offset+i];
+			if(logProb!=Double.NEGATIVE_INFINITY && maxVal<logProb) {
 					maxI = i;
-					maxVal = logProbs[i];
+					maxVal = logProb;
 			}
 		}
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] posteriorLogs, int firstI, int lastI, int copies) {
+	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, double [] posteriorLogs, int n, int firstI, int lastI, int copies) {
 		ReadDepthBin firstBin = seqBins.get(firstI);
 		ReadDepthBin lastBin = seqBins.get(lastI);
 		int bins = 0;
@@ -187,7 +189,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		double avgProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
 			fragments+=seqBins.get(i).getRawReadDepth();
-			avgProb += LogMath.power10(posteriorLogs[i][copies]); 
+			avgProb += Math.pow(10.0, posteriorLogs[i*n+copies]); 
 			bins++;
 		}
 		avgProb/=bins;
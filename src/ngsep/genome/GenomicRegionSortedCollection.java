@@ -30,13 +30,23 @@ import java.util.Map;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
+/**
+ * Collection of genomic regions sorted by sequence and then by position.
+ * Regions of each sequence are indexed with an implicit interval tree built over the sorted regions
+ * (a binary tree laid out on the sorted array in which each node keeps the maximum end of its subtree).
+ * Regions added after the last region of their sequence are appended without sorting again.
+ * They are searched linearly until the index is rebuilt to include them
+ * @author Jorge Duitama
+ */
 public class GenomicRegionSortedCollection<T extends GenomicRegion> implements Collection<T> {
+	//Minimum number of appended regions not included in the index to rebuild the index
+	private static final int MIN_UNINDEXED_REGIONS = 64;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private Map<Integer,List<T>> regionsMap = new HashMap<Integer, List<T>>();
-	private Map<Integer,List<T>> longRegionsMap = new HashMap<Integer, List<T>>();
+	private Map<Integer,SequenceRegionsIndex> indexesMap = new HashMap<Integer, SequenceRegionsIndex>();
 	private int size = 0;
-	private int numSpanningLong = 15;
-	private boolean sorted = true;
+	//Volatile to allow concurrent queries after the last modification
+	private volatile boolean sorted = true;
 	
 	
 	public GenomicRegionSortedCollection () {
@@ -51,7 +61,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		this.sequences.addAll(sequences);
 		for(int i=0;i<this.sequences.size();i++) {	 
 			regionsMap.put(i, new ArrayList<T>());
-			longRegionsMap.put(i, new ArrayList<T>());
+			indexesMap.put(i, new SequenceRegionsIndex());
 		}
 	}
 	@Override
@@ -67,12 +77,21 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 			}
 			index = sequences.indexOf(seq.getName());
 			regionsMap.put(index, new ArrayList<T>());
-			longRegionsMap.put(index, new ArrayList<T>());
+			indexesMap.put(index, new SequenceRegionsIndex());
 		}
 		List<T> regions = regionsMap.get(index);
+		SequenceRegionsIndex regionsIndex = indexesMap.get(index);
+		int n = regions.size();
+		if(n>0 && GenomicRegionPositionComparator.getInstance().compare(regions.get(n-1), e)>0) {
+			regionsIndex.sortNeeded = true;
+			sorted = false;
+		}
 		regions.add(e);
 		size++;
-		sorted = false;
+		//Appended regions are searched linearly until the index is rebuilt
+		if(n+1-regionsIndex.size>Math.max(MIN_UNINDEXED_REGIONS, regionsIndex.size/8)) {
+			regionsIndex.indexNeeded = true;
+		}
 		return true;
 	}
 	@Override
@@ -83,7 +102,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 				changed = true;
 			}
 		}
-		sorted =false;
 		return changed;
 	}
 	
@@ -91,7 +109,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	public void clear() {
 		for(int index:regionsMap.keySet()) {
 			regionsMap.get(index).clear();
-			longRegionsMap.get(index).clear();
+			indexesMap.get(index).clear();
 		}
 		size = 0;
 		sorted = true;
@@ -125,9 +143,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		if(index<0) return false;
 		regions.remove(index);
 		size--;
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		index = GenomicRegionSortedCollection.indexOf (longRegions,gr);
-		if(index>=0) longRegions.remove(index);
+		invalidateIndex(sequenceIndex);
 		return true;
 	}
 	@Override
@@ -151,22 +167,15 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		int remaining = n;
 		for(int i=0;i<sequences.size() && remaining > 0;i++) {
 			List<T> regions = regionsMap.get(i);
-			List<T> longRegions = longRegionsMap.get(i);
 			int nSeq = regions.size();
 			if(nSeq<=remaining) {
 				regions.clear();
-				longRegions.clear();
+				indexesMap.get(i).clear();
 				remaining -= nSeq;
 				size -= nSeq;
 			} else {
-				List<T> newRegions = new ArrayList<T>();
-				for(int j=remaining;j<nSeq;j++) {
-					newRegions.add(regions.get(j));
-				}
-				regions.clear();
-				regions.addAll(newRegions);
-				//Update long regions in the next sort
-				sorted = false;
+				regions.subList(0, remaining).clear();
+				invalidateIndex(i);
 				size-=remaining;
 				remaining = 0;
 			}
@@ -175,6 +184,10 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		return changed;
 	}
 	
+	private void invalidateIndex(int sequenceIndex) {
+		indexesMap.get(sequenceIndex).indexNeeded = true;
+	}
+	
 	@Override
 	public boolean retainAll(Collection<?> c) {
 		List<T> toRemove = asList();
@@ -185,37 +198,39 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	 * Use this method to sort the collection again when the locations of the genomic regions are modified externally
 	 */
 	public void forceSort() {
+		for(SequenceRegionsIndex regionsIndex:indexesMap.values()) regionsIndex.sortNeeded = true;
 		sorted = false;
 		sort();
 	}
 	private void sort() {
-		if(!sorted) {
-			//System.out.println("Sorting "+regionsForward.size()+" regions");
-			//if(regionsForward.size()>0) System.out.println("Type: "+regionsForward.get(0).getClass().getName());
+		if(sorted) return;
+		//Queries from different threads may trigger the first sort at the same time
+		synchronized (this) {
+			if(sorted) return;
 			for(int index:regionsMap.keySet()) {
-				List<T> regions = regionsMap.get(index);
-				Collections.sort(regions,GenomicRegionPositionComparator.getInstance());
-				List<T> longRegions = longRegionsMap.get(index);
-				longRegions.clear();
-				for(int i=0;i<regions.size();i++) {
-					T r = regions.get(i);
-		 			//if(i<50) System.out.println("Seqname: "+r.getSequenceName()+". Start: "+r.getStart()+" end:"+r.getEnd());
-					int j=i+1;
-					for(;j<regions.size() && j<=i+numSpanningLong;j++) {
-						GenomicRegion r2 = regions.get(j);
-						if(r2.getFirst() > r.getLast()) {
-							break;
-						}
-					}
-					if(j>i+numSpanningLong) {
-						longRegions.add(r);
-					}
+				SequenceRegionsIndex regionsIndex = indexesMap.get(index);
+				if(regionsIndex.sortNeeded) {
+					Collections.sort(regionsMap.get(index),GenomicRegionPositionComparator.getInstance());
+					regionsIndex.sortNeeded = false;
+					regionsIndex.indexNeeded = true;
 				}
-				
 			}
-			//System.out.println("Found "+longRegions.size()+" long regions");
+			sorted = true;
 		}
-		sorted = true;
+	}
+	/**
+	 * Returns the index of the regions of the given sequence, building it if needed.
+	 * PRE: The regions are sorted
+	 * @param sequenceIndex Index of the sequence
+	 * @return SequenceRegionsIndex Index for the regions of the given sequence
+	 */
+	private SequenceRegionsIndex getIndex(int sequenceIndex) {
+		SequenceRegionsIndex regionsIndex = indexesMap.get(sequenceIndex);
+		if(!regionsIndex.indexNeeded) return regionsIndex;
+		synchronized (regionsIndex) {
+			if(regionsIndex.indexNeeded) regionsIndex.build(regionsMap.get(sequenceIndex));
+		}
+		return regionsIndex;
 	}
 	
 	public QualifiedSequenceList getSequenceNames() {
@@ -230,6 +245,26 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		}
 		return answer;
 	}
+	/**
+	 * Returns the regions of the given sequence sorted by position. The returned list is backed by this collection
+	 * and it should not be modified
+	 * @param sequenceName Name of the sequence
+	 * @return List<T> Sorted regions within the given sequence. Null if the sequence is not found
+	 */
+	List<T> getSortedRegions(String sequenceName) {
+		int sequenceIndex = sequences.indexOf(sequenceName);
+		if(sequenceIndex<0) return null;
+		sort();
+		return regionsMap.get(sequenceIndex);
+	}
+	/**
+	 * Creates an object to find spanning regions for queries sorted by position within each sequence.
+	 * This collection should not be modified while the returned object is in use
+	 * @return SpanningRegionsSweep<T> Object to find spanning regions of sorted queries 
+	 */
+	public SpanningRegionsSweep<T> createSpanningRegionsSweep() {
+		return new SpanningRegionsSweep<T>(this);
+	}
 	public GenomicRegionSortedCollection<T> findSpanningRegions(String sequenceName, int position) {
 		return findSpanningRegions(sequenceName,position,position);
 	}
@@ -242,37 +277,17 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	}
 	public GenomicRegionSortedCollection<T> findSpanningRegions(int sequenceIndex, int first, int last) {
 		GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
-		if(sequenceIndex <0 || sequenceIndex>sequences.size()) return answer;
+		if(sequenceIndex <0 || sequenceIndex>=sequences.size()) return answer;
 		sort();
-		GenomicRegionSpanComparator spanCmp = GenomicRegionSpanComparator.getInstance();
-		GenomicRegion dummyRegion = new GenomicRegionImpl(sequences.get(sequenceIndex).getName(), first, first);
 		List<T> regions = regionsMap.get(sequenceIndex);
-		int index = Collections.binarySearch(regions, dummyRegion,GenomicRegionPositionComparator.getInstance());
-		int indexStart = index;
-		if(index<0) {
-			index = -index-1;
-		}
-		indexStart = Math.max(0,index - numSpanningLong);
-		
-		for(int i=indexStart;i<regions.size();i++) {
+		SequenceRegionsIndex regionsIndex = getIndex(sequenceIndex);
+		//Regions are added in sorted order, so the answer does not need to be sorted again
+		regionsIndex.findSpanningRegions(regions, first, last, answer);
+		//Appended regions not included in the index
+		for(int i=regionsIndex.size;i<regions.size();i++) {
 			T r = regions.get(i);
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0) {
-				answer.add(r);
-			} else if (cmp > 0) {
-				break;
-			}
-		}
-		
-		//Look long regions
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		for(T r: longRegions) {
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0 && !answer.contains(r)) {
-				answer.add(r);
-			} else if (cmp >0) {
-				break;
-			}
+			if(r.getFirst()>last) break;
+			if(r.getLast()>=first) answer.add(r);
 		}
 		return answer;
 	}
@@ -325,4 +340,125 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	public <U> U[] toArray(U[] a) {
 		return asList().toArray(a);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Implicit interval tree over the sorted regions of one sequence. The node at index i has level k if
+	 * the k lowest bits of i are ones and the bit k is zero. Children of a node at level k&gt;0 are located at i-2^(k-1) and i+2^(k-1).
+	 * Each node stores the maximum last position of the regions in its subtree.
+	 */
+	private static class SequenceRegionsIndex {
+		private int [] firsts = new int[0];
+		private int [] lasts = new int[0];
+		private int [] maxLasts = new int[0];
+		//Number of regions included in the index
+		private int size = 0;
+		private int rootLevel = -1;
+		private boolean sortNeeded = false;
+		//Volatile to allow concurrent queries to build the index once
+		private volatile boolean indexNeeded = false;
+		
+		private void clear() {
+			firsts = lasts = maxLasts = new int[0];
+			size = 0;
+			rootLevel = -1;
+			sortNeeded = false;
+			indexNeeded = false;
+		}
+		
+		/**
+		 * Builds the index for the given regions
+		 * @param regions Regions sorted by position
+		 */
+		private void build(List<? extends GenomicRegion> regions) {
+			int n = regions.size();
+			firsts = new int[n];
+			lasts = new int[n];
+			maxLasts = new int[n];
+			for(int i=0;i<n;i++) {
+				GenomicRegion r = regions.get(i);
+				firsts[i] = r.getFirst();
+				lasts[i] = r.getLast();
+			}
+			size = n;
+			rootLevel = -1;
+			if(n>0) buildTree();
+			indexNeeded = false;
+		}
+		
+		private void buildTree() {
+			int n = size;
+			//Leaves
+			int lastNode = 0;
+			int lastMax = 0;
+			for(int i=0;i<n;i+=2) {
+				maxLasts[i] = lasts[i];
+				lastNode = i;
+				lastMax = lasts[i];
+			}
+			//Internal nodes. Right children outside the array take the maximum of the ancestors of the last node
+			int k;
+			for(k=1;(1L<<k)<=n;k++) {
+				int x = 1<<(k-1);
+				int step = x<<2;
+				for(int i=(x<<1)-1;i<n;i+=step) {
+					int max = Math.max(lasts[i], maxLasts[i-x]);
+					max = Math.max(max, (i+x<n)?maxLasts[i+x]:lastMax);
+					maxLasts[i] = max;
+				}
+				lastNode = ((lastNode>>k)&1)!=0?lastNode-x:lastNode+x;
+				if(lastNode<n) lastMax = Math.max(lastMax, maxLasts[lastNode]);
+			}
+			rootLevel = k-1;
+		}
+		
+		/**
+		 * Adds to the given collection the indexed regions spanning the given coordinates in sorted order
+		 * @param regions Sorted regions used to build the index
+		 * @param first First position of the query
+		 * @param last Last position of the query
+		 * @param answer Collection to add the spanning regions
+		 */
+		private <T extends GenomicRegion> void findSpanningRegions(List<T> regions, int first, int last, Collection<T> answer) {
+			if(rootLevel<0) return;
+			int n = size;
+			//Each entry of the stack has the node level, the node index and a flag telling if the left child was visited
+			int [] levels = new int[2*rootLevel+4];
+			int [] nodes = new int[levels.length];
+			boolean [] leftVisited = new boolean[levels.length];
+			int t = 0;
+			levels[t] = rootLevel;
+			nodes[t] = (1<<rootLevel)-1;
+			leftVisited[t] = false;
+			t++;
+			while(t>0) {
+				t--;
+				int k = levels[t];
+				int x = nodes[t];
+				if(k<=3) {
+					//Small subtree. Visit all nodes
+					int i0 = x>>k<<k;
+					int i1 = Math.min(n, i0+(1<<(k+1))-1);
+					for(int i=i0;i<i1 && firsts[i]<=last;i++) {
+						if(first<=lasts[i]) answer.add(regions.get(i));
+					}
+				} else if (!leftVisited[t]) {
+					int y = x-(1<<(k-1));
+					leftVisited[t] = true;
+					t++;
+					if(y>=n || maxLasts[y]>=first) {
+						levels[t] = k-1;
+						nodes[t] = y;
+						leftVisited[t] = false;
+						t++;
+					}
+				} else if (x<n && firsts[x]<=last) {
+					if(first<=lasts[x]) answer.add(regions.get(x));
+					levels[t] = k-1;
+					nodes[t] = x+(1<<(k-1));
+					leftVisited[t] = false;
+					t++;
+				}
+			}
+		}
+	}
+}
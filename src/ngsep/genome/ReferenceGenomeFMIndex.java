@@ -19,13 +19,18 @@
  *******************************************************************************/
 package ngsep.genome;
 
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,15 +43,18 @@ import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
 /**
- * FMIndex for reference genomes
+ * FMIndex for reference genomes. The index is saved in a flat binary file with the following layout:
+ * an eight bytes magic string, the format version, the length of the header, a header with the
+ * sequences metadata and the metadata of each internal index, and finally the data of each
+ * internal index aligned to cache lines of 64 bytes. Data sections are memory mapped when the index is loaded
  * @author German Andrade
  * @author Jorge Duitama
  */
-public class ReferenceGenomeFMIndex implements Serializable {
-	/**
-	 * Serial number
-	 */
-	private static final long serialVersionUID = 5577026857894649939L;
+public class ReferenceGenomeFMIndex {
+	public static final int FORMAT_VERSION = 2;
+	private static final byte [] MAGIC = "NGSEPFMI".getBytes(StandardCharsets.US_ASCII);
+	//Data of the internal indexes starts at a multiple of this number of bytes
+	private static final int DATA_ALIGNMENT = 64;
 	private QualifiedSequenceList sequencesMetadata;
 	private Map<String,FMIndexSingleSequence> internalIndexes = new HashMap<>();
 	
@@ -63,36 +71,102 @@ public class ReferenceGenomeFMIndex implements Serializable {
 		}
 	}
 	
+	private ReferenceGenomeFMIndex () {
+		
+	}
+	
 	/**
-	 * Loads an instance of the FMIndex from a serialized binary file
-	 * @param filename Binary file with the serialization of an FMIndex
-	 * @return FMIndex serialized in the given file
-	 * @throws IOException If there were errors reading the file
+	 * Loads an instance of the FMIndex from a binary file created with the save method.
+	 * The internal indexes are mapped to memory rather than read, so loading time does not depend
+	 * on the genome size and different processes can share the same pages
+	 * @param filename Binary file with an FMIndex
+	 * @return FMIndex stored in the given file
+	 * @throws IOException If there were errors reading the file or if the file is not a valid index
 	 */
 	public static ReferenceGenomeFMIndex loadFromBinaries(String filename) throws IOException
 	{
-		ReferenceGenomeFMIndex fmIndex;
-		try (FileInputStream fis = new FileInputStream(filename);
-			 ObjectInputStream ois = new ObjectInputStream(fis);) {
-			fmIndex = (ReferenceGenomeFMIndex) ois.readObject();
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException("FMIndex class not found",e);
+		ReferenceGenomeFMIndex fmIndex = new ReferenceGenomeFMIndex();
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			byte [] magic = new byte[MAGIC.length];
+			if(file.length()<MAGIC.length+8) throw new IOException("File "+filename+" is not an FM-index");
+			file.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC)) throw new IOException("File "+filename+" is not an FM-index. Indexes built with previous versions of NGSEP must be rebuilt");
+			int version = file.readInt();
+			if(version!=FORMAT_VERSION) throw new IOException("Unsupported version "+version+" for FM-index in file "+filename+". Expected version: "+FORMAT_VERSION);
+			byte [] header = new byte[file.readInt()];
+			file.readFully(header);
+			long offset = getDataStart(header.length);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+			FileChannel channel = file.getChannel();
+			int n = in.readInt();
+			fmIndex.sequencesMetadata = new QualifiedSequenceList();
+			for(int i=0;i<n;i++) {
+				QualifiedSequence seq = new QualifiedSequence(readString(in));
+				String comments = readString(in);
+				if(comments.length()>0) seq.setComments(comments);
+				seq.setLength(in.readInt());
+				fmIndex.sequencesMetadata.add(seq);
+			}
+			int nIndexes = in.readInt();
+			for(int i=0;i<nIndexes;i++) {
+				String name = readString(in);
+				FMIndexSingleSequence idxSeq = FMIndexSingleSequence.load(in, channel, offset);
+				offset += idxSeq.getDataLength();
+				fmIndex.internalIndexes.put(name, idxSeq);
+			}
+			if(offset!=file.length()) throw new IOException("Unexpected length of FM-index file "+filename+". Expected: "+offset+" actual: "+file.length());
 		}
+		fmIndex.sequencesMetadata.setAllowChanges(false);
 		return fmIndex;
 	}
 	
 	/**
-	 * Saves this FM-Index as a serializable object
-	 * @param filename
-	 * @throws IOException
+	 * Saves this FM-Index in a binary file that can be loaded with the loadFromBinaries method
+	 * @param filename Name of the file to create
+	 * @throws IOException If the file can not be written
 	 */
 	public void save (String filename) throws IOException 
 	{
+		List<String> names = new ArrayList<>(internalIndexes.keySet());
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(sequencesMetadata.size());
+		for(QualifiedSequence seq:sequencesMetadata) {
+			writeString(header, seq.getName());
+			writeString(header, seq.getComments()!=null?seq.getComments():"");
+			header.writeInt(seq.getLength());
+		}
+		header.writeInt(names.size());
+		for(String name:names) {
+			writeString(header, name);
+			internalIndexes.get(name).writeHeader(header);
+		}
+		header.flush();
 		try (FileOutputStream fos = new FileOutputStream( filename );
-			 ObjectOutputStream oos = new ObjectOutputStream( fos );) {
-			oos.writeObject( this );
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1048576))) {
+			out.write(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(headerBytes.size());
+			headerBytes.writeTo(out);
+			long written = MAGIC.length+8+headerBytes.size();
+			for(long i=written;i<getDataStart(headerBytes.size());i++) out.write(0);
+			for(String name:names) internalIndexes.get(name).writeData(out);
 		}
 	}
+	private static long getDataStart(int headerLength) {
+		long headerEnd = MAGIC.length+8+headerLength;
+		return (headerEnd + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+	}
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	private static String readString(DataInputStream in) throws IOException {
+		byte [] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
 	/**
 	 * @return The list of sequences and lengths related to the reference genome
 	 */
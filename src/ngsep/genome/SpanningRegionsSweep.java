@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the regions of a GenomicRegionSortedCollection spanning a stream of queries sorted by position
+ * within each sequence. Regions are visited in a single pass keeping the regions that can still span the next queries.
+ * The collection should not be modified while this object is in use
+ * @author Jorge Duitama
+ */
+public class SpanningRegionsSweep<T extends GenomicRegion> {
+	private GenomicRegionSortedCollection<T> collection;
+	private String sequenceName = null;
+	private List<T> sequenceRegions = Collections.emptyList();
+	//Index of the next region of the sequence not visited yet
+	private int next = 0;
+	private int lastQueryFirst = 0;
+	//Regions already visited that may span the next query, sorted by position
+	private List<T> activeRegions = new ArrayList<>();
+	
+	SpanningRegionsSweep(GenomicRegionSortedCollection<T> collection) {
+		this.collection = collection;
+	}
+	
+	public List<T> findSpanningRegions(GenomicRegion region) {
+		return findSpanningRegions(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
+	
+	public List<T> findSpanningRegions(String sequenceName, int position) {
+		return findSpanningRegions(sequenceName, position, position);
+	}
+	
+	/**
+	 * Finds the regions spanning the given coordinates. Within a sequence, the first position
+	 * of each query must be larger or equal than the first position of the previous query
+	 * @param sequenceName Name of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return List<T> Regions spanning the query sorted by position
+	 */
+	public List<T> findSpanningRegions(String sequenceName, int first, int last) {
+		if(!sequenceName.equals(this.sequenceName)) {
+			this.sequenceName = sequenceName;
+			sequenceRegions = collection.getSortedRegions(sequenceName);
+			if(sequenceRegions==null) sequenceRegions = Collections.emptyList();
+			next = 0;
+			activeRegions.clear();
+		} else if (first<lastQueryFirst) {
+			throw new IllegalArgumentException("Queries must be sorted by position. Query at "+sequenceName+":"+first+" found after query at "+lastQueryFirst);
+		}
+		lastQueryFirst = first;
+		//Remove regions ending before the query
+		int j=0;
+		for(int i=0;i<activeRegions.size();i++) {
+			T r = activeRegions.get(i);
+			if(r.getLast()>=first) activeRegions.set(j++, r);
+		}
+		activeRegions.subList(j, activeRegions.size()).clear();
+		//Visit regions starting before the end of the query
+		int n = sequenceRegions.size();
+		for(;next<n;next++) {
+			T r = sequenceRegions.get(next);
+			if(r.getFirst()>last) break;
+			if(r.getLast()>=first) activeRegions.add(r);
+		}
+		List<T> answer = new ArrayList<>();
+		for(T r:activeRegions) {
+			if(r.getFirst()>last) break;
+			answer.add(r);
+		}
+		return answer;
+	}
+}
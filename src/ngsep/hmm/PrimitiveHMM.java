@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.hmm;
+
+/**
+ * Variant of the HMM interface that provides the parameters of the model as primitive values.
+ * Zero probabilities are represented as Double.NEGATIVE_INFINITY instead of null objects.
+ * Algorithms on models implementing this interface are provided by the class PrimitiveHMMCalculator
+ * @author Jorge Duitama
+ */
+public interface PrimitiveHMM {
+	/**
+	 * Returns the logarithm (base 10) of the probability of transition between the source and
+	 * the dest states at the given step
+	 * @param source First state
+	 * @param dest Second state
+	 * @param step Step at which the transition will happen
+	 * @return double log10 of the transition probability between source and dest at step.
+	 * Double.NEGATIVE_INFINITY if the probability is zero 
+	 */
+	public double getLogTransition(int source, int dest, int step);
+	/**
+	 * Returns the logarithm (base 10) of the emission probability of the given value by the given state
+	 * at the given step 
+	 * @param state From which the value is emitted
+	 * @param value observed value
+	 * @param step At which the value is emitted
+	 * @return double log10 of the emission probability of the given value by the given state at the given step.
+	 * Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	public double getLogEmission(int state, Object value, int step);
+	/**
+	 * Returns the logarithm (base 10) of the initial probability of the given state
+	 * @param state Potential initial state
+	 * @return double log10 of the probability of starting at the given state.
+	 * Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	public double getLogStart(int state);
+	/**
+	 * Returns the number of states
+	 * @return int number of states
+	 */
+	public int getNumStates();
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.hmm;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import ngsep.math.LogMath;
+
+/**
+ * Implementation of the forward-backward and Viterbi algorithms on primitive values.
+ * Matrices are stored in flat arrays in row-major order with as many rows as observations
+ * and as many columns as states. Zero probabilities are represented as Double.NEGATIVE_INFINITY.
+ * As in the calculations of AbstractHMM, a null observation restarts the chain at the next step.
+ * Arrays are reused between calls and they are only reallocated when a larger capacity is needed.
+ * Instances of this class are not thread safe
+ * @author Jorge Duitama
+ */
+public class PrimitiveHMMCalculator {
+	private Logger log = Logger.getLogger(PrimitiveHMMCalculator.class.getName());
+	private PrimitiveHMM hmm;
+	
+	private int numObservations = 0;
+	private double [] emissionLogs = new double [0];
+	private double [] forwardLogs = new double [0];
+	private double [] backwardLogs = new double [0];
+	private double [] posteriorLogs = new double [0];
+	private double [] viterbiLogs = new double [0];
+	private int [] viterbiBacktrace = new int [0];
+	private boolean [] nullObservations = new boolean [0];
+	//Buffers of one row to precalculate products of probabilities
+	private double [] rowProducts = new double [0];
+	private double [] rowTerms = new double [0];
+	
+	public PrimitiveHMMCalculator(PrimitiveHMM hmm) {
+		this.hmm = hmm;
+	}
+	
+	public Logger getLog() {
+		return log;
+	}
+
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+	
+	/**
+	 * @return int Number of observations processed in the last calculation. This is the number of valid rows of the matrices
+	 */
+	public int getNumObservations() {
+		return numObservations;
+	}
+	/**
+	 * @return double [] Emission logarithms calculated for the last list of observations.
+	 * The entry i*n+j corresponds to the emission of observation i at state j, where n is the number of states.
+	 */
+	public double[] getEmissionLogs() {
+		return emissionLogs;
+	}
+	/**
+	 * @return double [] Forward logarithms calculated for the last list of observations.
+	 * The entry i*n+j corresponds to the forward probability of state j at step i, where n is the number of states.
+	 * To facilitate calculations, forward probabilities do not include the emission probability at each state
+	 */
+	public double[] getForwardLogs() {
+		return forwardLogs;
+	}
+	/**
+	 * @return double [] Backward logarithms calculated for the last list of observations.
+	 * The entry i*n+j corresponds to the backward probability of state j at step i, where n is the number of states.
+	 */
+	public double[] getBackwardLogs() {
+		return backwardLogs;
+	}
+	/**
+	 * @return double [] Posterior logarithms calculated for the last list of observations.
+	 * The entry i*n+j corresponds to the posterior of state j at step i, where n is the number of states.
+	 */
+	public double[] getPosteriorLogs() {
+		return posteriorLogs;
+	}
+	/**
+	 * Calculates the emission logarithms of the given observations at each state
+	 * @param observations List of observed values
+	 */
+	public void calculateEmissions(List<? extends Object> observations) {
+		int m = observations.size();
+		int n = hmm.getNumStates();
+		initArrays(m, n);
+		for(int i=0;i<m;i++) {
+			Object o = observations.get(i);
+			nullObservations[i] = (o==null);
+			int row = i*n;
+			for(int j=0;j<n;j++) {
+				emissionLogs[row+j] = hmm.getLogEmission(j, o, i);
+			}
+		}
+	}
+	/**
+	 * Calculate forward log probabilities for each state at each step
+	 * @param observations List of observed values
+	 * @return double log10 of the probability of the data given the HMM
+	 */
+	public double calculateForward(List<? extends Object> observations) {
+		calculateEmissions(observations);
+		return runForward();
+	}
+	/**
+	 * Calculate backward log probabilities for each state at each step
+	 * @param observations List of observed values
+	 */
+	public void calculateBackward(List<? extends Object> observations) {
+		calculateEmissions(observations);
+		runBackward();
+	}
+	/**
+	 * Calculates forward and backward log probabilities calculating emissions only once
+	 * @param observations List of observed values
+	 * @return double log10 of the probability of the data given the HMM
+	 */
+	public double calculateForwardBackward(List<? extends Object> observations) {
+		calculateEmissions(observations);
+		double logProb = runForward();
+		runBackward();
+		return logProb;
+	}
+	/**
+	 * Run the forward-backward algorithm to calculate posterior log probabilities of states given a set of observations.
+	 * Posteriors are not normalized
+	 * @param observations List of observed values
+	 * @return double log10 of the probability of the data given the HMM
+	 */
+	public double calculatePosteriorLogs(List<? extends Object> observations) {
+		double logProb = calculateForwardBackward(observations);
+		int total = numObservations*hmm.getNumStates();
+		for(int x=0;x<total;x++) {
+			posteriorLogs[x] = forwardLogs[x]+backwardLogs[x]+emissionLogs[x];
+		}
+		return logProb;
+	}
+	/**
+	 * Run the forward-backward algorithm to calculate posterior probabilities of states given a set of observations
+	 * @param observations List of observed values
+	 * @param posteriors Output matrix with as many rows as observations and as many columns as states.
+	 * Posterior probabilities are normalized row by row
+	 */
+	public void calculatePosteriors(List<? extends Object> observations, double[][] posteriors) {
+		int m = observations.size();
+		int n = hmm.getNumStates();
+		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posteriors. Expected: "+m+" Given: "+posteriors.length);
+		if(m>0 && posteriors[0].length!=n) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+n+" Given: "+posteriors[0].length);
+		calculatePosteriorLogs(observations);
+		for(int i=0;i<m;i++) {
+			int row = i*n;
+			LogMath.normalizeLogs(posteriorLogs, row, n);
+			for(int j=0;j<n;j++) {
+				posteriors[i][j] = Math.pow(10.0, posteriorLogs[row+j]);
+			}
+		}
+	}
+	/**
+	 * Calculates the total probability of the last list of observations from the precalculated forward logarithms
+	 * @return double log of the total probability of the sequence of observations
+	 */
+	public double getSequenceLogProb() {
+		int m = numObservations;
+		if(m==0) return 0;
+		int n = hmm.getNumStates();
+		int row = (m-1)*n;
+		for(int j=0;j<n;j++) rowTerms[j] = forwardLogs[row+j]+emissionLogs[row+j];
+		return LogMath.logSumPrimitive(rowTerms, 0, n);
+	}
+	/**
+	 * Calculates the path of states with the best probability
+	 * @param observations to calculate the path with the best probability
+	 * @param path Output path. This array is not modified if all paths have zero probability
+	 * @return double Logarithm of the probability of the best path. Double.NEGATIVE_INFINITY if all paths have zero probability
+	 */
+	public double getViterbiPath(List<? extends Object> observations, int [] path) {
+		calculateEmissions(observations);
+		int m = numObservations;
+		int n = hmm.getNumStates();
+		if(m==0) return 0;
+		for(int j=0;j<n;j++) {
+			viterbiLogs[j] = hmm.getLogStart(j);
+			viterbiBacktrace[j] = -1;
+		}
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			if(nullObservations[i-1]) {
+				for(int j=0;j<n;j++) {
+					viterbiLogs[row+j] = hmm.getLogStart(j);
+					viterbiBacktrace[row+j] = -1;
+				}
+				continue;
+			}
+			for(int k=0;k<n;k++) rowProducts[k] = viterbiLogs[lastRow+k]+emissionLogs[lastRow+k];
+			for(int j=0;j<n;j++) {
+				double best = Double.NEGATIVE_INFINITY;
+				int bestK = -1;
+				for(int k=0;k<n;k++) {
+					double prob = rowProducts[k]+hmm.getLogTransition(k, j, i-1);
+					if(prob > best) {
+						best = prob;
+						bestK = k;
+					}
+				}
+				viterbiLogs[row+j] = best;
+				viterbiBacktrace[row+j] = bestK;
+			}
+		}
+		int bestState = getBestViterbiState(m-1);
+		if(bestState<0) return Double.NEGATIVE_INFINITY;
+		double bestP = viterbiLogs[(m-1)*n+bestState]+emissionLogs[(m-1)*n+bestState];
+		//Backtrace best path
+		for(int i=m-1;i>=0;i--) {
+			path[i] = bestState;
+			bestState = viterbiBacktrace[i*n+bestState];
+			//The chain was restarted after a null observation
+			if(bestState<0 && i>0) bestState = getBestViterbiState(i-1);
+		}
+		return bestP;
+	}
+	
+	private int getBestViterbiState(int step) {
+		int n = hmm.getNumStates();
+		int row = step*n;
+		double bestP = Double.NEGATIVE_INFINITY;
+		int bestState = -1;
+		for(int j=0;j<n;j++) {
+			double p = viterbiLogs[row+j]+emissionLogs[row+j];
+			if(p > bestP) {
+				bestState = j;
+				bestP = p;
+			}
+		}
+		return bestState;
+	}
+	
+	private double runForward() {
+		int m = numObservations;
+		int n = hmm.getNumStates();
+		for(int j=0;j<n && m>0;j++) forwardLogs[j] = hmm.getLogStart(j);
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			if(nullObservations[i-1]) {
+				for(int j=0;j<n;j++) forwardLogs[row+j] = hmm.getLogStart(j);
+				continue;
+			}
+			for(int k=0;k<n;k++) rowProducts[k] = forwardLogs[lastRow+k]+emissionLogs[lastRow+k];
+			for(int j=0;j<n;j++) {
+				for(int k=0;k<n;k++) rowTerms[k] = rowProducts[k]+hmm.getLogTransition(k, j, i-1);
+				forwardLogs[row+j] = LogMath.logSumPrimitive(rowTerms, 0, n);
+			}
+		}
+		return getSequenceLogProb();
+	}
+	
+	private void runBackward() {
+		int m = numObservations;
+		int n = hmm.getNumStates();
+		if(m==0) return;
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n;j++) backwardLogs[lastRow+j] = 0;
+		for(int i=m-2;i>=0;i--) {
+			int nextRow = (i+1)*n;
+			int row = i*n;
+			if(nullObservations[i+1]) {
+				for(int j=0;j<n;j++) backwardLogs[row+j] = 0;
+				continue;
+			}
+			for(int k=0;k<n;k++) rowProducts[k] = backwardLogs[nextRow+k]+emissionLogs[nextRow+k];
+			for(int j=0;j<n;j++) {
+				for(int k=0;k<n;k++) rowTerms[k] = rowProducts[k]+hmm.getLogTransition(j, k, i);
+				backwardLogs[row+j] = LogMath.logSumPrimitive(rowTerms, 0, n);
+			}
+		}
+	}
+	
+	private void initArrays(int m, int n) {
+		numObservations = m;
+		int size = m*n;
+		if(emissionLogs.length<size) {
+			log.info("Creating arrays for HMM calculations of dimensions "+m+" x "+n);
+			emissionLogs = new double [size];
+			forwardLogs = new double [size];
+			backwardLogs = new double [size];
+			posteriorLogs = new double [size];
+			viterbiLogs = new double [size];
+			viterbiBacktrace = new int [size];
+		}
+		if(nullObservations.length<m) nullObservations = new boolean [m];
+		if(rowProducts.length<n) {
+			rowProducts = new double [n];
+			rowTerms = new double [n];
+		}
+	}
+}
@@ -32,11 +32,12 @@ public class VariableTransitionHMM extends AbstractHMM {
 	private List<? extends HMMState> states;
 	private int steps;
 	private int numStates;
-	private Double [][][] logTransitions;
+	//Transitions of each step stored in row-major order. Zero probabilities are represented as Double.NEGATIVE_INFINITY 
+	private double [] logTransitions;
 	private boolean skipTransitionsTraining = false;
 	//Local arrays to save reallocation over many runs
-	private Double [] logStarts = new Double [0];
-	private Double [][][] logTransitionsTrain = new Double [0][0][0];
+	private double [] logStarts = new double [0];
+	private double [] logTransitionsTrain = new double [0];
 	private List<List<? extends Object>> trainingData = null;
 	
 	/**
@@ -49,7 +50,7 @@ public class VariableTransitionHMM extends AbstractHMM {
 		numStates = states.size();
 		this.steps = steps;
 		getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-		logTransitions = new Double [steps-1][numStates][numStates];
+		logTransitions = new double [(steps-1)*numStates*numStates];
 	}
 	
 	public int getIterationsBaumWelch() {
@@ -84,22 +85,40 @@ public class VariableTransitionHMM extends AbstractHMM {
 			if(logTransitions[i].length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+numStates+" columns: "+logTransitions[i].length);
 			//Normalize before update
 			LogMath.normalizeLogs(logTransitions[i]);
-			for(int j=0;j<numStates;j++)  this.logTransitions[step][i][j] = logTransitions[i][j];
+			int row = getTransitionIndex(step, i, 0);
+			for(int j=0;j<numStates;j++)  this.logTransitions[row+j] = LogMath.toPrimitiveLog(logTransitions[i][j]);
 		}
 	}
 	
+	/**
+	 * Updates the transitions of the given step from a matrix of primitive logarithms
+	 * @param logTransitions Array with the transition logarithms in row-major order. Rows are normalized before the update
+	 * @param offset Position of the array where the matrix for the given step starts
+	 * @param step Step to update
+	 */
+	protected void setTransitions(double [] logTransitions, int offset, int step) {
+		int row = getTransitionIndex(step, 0, 0);
+		for(int i=0;i<numStates;i++) {
+			LogMath.normalizeLogs(logTransitions, offset, numStates);
+			System.arraycopy(logTransitions, offset, this.logTransitions, row, numStates);
+			offset+=numStates;
+			row+=numStates;
+		}
+	}
+	
+	private int getTransitionIndex(int step, int source, int dest) {
+		return (step*numStates+source)*numStates+dest;
+	}
+	
 	public void setRandomTransitions() {
-		Double[][] logRandom = new Double[numStates][numStates];
 		Random r = new Random();
 		//System.out.println("Random transitions for "+steps+" steps");
+		for(int x=0;x<logTransitions.length;x++) {
+			//TODO: Improve sampling from Direlecht
+			logTransitions[x] = Math.log10(r.nextDouble()*0.6+0.2);
+		}
 		for(int i=0;i<steps-1;i++) {
-			for(int j=0;j<numStates;j++) {
-				for(int k=0;k<numStates;k++) {
-					//TODO: Improve sampling from Direlecht
-					logRandom[j][k] = Math.log10(r.nextDouble()*0.6+0.2);
-				}
-			}
-			setTransitions(logRandom, i);
+			setTransitions(logTransitions, getTransitionIndex(i, 0, 0), i);
 		}
 		//printTransitions(0);
 	}
@@ -109,18 +128,28 @@ public class VariableTransitionHMM extends AbstractHMM {
 		int n = this.getNumStates();
 		int m = getSteps();
 		if(m-1!=changeProbabilities.length) throw new IllegalArgumentException("Length of changes vector "+changeProbabilities.length+" is not consistent with the number of steps "+m+". It should be "+(m-1));
-		Double [][] transitions = new Double [n][n];
 		for(int i=0;i<m-1;i++) {
 			double p = changeProbabilities[i];
-			AbstractHMM.calculateUniformChangeTransitions(p, transitions);
-			setTransitions(transitions, i);
-			//if (i==0) System.out.println("Transition between "+states.get(0).getId()+" and "+states.get(1).getId()+": "+this.transitions[0][1][0]);
+			double logNoChange = Math.log10(1.0-p);
+			//The probability of change is split uniformly across the other states
+			double logChange = Math.log10(p/(n-1));
+			for(int j=0;j<n;j++) {
+				int row = getTransitionIndex(i, j, 0);
+				for(int k=0;k<n;k++) logTransitions[row+k] = (j==k)?logNoChange:logChange;
+			}
+			setTransitions(logTransitions, getTransitionIndex(i, 0, 0), i);
+			//if (i==0) System.out.println("Transition between "+states.get(0).getId()+" and "+states.get(1).getId()+": "+getTransition(0, 1, 0));
 		}	
 	}
 
 	@Override
 	public Double getTransition(int source, int dest, int step) {
-		return logTransitions[step][source][dest];
+		return LogMath.toObjectLog(logTransitions[getTransitionIndex(step, source, dest)]);
+	}
+	
+	@Override
+	public double getLogTransition(int source, int dest, int step) {
+		return logTransitions[getTransitionIndex(step, source, dest)];
 	}
 	
 	@Override
@@ -164,43 +193,38 @@ public class VariableTransitionHMM extends AbstractHMM {
 	 */
 	protected void runBaumWelchStep() {
 		initArrays();
-		Arrays.fill(logStarts, null);
-		for(int i=0;i<logTransitionsTrain.length;i++) {
-			for(int j=0;j<logTransitionsTrain[i].length;j++) {
-				Arrays.fill(logTransitionsTrain[i][j], null);
-			}
-		}
+		int n = numStates;
+		Arrays.fill(logStarts, Double.NEGATIVE_INFINITY);
+		Arrays.fill(logTransitionsTrain, Double.NEGATIVE_INFINITY);
 		initEmissionsBaumWelch();
+		PrimitiveHMMCalculator calculator = getCalculator();
 		//int datumIdx = 0;
 		for (List<? extends Object> trainingDatum:trainingData) {
-			Double [][] forwardLogs=calculateForward(trainingDatum);
-			Double [][] backwardLogs=calculateBackward(trainingDatum);
-			Double logProb = getSequenceLogProb(trainingDatum, forwardLogs);
+			double logProb = calculator.calculateForwardBackward(trainingDatum);
+			if(logProb==Double.NEGATIVE_INFINITY) {
+				getLog().warning("Training sequence with zero probability. It will be ignored");
+				continue;
+			}
+			double [] forwardLogs = calculator.getForwardLogs();
+			double [] backwardLogs = calculator.getBackwardLogs();
+			double [] emissionLogs = calculator.getEmissionLogs();
 			//Calculate new starts
-			for(int j=0;j<logStarts.length;j++) {
-				Object o = trainingDatum.get(0);
-				Double seqProduct = LogMath.logProduct(forwardLogs[0][j], backwardLogs[0][j]);
-				Double emission = getEmission(j, o, 0);
-				seqProduct = LogMath.logProduct(seqProduct, emission);
-				seqProduct = LogMath.logProduct(seqProduct, -logProb);
-				//if(seqProduct>-0.5) System.out.println("Datum: "+datumIdx+". Next most likely start: "+j+" forward: "+forwardLogs[0][j]+" backward: "+backwardLogs[0][j]+" emission: "+emission+" logProb: "+logProb+"seq product: "+seqProduct);
-				logStarts[j] = LogMath.logSum(logStarts[j], seqProduct);
+			for(int j=0;j<n;j++) {
+				double seqProduct = forwardLogs[j]+backwardLogs[j]+emissionLogs[j]-logProb;
+				//if(seqProduct>-0.5) System.out.println("Datum: "+datumIdx+". Next most likely start: "+j+" forward: "+forwardLogs[j]+" backward: "+backwardLogs[j]+" emission: "+emissionLogs[j]+" logProb: "+logProb+"seq product: "+seqProduct);
+				logStarts[j] = LogMath.logSumPrimitive(logStarts[j], seqProduct);
 			}
 			//Calculate new transitions
 			if(!skipTransitionsTraining) {
-				for(int i=0;i<logTransitionsTrain.length;i++) {
-					for(int j=0;j<logTransitionsTrain[i].length;j++) {
-						
-						for(int k=0;k<logTransitionsTrain[i][j].length;k++) {
-							Object o1 = trainingDatum.get(i);
-							Object o2 = trainingDatum.get(i+1);
-							
-							Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i+1][k]);
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o1, i));
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(k, o2, i+1));
-							seqProduct = LogMath.logProduct(seqProduct, getTransition(j, k, i));
-							seqProduct = LogMath.logProduct(seqProduct, -logProb);
-							logTransitionsTrain[i][j][k] = LogMath.logSum(logTransitionsTrain[i][j][k], seqProduct);
+				for(int i=0;i<steps-1;i++) {
+					int row = i*n;
+					int nextRow = row+n;
+					for(int j=0;j<n;j++) {
+						double fTimesE = forwardLogs[row+j]+emissionLogs[row+j]-logProb;
+						int idx = getTransitionIndex(i, j, 0);
+						for(int k=0;k<n;k++) {
+							double seqProduct = fTimesE+backwardLogs[nextRow+k]+emissionLogs[nextRow+k]+logTransitions[idx+k];
+							logTransitionsTrain[idx+k] = LogMath.logSumPrimitive(logTransitionsTrain[idx+k], seqProduct);
 						}
 					}
 				}
@@ -209,23 +233,21 @@ public class VariableTransitionHMM extends AbstractHMM {
 			//Calculate new emissions
 			for(int i=0;i<steps;i++) {
 				Object o = trainingDatum.get(i);
-				for(int j=0;j<numStates;j++) {
-					Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-					seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o, i));
-					seqProduct = LogMath.logProduct(seqProduct, -logProb);
+				int row = i*n;
+				for(int j=0;j<n;j++) {
+					double seqProduct = forwardLogs[row+j]+backwardLogs[row+j]+emissionLogs[row+j]-logProb;
 					accumulateEmissionBaumWelch(i,j,o,seqProduct);
 				}
 			}
 			//datumIdx++;
 		}
 		//Normalize and update starts
-		Double total = null;
-		for(int j=0;j<logStarts.length;j++) total = LogMath.logSum(total, logStarts[j]);
-		for(int j=0;j<logStarts.length;j++) getState(j).setLogStart(LogMath.logProduct(logStarts[j],-total));
+		LogMath.normalizeLogs(logStarts, 0, n);
+		for(int j=0;j<n;j++) getState(j).setLogStart(LogMath.toObjectLog(logStarts[j]));
 		//Normalize and update transitions
 		if(!skipTransitionsTraining) {
-			for(int i=0;i<logTransitionsTrain.length;i++) {
-				setTransitions(logTransitionsTrain[i], i);
+			for(int i=0;i<steps-1;i++) {
+				setTransitions(logTransitionsTrain, getTransitionIndex(i, 0, 0), i);
 			}
 		}
 		
@@ -270,9 +292,9 @@ public class VariableTransitionHMM extends AbstractHMM {
 	 * @param step at which the observation is registered
 	 * @param stateIndex Index of the state where the posterior was calculated
 	 * @param datum observed value
-	 * @param logPosterior Logarithm of the posterior probability
+	 * @param logPosterior Logarithm of the posterior probability. Double.NEGATIVE_INFINITY if the probability is zero
 	 */
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, double logPosterior) {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");
 	}
 
@@ -286,11 +308,11 @@ public class VariableTransitionHMM extends AbstractHMM {
 	}
 
 	private void initArrays() {
-		if(logTransitionsTrain.length!=steps-1 || logTransitionsTrain[0].length!=numStates) {
+		if(logTransitionsTrain.length!=logTransitions.length) {
 			getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-			logTransitionsTrain = new Double [steps-1][numStates][numStates];
+			logTransitionsTrain = new double [logTransitions.length];
 		}
-		if(logStarts.length!=numStates) logStarts = new Double [numStates];
+		if(logStarts.length!=numStates) logStarts = new double [numStates];
 	}
 	
 }
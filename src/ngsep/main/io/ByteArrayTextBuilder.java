@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.Arrays;
+
+/**
+ * Reusable buffer to format text lines directly as bytes. Text is appended to a growing byte array
+ * that can be written to an output stream with a single call and then reset to format the next line.
+ * ASCII characters are copied directly. Other characters are encoded with the default charset
+ * to produce the same bytes that a PrintStream would write.
+ * This class is not thread safe
+ * @author Jorge Duitama
+ */
+public class ByteArrayTextBuilder {
+	private static final byte [] LINE_SEPARATOR = System.lineSeparator().getBytes();
+	//Digits of the numbers are written backwards in this buffer
+	private final byte [] digits = new byte[20];
+	private final StringBuffer decimalBuffer = new StringBuffer();
+	private final FieldPosition decimalPosition = new FieldPosition(0);
+	private byte [] buffer;
+	private int length = 0;
+
+	public ByteArrayTextBuilder() {
+		this(8192);
+	}
+
+	public ByteArrayTextBuilder(int initialCapacity) {
+		buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	/**
+	 * @return int Number of bytes currently in the buffer
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Discards the contents of the buffer keeping the allocated memory
+	 */
+	public void reset() {
+		length = 0;
+	}
+
+	private void ensureCapacity(int additional) {
+		int needed = length+additional;
+		if(needed<=buffer.length) return;
+		buffer = Arrays.copyOf(buffer, Math.max(needed, 2*buffer.length));
+	}
+
+	public ByteArrayTextBuilder append(char c) {
+		if(c>=0x80) return append(String.valueOf(c));
+		ensureCapacity(1);
+		buffer[length++] = (byte)c;
+		return this;
+	}
+
+	public ByteArrayTextBuilder append(CharSequence text) {
+		if(text == null) text = "null";
+		return append(text, 0, text.length());
+	}
+
+	/**
+	 * Appends the characters of the given text between the given positions
+	 * @param text Text to append
+	 * @param start First position to append
+	 * @param end Position after the last character to append
+	 * @return ByteArrayTextBuilder This object
+	 */
+	public ByteArrayTextBuilder append(CharSequence text, int start, int end) {
+		if(start<0 || end>text.length() || start>end) throw new IndexOutOfBoundsException("Start: "+start+" end: "+end+" length: "+text.length());
+		ensureCapacity(end-start);
+		for(int i=start;i<end;i++) {
+			char c = text.charAt(i);
+			if(c>=0x80) {
+				//Non ASCII text is encoded as a PrintStream would do
+				byte [] encoded = text.subSequence(i, end).toString().getBytes(Charset.defaultCharset());
+				ensureCapacity(encoded.length);
+				System.arraycopy(encoded, 0, buffer, length, encoded.length);
+				length+=encoded.length;
+				return this;
+			}
+			buffer[length++] = (byte)c;
+		}
+		return this;
+	}
+
+	public ByteArrayTextBuilder append(Object o) {
+		return append(String.valueOf(o));
+	}
+
+	public ByteArrayTextBuilder append(int number) {
+		return append((long)number);
+	}
+
+	public ByteArrayTextBuilder append(long number) {
+		if(number == Long.MIN_VALUE) return append(Long.toString(number));
+		ensureCapacity(20);
+		if(number<0) {
+			buffer[length++] = '-';
+			number = -number;
+		}
+		int nDigits = 0;
+		do {
+			digits[nDigits++] = (byte)('0'+(number%10));
+			number/=10;
+		} while (number>0);
+		while(nDigits>0) buffer[length++] = digits[--nDigits];
+		return this;
+	}
+
+	/**
+	 * Appends the given number formatted with the given format
+	 * @param number Number to append
+	 * @param fmt Format for the number
+	 * @return ByteArrayTextBuilder This object
+	 */
+	public ByteArrayTextBuilder append(double number, DecimalFormat fmt) {
+		decimalBuffer.setLength(0);
+		fmt.format(number, decimalBuffer, decimalPosition);
+		return append(decimalBuffer);
+	}
+
+	/**
+	 * Appends the line separator of the platform, which is the same used by PrintStream.println
+	 * @return ByteArrayTextBuilder This object
+	 */
+	public ByteArrayTextBuilder appendLineSeparator() {
+		ensureCapacity(LINE_SEPARATOR.length);
+		System.arraycopy(LINE_SEPARATOR, 0, buffer, length, LINE_SEPARATOR.length);
+		length+=LINE_SEPARATOR.length;
+		return this;
+	}
+
+	/**
+	 * Writes the contents of the buffer to the given stream and resets the buffer.
+	 * Errors writing to PrintStream objects are reported through the method checkError of the stream
+	 * @param out Stream to write the buffer
+	 */
+	public void flush(PrintStream out) {
+		out.write(buffer, 0, length);
+		length = 0;
+	}
+
+	/**
+	 * Writes the contents of the buffer to the given stream and resets the buffer
+	 * @param out Stream to write the buffer
+	 * @throws IOException If the data can not be written
+	 */
+	public void flush(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+		length = 0;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length, Charset.defaultCharset());
+	}
+}
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream reading gzip compressed data that is inflated ahead of the reader by background threads.
+ * Blocks of BGZF files are inflated in parallel by a pool of threads and served in the original order.
+ * Gzip members that are not BGZF blocks can only be inflated sequentially. In that case a single background
+ * thread inflates the remaining data while the calling thread consumes previously inflated data.
+ * The number of inflated blocks waiting to be read is bounded to keep memory usage constant.
+ * While BGZF blocks are found, compressed data is read from the underlying stream by the thread calling the methods
+ * of this stream. After data that is not BGZF is found, the underlying stream is read only by the background thread
+ * inflating the remaining data
+ * @author Jorge Duitama
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+
+	//Maximum uncompressed length of a BGZF block. Also used as the length of the chunks inflated from regular gzip
+	private static final int BLOCK_SIZE = 65536;
+	private static final int GZIP_HEADER_LENGTH = 12;
+	private static final int GZIP_FOOTER_LENGTH = 8;
+	private static final int FLAG_EXTRA = 4;
+
+	private InputStream in;
+	private ExecutorService pool;
+	//Single thread executor to inflate sequentially data that is not BGZF. Created only if needed
+	private ExecutorService sequentialPool;
+	private int maxBlocksInProgress;
+
+	private final LinkedList<Future<InflatedBlock>> blocksInProgress = new LinkedList<>();
+	//Inflaters and buffers are reused between blocks
+	private final ConcurrentLinkedQueue<Inflater> freeInflaters = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<byte []> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	//Block being read by the calling thread
+	private InflatedBlock currentBlock = null;
+	private int currentOffset = 0;
+
+	//Regular gzip stream used after finding data that is not made of BGZF blocks
+	private ConcatGZIPInputStream gzipRemainder = null;
+	private volatile boolean gzipRemainderFinished = false;
+	private boolean endOfInput = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates a stream inflating the given file with the given number of threads
+	 * @param filename Name of the gzip or BGZF file to read
+	 * @param numThreads Number of threads to inflate blocks
+	 * @throws IOException If the file can not be opened
+	 */
+	public ParallelBlockCompressedInputStream(String filename, int numThreads) throws IOException {
+		this(new FileInputStream(filename), numThreads);
+	}
+
+	/**
+	 * Creates a stream inflating the given compressed stream with the given number of threads.
+	 * Threads of this stream do not prevent the virtual machine from exiting
+	 * @param in Stream with gzip or BGZF compressed data
+	 * @param numThreads Number of threads to inflate blocks
+	 */
+	public ParallelBlockCompressedInputStream(InputStream in, int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be a positive number");
+		this.in = new BufferedInputStream(in, BLOCK_SIZE);
+		pool = Executors.newFixedThreadPool(numThreads, new InflaterThreadFactory());
+		maxBlocksInProgress = 2*numThreads;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!ensureData()) return -1;
+		return currentBlock.data[currentOffset++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0) return 0;
+		if(!ensureData()) return -1;
+		int n = Math.min(len, currentBlock.length-currentOffset);
+		System.arraycopy(currentBlock.data, currentOffset, b, off, n);
+		currentOffset+=n;
+		return n;
+	}
+
+	/**
+	 * @return int Number of inflated bytes that can be read without waiting for background threads
+	 */
+	@Override
+	public int available() throws IOException {
+		if(closed || currentBlock==null) return 0;
+		return currentBlock.length-currentOffset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		for(Future<InflatedBlock> f:blocksInProgress) f.cancel(true);
+		blocksInProgress.clear();
+		pool.shutdownNow();
+		if(sequentialPool!=null) sequentialPool.shutdownNow();
+		//Inflaters still used by cancelled blocks are released by the garbage collector
+		Inflater inflater;
+		while((inflater=freeInflaters.poll())!=null) inflater.end();
+		freeBuffers.clear();
+		currentBlock = null;
+		try {
+			//The thread inflating regular gzip data reads the underlying stream until it finishes its current chunk
+			if(sequentialPool!=null) sequentialPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the gzip inflater thread", e);
+		} finally {
+			if(gzipRemainder!=null) gzipRemainder.close();
+			else in.close();
+		}
+	}
+
+	/**
+	 * Makes available the next block with data if the current block was completely read
+	 * @return boolean true if there is data to read, false if the end of the stream was reached
+	 * @throws IOException If the data can not be read or inflated
+	 */
+	private boolean ensureData() throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		while(currentBlock==null || currentOffset==currentBlock.length) {
+			if(currentBlock!=null && freeBuffers.size()<maxBlocksInProgress) freeBuffers.add(currentBlock.data);
+			currentBlock = null;
+			currentOffset = 0;
+			while(!endOfInput && blocksInProgress.size()<maxBlocksInProgress) submitNextBlock();
+			if(blocksInProgress.isEmpty()) return false;
+			try {
+				currentBlock = blocksInProgress.getFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while inflating block", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if(cause instanceof IOException) throw (IOException)cause;
+				throw new IOException("Error inflating block", cause);
+			}
+			blocksInProgress.removeFirst();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next compressed block and submits it to be inflated.
+	 * If the data is not made of BGZF blocks, submits the inflation of the next chunk of the regular gzip stream
+	 * @throws IOException If the compressed data can not be read
+	 */
+	private void submitNextBlock() throws IOException {
+		if(gzipRemainder!=null) {
+			if(gzipRemainderFinished) {
+				endOfInput = true;
+				return;
+			}
+			blocksInProgress.add(sequentialPool.submit(() -> inflateGzipChunk()));
+			return;
+		}
+		byte [] header = new byte[GZIP_HEADER_LENGTH];
+		int n = readFully(header, 0, header.length);
+		if(n==0) {
+			endOfInput = true;
+			return;
+		}
+		if(n<header.length || !isGzipHeaderWithExtraField(header)) {
+			startRegularGzip(Arrays.copyOf(header, n));
+			return;
+		}
+		int extraLength = readUnsignedShort(header, GZIP_HEADER_LENGTH-2);
+		byte [] extra = new byte[extraLength];
+		n = readFully(extra, 0, extraLength);
+		int blockSize = (n==extraLength)?getBGZFBlockSize(extra):-1;
+		if(blockSize<0) {
+			byte [] readBytes = Arrays.copyOf(header, header.length+n);
+			System.arraycopy(extra, 0, readBytes, header.length, n);
+			startRegularGzip(readBytes);
+			return;
+		}
+		int dataStart = GZIP_HEADER_LENGTH+extraLength;
+		if(blockSize<dataStart+GZIP_FOOTER_LENGTH) throw new ZipException("Invalid BGZF block size: "+blockSize);
+		final byte [] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, header.length);
+		System.arraycopy(extra, 0, block, header.length, extraLength);
+		n = readFully(block, dataStart, blockSize-dataStart);
+		if(n<blockSize-dataStart) throw new EOFException("Unexpected end of BGZF block");
+		blocksInProgress.add(pool.submit(() -> inflateBlock(block, dataStart)));
+	}
+
+	/**
+	 * Switches to sequential inflation of a regular gzip stream
+	 * @param readBytes Bytes already read from the underlying stream that belong to the regular gzip stream
+	 * @throws IOException If the gzip stream can not be initialized
+	 */
+	private void startRegularGzip(byte [] readBytes) throws IOException {
+		gzipRemainder = new ConcatGZIPInputStream(new SequenceInputStream(new ByteArrayInputStream(readBytes), in));
+		sequentialPool = Executors.newSingleThreadExecutor(new InflaterThreadFactory());
+		submitNextBlock();
+	}
+
+	private InflatedBlock inflateBlock(byte [] block, int dataStart) throws IOException {
+		int footerStart = block.length-GZIP_FOOTER_LENGTH;
+		int expectedCRC = readInt(block, footerStart);
+		int uncompressedLength = readInt(block, footerStart+4);
+		if(uncompressedLength<0 || uncompressedLength>BLOCK_SIZE) throw new ZipException("Invalid uncompressed length of BGZF block: "+uncompressedLength);
+		byte [] data = getFreeBuffer();
+		Inflater inflater = freeInflaters.poll();
+		if(inflater==null) inflater = new Inflater(true);
+		int length = 0;
+		try {
+			inflater.reset();
+			inflater.setInput(block, dataStart, footerStart-dataStart);
+			while(length<uncompressedLength) {
+				int n = inflater.inflate(data, length, uncompressedLength-length);
+				if(n==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+				length+=n;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed data in BGZF block: "+e.getMessage());
+		} finally {
+			freeInflaters.add(inflater);
+		}
+		if(length!=uncompressedLength) throw new ZipException("Inflated length "+length+" does not match the length "+uncompressedLength+" of the BGZF block");
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		if((int)crc.getValue()!=expectedCRC) throw new ZipException("CRC mismatch in BGZF block");
+		return new InflatedBlock(data, length);
+	}
+
+	private InflatedBlock inflateGzipChunk() throws IOException {
+		byte [] data = getFreeBuffer();
+		int length = 0;
+		while(length<data.length) {
+			int n = gzipRemainder.read(data, length, data.length-length);
+			if(n<0) {
+				gzipRemainderFinished = true;
+				break;
+			}
+			length+=n;
+		}
+		return new InflatedBlock(data, length);
+	}
+
+	private byte [] getFreeBuffer() {
+		byte [] buffer = freeBuffers.poll();
+		if(buffer==null) buffer = new byte[BLOCK_SIZE];
+		return buffer;
+	}
+
+	private int readFully(byte [] b, int off, int len) throws IOException {
+		int total = 0;
+		while(total<len) {
+			int n = in.read(b, off+total, len-total);
+			if(n<0) break;
+			total+=n;
+		}
+		return total;
+	}
+
+	private static boolean isGzipHeaderWithExtraField(byte [] header) {
+		return header[0]==(byte)0x1f && header[1]==(byte)0x8b && header[2]==8 && (header[3] & FLAG_EXTRA)!=0;
+	}
+
+	/**
+	 * Searches the BC subfield of the given gzip extra field
+	 * @param extra Extra field of a gzip member
+	 * @return int Total length of the BGZF block, or -1 if the member is not a BGZF block
+	 */
+	private static int getBGZFBlockSize(byte [] extra) {
+		int i = 0;
+		while(i+4<=extra.length) {
+			int subfieldLength = readUnsignedShort(extra, i+2);
+			if(extra[i]=='B' && extra[i+1]=='C' && subfieldLength==2 && i+6<=extra.length) {
+				return readUnsignedShort(extra, i+4)+1;
+			}
+			i+=4+subfieldLength;
+		}
+		return -1;
+	}
+
+	private static int readUnsignedShort(byte [] array, int offset) {
+		return (array[offset] & 0xFF) | ((array[offset+1] & 0xFF)<<8);
+	}
+	private static int readInt(byte [] array, int offset) {
+		return readUnsignedShort(array, offset) | (readUnsignedShort(array, offset+2)<<16);
+	}
+
+	private static class InflatedBlock {
+		private final byte [] data;
+		private final int length;
+		public InflatedBlock(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static class InflaterThreadFactory implements ThreadFactory {
+		private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		@Override
+		public Thread newThread(Runnable r) {
+			//Readers that are not closed should not prevent the virtual machine from exiting
+			Thread t = defaultFactory.newThread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
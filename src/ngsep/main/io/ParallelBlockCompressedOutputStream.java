@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Output stream writing block compressed (BGZF) data. Data is split in independent blocks
+ * that are deflated by a pool of threads and written to the underlying stream in the original order.
+ * Block boundaries and compression level are the same used by htsjdk, so the output can be read by any
+ * gzip or BGZF reader and indexed with the virtual file pointers calculated by this stream.
+ * Data is written to the underlying stream only by the thread calling the methods of this stream,
+ * which is the only thread allowed to use the stream
+ * @author Jorge Duitama
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+	public static final int DEF_NUM_THREADS = 1;
+	private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+	private OutputStream out;
+	private ExecutorService pool;
+	private boolean poolOwned;
+	private int maxBlocksInProgress;
+	private int compressionLevel = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+
+	//Block being filled by the calling thread
+	private byte [] buffer;
+	private int bufferLength = 0;
+	private final ArrayDeque<byte []> freeBuffers = new ArrayDeque<>();
+	private final LinkedList<Future<CompressedBlock>> blocksInProgress = new LinkedList<>();
+	//Deflaters are reused between blocks and released when the stream is closed
+	private final ConcurrentLinkedQueue<Deflater> freeDeflaters = new ConcurrentLinkedQueue<>();
+
+	//Uncompressed bytes submitted to compression
+	private long submittedPosition = 0;
+	//Uncompressed bytes whose compressed blocks are already written
+	private long writtenPosition = 0;
+	//Compressed bytes written to the underlying stream
+	private long writtenAddress = 0;
+	//Uncompressed start and compressed address of written blocks, kept to calculate file pointers
+	private boolean trackFilePointers = false;
+	private final ArrayDeque<long []> writtenBlocks = new ArrayDeque<>();
+	private boolean closed = false;
+
+	/**
+	 * Creates a stream compressing blocks with the given number of threads
+	 * @param filename Name of the file to write
+	 * @param numThreads Number of threads to compress blocks
+	 * @throws IOException If the file can not be created
+	 */
+	public ParallelBlockCompressedOutputStream(String filename, int numThreads) throws IOException {
+		this(new FileOutputStream(filename), numThreads);
+	}
+
+	/**
+	 * Creates a stream compressing blocks with the given number of threads.
+	 * If numThreads is 1, blocks are compressed by the calling thread
+	 * @param out Stream to write the compressed blocks
+	 * @param numThreads Number of threads to compress blocks
+	 */
+	public ParallelBlockCompressedOutputStream(OutputStream out, int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be a positive number");
+		this.out = out;
+		if(numThreads>1) {
+			pool = Executors.newFixedThreadPool(numThreads);
+			poolOwned = true;
+		}
+		maxBlocksInProgress = 2*numThreads;
+		buffer = new byte[BLOCK_SIZE];
+	}
+
+	/**
+	 * Creates a stream compressing blocks with a thread pool shared with other streams.
+	 * The pool is not shut down when this stream is closed
+	 * @param out Stream to write the compressed blocks
+	 * @param pool Pool to compress the blocks
+	 * @param maxBlocksInProgress Maximum number of blocks of this stream waiting to be written
+	 */
+	public ParallelBlockCompressedOutputStream(OutputStream out, ExecutorService pool, int maxBlocksInProgress) {
+		if(maxBlocksInProgress<1) throw new IllegalArgumentException("Maximum number of blocks in progress must be a positive number");
+		this.out = out;
+		this.pool = pool;
+		this.poolOwned = false;
+		this.maxBlocksInProgress = maxBlocksInProgress;
+		buffer = new byte[BLOCK_SIZE];
+	}
+
+	/**
+	 * @return int Compression level used to deflate the blocks
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	/**
+	 * Changes the compression level. Must be called before writing data
+	 * @param compressionLevel New level between 0 and 9
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel<0 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level: "+compressionLevel);
+		if(getPosition()>0) throw new IllegalStateException("Compression level can not be changed after writing data");
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * @return boolean true if the addresses of written blocks are kept to calculate file pointers
+	 */
+	public boolean isTrackFilePointers() {
+		return trackFilePointers;
+	}
+	/**
+	 * Tells this stream to keep the addresses of the written blocks to calculate file pointers with getFilePointer(long).
+	 * Must be called before writing data
+	 * @param trackFilePointers true if file pointers will be calculated
+	 */
+	public void setTrackFilePointers(boolean trackFilePointers) {
+		this.trackFilePointers = trackFilePointers;
+		if(trackFilePointers && writtenBlocks.isEmpty()) writtenBlocks.add(new long [] {writtenPosition, writtenAddress});
+	}
+
+	/**
+	 * @return long Number of uncompressed bytes written to this stream
+	 */
+	public long getPosition() {
+		return submittedPosition+bufferLength;
+	}
+
+	/**
+	 * @return long Number of uncompressed bytes already compressed and written to the underlying stream.
+	 * Virtual file pointers can be calculated for positions up to this value
+	 */
+	public long getWrittenPosition() {
+		return writtenPosition;
+	}
+
+	/**
+	 * Calculates the BGZF virtual file pointer for the given uncompressed position. Positions must be requested
+	 * in non decreasing order because the addresses of blocks before the requested position are released.
+	 * PRE: setTrackFilePointers(true) was called before writing data
+	 * @param position Uncompressed position. It must be less or equal than the value returned by getWrittenPosition
+	 * @return long Virtual file pointer made of the address of the block and the offset within the uncompressed block
+	 */
+	public long getFilePointer(long position) {
+		if(!trackFilePointers) throw new IllegalStateException("Addresses of blocks are not tracked by this stream");
+		if(position>writtenPosition) throw new IllegalArgumentException("Block for position "+position+" is not written yet. Written position: "+writtenPosition);
+		long [] block = writtenBlocks.peekFirst();
+		if(position<block[0]) throw new IllegalArgumentException("Position "+position+" located before the first tracked block starting at "+block[0]);
+		while(writtenBlocks.size()>1) {
+			long [] next = writtenBlocks.pollFirst();
+			long [] following = writtenBlocks.peekFirst();
+			if(following[0]>position) {
+				writtenBlocks.addFirst(next);
+				break;
+			}
+		}
+		block = writtenBlocks.peekFirst();
+		return makeFilePointer(block[1], (int)(position-block[0]));
+	}
+
+	/**
+	 * Writes all blocks submitted to compression and returns the virtual file pointer of the current position
+	 * @return long Virtual file pointer of the current position
+	 * @throws IOException If the blocks can not be compressed or written
+	 */
+	public long getFilePointer() throws IOException {
+		writeBlocks(0);
+		return makeFilePointer(writtenAddress, bufferLength);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		buffer[bufferLength++] = (byte)b;
+		if(bufferLength==buffer.length) submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		while(len>0) {
+			int n = Math.min(len, buffer.length-bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, n);
+			bufferLength+=n;
+			off+=n;
+			len-=n;
+			if(bufferLength==buffer.length) submitBlock();
+		}
+	}
+
+	/**
+	 * Compresses and writes the current block even if it is not full and then flushes the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(closed) return;
+		if(bufferLength>0) submitBlock();
+		writeBlocks(0);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		try {
+			flush();
+			//End of file marker
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			writtenAddress+=BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+		} finally {
+			closed = true;
+			if(poolOwned) pool.shutdownNow();
+			for(Future<CompressedBlock> f:blocksInProgress) f.cancel(true);
+			blocksInProgress.clear();
+			//Deflaters still used by cancelled blocks are released by the garbage collector
+			Deflater deflater;
+			while((deflater=freeDeflaters.poll())!=null) deflater.end();
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte [] data = buffer;
+		final int length = bufferLength;
+		submittedPosition+=length;
+		buffer = freeBuffers.isEmpty()?new byte[BLOCK_SIZE]:freeBuffers.pollFirst();
+		bufferLength = 0;
+		if(pool==null) {
+			writeBlock(compressBlock(data, length));
+			return;
+		}
+		blocksInProgress.add(pool.submit(() -> compressBlock(data, length)));
+		//Write completed blocks without waiting and bound the number of blocks in memory
+		while(!blocksInProgress.isEmpty() && blocksInProgress.getFirst().isDone()) writeBlocks(blocksInProgress.size()-1);
+		writeBlocks(maxBlocksInProgress-1);
+	}
+
+	/**
+	 * Waits for blocks in progress and writes them in order until at most the given number of blocks remain in progress
+	 * @param maxRemaining Maximum number of blocks that can remain in progress
+	 * @throws IOException If the blocks can not be compressed or written
+	 */
+	private void writeBlocks(int maxRemaining) throws IOException {
+		while(blocksInProgress.size()>maxRemaining) {
+			CompressedBlock block;
+			try {
+				block = blocksInProgress.getFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while compressing block", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new IOException("Error compressing block", cause);
+			}
+			blocksInProgress.removeFirst();
+			writeBlock(block);
+		}
+	}
+
+	private void writeBlock(CompressedBlock block) throws IOException {
+		out.write(block.data, 0, block.length);
+		writtenPosition+=block.uncompressedLength;
+		writtenAddress+=block.length;
+		if(trackFilePointers) writtenBlocks.add(new long [] {writtenPosition, writtenAddress});
+		if(block.uncompressed.length==BLOCK_SIZE && freeBuffers.size()<maxBlocksInProgress) freeBuffers.add(block.uncompressed);
+	}
+
+	private CompressedBlock compressBlock(byte [] data, int length) {
+		Deflater deflater = freeDeflaters.poll();
+		if(deflater == null) deflater = new Deflater(compressionLevel, true);
+		byte [] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+		int maxDeflatedLength = compressed.length - headerLength - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int deflatedLength = deflater.deflate(compressed, headerLength, maxDeflatedLength);
+		boolean finished = deflater.finished();
+		freeDeflaters.add(deflater);
+		if(!finished) {
+			//Data does not compress. Store without compression, which always fits in the block
+			Deflater storer = new Deflater(Deflater.NO_COMPRESSION, true);
+			try {
+				storer.setInput(data, 0, length);
+				storer.finish();
+				deflatedLength = storer.deflate(compressed, headerLength, maxDeflatedLength);
+				if(!storer.finished()) throw new IllegalStateException("Uncompressed block of length "+length+" does not fit in a BGZF block");
+			} finally {
+				storer.end();
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int totalLength = headerLength+deflatedLength+BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		//Header
+		byte [] preamble = BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE;
+		System.arraycopy(preamble, 0, compressed, 0, preamble.length);
+		writeShort(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, totalLength-1);
+		//Footer
+		int footerStart = headerLength+deflatedLength;
+		writeInt(compressed, footerStart, (int)crc.getValue());
+		writeInt(compressed, footerStart+4, length);
+		return new CompressedBlock(data, length, compressed, totalLength);
+	}
+
+	/**
+	 * Builds a BGZF virtual file pointer
+	 * @param blockAddress Address of the compressed block
+	 * @param offset Offset within the uncompressed block
+	 * @return long Virtual file pointer
+	 */
+	private static long makeFilePointer(long blockAddress, int offset) {
+		return (blockAddress<<16) | offset;
+	}
+
+	private static void writeShort(byte [] array, int offset, int value) {
+		array[offset] = (byte)value;
+		array[offset+1] = (byte)(value>>8);
+	}
+	private static void writeInt(byte [] array, int offset, int value) {
+		writeShort(array, offset, value);
+		writeShort(array, offset+2, value>>16);
+	}
+
+	private static class CompressedBlock {
+		private final byte [] uncompressed;
+		private final int uncompressedLength;
+		private final byte [] data;
+		private final int length;
+		public CompressedBlock(byte[] uncompressed, int uncompressedLength, byte[] data, int length) {
+			this.uncompressed = uncompressed;
+			this.uncompressedLength = uncompressedLength;
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
@@ -36,18 +36,13 @@ public class ParseUtils {
 	public static String[] parseString(String s,char delim) {
 		//return s.split(""+delim);
 		List<String> answer = new ArrayList<String>();
-		char [] a = s.toCharArray();
-		StringBuilder current = new StringBuilder(a.length);
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == delim) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
-			}
-			current.append(a[i]);
+		int start = 0;
+		for (int i=s.indexOf(delim);i>=0;i=s.indexOf(delim, start)) {
+			answer.add(s.substring(start, i));
+			start = i+1;
 		}
-		answer.add(current.toString());
-		return answer.toArray(new String[0]);
+		answer.add(s.substring(start));
+		return answer.toArray(new String[answer.size()]);
 	}
 	/**
 	 * Parse the given string with possible text that should not be parsed, 
@@ -60,21 +55,20 @@ public class ParseUtils {
 	public static String[] parseStringWithText(String s, char delim, char textDelimiter) {
 		//return s.split(""+delim);
 		List<String> answer = new ArrayList<String>();
-		char [] a = s.toCharArray();
-		StringBuilder current = new StringBuilder(a.length);
+		int n = s.length();
+		int start = 0;
 		boolean inText = false;
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == textDelimiter) {
+		for (int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c == textDelimiter) {
 				inText = !inText;
-			} else if( !inText && a[i] == delim) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
+			} else if( !inText && c == delim) {
+				answer.add(s.substring(start, i));
+				start = i+1;
 			}
-			current.append(a[i]);
 		}
-		answer.add(current.toString());
-		return answer.toArray(new String[0]);
+		answer.add(s.substring(start));
+		return answer.toArray(new String[answer.size()]);
 	}
 	
 	/**
@@ -86,19 +80,18 @@ public class ParseUtils {
 	 */
 	public static String[] parseString(String s,char delim1, char delim2) {
 		//return s.split(""+delim);
-		char [] a = s.toCharArray();
 		List<String> answer = new ArrayList<String>();
-		StringBuilder current = new StringBuilder(a.length);
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == delim1 || a[i] == delim2) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
+		int n = s.length();
+		int start = 0;
+		for (int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c == delim1 || c == delim2) {
+				answer.add(s.substring(start, i));
+				start = i+1;
 			}
-			current.append(a[i]);
 		}
-		answer.add(current.toString());
-		return answer.toArray(new String[0]);
+		answer.add(s.substring(start));
+		return answer.toArray(new String[answer.size()]);
 		
 	}
 }
@@ -22,7 +22,8 @@ package ngsep.math;
 /**
  * Class with static methods performing basic math operations that receive and
  * return logarithms of the values to operate. Minus infinitum is represented
- * as a null object 
+ * as a null object by the methods receiving Double objects and as Double.NEGATIVE_INFINITY
+ * by the methods receiving primitive values 
  * @author Jorge Duitama
  *
  */
@@ -80,4 +81,73 @@ public class LogMath {
 		for(int j=0;j<n;j++)  logProbs[j] = LogMath.logProduct(logProbs[j],-total);
 		
 	}
+	
+	/**
+	 * Sum of probabilities on primitive values, also scalable to small values.
+	 * The sum is calculated as p+q = log(p)+log(1+exp(log(q)-log(p)))
+	 * @param log1 10-based logarithm of the first probability to add. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @param log2 10-based logarithm of the second probability to add. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @return double logarithm of the sum of the probabilities. Double.NEGATIVE_INFINITY if both parameters are Double.NEGATIVE_INFINITY
+	 */
+	public static double logSumPrimitive (double log1, double log2) {
+		if(log2==Double.NEGATIVE_INFINITY) return log1;
+		if(log1==Double.NEGATIVE_INFINITY) return log2;
+		if(log1-log2>MAXLOGDIFF) return log1;
+		if(log2-log1>MAXLOGDIFF) return log2;
+		return log1 + Math.log10(1+Math.pow(10.0, log2-log1));
+	}
+	/**
+	 * Converts a logarithm represented as an object to a primitive value
+	 * @param log Logarithm to convert. Null if the probability is zero 
+	 * @return double The given value or Double.NEGATIVE_INFINITY if the given value is null
+	 */
+	public static double toPrimitiveLog (Double log) {
+		if(log==null) return Double.NEGATIVE_INFINITY;
+		return log;
+	}
+	/**
+	 * Converts a primitive logarithm to a logarithm represented as an object
+	 * @param log Logarithm to convert. Double.NEGATIVE_INFINITY if the probability is zero
+	 * @return Double The given value or null if the given value is Double.NEGATIVE_INFINITY
+	 */
+	public static Double toObjectLog (double log) {
+		if(log==Double.NEGATIVE_INFINITY) return null;
+		return log;
+	}
+	/**
+	 * Normalizes a segment of an array of primitive logarithms
+	 * @param logProbs Array with the logarithms to normalize. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param offset First position of the segment to normalize
+	 * @param length Length of the segment to normalize
+	 */
+	public static void normalizeLogs(double[] logProbs, int offset, int length) {
+		if(length==0) throw new IllegalArgumentException("Array of logarithms must have at least one entry");
+		double total = Double.NEGATIVE_INFINITY;
+		int end = offset+length;
+		for(int j=offset;j<end;j++)  total = logSumPrimitive(total, logProbs[j]);
+		if(total==Double.NEGATIVE_INFINITY) return;
+		for(int j=offset;j<end;j++)  logProbs[j]-=total;
+	}
+	/**
+	 * Sum of the probabilities stored as primitive logarithms in a segment of the given array.
+	 * Terms smaller than the maximum by more than MAXLOGDIFF orders of magnitude are ignored.
+	 * @param logs Array with the logarithms to add. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param offset First position of the segment to add
+	 * @param length Length of the segment to add
+	 * @return double logarithm of the sum of the probabilities. Double.NEGATIVE_INFINITY if all probabilities are zero
+	 */
+	public static double logSumPrimitive(double [] logs, int offset, int length) {
+		int end = offset+length;
+		double max = Double.NEGATIVE_INFINITY;
+		for(int j=offset;j<end;j++) {
+			if(logs[j]>max) max = logs[j];
+		}
+		if(max==Double.NEGATIVE_INFINITY) return max;
+		double sum = 0;
+		for(int j=offset;j<end;j++) {
+			double diff = logs[j]-max;
+			if(diff>=-MAXLOGDIFF) sum+=Math.pow(10.0, diff);
+		}
+		return max + Math.log10(sum);
+	}
 }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trie of DNA barcodes to find the barcode located at the start of a read.
+ * Barcodes can have different lengths and a barcode can be a prefix of another barcode.
+ * Searches allowing mismatches return the barcode with the smallest number of mismatches,
+ * choosing the longest barcode if several barcodes have the same number of mismatches.
+ * Once built, the trie can be queried by several threads at the same time
+ * @author Jorge Duitama
+ */
+public class BarcodeTrie {
+	private static final int ALPHABET_SIZE = 4;
+	private static final int NO_NODE = -1;
+
+	private final List<String> barcodes;
+	//Children of node i are stored in positions i*ALPHABET_SIZE to (i+1)*ALPHABET_SIZE-1
+	private int [] children;
+	//Index of the barcode ending at each node, or -1 if no barcode ends at the node
+	private int [] barcodeByNode;
+	private int numNodes = 0;
+
+	/**
+	 * Builds a trie with the given barcodes
+	 * @param barcodes Distinct barcodes made of the characters A, C, G and T
+	 */
+	public BarcodeTrie(List<String> barcodes) {
+		this.barcodes = new ArrayList<>(barcodes);
+		children = new int [16*ALPHABET_SIZE];
+		barcodeByNode = new int [16];
+		createNode();
+		for(int i=0;i<this.barcodes.size();i++) {
+			addBarcode(i);
+		}
+	}
+
+	private int createNode() {
+		if(numNodes == barcodeByNode.length) {
+			barcodeByNode = Arrays.copyOf(barcodeByNode, 2*barcodeByNode.length);
+			children = Arrays.copyOf(children, 2*children.length);
+		}
+		int node = numNodes;
+		Arrays.fill(children, node*ALPHABET_SIZE, (node+1)*ALPHABET_SIZE, NO_NODE);
+		barcodeByNode[node] = -1;
+		numNodes++;
+		return node;
+	}
+
+	private void addBarcode(int barcodeIdx) {
+		String barcode = barcodes.get(barcodeIdx);
+		if(barcode.length()==0) throw new IllegalArgumentException("Barcodes can not be empty");
+		int node = 0;
+		for(int i=0;i<barcode.length();i++) {
+			int base = getBaseIndex(barcode.charAt(i));
+			if(base<0) throw new IllegalArgumentException("Barcode "+barcode+" is not a DNA sequence");
+			int child = children[node*ALPHABET_SIZE+base];
+			if(child == NO_NODE) {
+				child = createNode();
+				children[node*ALPHABET_SIZE+base] = child;
+			}
+			node = child;
+		}
+		if(barcodeByNode[node]>=0) throw new IllegalArgumentException("Duplicated barcode: "+barcode);
+		barcodeByNode[node] = barcodeIdx;
+	}
+
+	/**
+	 * @return int Number of barcodes in the trie
+	 */
+	public int size() {
+		return barcodes.size();
+	}
+
+	/**
+	 * @param barcodeIdx Index of the barcode in the list used to build the trie
+	 * @return String Barcode at the given index
+	 */
+	public String getBarcode(int barcodeIdx) {
+		return barcodes.get(barcodeIdx);
+	}
+
+	/**
+	 * Finds the barcode located at the start of the given read
+	 * @param read Sequence to search
+	 * @param maxMismatches Maximum number of mismatches allowed between the barcode and the read
+	 * @return int Index of the barcode found in the list used to build the trie. -1 if no barcode was found
+	 * or if two different barcodes with the same length match the read with the same number of mismatches
+	 */
+	public int findBarcode(CharSequence read, int maxMismatches) {
+		if(maxMismatches==0) return findExactBarcode(read);
+		//Barcode, mismatches and ambiguity of the best match
+		int [] best = {-1, maxMismatches+1, 0};
+		searchBarcodes(read, 0, 0, 0, maxMismatches, best);
+		if(best[2]==1) return -1;
+		return best[0];
+	}
+
+	private int findExactBarcode(CharSequence read) {
+		int answer = -1;
+		int node = 0;
+		int n = read.length();
+		for(int i=0;i<n;i++) {
+			int base = getBaseIndex(read.charAt(i));
+			if(base<0) break;
+			node = children[node*ALPHABET_SIZE+base];
+			if(node == NO_NODE) break;
+			//Longer barcodes replace barcodes that are prefixes of them
+			if(barcodeByNode[node]>=0) answer = barcodeByNode[node];
+		}
+		return answer;
+	}
+
+	private void searchBarcodes(CharSequence read, int node, int depth, int mismatches, int maxMismatches, int [] best) {
+		int barcodeIdx = barcodeByNode[node];
+		if(barcodeIdx>=0) updateBest(barcodeIdx, mismatches, best);
+		if(depth==read.length()) return;
+		int readBase = getBaseIndex(read.charAt(depth));
+		for(int base=0;base<ALPHABET_SIZE;base++) {
+			int child = children[node*ALPHABET_SIZE+base];
+			if(child == NO_NODE) continue;
+			int childMismatches = (base==readBase)?mismatches:mismatches+1;
+			if(childMismatches>maxMismatches) continue;
+			searchBarcodes(read, child, depth+1, childMismatches, maxMismatches, best);
+		}
+	}
+
+	private void updateBest(int barcodeIdx, int mismatches, int [] best) {
+		if(mismatches>best[1]) return;
+		if(best[0]<0 || mismatches<best[1]) {
+			best[0] = barcodeIdx;
+			best[1] = mismatches;
+			best[2] = 0;
+			return;
+		}
+		int length = barcodes.get(barcodeIdx).length();
+		int bestLength = barcodes.get(best[0]).length();
+		if(length>bestLength) {
+			best[0] = barcodeIdx;
+			best[2] = 0;
+		} else if (length==bestLength) {
+			best[2] = 1;
+		}
+	}
+
+	private static int getBaseIndex(char c) {
+		switch (c) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+}
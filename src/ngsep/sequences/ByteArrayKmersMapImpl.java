@@ -1,14 +1,20 @@
 package ngsep.sequences;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ngsep.math.Distribution;
 
-public class ByteArrayKmersMapImpl implements KmersMap {
+/**
+ * K-mers map for DNA k-mers of up to 15 bp storing the counts in an array indexed by the 2-bit k-mer codes.
+ * Counts of different k-mers can be updated concurrently from different threads
+ * @author Jorge Duitama
+ */
+public class ByteArrayKmersMapImpl implements KmerCodesMap {
 
 	byte kmerLength;
 	private byte [] kmerCounts;
-	private int size = 0;
+	private AtomicInteger size = new AtomicInteger(0);
 	private static final DNASequence dummySequence = new DNASequence();
 	
 	public ByteArrayKmersMapImpl( byte kmerLength) {
@@ -20,12 +26,13 @@ public class ByteArrayKmersMapImpl implements KmersMap {
 	
 	@Override
 	public int size() {
-		return size;
+		return size.get();
 	}
 
 	@Override
 	public int getCount(CharSequence kmer) {
 		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		if(kmer instanceof DNAShortKmer) return getCount(((DNAShortKmer)kmer).getCode());
 		int hash = (int) AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), dummySequence);
 		return kmerCounts[hash];
 	}
@@ -35,7 +42,7 @@ public class ByteArrayKmersMapImpl implements KmersMap {
 		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
 		int hash = (int) AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), dummySequence);
 		if(count>Byte.MAX_VALUE) count = Byte.MAX_VALUE;
-		if(kmerCounts[hash]==0 && count>0) size++;
+		if(kmerCounts[hash]==0 && count>0) size.incrementAndGet();
 		kmerCounts[hash] = (byte) count;
 	}
 
@@ -43,17 +50,42 @@ public class ByteArrayKmersMapImpl implements KmersMap {
 	public void addOcurrance(CharSequence kmer) {
 		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
 		int hash = (int) AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), dummySequence);
-		if(kmerCounts[hash]==0) size++;
+		if(kmerCounts[hash]==0) size.incrementAndGet();
 		if(kmerCounts[hash]<Byte.MAX_VALUE) (kmerCounts[hash])++;
 		
 	}
 
+	@Override
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	@Override
+	public int getCount(long code) {
+		return kmerCounts[(int)code];
+	}
+
+	@Override
+	public void setCount(long code, int count) {
+		int hash = (int)code;
+		if(count>Byte.MAX_VALUE) count = Byte.MAX_VALUE;
+		if(kmerCounts[hash]==0 && count>0) size.incrementAndGet();
+		kmerCounts[hash] = (byte) count;
+	}
+
+	@Override
+	public void addOcurrance(long code) {
+		int hash = (int)code;
+		if(kmerCounts[hash]==0) size.incrementAndGet();
+		if(kmerCounts[hash]<Byte.MAX_VALUE) (kmerCounts[hash])++;
+	}
+
 	@Override
 	public void filterKmers(int minAbundance) {
 		for(int i=0;i<kmerCounts.length;i++) {
 			if(kmerCounts[i]>0 && kmerCounts[i]<minAbundance) {
 				kmerCounts[i]=0;
-				size--;
+				size.decrementAndGet();
 			}
 		}
 		
@@ -39,11 +39,111 @@ public class DNAShortKmer implements CharSequence, Comparable<DNAShortKmer>, Ser
 	private byte length;
 	private static final DNASequence EMPTYDNASEQ = new DNASequence();
 	
+	public static final int MAX_LENGTH = 31;
+	
 	public DNAShortKmer(CharSequence kmerSeq) {
+		if(kmerSeq.length()>MAX_LENGTH) throw new IllegalArgumentException("The maximum k-mer size for this class is "+MAX_LENGTH+". Input k-mer: "+kmerSeq);
 		length = (byte) kmerSeq.length();
-		if(length>31) throw new IllegalArgumentException("The maximum k-mer size for this class is 31. Input k-mer: "+kmerSeq);
 		index = AbstractLimitedSequence.getHash(kmerSeq, 0, length,EMPTYDNASEQ);
 	}
+	/**
+	 * Creates a k-mer from its 2-bit code
+	 * @param code Code of the k-mer. Bases A, C, G and T are encoded as 0, 1, 2 and 3 and the first base is the most significant
+	 * @param length Length of the k-mer
+	 */
+	public DNAShortKmer(long code, int length) {
+		if(length>MAX_LENGTH) throw new IllegalArgumentException("The maximum k-mer size for this class is "+MAX_LENGTH+". Input length: "+length);
+		if(code<0 || (code>>>(2*length))!=0) throw new IllegalArgumentException("Invalid code "+code+" for a k-mer of length "+length);
+		this.length = (byte)length;
+		this.index = code;
+	}
+	/**
+	 * @return long 2-bit code of this k-mer. The code is the same calculated by the encodeKmers method
+	 */
+	public long getCode() {
+		return index;
+	}
+	/**
+	 * Calculates the 2-bit code of the given base
+	 * @param base to encode. Lower case bases are also accepted
+	 * @return int Code of the base. -1 if the base is not A, C, G or T
+	 */
+	public static int getBaseCode(char base) {
+		switch (base) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': return 3;
+		default: return -1;
+		}
+	}
+	/**
+	 * Calculates the code of the reverse complement of the k-mer with the given code
+	 * @param code of the k-mer
+	 * @param length of the k-mer
+	 * @return long code of the reverse complement
+	 */
+	public static long getReverseComplementCode(long code, int length) {
+		//Complement bases and reverse the order of the bits
+		long answer = Long.reverse(~code);
+		//Restore the order of the two bits of each base
+		answer = ((answer >>> 1) & 0x5555555555555555L) | ((answer & 0x5555555555555555L) << 1);
+		return answer >>> (64-2*length);
+	}
+	/**
+	 * Calculates the 2-bit codes of the k-mers of the given sequence using a rolling encoding
+	 * that does not create any object per k-mer
+	 * @param seq Sequence to encode
+	 * @param kmerSize Size of the k-mers. It must be at most 31
+	 * @param codes Output array with at least seq.length()-kmerSize+1 entries.
+	 * The code of the k-mer starting at position i is stored at index i. It is -1 if the k-mer has characters different than A, C, G or T
+	 * @param reverseCodes Optional output array with the codes of the reverse complement of each k-mer. It can be null
+	 * @return int Number of k-mers in the sequence, which is the number of entries updated in the output arrays
+	 */
+	public static int encodeKmers(CharSequence seq, int kmerSize, long [] codes, long [] reverseCodes) {
+		return encodeKmers(seq, 0, seq.length()-kmerSize, kmerSize, codes, reverseCodes);
+	}
+	/**
+	 * Calculates the 2-bit codes of the k-mers starting at the given range of positions of a sequence
+	 * @param seq Sequence to encode
+	 * @param first First start position to encode
+	 * @param last Last start position to encode. If it is larger than seq.length()-kmerSize, the last k-mer of the sequence is the last k-mer encoded
+	 * @param kmerSize Size of the k-mers. It must be at most 31
+	 * @param codes Output array. The code of the k-mer starting at position first+i is stored at index i.
+	 * It is -1 if the k-mer has characters different than A, C, G or T
+	 * @param reverseCodes Optional output array with the codes of the reverse complement of each k-mer. It can be null
+	 * @return int Number of k-mers encoded, which is the number of entries updated in the output arrays
+	 */
+	public static int encodeKmers(CharSequence seq, int first, int last, int kmerSize, long [] codes, long [] reverseCodes) {
+		if(kmerSize<1 || kmerSize>MAX_LENGTH) throw new IllegalArgumentException("Invalid k-mer size: "+kmerSize+". It must be between 1 and "+MAX_LENGTH);
+		first = Math.max(0, first);
+		last = Math.min(last, seq.length()-kmerSize);
+		if(last<first) return 0;
+		long mask = (1L<<(2*kmerSize))-1;
+		int shiftReverse = 2*(kmerSize-1);
+		long code = 0;
+		long reverseCode = 0;
+		//Number of valid consecutive bases ending at the current position
+		int validLength = 0;
+		int end = last+kmerSize;
+		for(int i=first;i<end;i++) {
+			int b = getBaseCode(seq.charAt(i));
+			if(b<0) {
+				validLength = 0;
+				code = reverseCode = 0;
+			} else {
+				code = ((code<<2) | b) & mask;
+				reverseCode = (reverseCode>>>2) | ((long)(3-b)<<shiftReverse);
+				validLength++;
+			}
+			int idx = i-kmerSize+1-first;
+			if(idx<0) continue;
+			boolean valid = validLength>=kmerSize;
+			codes[idx] = valid?code:-1;
+			if(reverseCodes!=null) reverseCodes[idx] = valid?reverseCode:-1;
+		}
+		return last-first+1;
+	}
 	
 	@Override
 	public char charAt(int i) {
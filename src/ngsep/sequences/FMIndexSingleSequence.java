@@ -19,19 +19,31 @@
  *******************************************************************************/
 package ngsep.sequences;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
  * Class that implements an FM-index to perform quick queries over large
- * sequence databases
+ * sequence databases. The BWT and the tally indexes are interleaved in blocks of one
+ * cache line. Each block has the counts of the characters in the alphabet before the block
+ * followed by the BWT characters of the block. The partial suffix array is stored as a bit
+ * vector marking the sampled rows plus the start positions of the sampled rows.
+ * Data is stored in flat buffers that can either live in the heap or be mapped from an index file
  * 
  * @author German Andrade
  * @author Jorge Duitama
@@ -43,44 +55,56 @@ public class FMIndexSingleSequence implements Serializable {
 	 */
 	private static final long serialVersionUID = 5981359942407474671L;
 
-	private static final int DEFAULT_TALLY_DISTANCE = 100;
+	private static final int DEFAULT_TALLY_DISTANCE = 32;
 	private static final int DEFAULT_SUFFIX_FRACTION = 100;
+	//Length of the blocks of occurrences is a multiple of this number of bytes
+	private static final int CACHE_LINE_BYTES = 64;
+	//Sections of the binary representation are aligned to this number of bytes
+	private static final int SECTION_ALIGNMENT = CACHE_LINE_BYTES;
+	//Number of words of the sampled rows bit vector for each precalculated rank
+	private static final int RANK_SAMPLING_WORDS = 8;
+
+	// Bit i is one if the start position of row i of the BW matrix is stored in the partial suffix array
+	private transient LongBuffer sampledRowsBits;
+	// Number of sampled rows before each group of RANK_SAMPLING_WORDS words of the bit vector
+	private transient IntBuffer sampledRowsRanks;
+	// Start position in the original sequence of each sampled row, following the order of the rows
+	private transient IntBuffer sampledPositions;
+	// Rows of the BW matrix for the positions multiple of suffixFraction.
+	// The last entry has the row of the end of the sequence
+	private transient IntBuffer partialReverseSuffixArray;
+
+	// Blocks with the ranks of each character at the start of the block followed by the BWT characters of the block
+	private transient ByteBuffer occurrenceBlocks;
+	
+	// Length in bytes of each block of occurrences
+	private int blockLength;
 
-	// Start position in the original sequence of some rows of the BW matrix
-	// representing a partial suffix array
-	private Map<Integer, Integer> partialSuffixArray = new HashMap<>();
-	//Partial map indexed by sequence first position
-	private Map<Integer, Integer> partialReverseSuffixArray = new HashMap<>();
-
-	// Ranks in the bwt for each character in the alphabet for some of the rows in
-	// the BW matrix
-	private int[][] tallyIndexes;
-
-	// 1 of each tallyDistance is saved
+	// Number of BWT characters in each block of occurrences
 	private int tallyDistance;
 
 	// 1/suffixFraction indexes are saved
 	private int suffixFraction;
 
-	// Burrows Wheeler transform
-	private byte [] bwt;
-
-	//For each character thells the number of times it appears
-	private Map<Character, Integer> characterCounts;
-	// For each character tells the first time it appears in the left column of the
-	// BW matrix
-	private Map<Character, Integer> firstRowsInMatrix;
-
-	// For each character tells the last time it appears in the left column of the
-	// BW matrix
-	private Map<Character, Integer> lastRowsInMatrix;
-	
-	
+	// Length of the Burrows Wheeler transform
+	private int bwtLength;
 
 	// Inferred alphabet of the sequence ordered lexicographical
 	private String alphabet;
 	
-	private Map<Character, Integer> alphabetIndexes;
+	//For each character in the alphabet tells the number of times it appears
+	private int [] characterCounts;
+	
+	// Index in the alphabet of each character. -1 for characters outside the alphabet
+	private transient byte [] alphabetIndexes;
+	
+	// For each character tells the first time it appears in the left column of the
+	// BW matrix. -1 for characters outside the alphabet
+	private transient int [] firstRowsInMatrix;
+
+	// For each character tells the last time it appears in the left column of the
+	// BW matrix. -1 for characters outside the alphabet
+	private transient int [] lastRowsInMatrix;
 
 	private int maxDifferencesInexactSearch = 1;
 
@@ -88,118 +112,325 @@ public class FMIndexSingleSequence implements Serializable {
 		this(sequence, DEFAULT_TALLY_DISTANCE, DEFAULT_SUFFIX_FRACTION);
 	}
 
+	/**
+	 * Builds the index for the given sequence
+	 * @param sequence to index
+	 * @param tallyDistance Minimum distance between rows with precalculated ranks. The actual distance
+	 * is the largest one such that blocks of occurrences fill complete cache lines
+	 * @param suffixFraction 1/suffixFraction start positions are stored in the partial suffix array
+	 */
 	public FMIndexSingleSequence(CharSequence sequence, int tallyDistance, int suffixFraction) {
 		this.tallyDistance = tallyDistance;
 		this.suffixFraction = suffixFraction;
 		calculate(sequence);
 	}
+	
+	private FMIndexSingleSequence() {
+		
+	}
 
+	/**
+	 * @return Number of BWT characters between rows with precalculated ranks
+	 */
 	public int getTallyDistance() {
 		return tallyDistance;
 	}
-
-	public void setTallyDistance(int tallyDistance) {
-		this.tallyDistance = tallyDistance;
-	}
 	/**
 	 * @return Length of the sequence represented by this FMIndex
 	 */
 	public int getSequenceLength() {
-		return bwt.length-1;
+		return bwtLength-1;
 	}
 
 	private void calculate(CharSequence sequence) {
 		SuffixArrayGenerator suffixArrayGenerator = new SuffixArrayGenerator(sequence);
 		alphabet = suffixArrayGenerator.getAlphabet();
-		characterCounts = suffixArrayGenerator.getCharacterCounts();
-		buildCharacterFirstAndLastRows();
+		Map<Character,Integer> counts = suffixArrayGenerator.getCharacterCounts();
+		characterCounts = new int [alphabet.length()];
+		for(int i=0;i<alphabet.length();i++) characterCounts[i] = counts.get(alphabet.charAt(i));
+		buildAlphabetTables();
 		int [] sa = suffixArrayGenerator.getSuffixArray();
 		int [] reverseSA = suffixArrayGenerator.getReverseSuffixArray();
+		if(sa[0]!=sequence.length()) throw new RuntimeException("Suffix array should have "+sequence.length()+" as first entry");
+		bwtLength = sequence.length() + 1;
 		
-		alphabetIndexes = new HashMap<>();
-		for(int i=0;i<alphabet.length();i++) alphabetIndexes.put(alphabet.charAt(i), i);
-		
-		
-		buildBWT(sequence, sa, reverseSA);
+		calculateBlockLength(tallyDistance);
+		buildOccurrenceBlocks(sequence, sa);
 		createPartialSuffixArray(sa, reverseSA);
-		buildTally();
 	}
-
-	private void buildCharacterFirstAndLastRows() {
-		firstRowsInMatrix = new TreeMap<>();
-		lastRowsInMatrix = new TreeMap<>();
+	
+	private void buildAlphabetTables() {
+		alphabetIndexes = new byte [256];
+		firstRowsInMatrix = new int [256];
+		lastRowsInMatrix = new int [256];
+		Arrays.fill(alphabetIndexes, (byte)-1);
+		Arrays.fill(firstRowsInMatrix, -1);
+		Arrays.fill(lastRowsInMatrix, -1);
 		char spec = SuffixArrayGenerator.SPECIAL_CHARACTER;
-		firstRowsInMatrix.put(spec, 0);
-		lastRowsInMatrix.put(spec, 0);
+		firstRowsInMatrix[spec] = 0;
+		lastRowsInMatrix[spec] = 0;
 		int totalChars = 1;
-		for(char c:characterCounts.keySet()) {
-			firstRowsInMatrix.put(c, totalChars);
-	    	totalChars += characterCounts.get(c);
-	    	lastRowsInMatrix.put(c, totalChars - 1);
+		//Rows of each character in the BW matrix follow the lexicographical order of the alphabet
+		for(int i=0;i<alphabet.length();i++) {
+			char c = alphabet.charAt(i);
+			if(c>=alphabetIndexes.length) throw new IllegalArgumentException("Invalid character "+c+" to build an FM-index");
+			alphabetIndexes[c] = (byte)i;
+			if(characterCounts[i]==0) continue;
+			firstRowsInMatrix[c] = totalChars;
+			totalChars += characterCounts[i];
+			lastRowsInMatrix[c] = totalChars - 1;
 		}
 	}
 	
-	private void buildBWT(CharSequence sequence, int [] sa, int [] reverseSA) {
-		bwt = new byte[sequence.length() + 1];
-		
-		/*bwt[reverseSA[0]] = SPECIAL_CHARACTER;
-		for (int i = 1; i < reverseSA.length; i++) bwt[reverseSA[i]] = sequence.charAt(i - 1);
-		*/
-		if(sa[0]!=sequence.length()) throw new RuntimeException("Suffix array should have "+sequence.length()+" as first entry");
-		//assert sa[0]==sequence.length();
+	private int getAlphabetIndex(char c) {
+		if(c>=alphabetIndexes.length) return -1;
+		return alphabetIndexes[c];
+	}
+	
+	private void calculateBlockLength(int minTallyDistance) {
+		int countsLength = 4*alphabet.length();
+		blockLength = (countsLength + minTallyDistance + CACHE_LINE_BYTES - 1) / CACHE_LINE_BYTES * CACHE_LINE_BYTES;
+		tallyDistance = blockLength - countsLength;
+	}
+	
+	private int getNumBlocks() {
+		return (bwtLength + tallyDistance - 1) / tallyDistance;
+	}
+
+	private void buildOccurrenceBlocks(CharSequence sequence, int [] sa) {
+		long totalLength = (long)getNumBlocks()*blockLength;
+		if(totalLength>Integer.MAX_VALUE) throw new IllegalArgumentException("Sequence of length "+sequence.length()+" is too long to build an FM-index");
+		occurrenceBlocks = ByteBuffer.wrap(new byte[(int)totalLength]);
+		int alphabetSize = alphabet.length();
+		int [] counts = new int[alphabetSize];
 		int j = 0;
-		for (int i : sa) {
-			if (i > 0) {
-				bwt[j] = (byte)sequence.charAt(i - 1);
+		for (int row = 0; row < bwtLength; row++) {
+			int offset = row % tallyDistance;
+			if(offset==0) {
+				for(int k=0;k<alphabetSize;k++) occurrenceBlocks.putInt(j+4*k, counts[k]);
+				j += 4*alphabetSize;
+			}
+			byte c;
+			if (sa[row] > 0) {
+				c = (byte)sequence.charAt(sa[row] - 1);
+				counts[alphabetIndexes[c & 0xFF]]++;
 			} else {
-				bwt[j] = SuffixArrayGenerator.SPECIAL_CHARACTER;
+				c = (byte)SuffixArrayGenerator.SPECIAL_CHARACTER;
 			}
+			occurrenceBlocks.put(j, c);
 			j++;
+			if(offset==tallyDistance-1) j = (row/tallyDistance + 1)*blockLength;
 		}
 	}
+	/**
+	 * Returns the character of the BWT at the given row
+	 * @param row of the BW matrix
+	 * @return char last character of the row
+	 */
+	private char getBWTCharacter(int row) {
+		int block = row / tallyDistance;
+		return (char)occurrenceBlocks.get(block*blockLength + 4*alphabet.length() + row - block*tallyDistance);
+	}
 
-	private void buildTally() {
-		int tallyRows = bwt.length / tallyDistance;
-		if (bwt.length % tallyDistance > 0) tallyRows++;
-		
-		final int[] arr = new int[alphabet.length()];
-		tallyIndexes = new int[tallyRows][alphabet.length()];
-		
-		/*int posChar = alphabetIndexes[bwt[0]];
-		arr[posChar]++;
-		System.arraycopy(arr, 0, tallyIndexes[0], 0, arr.length);
-	
-		for (int j = 1; j < tallyRows; j++) {
-		    for (int i = (j - 1) * tallyDistance + 1; i <= j * tallyDistance; i++) {
-		    	posChar = alphabetIndexes[bwt[i]];
-		    	if(posChar!=-1) arr[posChar]++;
-		    }
-		    System.arraycopy(arr, 0, tallyIndexes[j], 0, arr.length);
-		}*/
-
-		int j = 0;
-		for (int i = 0; i < bwt.length; i++) {
-			char c = (char)bwt[i];
-			if (c != SuffixArrayGenerator.SPECIAL_CHARACTER) {
-				int indexC = alphabetIndexes.get(c);
-				arr[indexC]++;
+	private void createPartialSuffixArray(int [] sa, int [] reverseSA) {
+		//Row 0 is always sampled because it corresponds to the end of the sequence
+		int numWords = (sa.length + 63) / 64;
+		long [] bits = new long [numWords];
+		int [] ranks = new int [(numWords + RANK_SAMPLING_WORDS - 1) / RANK_SAMPLING_WORDS];
+		int numSampled = 0;
+		for (int row = 0; row < sa.length; row++) {
+			if(row % (64*RANK_SAMPLING_WORDS) == 0) ranks[row / (64*RANK_SAMPLING_WORDS)] = numSampled;
+			if(row == 0 || sa[row] % suffixFraction == 0) {
+				bits[row / 64] |= 1L << (row % 64);
+				numSampled++;
 			}
-			if (i % tallyDistance == 0) {
-				System.arraycopy(arr, 0, tallyIndexes[j], 0, arr.length);
-				j++;
+		}
+		int [] positions = new int[numSampled];
+		int k = 0;
+		for (int row = 0; row < sa.length; row++) {
+			if(row == 0 || sa[row] % suffixFraction == 0) {
+				positions[k] = sa[row];
+				k++;
 			}
 		}
+		sampledRowsBits = LongBuffer.wrap(bits);
+		sampledRowsRanks = IntBuffer.wrap(ranks);
+		sampledPositions = IntBuffer.wrap(positions);
+		int numReverse = (reverseSA.length-1)/suffixFraction + 1;
+		int [] reverseRows = new int[numReverse+1];
+		for (int i = 0; i < numReverse; i++) {
+			reverseRows[i] = reverseSA[i*suffixFraction];
+		}
+		reverseRows[numReverse] = reverseSA[sa[0]];
+		partialReverseSuffixArray = IntBuffer.wrap(reverseRows);
 	}
-
-	private void createPartialSuffixArray(int [] sa, int [] reverseSA) {
-		partialSuffixArray = new HashMap<>();
-		partialReverseSuffixArray = new HashMap<>();
-		partialSuffixArray.put(0, sa[0]);
-		partialReverseSuffixArray.put(sa[0], 0);
-		for (int i = 0; i < reverseSA.length; i += suffixFraction) {
-			partialSuffixArray.put(reverseSA[i], i);
-			partialReverseSuffixArray.put(i, reverseSA[i]);
+	/**
+	 * Looks for the start position of the given row if it is part of the partial suffix array
+	 * @param row of the BW matrix
+	 * @return int Start position in the sequence of the suffix at the given row. -1 if the row is not sampled
+	 */
+	private int getSampledPosition(int row) {
+		int word = row >>> 6;
+		long bits = sampledRowsBits.get(word);
+		long mask = 1L << (row & 63);
+		if((bits & mask) == 0) return -1;
+		int rank = sampledRowsRanks.get(word / RANK_SAMPLING_WORDS);
+		for(int w = word - word % RANK_SAMPLING_WORDS; w < word; w++) rank += Long.bitCount(sampledRowsBits.get(w));
+		rank += Long.bitCount(bits & (mask - 1));
+		return sampledPositions.get(rank);
+	}
+	/**
+	 * Looks for the row of the BW matrix of the suffix starting at the given position if it is part of the partial reverse suffix array
+	 * @param position in the sequence
+	 * @return int row of the BW matrix. -1 if the position is not sampled
+	 */
+	private int getSampledRow(int position) {
+		if(position == bwtLength-1) return partialReverseSuffixArray.get(partialReverseSuffixArray.limit()-1);
+		if(position % suffixFraction != 0) return -1;
+		return partialReverseSuffixArray.get(position/suffixFraction);
+	}
+	
+	/**
+	 * Writes the metadata of this index. Together with the output of writeData, it can be loaded with
+	 * the load method
+	 * @param out Output to write the metadata
+	 * @throws IOException If the metadata can not be written
+	 */
+	public void writeHeader(DataOutput out) throws IOException {
+		out.writeInt(blockLength);
+		out.writeInt(tallyDistance);
+		out.writeInt(suffixFraction);
+		out.writeUTF(alphabet);
+		for(int i=0;i<alphabet.length();i++) out.writeInt(characterCounts[i]);
+		out.writeInt(bwtLength);
+		out.writeInt(sampledPositions.limit());
+		out.writeInt(partialReverseSuffixArray.limit());
+	}
+	/**
+	 * Writes the blocks of occurrences and the partial suffix arrays of this index as flat sections
+	 * aligned to cache lines. Writes exactly getDataLength() bytes
+	 * @param out Output to write the data
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeData(DataOutput out) throws IOException {
+		int length = occurrenceBlocks.limit();
+		byte [] buffer = new byte[Math.min(length, 65536)];
+		for(int i=0;i<length;i+=buffer.length) {
+			int n = Math.min(buffer.length, length-i);
+			for(int j=0;j<n;j++) buffer[j] = occurrenceBlocks.get(i+j);
+			out.write(buffer, 0, n);
 		}
+		writePadding(out, length);
+		int n = sampledRowsBits.limit();
+		for(int i=0;i<n;i++) out.writeLong(sampledRowsBits.get(i));
+		writePadding(out, 8L*n);
+		writeInts(out, sampledRowsRanks);
+		writeInts(out, sampledPositions);
+		writeInts(out, partialReverseSuffixArray);
+	}
+	private static void writeInts(DataOutput out, IntBuffer values) throws IOException {
+		int n = values.limit();
+		for(int i=0;i<n;i++) out.writeInt(values.get(i));
+		writePadding(out, 4L*n);
+	}
+	private static void writePadding(DataOutput out, long length) throws IOException {
+		for(long i=length;i<getSectionLength(length);i++) out.write(0);
+	}
+	private static long getSectionLength(long length) {
+		return (length + SECTION_ALIGNMENT - 1) / SECTION_ALIGNMENT * SECTION_ALIGNMENT;
+	}
+	/**
+	 * @return long Number of bytes written by writeData
+	 */
+	public long getDataLength() {
+		long answer = getSectionLength(occurrenceBlocks.limit());
+		answer += getSectionLength(8L*sampledRowsBits.limit());
+		answer += getSectionLength(4L*sampledRowsRanks.limit());
+		answer += getSectionLength(4L*sampledPositions.limit());
+		answer += getSectionLength(4L*partialReverseSuffixArray.limit());
+		return answer;
+	}
+	/**
+	 * Loads an index mapping its data sections from the given file channel. Data is paged in by the
+	 * operating system only when it is accessed
+	 * @param header Metadata of the index written by writeHeader
+	 * @param channel File channel with the data written by writeData
+	 * @param offset Position in the channel where the data of this index starts
+	 * @return FMIndexSingleSequence Index backed by the mapped data
+	 * @throws IOException If the data can not be read or mapped
+	 */
+	public static FMIndexSingleSequence load(DataInput header, FileChannel channel, long offset) throws IOException {
+		FMIndexSingleSequence answer = new FMIndexSingleSequence();
+		int [] sizes = answer.readHeader(header);
+		answer.occurrenceBlocks = channel.map(FileChannel.MapMode.READ_ONLY, offset, sizes[0]);
+		offset += getSectionLength(sizes[0]);
+		answer.sampledRowsBits = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L*sizes[1]).asLongBuffer();
+		offset += getSectionLength(8L*sizes[1]);
+		answer.sampledRowsRanks = mapInts(channel, offset, sizes[2]);
+		offset += getSectionLength(4L*sizes[2]);
+		answer.sampledPositions = mapInts(channel, offset, sizes[3]);
+		offset += getSectionLength(4L*sizes[3]);
+		answer.partialReverseSuffixArray = mapInts(channel, offset, sizes[4]);
+		return answer;
+	}
+	private static IntBuffer mapInts(FileChannel channel, long offset, int n) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L*n).asIntBuffer();
+	}
+	/**
+	 * Reads the metadata of this index
+	 * @param in Input with the data written by writeHeader
+	 * @return int [] Length in bytes of the blocks of occurrences, and number of entries of the bit vector of sampled rows,
+	 * the precalculated ranks, the sampled positions and the partial reverse suffix array
+	 * @throws IOException If the metadata can not be read
+	 */
+	private int [] readHeader(DataInput in) throws IOException {
+		blockLength = in.readInt();
+		tallyDistance = in.readInt();
+		suffixFraction = in.readInt();
+		alphabet = in.readUTF();
+		characterCounts = new int [alphabet.length()];
+		for(int i=0;i<alphabet.length();i++) characterCounts[i] = in.readInt();
+		bwtLength = in.readInt();
+		buildAlphabetTables();
+		int numWords = (bwtLength + 63) / 64;
+		int [] sizes = new int[5];
+		sizes[0] = getNumBlocks()*blockLength;
+		sizes[1] = numWords;
+		sizes[2] = (numWords + RANK_SAMPLING_WORDS - 1) / RANK_SAMPLING_WORDS;
+		sizes[3] = in.readInt();
+		sizes[4] = in.readInt();
+		return sizes;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		writeHeader(out);
+		out.writeInt(maxDifferencesInexactSearch);
+		writeData(out);
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException {
+		int [] sizes = readHeader(in);
+		maxDifferencesInexactSearch = in.readInt();
+		byte [] blocks = new byte[sizes[0]];
+		in.readFully(blocks);
+		occurrenceBlocks = ByteBuffer.wrap(blocks);
+		skipPadding(in, sizes[0]);
+		long [] bits = new long[sizes[1]];
+		for(int i=0;i<bits.length;i++) bits[i] = in.readLong();
+		sampledRowsBits = LongBuffer.wrap(bits);
+		skipPadding(in, 8L*sizes[1]);
+		sampledRowsRanks = readInts(in, sizes[2]);
+		sampledPositions = readInts(in, sizes[3]);
+		partialReverseSuffixArray = readInts(in, sizes[4]);
+	}
+	private static IntBuffer readInts(DataInput in, int n) throws IOException {
+		int [] values = new int[n];
+		for(int i=0;i<n;i++) values[i] = in.readInt();
+		skipPadding(in, 4L*n);
+		return IntBuffer.wrap(values);
+	}
+	private static void skipPadding(DataInput in, long length) throws IOException {
+		in.readFully(new byte[(int)(getSectionLength(length)-length)]);
 	}
 
 	/**
@@ -230,16 +461,16 @@ public class FMIndexSingleSequence implements Serializable {
 	 */
 	public int[] getRange(String query) {
 		char actualChar = query.charAt(query.length() - 1);
-
-		Integer rowS = firstRowsInMatrix.get(actualChar);
-		Integer rowF = lastRowsInMatrix.get(actualChar);
+		if (getAlphabetIndex(actualChar) < 0) return null;
+		int rowS = firstRowsInMatrix[actualChar];
+		int rowF = lastRowsInMatrix[actualChar];
 		// System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
-		if (rowS == null || rowF == null || rowS == -1 || rowF == -1) {
+		if (rowS == -1 || rowF == -1) {
 			return null;
 		}
 		for (int j = query.length() - 2; j >= 0; j--) {
 			actualChar = query.charAt(j);
-			if (alphabet.indexOf(actualChar) < 0)
+			if (getAlphabetIndex(actualChar) < 0)
 				return null;
 			rowS = lfMapping(actualChar, rowS, true);
 			rowF = lfMapping(actualChar, rowF, false);
@@ -264,11 +495,11 @@ public class FMIndexSingleSequence implements Serializable {
 		// sequence
 		for (int i = firstRow; i <= lastRow; i++) {
 			int row = i;
-			Integer begin = partialSuffixArray.get(row);
+			int begin = getSampledPosition(row);
 			int steps;
-			for (steps = 0; begin == null; steps++) {
+			for (steps = 0; begin < 0; steps++) {
 				row = lfMapping(row);
-				begin = partialSuffixArray.get(row);
+				begin = getSampledPosition(row);
 			}
 			begin += steps;
 			startIndexes.add(begin);
@@ -283,28 +514,17 @@ public class FMIndexSingleSequence implements Serializable {
 	 * @return int count of appearances of the character c in the bwt up to the given row
 	 */
 	public int getTallyCount(char c, int row) {
-		int r = 0;
-
-		int a = row / tallyDistance;
-		int b = a + 1;
-
-		if (row - a * tallyDistance < b * tallyDistance - row || tallyIndexes.length <= b) {
-			// Recalculate from top record
-			r = tallyIndexes[a][alphabet.indexOf(c)];
-
-			for (int j = a * tallyDistance + 1; j <= row; j++) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r++;
-			}
-		} else {
-			// Recalculate from bottom record
-			r = tallyIndexes[b][alphabet.indexOf(c)];
-			for (int j = b * tallyDistance; j > row; j--) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r--;
-			}
+		int index = getAlphabetIndex(c);
+		if(index < 0) return 0;
+		int block = row / tallyDistance;
+		int blockStart = block * blockLength;
+		int r = occurrenceBlocks.getInt(blockStart + 4*index);
+		// Count from the start of the block. The whole block fits in one cache line
+		int first = blockStart + 4*alphabet.length();
+		int last = first + row - block * tallyDistance;
+		byte b = (byte)c;
+		for (int j = first; j <= last; j++) {
+			if (occurrenceBlocks.get(j) == b) r++;
 		}
 		return r;
 	}
@@ -325,15 +545,15 @@ public class FMIndexSingleSequence implements Serializable {
 		// add1 is true when actualChar is different of bwt[rowS] because in this case,
 		// the last appearance of actualChar before rowS is outside the range defined by
 		// rowS, rowF
-		boolean add1 = firstIndexAfter && (bwt[row] != c);
-		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsInMatrix.get(c));
-		int newRank = firstRowsInMatrix.get(c) + rank - 1;
+		boolean add1 = firstIndexAfter && (getBWTCharacter(row) != c);
+		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsInMatrix[c]);
+		int newRank = firstRowsInMatrix[c] + rank - 1;
 		if (add1) newRank++;
 		return newRank;
 	}
 
 	private int lfMapping(int row) {
-		char c = (char)bwt[row];
+		char c = getBWTCharacter(row);
 		// System.out.println(""+c);
 		return lfMapping(c, row, false);
 	}
@@ -346,21 +566,21 @@ public class FMIndexSingleSequence implements Serializable {
 	 */
 	public CharSequence getSequence (int start, int end)
 	{
-		if(start>=bwt.length) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+start);
-		if(end>=bwt.length) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+end);
+		if(start>=bwtLength) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+start);
+		if(end>=bwtLength) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+end);
 		if(start>=end) throw new StringIndexOutOfBoundsException("Start position "+start+" should be smaller than end position: "+end);
 		int endReverseSA = end;
-		Integer endRow = partialReverseSuffixArray.get(endReverseSA);
-		if (endRow == null) {
+		int endRow = getSampledRow(endReverseSA);
+		if (endRow < 0) {
 			endReverseSA = suffixFraction*((endReverseSA/suffixFraction)+1);
-			if(endReverseSA>bwt.length-1) endReverseSA = bwt.length-1;
-			endRow = partialReverseSuffixArray.get(endReverseSA);
-			if(endRow==null) throw new RuntimeException("SA index not found for sequence position: "+endReverseSA+" query: "+start+"-"+end+" sequence length: "+(bwt.length-1));
+			if(endReverseSA>bwtLength-1) endReverseSA = bwtLength-1;
+			endRow = getSampledRow(endReverseSA);
+			if(endRow < 0) throw new RuntimeException("SA index not found for sequence position: "+endReverseSA+" query: "+start+"-"+end+" sequence length: "+(bwtLength-1));
 		}
 		int j=endRow;
 		StringBuilder answer = new StringBuilder();
 		for(int i=endReverseSA;i>start;i--) {
-			char c = (char)bwt[j];
+			char c = getBWTCharacter(j);
 			if(i<=end) answer.append(c);
 			j=lfMapping(j);
 		}
@@ -388,7 +608,7 @@ public class FMIndexSingleSequence implements Serializable {
 		int[] d = calculateD(searchSequence);
 
 		List<int[]> ranges = inexactRecurrentSearch(searchSequence, searchSequence.length() - 1,
-				maxDifferencesInexactSearch, 1, bwt.length - 1, d);
+				maxDifferencesInexactSearch, 1, bwtLength - 1, d);
 		Set<Integer> indexes = new TreeSet<>();
 		for (int[] range : ranges) {
 			indexes.addAll(getSequenceIndexes(range[0], range[1]));
@@ -25,9 +25,10 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Iterator;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
+import ngsep.main.io.ParallelBlockCompressedOutputStream;
 import ngsep.sequences.io.FastqFileReader;
 
 /**
@@ -41,6 +42,7 @@ public class FastqFileErrorCorrector {
 	private int kmerSize = KmersCounter.DEFAULT_KMER_SIZE;
 	private int minAbundance = 5;
 	private int correctedErrors = 0;
+	private int numThreads = KmersCounter.DEF_NUM_THREADS;
 	/**
 	 * @return the minCount
 	 */
@@ -61,6 +63,16 @@ public class FastqFileErrorCorrector {
 	public void setMinAbundance(Integer minAbundance) {
 		this.setMinAbundance(minAbundance.intValue());
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 
 	public static void main(String[] args) throws Exception {
 		FastqFileErrorCorrector instance = new FastqFileErrorCorrector();
@@ -77,6 +89,7 @@ public class FastqFileErrorCorrector {
 		KmersCounter counter = new KmersCounter();
 		counter.setLog(log);
 		counter.setKmerSize(kmerSize);
+		counter.setNumThreads(numThreads);
 		counter.processFile(inFilename);
 		kmersMap = counter.getKmersMap();
 		log.info("Filtering from "+kmersMap.size()+" k-mers by minimum abundance: "+minAbundance);
@@ -86,8 +99,8 @@ public class FastqFileErrorCorrector {
 		kmerSize = counter.getKmerSize();
 		System.out.println("Extracted "+kmersMap.size()+" filtered k-mers from: "+inFilename);
 		System.out.println("Processing file: "+inFilename);
-		try (FastqFileReader reader = new FastqFileReader(inFilename);
-			 OutputStream os = new GZIPOutputStream(new FileOutputStream(outFilename));
+		try (FastqFileReader reader = new FastqFileReader(inFilename, numThreads);
+			 OutputStream os = new ParallelBlockCompressedOutputStream(new FileOutputStream(outFilename), numThreads);
 			 PrintStream out = new PrintStream(os)) {
 			Iterator<RawRead> it = reader.iterator();
 			while (it.hasNext()) {
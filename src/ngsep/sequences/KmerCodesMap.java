@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+/**
+ * K-mers map for DNA k-mers of up to 31 bp that can be queried and updated using the 2-bit codes
+ * calculated by DNAShortKmer.encodeKmers without creating objects per k-mer
+ * @author Jorge Duitama
+ */
+public interface KmerCodesMap extends KmersMap {
+	/**
+	 * @return int Length of the k-mers stored in this map
+	 */
+	public int getKmerLength();
+	/**
+	 * Gives the count of ocurrances of the k-mer with the given code
+	 * @param code of the k-mer to search
+	 * @return int number of times it appears
+	 */
+	public int getCount(long code);
+	/**
+	 * Changes the count of the k-mer with the given code
+	 * @param code of the k-mer to set
+	 * @param count of the given kmer
+	 */
+	public void setCount(long code, int count);
+	/**
+	 * Add 1 to the ocurrances of the k-mer with the given code
+	 * @param code of the k-mer to modify count
+	 */
+	public void addOcurrance(long code);
+}
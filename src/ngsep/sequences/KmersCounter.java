@@ -26,13 +26,24 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.math.Distribution;
 import ngsep.sequences.io.FastaSequencesHandler;
 import ngsep.sequences.io.FastqFileReader;
+import ngsep.sequences.io.RawReadView;
 
 /**
  * 
@@ -42,13 +53,26 @@ import ngsep.sequences.io.FastqFileReader;
 public class KmersCounter {
 	
 	public static final int DEFAULT_KMER_SIZE = 15;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of k-mers encoded at once from long sequences
+	private static final int ENCODING_BLOCK_LENGTH = 100000;
+	//Number of reads sent at once to the counting threads
+	private static final int READS_BLOCK_SIZE = 10000;
+	//Maximum number of blocks in progress for each counting thread
+	private static final int MAX_PENDING_BLOCKS = 2;
 	private Logger log = Logger.getLogger(KmersCounter.class.getName());
 	private ProgressNotifier progressNotifier=null;
 	
-	private KmersMap kmersMap = new ByteArrayKmersMapImpl((byte) DEFAULT_KMER_SIZE);
+	//Created on demand according to the k-mer size and the strands to count
+	private KmersMap kmersMap = null;
 	private boolean bothStrands = false;
 	private boolean fasta = false;
 	private int kmerSize = DEFAULT_KMER_SIZE;
+	private int numThreads = DEF_NUM_THREADS;
+	
+	//Buffers to encode k-mers without creating objects
+	private long [] codesBuffer = new long [0];
+	private long [] reverseCodesBuffer = new long [0];
 	
 	
 	public Logger getLog() {
@@ -70,6 +94,7 @@ public class KmersCounter {
 	}
 	public void setBothStrands(boolean bothStrands) {
 		this.bothStrands = bothStrands;
+		kmersMap = null;
 	}
 	public void setBothStrands(Boolean bothStrands) {
 		this.setBothStrands(bothStrands.booleanValue());
@@ -90,19 +115,39 @@ public class KmersCounter {
 	}
 	public void setKmerSize(int kmerSize) {
 		this.kmerSize = kmerSize;
-		if(kmerSize<=15) kmersMap = new ByteArrayKmersMapImpl((byte) kmerSize);
-		else kmersMap = new DefaultKmersMapImpl();
+		kmersMap = null;
 	}
 	public void setKmerSize(Integer kmerSize) {
 		this.setKmerSize(kmerSize.intValue());
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Invalid number of threads: "+numThreads);
+		this.numThreads = numThreads;
+		kmersMap = null;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	/**
 	 * @return the hashKmers
 	 */
 	public KmersMap getKmersMap() {
+		if(kmersMap==null) initKmersMap();
 		return kmersMap;
 	}
+	
+	private void initKmersMap() {
+		if(kmerSize<=15) kmersMap = new ByteArrayKmersMapImpl((byte) kmerSize);
+		//Stores k-mers as 2-bit codes. For both strands each entry stores the count of a k-mer and its reverse complement
+		else if(kmerSize<=DNAShortKmer.MAX_LENGTH && numThreads>1) kmersMap = new PartitionedKmersMapImpl(kmerSize, bothStrands, numThreads);
+		else if(kmerSize<=DNAShortKmer.MAX_LENGTH) kmersMap = new LongKmersMapImpl(kmerSize, bothStrands);
+		else kmersMap = new DefaultKmersMapImpl();
+	}
 	/**
 	 * Receives the parameters from the command line interface and distributes the duties
 	 * @param args
@@ -154,12 +199,8 @@ public class KmersCounter {
 	 * @throws IOException If the file can not be read
 	 */
     public void processFastqFile(String filename) throws IOException { 
-		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
-			}
+		try (FastqFileReader reader = new FastqFileReader(filename, numThreads)) {
+			countReadsKmers(reader.viewsIterator());
 		}
 	 }
     
@@ -170,15 +211,42 @@ public class KmersCounter {
      */
 	public void processFastqFile(InputStream fis) throws IOException {
 		try (FastqFileReader reader = new FastqFileReader(fis)) {
-			Iterator<RawRead> it = reader.iterator();
+			countReadsKmers(reader.viewsIterator());
+		}
+	}
+	private void countReadsKmers(Iterator<RawReadView> it) {
+		if(!isParallel()) {
+			//Reads are not kept. K-mers are extracted directly from the buffer of the reader
+			while (it.hasNext()) {
+				RawReadView read = it.next();
+				countReadKmers (read.getCharacters());
+			}
+			return;
+		}
+		//The calling thread reads blocks of sequences and the counting threads update their own partitions
+		try (KmersCountingPipeline pipeline = new KmersCountingPipeline()) {
+			List<CharSequence> block = new ArrayList<>(READS_BLOCK_SIZE);
 			while (it.hasNext()) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
+				//Blocks are processed by other threads. Sequences must be copied from the buffer of the reader
+				block.add(it.next().getCharacters().toString());
+				if(block.size()==READS_BLOCK_SIZE) {
+					pipeline.submit(block);
+					block = new ArrayList<>(READS_BLOCK_SIZE);
+				}
 			}
+			if(block.size()>0) pipeline.submit(block);
+			pipeline.finish();
 		}
 	}
-	private void countSequenceKmers(RawRead read) {
-    	String sequence = read.getCharacters().toString();
+	private boolean isParallel() {
+		return numThreads>1 && getKmersMap() instanceof KmerCodesMap;
+	}
+	private void countReadKmers(CharSequence characters) {
+		if(getKmersMap() instanceof KmerCodesMap) {
+			countSequenceKmerCodes(characters);
+			return;
+		}
+    	String sequence = characters.toString();
 		//Kmers Counter Per Sequence
 		//Forward		
 		countSequenceKmers(sequence);
@@ -196,9 +264,33 @@ public class KmersCounter {
     private void processFastaFile(String filename) throws IOException {
     	FastaSequencesHandler fastaSequencesHandler = new FastaSequencesHandler();
 		QualifiedSequenceList sequences = fastaSequencesHandler.loadSequences(filename);
+		if(isParallel()) {
+			try (KmersCountingPipeline pipeline = new KmersCountingPipeline()) {
+				for(QualifiedSequence seq:sequences) {
+					//Long sequences are split in overlapping segments to limit the number of codes encoded at once
+					CharSequence characters = seq.getCharacters();
+					int length = characters.length();
+					int first = 0;
+					do {
+						List<CharSequence> block = new ArrayList<>(1);
+						block.add(characters.subSequence(first, Math.min(length, first+ENCODING_BLOCK_LENGTH+kmerSize-1)));
+						pipeline.submit(block);
+						first+=ENCODING_BLOCK_LENGTH;
+					} while (first<=length-kmerSize);
+				}
+				pipeline.finish();
+			}
+			log.info("Processed "+sequences.size()+" sequences. Total k-mers: "+getKmersMap().size());
+			return;
+		}
 		//Kmer Count Per File
 		for(QualifiedSequence seq:sequences){
 			log.info("Processing sequence "+seq.getName());
+			if(getKmersMap() instanceof KmerCodesMap) {
+				countSequenceKmerCodes(seq.getCharacters());
+				log.info("Processed sequence "+seq.getName()+" total k-mers: "+getKmersMap().size());
+				continue;
+			}
 			//TODO: Process in chuncks if too big
 			//Forward		
 			String sequence = seq.getCharacters().toString();
@@ -208,7 +300,7 @@ public class KmersCounter {
 				String reverseSequence = DNAMaskedSequence.getReverseComplement(sequence);
 				countSequenceKmers(reverseSequence);
 			}
-			log.info("Processed sequence "+seq.getName()+" total k-mers: "+kmersMap.size());
+			log.info("Processed sequence "+seq.getName()+" total k-mers: "+getKmersMap().size());
 		}
 	}
 	
@@ -228,9 +320,47 @@ public class KmersCounter {
 		//TODO: Create option to process non DNA k-mers
 		CharSequence [] kmers = extractKmers(seq, kmerSize, true);
 		for(CharSequence kmer:kmers) {
-			if(kmer!=null) kmersMap.addOcurrance(kmer);
+			if(kmer!=null) getKmersMap().addOcurrance(kmer);
 		}	
 	}
+	/**
+	 * Updates the k-mers table with the 2-bit codes of the k-mers of the given sequence.
+	 * If both strands should be counted, the k-mers of the reverse complement are also counted
+	 * without building the reverse complement sequence
+	 * @param seq CharSequence object to extract the k-mers
+	 */
+	private void countSequenceKmerCodes(CharSequence seq) {
+		int blockLength = Math.min(ENCODING_BLOCK_LENGTH, seq.length()-kmerSize+1);
+		if(codesBuffer.length<blockLength) {
+			codesBuffer = new long [blockLength];
+			reverseCodesBuffer = new long [blockLength];
+		}
+		countSequenceKmerCodes(seq, (KmerCodesMap)getKmersMap(), codesBuffer, reverseCodesBuffer);
+	}
+	/**
+	 * Updates the given map with the codes of the k-mers of the given sequence
+	 * @param seq CharSequence object to extract the k-mers
+	 * @param codesMap Map to update
+	 * @param codes Buffer to store k-mer codes. It must have at least ENCODING_BLOCK_LENGTH entries or as many entries as k-mers in the sequence
+	 * @param reverseCodes Buffer to store codes of reverse complements. It must have the same length of the codes buffer
+	 */
+	private void countSequenceKmerCodes(CharSequence seq, KmerCodesMap codesMap, long [] codes, long [] reverseCodes) {
+		int seqLength = seq.length();
+		if(seqLength < kmerSize) {
+			log.warning("Sequence "+seq+" smaller than k-mer size");
+			return;
+		}
+		//A LongKmersMapImpl counting both strands adds the reverse complement of each k-mer by itself
+		boolean addReverse = bothStrands && !(codesMap instanceof LongKmersMapImpl);
+		for(int first=0;first<=seqLength-kmerSize;first+=ENCODING_BLOCK_LENGTH) {
+			int n = DNAShortKmer.encodeKmers(seq, first, first+ENCODING_BLOCK_LENGTH-1, kmerSize, codes, addReverse?reverseCodes:null);
+			for(int i=0;i<n;i++) {
+				if(codes[i]<0) continue;
+				codesMap.addOcurrance(codes[i]);
+				if(addReverse) codesMap.addOcurrance(reverseCodes[i]);
+			}
+		}
+	}
 	/**
 	 * Extracts the k-mers present in the given sequence
 	 * @param source Sequence to process
@@ -258,6 +388,17 @@ public class KmersCounter {
 		int lastKmerStart = Math.min(last, n - kmerSize); 
 		CharSequence [] kmers = new CharSequence [lastKmerStart+1];
 		Arrays.fill(kmers, null);
+		if(kmerSize<=DNAShortKmer.MAX_LENGTH) {
+			//Encode k-mers without building intermediate strings
+			first = Math.max(0, first);
+			long [] codes = new long [Math.max(0, lastKmerStart-first+1)];
+			DNAShortKmer.encodeKmers(source, first, lastKmerStart, kmerSize, codes, null);
+			for(int i=0;i<codes.length;i++) {
+				if(codes[i]>=0) kmers[first+i] = new DNAShortKmer(codes[i], kmerSize);
+				else if(!onlyDNA) kmers[first+i] = source.subSequence(first+i,first+i+kmerSize).toString().toUpperCase();
+			}
+			return kmers;
+		}
 		for(int i = Math.max(0, first); i <=lastKmerStart; i++)
 		{
 			String kmerStr = source.subSequence(i,kmerSize + i).toString();
@@ -276,9 +417,170 @@ public class KmersCounter {
 		}
 		return kmers;
 	}
+	/**
+	 * Pipeline in which the calling thread submits blocks of sequences and each counting thread
+	 * updates its own partition of the k-mers map. The k-mers of each block are encoded once by one of the threads,
+	 * which splits the codes by partition and sends each group of codes to the thread updating that partition.
+	 * Different threads never update the same k-mer, so no locking is needed
+	 */
+	private class KmersCountingPipeline implements AutoCloseable {
+		private KmerCodesMap codesMap = (KmerCodesMap)getKmersMap();
+		private PartitionedKmersMapImpl partitionedMap = (codesMap instanceof PartitionedKmersMapImpl)?(PartitionedKmersMapImpl)codesMap:null;
+		//A partitioned map counting both strands adds the reverse complement of each k-mer by itself
+		private boolean addReverse = bothStrands && partitionedMap==null;
+		private ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Queues receive blocks of sequences to encode and codes to count. Memory is bounded by the number of blocks in progress
+		private List<BlockingQueue<Object>> queues = new ArrayList<>();
+		private List<Future<?>> futures = new ArrayList<>();
+		private int maxBlocksInProgress = MAX_PENDING_BLOCKS*numThreads;
+		private Semaphore blocksInProgress = new Semaphore(maxBlocksInProgress);
+		private int nextEncoder = 0;
+		private final Object endTask = new Object();
+		
+		public KmersCountingPipeline() {
+			for(int i=0;i<numThreads;i++) {
+				final int partition = i;
+				final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+				queues.add(queue);
+				futures.add(pool.submit(() -> {
+					processTasks(partition, queue);
+					return null;
+				}));
+			}
+		}
+		
+		private void processTasks(int partition, BlockingQueue<Object> queue) throws InterruptedException {
+			KmerCodesMap partitionMap = (partitionedMap!=null)?partitionedMap.getPartitionMap(partition):codesMap;
+			long [] codes = new long [ENCODING_BLOCK_LENGTH];
+			long [] reverseCodes = new long [ENCODING_BLOCK_LENGTH];
+			while(true) {
+				Object task = queue.take();
+				if(task==endTask) break;
+				if(task instanceof PartitionCodes) {
+					PartitionCodes partitionCodes = (PartitionCodes)task;
+					for(int i=0;i<partitionCodes.size;i++) partitionMap.addOcurrance(partitionCodes.codes[i]);
+					if(partitionCodes.pendingPartitions.decrementAndGet()==0) blocksInProgress.release();
+				} else {
+					@SuppressWarnings("unchecked")
+					List<CharSequence> block = (List<CharSequence>)task;
+					encodeBlock(block, codes, reverseCodes);
+				}
+			}
+		}
+		/**
+		 * Encodes the k-mers of the given block and sends the codes of each partition to the thread updating the partition
+		 * @param block Sequences to encode
+		 * @param codes Buffer to store k-mer codes with ENCODING_BLOCK_LENGTH entries
+		 * @param reverseCodes Buffer to store codes of reverse complements with ENCODING_BLOCK_LENGTH entries
+		 */
+		private void encodeBlock(List<CharSequence> block, long [] codes, long [] reverseCodes) {
+			int totalKmers = 0;
+			for(CharSequence seq:block) totalKmers+=Math.max(0, seq.length()-kmerSize+1);
+			if(addReverse) totalKmers*=2;
+			AtomicInteger pendingPartitions = new AtomicInteger(numThreads);
+			PartitionCodes [] partitionCodes = new PartitionCodes[numThreads];
+			for(int i=0;i<numThreads;i++) partitionCodes[i] = new PartitionCodes(totalKmers/numThreads+16, pendingPartitions);
+			for(CharSequence seq:block) {
+				int seqLength = seq.length();
+				if(seqLength < kmerSize) {
+					log.warning("Sequence "+seq+" smaller than k-mer size");
+					continue;
+				}
+				for(int first=0;first<=seqLength-kmerSize;first+=ENCODING_BLOCK_LENGTH) {
+					int n = DNAShortKmer.encodeKmers(seq, first, first+ENCODING_BLOCK_LENGTH-1, kmerSize, codes, addReverse?reverseCodes:null);
+					for(int i=0;i<n;i++) {
+						long code = codes[i];
+						if(code<0) continue;
+						partitionCodes[getPartition(code)].add(code);
+						if(addReverse) partitionCodes[getPartition(reverseCodes[i])].add(reverseCodes[i]);
+					}
+				}
+			}
+			for(int i=0;i<numThreads;i++) queues.get(i).add(partitionCodes[i]);
+		}
+		
+		private int getPartition(long code) {
+			if(partitionedMap!=null) return partitionedMap.getPartition(code);
+			return LongKmersMapImpl.getPartition(code, numThreads);
+		}
+		/**
+		 * Sends the given block to be encoded by one of the counting threads. Blocks if too many blocks are in progress
+		 * @param block Sequences to process. The list should not be modified after this call
+		 */
+		public void submit(List<CharSequence> block) {
+			waitBlocks(1);
+			queues.get(nextEncoder).add(block);
+			nextEncoder = (nextEncoder+1)%numThreads;
+		}
+		/**
+		 * Waits for all threads to finish counting the submitted blocks
+		 */
+		public void finish() {
+			waitBlocks(maxBlocksInProgress);
+			for(BlockingQueue<Object> queue:queues) queue.add(endTask);
+			for(int i=0;i<futures.size();i++) waitThread(i);
+		}
+		/**
+		 * Waits until the given number of blocks can be submitted
+		 * @param blocks Number of blocks that will be submitted
+		 */
+		private void waitBlocks(int blocks) {
+			try {
+				while(!blocksInProgress.tryAcquire(blocks, 1, TimeUnit.SECONDS)) {
+					//Stop waiting if a counting thread failed
+					for(int i=0;i<futures.size();i++) {
+						if(futures.get(i).isDone()) waitThread(i);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while sending sequences to count k-mers", e);
+			}
+		}
+		
+		private void waitThread(int i) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while counting k-mers", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new RuntimeException("Error counting k-mers", cause);
+			}
+			//A thread finishing before the end of the input is an error
+			if(!queues.get(i).isEmpty()) throw new IllegalStateException("Counting thread "+i+" stopped before processing all sequences");
+		}
+		
+		@Override
+		public void close() {
+			pool.shutdownNow();
+		}
+	}
+	/**
+	 * Codes of the k-mers of one block that belong to one partition
+	 */
+	private static class PartitionCodes {
+		private long [] codes;
+		private int size = 0;
+		//Number of partitions of the same block that have not been counted
+		private final AtomicInteger pendingPartitions;
+		
+		public PartitionCodes(int capacity, AtomicInteger pendingPartitions) {
+			codes = new long [capacity];
+			this.pendingPartitions = pendingPartitions;
+		}
+		
+		public void add(long code) {
+			if(size==codes.length) codes = Arrays.copyOf(codes, 2*size);
+			codes[size++] = code;
+		}
+	}
+	
 	public void printResults (PrintStream out) {
-		log.info("Calculating distribution of abundances from "+kmersMap.size()+" k-mers");
-		Distribution kmerSpectrum = kmersMap.calculateAbundancesDistribution();
+		log.info("Calculating distribution of abundances from "+getKmersMap().size()+" k-mers");
+		Distribution kmerSpectrum = getKmersMap().calculateAbundancesDistribution();
 		out.println("Kmer_frequency\tNumber_of_distinct_kmers");
 		kmerSpectrum.printDistributionInt(out);
 		out.println("More:\t"+kmerSpectrum.getOutliers().size());
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+
+import ngsep.math.Distribution;
+
+/**
+ * K-mers map for DNA k-mers of up to 31 bp. K-mers are stored as 2-bit codes in an open addressing
+ * hash table with linear probing, so no object is created per k-mer.
+ * If the map counts both strands, each entry stores the counts of a k-mer and its reverse complement
+ * using the smallest of both codes as key. Once the table reaches its maximum capacity, the load factor
+ * is allowed to increase until the table is full
+ * @author Jorge Duitama
+ */
+public class LongKmersMapImpl implements KmerCodesMap {
+	
+	private static final long EMPTY = -1;
+	private static final int DEF_INITIAL_CAPACITY = 1<<16;
+	private static final double MAX_LOAD = 0.7;
+	//Arrays of 2^30 keys and counts take 12GB of memory
+	private static final int MAX_CAPACITY = 1<<30;
+	private static final DNASequence dummySequence = new DNASequence();
+	
+	private int kmerLength;
+	private boolean bothStrands;
+	private final int maxCapacity;
+	private long [] keys;
+	private int [] counts;
+	private int mask;
+	private int entries = 0;
+	//Entries representing k-mers that are equal to their reverse complement
+	private int palindromeEntries = 0;
+	
+	/**
+	 * Creates a new map for k-mers of the given length
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param bothStrands If true, the occurrence of each k-mer is also counted as an occurrence of its reverse complement
+	 */
+	public LongKmersMapImpl(int kmerLength, boolean bothStrands) {
+		this(kmerLength, bothStrands, DEF_INITIAL_CAPACITY);
+	}
+	/**
+	 * Creates a new map for k-mers of the given length
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param bothStrands If true, the occurrence of each k-mer is also counted as an occurrence of its reverse complement
+	 * @param expectedKmers Expected number of entries. Used to avoid resizing the table
+	 */
+	public LongKmersMapImpl(int kmerLength, boolean bothStrands, int expectedKmers) {
+		this(kmerLength, bothStrands, expectedKmers, MAX_CAPACITY);
+	}
+	/**
+	 * Creates a new map for k-mers of the given length with a limited number of slots
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param bothStrands If true, the occurrence of each k-mer is also counted as an occurrence of its reverse complement
+	 * @param expectedKmers Expected number of entries. Used to avoid resizing the table
+	 * @param maxCapacity Maximum number of slots of the table. It must be a power of two of at least 16 and at most 2^30
+	 */
+	LongKmersMapImpl(int kmerLength, boolean bothStrands, int expectedKmers, int maxCapacity) {
+		if(kmerLength<1 || kmerLength>DNAShortKmer.MAX_LENGTH) throw new IllegalArgumentException("The kmer length must be between 1 and "+DNAShortKmer.MAX_LENGTH);
+		if(maxCapacity<16 || maxCapacity>MAX_CAPACITY || Integer.bitCount(maxCapacity)!=1) throw new IllegalArgumentException("Invalid maximum capacity: "+maxCapacity);
+		this.kmerLength = kmerLength;
+		this.bothStrands = bothStrands;
+		this.maxCapacity = maxCapacity;
+		int capacity = 16;
+		while(capacity<maxCapacity && capacity*MAX_LOAD<expectedKmers) capacity<<=1;
+		initTable(capacity);
+	}
+	
+	private void initTable(int capacity) {
+		keys = new long [capacity];
+		Arrays.fill(keys, EMPTY);
+		counts = new int [capacity];
+		mask = capacity-1;
+		entries = 0;
+		palindromeEntries = 0;
+	}
+	
+	@Override
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	
+	public boolean isBothStrands() {
+		return bothStrands;
+	}
+	
+	@Override
+	public int size() {
+		if(bothStrands) return 2*entries - palindromeEntries;
+		return entries;
+	}
+	
+	@Override
+	public int getCount(CharSequence kmer) {
+		long code = encode(kmer);
+		if(code<0) return 0;
+		return getCount(code);
+	}
+	
+	@Override
+	public void setCount(CharSequence kmer, int count) {
+		long code = encode(kmer);
+		if(code<0) throw new IllegalArgumentException("Invalid DNA k-mer: "+kmer);
+		setCount(code, count);
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		long code = encode(kmer);
+		if(code<0) throw new IllegalArgumentException("Invalid DNA k-mer: "+kmer);
+		addOcurrance(code);
+	}
+	
+	@Override
+	public int getCount(long code) {
+		long key = getKey(code);
+		int i = findSlot(key);
+		if(keys[i]==EMPTY) return 0;
+		return counts[i];
+	}
+	
+	@Override
+	public void setCount(long code, int count) {
+		long key = getKey(code);
+		int i = findSlot(key);
+		if(keys[i]==EMPTY) {
+			if(count<=0) return;
+			i = insert(key, i);
+		}
+		counts[i] = Math.max(0, count);
+	}
+	
+	@Override
+	public void addOcurrance(long code) {
+		long key = code;
+		int increment = 1;
+		if(bothStrands) {
+			long reverseCode = DNAShortKmer.getReverseComplementCode(code, kmerLength);
+			key = Math.min(code, reverseCode);
+			//A palindromic k-mer appears twice when both strands are counted
+			if(code==reverseCode) increment = 2;
+		}
+		int i = findSlot(key);
+		if(keys[i]==EMPTY) i = insert(key, i);
+		if(counts[i]<=Integer.MAX_VALUE-increment) counts[i]+=increment;
+	}
+	
+	@Override
+	public void filterKmers(int minAbundance) {
+		long [] oldKeys = keys;
+		int [] oldCounts = counts;
+		int retained = 0;
+		for(int i=0;i<oldKeys.length;i++) {
+			if(oldKeys[i]!=EMPTY && oldCounts[i]>=minAbundance) retained++;
+		}
+		int capacity = 16;
+		while(capacity<oldKeys.length && capacity*MAX_LOAD<retained) capacity<<=1;
+		initTable(capacity);
+		for(int i=0;i<oldKeys.length;i++) {
+			if(oldKeys[i]!=EMPTY && oldCounts[i]>=minAbundance) {
+				int j = insert(oldKeys[i], findSlot(oldKeys[i]));
+				counts[j] = oldCounts[i];
+			}
+		}
+	}
+	
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution kmerSpectrum = new Distribution(1, 200, 1);
+		addAbundances(kmerSpectrum);
+		return kmerSpectrum;
+	}
+	/**
+	 * Adds the abundances of the k-mers in this map to the given distribution
+	 * @param kmerSpectrum Distribution to update
+	 */
+	void addAbundances(Distribution kmerSpectrum) {
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i]==EMPTY) continue;
+			kmerSpectrum.processDatapoint(counts[i]);
+			//The entry also represents the reverse complement
+			if(bothStrands && keys[i]!=DNAShortKmer.getReverseComplementCode(keys[i], kmerLength)) kmerSpectrum.processDatapoint(counts[i]);
+		}
+	}
+	
+	private long encode(CharSequence kmer) {
+		return encode(kmer, kmerLength);
+	}
+	/**
+	 * Calculates the 2-bit code of the given k-mer
+	 * @param kmer to encode
+	 * @param kmerLength Expected length of the k-mer
+	 * @return long code of the k-mer. -1 if the k-mer has characters different than A, C, G or T
+	 */
+	static long encode(CharSequence kmer, int kmerLength) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		if(kmer instanceof DNAShortKmer) return ((DNAShortKmer)kmer).getCode();
+		try {
+			return AbstractLimitedSequence.getHash(kmer, 0, kmerLength, dummySequence);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Calculates the key used to store the k-mer with the given code
+	 * @param code of the k-mer
+	 * @return long Code of the k-mer or the smallest code between the k-mer and its reverse complement if both strands are counted
+	 */
+	long getKey(long code) {
+		if(!bothStrands) return code;
+		return Math.min(code, DNAShortKmer.getReverseComplementCode(code, kmerLength));
+	}
+	
+	/**
+	 * Finds the slot of the given key or the empty slot where it should be inserted
+	 */
+	private int findSlot(long key) {
+		int i = hash(key) & mask;
+		while(keys[i]!=EMPTY && keys[i]!=key) i = (i+1) & mask;
+		return i;
+	}
+	
+	private int insert(long key, int slot) {
+		if(entries+1>keys.length*MAX_LOAD && keys.length<maxCapacity) {
+			resize();
+			slot = findSlot(key);
+		}
+		//At the maximum capacity one empty slot is kept to finish the searches of absent k-mers
+		if(entries+1>=keys.length) throw new IllegalStateException("Maximum capacity of the k-mers map reached with "+entries+" distinct k-mers");
+		keys[slot] = key;
+		counts[slot] = 0;
+		entries++;
+		if(bothStrands && key==DNAShortKmer.getReverseComplementCode(key, kmerLength)) palindromeEntries++;
+		return slot;
+	}
+	
+	private void resize() {
+		long [] oldKeys = keys;
+		int [] oldCounts = counts;
+		int oldEntries = entries;
+		int oldPalindromes = palindromeEntries;
+		initTable(2*oldKeys.length);
+		for(int i=0;i<oldKeys.length;i++) {
+			if(oldKeys[i]==EMPTY) continue;
+			int j = findSlot(oldKeys[i]);
+			keys[j] = oldKeys[i];
+			counts[j] = oldCounts[i];
+		}
+		entries = oldEntries;
+		palindromeEntries = oldPalindromes;
+	}
+	
+	/**
+	 * Mixes the bits of the given code to distribute k-mers evenly in the table
+	 * @param code of the k-mer
+	 * @return int hash value
+	 */
+	static int hash(long code) {
+		return (int)mix(code);
+	}
+	/**
+	 * Calculates the partition of a k-mer when k-mers are distributed in the given number of partitions.
+	 * Partitions use the high bits of the hash function, which are not used to choose slots within a table
+	 * @param key of the k-mer
+	 * @param numPartitions Number of partitions
+	 * @return int Partition of the k-mer between 0 and numPartitions-1
+	 */
+	static int getPartition(long key, int numPartitions) {
+		return (int)((mix(key)>>>32)%numPartitions);
+	}
+	
+	private static long mix(long code) {
+		code ^= code >>> 33;
+		code *= 0xff51afd7ed558ccdL;
+		code ^= code >>> 33;
+		code *= 0xc4ceb9fe1a85ec53L;
+		code ^= code >>> 33;
+		return code;
+	}
+}
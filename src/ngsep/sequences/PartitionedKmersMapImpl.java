@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import ngsep.math.Distribution;
+
+/**
+ * K-mers map for DNA k-mers of up to 31 bp split in partitions according to the hash of the k-mer codes.
+ * Different threads can update different partitions at the same time.
+ * Partitions are only merged to calculate the abundances distribution
+ * @author Jorge Duitama
+ */
+public class PartitionedKmersMapImpl implements KmerCodesMap {
+	private int kmerLength;
+	private LongKmersMapImpl [] partitions;
+	
+	/**
+	 * Creates a new map with the given number of partitions
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param bothStrands If true, the occurrence of each k-mer is also counted as an occurrence of its reverse complement
+	 * @param numPartitions Number of partitions
+	 */
+	public PartitionedKmersMapImpl(int kmerLength, boolean bothStrands, int numPartitions) {
+		if(numPartitions<1) throw new IllegalArgumentException("Invalid number of partitions: "+numPartitions);
+		this.kmerLength = kmerLength;
+		partitions = new LongKmersMapImpl[numPartitions];
+		for(int i=0;i<numPartitions;i++) partitions[i] = new LongKmersMapImpl(kmerLength, bothStrands);
+	}
+	
+	public int getNumPartitions() {
+		return partitions.length;
+	}
+	/**
+	 * Calculates the partition that stores the k-mer with the given code
+	 * @param code of the k-mer
+	 * @return int Partition index
+	 */
+	public int getPartition(long code) {
+		return LongKmersMapImpl.getPartition(partitions[0].getKey(code), partitions.length);
+	}
+	/**
+	 * Returns the map of the given partition. Only k-mers assigned to this partition by the
+	 * getPartition method should be added to the returned map
+	 * @param partition Partition index
+	 * @return KmerCodesMap Map storing the k-mers of the given partition
+	 */
+	public KmerCodesMap getPartitionMap(int partition) {
+		return partitions[partition];
+	}
+	
+	@Override
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(LongKmersMapImpl partition:partitions) size+=partition.size();
+		return size;
+	}
+
+	@Override
+	public int getCount(CharSequence kmer) {
+		long code = LongKmersMapImpl.encode(kmer, kmerLength);
+		if(code<0) return 0;
+		return getCount(code);
+	}
+
+	@Override
+	public void setCount(CharSequence kmer, int count) {
+		long code = LongKmersMapImpl.encode(kmer, kmerLength);
+		if(code<0) throw new IllegalArgumentException("Invalid DNA k-mer: "+kmer);
+		setCount(code, count);
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		long code = LongKmersMapImpl.encode(kmer, kmerLength);
+		if(code<0) throw new IllegalArgumentException("Invalid DNA k-mer: "+kmer);
+		addOcurrance(code);
+	}
+
+	@Override
+	public int getCount(long code) {
+		return partitions[getPartition(code)].getCount(code);
+	}
+
+	@Override
+	public void setCount(long code, int count) {
+		partitions[getPartition(code)].setCount(code, count);
+	}
+
+	@Override
+	public void addOcurrance(long code) {
+		partitions[getPartition(code)].addOcurrance(code);
+	}
+
+	@Override
+	public void filterKmers(int minAbundance) {
+		for(LongKmersMapImpl partition:partitions) partition.filterKmers(minAbundance);
+	}
+
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution kmerSpectrum = new Distribution(1, 200, 1);
+		for(LongKmersMapImpl partition:partitions) partition.addAbundances(kmerSpectrum);
+		return kmerSpectrum;
+	}
+}
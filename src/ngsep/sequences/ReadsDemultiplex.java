@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.sequences;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,19 +28,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.io.ByteArrayTextBuilder;
+import ngsep.main.io.ParallelBlockCompressedOutputStream;
 import ngsep.sequences.io.FastqFileReader;
 
 /**
@@ -48,21 +58,31 @@ import ngsep.sequences.io.FastqFileReader;
  *
  */
 public class ReadsDemultiplex {
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_MISMATCHES = 0;
+	//Number of reads or read pairs demultiplexed by each task
+	private static final int READS_BATCH_SIZE = 10000;
 	
 	private Logger log = Logger.getLogger(ReadsDemultiplex.class.getName());
 	private Map<String,Map<String,String>> barcodeMap = new TreeMap<String, Map<String,String>>();
 	
 	private Map<String, String> samplesPerBarcode = new TreeMap<String, String>();
-	//Sorted list of barcodes for log time non-exact search
-	private String [] sortedBarcodes;
-	private int [] [] ntPairFirsts = new int[4][4];
-	private int [] [] ntPairLasts = new int[4][4];
+	//Barcodes of the current lane
+	private BarcodeTrie barcodesTrie;
+	//Distinct sample ids of the current lane
+	private List<String> sampleIds;
+	//Index of the sample for each barcode or for each pair of barcodes if dual barcoding is used
+	private int [] samplesByBarcode;
 	//private Map<String,Pattern> regExps = new TreeMap<String, Pattern>();
 	private String outDirectory = ".";
 	private String prefix = "";
 	private String trimSequence = null;
 	private int minReadLength = 40;
 	private boolean uncompressedOutput = false;
+	private int maxMismatches = DEF_MAX_MISMATCHES;
+	private int numThreads = DEF_NUM_THREADS;
+	//Pool to demultiplex batches of reads. Shared by the output files to compress blocks of reads
+	private ExecutorService pool = null;
 	private boolean dualBarcode = false;
 	private String laneFilesDescriptor = null;
 	private String flowcell = null;
@@ -77,6 +97,7 @@ public class ReadsDemultiplex {
 	private int notFound = 0;
 	private int tooShort = 0;
 	private Map<String,Integer> counts;
+	private int [] countsBySample;
 	
 
 	public static void main(String[] args) throws Exception {
@@ -237,6 +258,50 @@ public class ReadsDemultiplex {
 	public void setUncompressedOutput(Boolean uncompressedOutput) {
 		this.uncompressedOutput = uncompressedOutput;
 	}
+	
+	/**
+	 * @return the maximum number of mismatches allowed to match a barcode
+	 */
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+
+	/**
+	 * @param maxMismatches the maximum number of mismatches allowed to match a barcode
+	 */
+	public void setMaxMismatches(int maxMismatches) {
+		if(maxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given value: "+maxMismatches);
+		this.maxMismatches = maxMismatches;
+	}
+	
+	/**
+	 * @param maxMismatches the maximum number of mismatches allowed to match a barcode
+	 */
+	public void setMaxMismatches(Integer maxMismatches) {
+		this.setMaxMismatches(maxMismatches.intValue());
+	}
+	
+	/**
+	 * @return the number of threads used to demultiplex batches of reads and to compress the output files
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to demultiplex batches of reads and to compress the output files
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param numThreads the number of threads used to demultiplex batches of reads and to compress the output files
+	 */
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 
 	/**
 	 * Loads barcodes from the given file
@@ -297,18 +362,26 @@ public class ReadsDemultiplex {
 		} else {
 			barcodesSet = new TreeSet<>(barcodeKeys);
 		}
-		sortedBarcodes = barcodesSet.toArray(new String[0]);
-		for(int i=0;i<ntPairFirsts.length;i++) {
-			Arrays.fill(ntPairFirsts[i], -1);
-			Arrays.fill(ntPairLasts[i], -1);
-		}
-		String alphabet = DNASequence.BASES_STRING;
-		for (int k=0;k<sortedBarcodes.length;k++) {
-			String barcode = sortedBarcodes[k];
-			int i = alphabet.indexOf(barcode.charAt(0));
-			int j = alphabet.indexOf(barcode.charAt(1));
-			if(ntPairFirsts[i][j]==-1)ntPairFirsts[i][j] = k;
-			ntPairLasts[i][j] = k;
+		List<String> barcodes = new ArrayList<>(barcodesSet);
+		barcodesTrie = new BarcodeTrie(barcodes);
+		Map<String,Integer> barcodeIndexes = new HashMap<>();
+		for(int i=0;i<barcodes.size();i++) barcodeIndexes.put(barcodes.get(i), i);
+		//Samples are identified by consecutive indexes to avoid map lookups for each read
+		sampleIds = new ArrayList<>(new TreeSet<>(samplesPerBarcode.values()));
+		Map<String,Integer> sampleIndexes = new HashMap<>();
+		for(int i=0;i<sampleIds.size();i++) sampleIndexes.put(sampleIds.get(i), i);
+		int n = barcodes.size();
+		samplesByBarcode = new int [dualBarcode?n*n:n];
+		Arrays.fill(samplesByBarcode, -1);
+		for(String barcodeKey:barcodeKeys) {
+			int barcodeIdx;
+			if(dualBarcode) {
+				int i = barcodeKey.indexOf('-');
+				barcodeIdx = barcodeIndexes.get(barcodeKey.substring(0, i))*n+barcodeIndexes.get(barcodeKey.substring(i+1));
+			} else {
+				barcodeIdx = barcodeIndexes.get(barcodeKey);
+			}
+			samplesByBarcode[barcodeIdx] = sampleIndexes.get(samplesPerBarcode.get(barcodeKey));
 		}
 	}
 
@@ -323,53 +396,28 @@ public class ReadsDemultiplex {
 	 */
 	public void demultiplex(String filename) throws IOException {
 		log.info("Demultiplexing file: "+filename);
-		
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
-		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles.values()) {
-				s.flush();
-				s.close();
-			}
+		try (FastqFileReader reader = new FastqFileReader(filename, numThreads)) {
+			demultiplex(reader.iterator(), null);
 		}
-		printStatistics();
 	}
 	public void demultiplex(InputStream input) throws IOException {
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
 		try (FastqFileReader reader = new FastqFileReader(input)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles.values()) {
-				s.flush();
-				s.close();
-			}
+			demultiplex(reader.iterator(), null);
 		}
-		printStatistics();
 	}
 
 	private void initCounts() {
 		counts = new TreeMap<String, Integer>();
+		countsBySample = new int [sampleIds.size()];
 		total = 0;
 		notFound = 0;
 		tooShort = 0;
 	}
 	
 	private void printStatistics() {
+		for(int i=0;i<countsBySample.length;i++) {
+			if(countsBySample[i]>0) counts.put(sampleIds.get(i), countsBySample[i]);
+		}
 		log.info("Demultiplexing report");
 		log.info("Total fragments\t"+total);
 		
@@ -380,41 +428,6 @@ public class ReadsDemultiplex {
 		log.info("Fragment too short\t"+tooShort);
 	}
 
-	/**
-	 * Demultiplex one single read
-	 * @param read to demultiplex
-	 * @param outFiles Map of files to choose
-	 * @return boolean true if the process should keep running
-	 * @throws IOException 
-	 */
-	private void processRead(RawRead read, Map<String, PrintStream> outFiles) throws IOException {
-		total++;
-		String barcode = findBarcode(read.getSequenceString());
-		if (barcode == null) {
-			notFound++;
-		} else {
-			String sampleId = samplesPerBarcode.get(barcode);
-			PrintStream out = outFiles.get(sampleId);
-			if(out==null) {
-				out = getOutputStream(sampleId);
-				outFiles.put(sampleId, out);
-			}
-			int barcodeLength = barcode.length();
-			//Trim barcode
-			read.trimFirstNucleotides(barcodeLength);
-			//Trim end if sequence appears
-			read.trimFromSequence(trimRegexp);
-			if(read.getLength()>=minReadLength) {
-				read.save(out);
-				Integer count = counts.get(sampleId);
-				if(count==null) counts.put(sampleId, 1);
-				else counts.put(sampleId, count+1);
-			} else {
-				tooShort++;
-			}
-		}
-	}
-
 	/**
 	 * Reports progress and asks the progress notifier if the process should keep running
 	 * @return boolean true if the process should keep running
@@ -427,8 +440,7 @@ public class ReadsDemultiplex {
 		return true;
 	}
 
-	private PrintStream getOutputStream(String filePrefix) throws IOException {
-		PrintStream out;
+	private OutputStream getOutputStream(String filePrefix) throws IOException {
 		String filename =  filePrefix + ".fastq";
 		if(!uncompressedOutput) filename+=".gz";
 		if(prefix!=null && Character.isDigit(filename.charAt(0))) {
@@ -439,150 +451,218 @@ public class ReadsDemultiplex {
 		}
 		File f = new File(filename);
 		OutputStream os = new FileOutputStream(filename,f.exists());
-		if(!uncompressedOutput) os = new GZIPOutputStream(os); 
-		out = new PrintStream(os);
-		return out;
+		if(uncompressedOutput) {
+			os = new BufferedOutputStream(os);
+		} else if(numThreads>1) {
+			os = new ParallelBlockCompressedOutputStream(os, pool, 2*numThreads);
+		} else {
+			os = new ParallelBlockCompressedOutputStream(os, 1);
+		}
+		return os;
 	}
 	public void demultiplex(String filename1, String filename2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
-		try (FastqFileReader in1 = new FastqFileReader(filename1);
-			 FastqFileReader in2 = new FastqFileReader(filename2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
-			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
-			}
+		try (FastqFileReader in1 = new FastqFileReader(filename1, numThreads);
+			 FastqFileReader in2 = new FastqFileReader(filename2, numThreads)) {
+			demultiplex(in1.iterator(), in2.iterator());
 		}
-		printStatistics();
 	}
 	public void demultiplex(InputStream i1, InputStream i2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
 		try (FastqFileReader in1 = new FastqFileReader(i1);
 			 FastqFileReader in2 = new FastqFileReader(i2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
+			demultiplex(in1.iterator(), in2.iterator());
+		}
+	}
+	
+	/**
+	 * Demultiplexes the given reads. The calling thread loads batches of reads that are demultiplexed
+	 * in parallel if more than one thread is available. Demultiplexed batches are written in the order of the input
+	 * @param it1 Iterator over the reads to demultiplex
+	 * @param it2 Iterator over the second reads of each pair. Null if reads are single end
+	 * @throws IOException If the output files can not be written
+	 */
+	private void demultiplex(Iterator<RawRead> it1, Iterator<RawRead> it2) throws IOException {
+		boolean paired = it2!=null;
+		int numSamples = sampleIds.size();
+		OutputStream [] outFiles1 = new OutputStream[numSamples];
+		OutputStream [] outFiles2 = paired?new OutputStream[numSamples]:null;
+		initCounts();
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<DemultiplexedBatch>> batchesInProgress = new LinkedList<>();
+		try {
+			boolean running = true;
+			while (running && it1.hasNext() && (!paired || it2.hasNext())) {
+				final List<RawRead> reads1 = new ArrayList<>(READS_BATCH_SIZE);
+				final List<RawRead> reads2 = paired?new ArrayList<>(READS_BATCH_SIZE):null;
+				while (reads1.size()<READS_BATCH_SIZE && it1.hasNext() && (!paired || it2.hasNext())) {
+					reads1.add(it1.next());
+					if(paired) reads2.add(it2.next());
+				}
+				if(pool==null) {
+					running = writeBatch(demultiplexBatch(reads1, reads2), outFiles1, outFiles2);
+					continue;
+				}
+				batchesInProgress.add(pool.submit(() -> demultiplexBatch(reads1, reads2)));
+				while (running && batchesInProgress.size()>=2*numThreads) {
+					running = writeBatch(waitFirstBatch(batchesInProgress), outFiles1, outFiles2);
+				}
 			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
+			while (running && !batchesInProgress.isEmpty()) {
+				running = writeBatch(waitFirstBatch(batchesInProgress), outFiles1, outFiles2);
 			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
+		} finally {
+			for(Future<DemultiplexedBatch> f:batchesInProgress) f.cancel(true);
+			try {
+				closeAll(outFiles1);
+				if(paired) closeAll(outFiles2);
+			} finally {
+				if(pool!=null) pool.shutdownNow();
+				pool = null;
 			}
 		}
 		printStatistics();
 	}
-
+	
+	private DemultiplexedBatch waitFirstBatch(LinkedList<Future<DemultiplexedBatch>> batchesInProgress) throws IOException {
+		try {
+			return batchesInProgress.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while demultiplexing reads", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Error demultiplexing reads", cause);
+		}
+	}
+	
+	private void closeAll(OutputStream [] outFiles) throws IOException {
+		IOException error = null;
+		for(OutputStream out:outFiles) {
+			if(out==null) continue;
+			try {
+				out.close();
+			} catch (IOException e) {
+				if(error==null) error = e;
+			}
+		}
+		if(error!=null) throw error;
+	}
+	
 	/**
-	 * Demultiplex two reads as a pair
-	 * @param read1 First read of the pair
-	 * @param read2 Second read of the pair
-	 * @param outFiles1 List of out files to choose
-	 * @param outFiles2 List of out files to choose
-	 * @throws IOException If the out files can not be written
+	 * Writes the reads of the given batch to the output files and updates the statistics
+	 * @param batch Demultiplexed reads
+	 * @param outFiles1 Output files of each sample. Files are created the first time that the barcode of a sample is found
+	 * @param outFiles2 Output files for the second reads of each sample. Null if reads are single end
+	 * @return boolean true if the process should keep running
+	 * @throws IOException If the output files can not be written
 	 */
-	private void demultiplexReadPair(RawRead read1, RawRead read2, Map<String, PrintStream> outFiles1, Map<String, PrintStream> outFiles2) throws IOException {
-		total++;
-		String barcode1;
-		String barcode2=null;
-		String barcodeM=null;
-		if(dualBarcode) {
-			barcode1 = findBarcode(read1.getSequenceString());
-			barcode2 = findBarcode(read2.getSequenceString());
-			if(barcode1!=null && barcode2!=null) {
-				barcodeM = barcode1+"-"+barcode2;
-				if(!samplesPerBarcode.containsKey(barcodeM)) barcodeM = null;
+	private boolean writeBatch(DemultiplexedBatch batch, OutputStream [] outFiles1, OutputStream [] outFiles2) throws IOException {
+		for(int i=0;i<sampleIds.size();i++) {
+			if(!batch.samplesFound[i]) continue;
+			if(outFiles1[i]==null) {
+				String sampleId = sampleIds.get(i);
+				if(outFiles2==null) {
+					outFiles1[i] = getOutputStream(sampleId);
+				} else {
+					outFiles1[i] = getOutputStream(sampleId+"_1");
+					outFiles2[i] = getOutputStream(sampleId+"_2");
+				}
 			}
-		} else {
-			barcode1 = findBarcode(read1.getSequenceString());
-			barcodeM = barcode1;
+			if(batch.out1[i]!=null) batch.out1[i].flush(outFiles1[i]);
+			if(outFiles2!=null && batch.out2[i]!=null) batch.out2[i].flush(outFiles2[i]);
+			countsBySample[i]+=batch.counts[i];
 		}
-		
-		if (barcodeM == null) {
-			notFound++;
-		} else {
-			String sampleId = samplesPerBarcode.get(barcodeM);
-			if (sampleId == null) System.err.println("Sample not found with barcode key: "+barcodeM);
-			PrintStream out1 = outFiles1.get(sampleId);
-			PrintStream out2 = outFiles2.get(sampleId);
-			if(out1==null) {
-				out1 = getOutputStream(sampleId+"_1");
-				out2 = getOutputStream(sampleId+"_2");
-				outFiles1.put(sampleId, out1);
-				outFiles2.put(sampleId, out2);
+		notFound+=batch.notFound;
+		tooShort+=batch.tooShort;
+		//Batches are aligned with the progress intervals
+		total+=batch.size;
+		return keepRunning();
+	}
+
+	/**
+	 * Finds the sample of each read (or read pair) of the given batch, trims barcodes and adapters
+	 * and formats the reads that should be written for each sample
+	 * @param reads1 Reads to demultiplex
+	 * @param reads2 Second reads of each pair. Null if reads are single end
+	 * @return DemultiplexedBatch Formatted reads and statistics of the batch
+	 */
+	private DemultiplexedBatch demultiplexBatch(List<RawRead> reads1, List<RawRead> reads2) {
+		DemultiplexedBatch batch = new DemultiplexedBatch(sampleIds.size(), reads1.size(), reads2!=null);
+		Matcher trimMatcher = (trimRegexp!=null)?trimRegexp.matcher(""):null;
+		int numBarcodes = barcodesTrie.size();
+		for(int i=0;i<reads1.size();i++) {
+			RawRead read1 = reads1.get(i);
+			RawRead read2 = (reads2!=null)?reads2.get(i):null;
+			CharSequence seq1 = read1.getCharacters();
+			int barcode1 = barcodesTrie.findBarcode(seq1, maxMismatches);
+			int barcode2 = -1;
+			int sampleIdx = -1;
+			if(barcode1>=0 && !dualBarcode) {
+				sampleIdx = samplesByBarcode[barcode1];
+			} else if (barcode1>=0 && read2!=null) {
+				barcode2 = barcodesTrie.findBarcode(read2.getCharacters(), maxMismatches);
+				if(barcode2>=0) sampleIdx = samplesByBarcode[barcode1*numBarcodes+barcode2];
 			}
-			
-			//Trim barcode
-			read1.trimFirstNucleotides(barcode1.length());
-			if(dualBarcode) {
-				read2.trimFirstNucleotides(barcode2.length());
+			if(sampleIdx<0) {
+				batch.notFound++;
+				continue;
 			}
+			batch.samplesFound[sampleIdx] = true;
+			//Trim barcode
+			int start1 = barcodesTrie.getBarcode(barcode1).length();
+			int end1 = seq1.length();
 			//Trim end if sequence appears
-			int l1 = read1.getLength();
-			read1.trimFromSequence(trimRegexp);
-			if(read1.getLength()!=l1) {
-				read2.trimToLength(read1.getLength());
+			if(trimMatcher!=null) {
+				trimMatcher.reset(seq1);
+				trimMatcher.region(start1, end1);
+				if(trimMatcher.find()) end1 = trimMatcher.start();
 			}
-			if(read1.getLength()>=minReadLength) {
-				read1.save(out1);
-				read2.save(out2);
-				Integer count = counts.get(sampleId);
-				if(count==null) counts.put(sampleId, 1);
-				else counts.put(sampleId, count+1);
-			} else {
-				tooShort++;
+			if(end1-start1<minReadLength) {
+				batch.tooShort++;
+				continue;
+			}
+			batch.addRead(batch.out1, sampleIdx, read1, start1, end1);
+			if(read2!=null) {
+				int start2 = (barcode2>=0)?barcodesTrie.getBarcode(barcode2).length():0;
+				int end2 = read2.getLength();
+				//The second read is trimmed to the length of the first read if the first read was trimmed
+				if(end1<seq1.length()) end2 = Math.min(end2, start2+end1-start1);
+				batch.addRead(batch.out2, sampleIdx, read2, start2, end2);
 			}
+			batch.counts[sampleIdx]++;
 		}
+		return batch;
 	}
-
-	/**
-	 * Finds the barcode matching the given sequence
-	 * @param readSeq Sequence to barcode
-	 * @return String barcode matching the given sequence. Null if the barcode was not found
-	 */
-	private String findBarcode(String readSeq) {
-		String alphabet = DNASequence.BASES_STRING;
-		int firstIndex = alphabet.indexOf(readSeq.charAt(0));
-		int secondIndex = alphabet.indexOf(readSeq.charAt(1));
-		if(firstIndex <0 || secondIndex < 0 ) return null;
-		int first = ntPairFirsts[firstIndex][secondIndex];
-		int last = ntPairLasts[firstIndex][secondIndex];
-		if(first==-1) return null;
-		String selectedBarcode = null;
-		for(int i=first;i<=last;i++) {
-			String barcode = sortedBarcodes[i];
-			boolean barcodeFound = false;
-			if(readSeq.startsWith(barcode)) barcodeFound = true;
-			//The last condition is to taking into account cases where one barcode is substring of another
-			//and pick the longest matching barcode
-			if(barcodeFound && (selectedBarcode==null || selectedBarcode.length()<barcode.length()) ) {
-				selectedBarcode = barcode;
+	
+	private static class DemultiplexedBatch {
+		private final int size;
+		private final ByteArrayTextBuilder [] out1;
+		private final ByteArrayTextBuilder [] out2;
+		private final boolean [] samplesFound;
+		private final int [] counts;
+		private int notFound = 0;
+		private int tooShort = 0;
+		
+		public DemultiplexedBatch(int numSamples, int size, boolean paired) {
+			this.size = size;
+			out1 = new ByteArrayTextBuilder[numSamples];
+			out2 = paired?new ByteArrayTextBuilder[numSamples]:null;
+			samplesFound = new boolean[numSamples];
+			counts = new int[numSamples];
+		}
+		/**
+		 * Formats the given read in fastq format keeping only the given region of the sequence and quality scores
+		 */
+		private void addRead(ByteArrayTextBuilder [] out, int sampleIdx, RawRead read, int start, int end) {
+			ByteArrayTextBuilder builder = out[sampleIdx];
+			if(builder==null) {
+				builder = new ByteArrayTextBuilder();
+				out[sampleIdx] = builder;
 			}
+			builder.append('@').append(read.getName()).appendLineSeparator();
+			builder.append(read.getCharacters(), start, end).appendLineSeparator();
+			builder.append('+').appendLineSeparator();
+			builder.append(read.getQualityScores(), start, end).appendLineSeparator();
 		}
-		return selectedBarcode;
 	}
-	
 }
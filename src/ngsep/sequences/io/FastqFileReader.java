@@ -19,19 +19,19 @@
  *******************************************************************************/
 package ngsep.sequences.io;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
 import ngsep.main.io.ConcatGZIPInputStream;
+import ngsep.main.io.ParallelBlockCompressedInputStream;
 import ngsep.sequences.RawRead;
 
 /**
@@ -56,9 +56,20 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
 	 */
 	public static final int LOAD_MODE_MINIMAL = 2;
 	
-	private BufferedReader in;
+	//Initial size of the buffer. It grows if a read does not fit
+	private static final int BUFFER_SIZE = 1<<20;
 	
-	private FastqFileIterator currentIterator = null;
+	private InputStream in;
+	//Reads are parsed directly from this buffer
+	private byte [] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private boolean endOfInput = false;
+	//Start and end of the lines of the read being parsed relative to the start of the read
+	private final int [] lineStarts = new int [4];
+	private final int [] lineEnds = new int [4];
+	
+	private Iterator<?> currentIterator = null;
 	
 	private int loadMode = LOAD_MODE_FULL;
 	
@@ -67,13 +78,31 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
 	private Constructor<? extends CharSequence> charSequenceConstructor = null;
 	
 	public FastqFileReader (String filename) throws IOException {
-		init(null,new File(filename));
+		init(null,new File(filename),1);
 	}
 	public FastqFileReader (File file) throws IOException {
-		init(null,file);
+		init(null,file,1);
 	}
 	public FastqFileReader (InputStream stream) throws IOException {
-		init(stream,null);
+		init(stream,null,1);
+	}
+	/**
+	 * Creates a reader that inflates gzip compressed files with the given number of threads
+	 * @param filename Name of the fastq file
+	 * @param numThreads Number of threads to inflate the file. If it is 1, data is inflated by the thread reading the reads
+	 * @throws IOException If the file can not be opened
+	 */
+	public FastqFileReader (String filename, int numThreads) throws IOException {
+		init(null,new File(filename),numThreads);
+	}
+	/**
+	 * Creates a reader that inflates gzip compressed files with the given number of threads
+	 * @param file Fastq file
+	 * @param numThreads Number of threads to inflate the file. If it is 1, data is inflated by the thread reading the reads
+	 * @throws IOException If the file can not be opened
+	 */
+	public FastqFileReader (File file, int numThreads) throws IOException {
+		init(null,file,numThreads);
 	}
 	
 	public Logger getLog() {
@@ -122,47 +151,134 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
         if (currentIterator != null) {
             throw new IllegalStateException("Iteration in progress");
         }
-        currentIterator = new FastqFileIterator();
-		return currentIterator;
+        FastqFileIterator answer = new FastqFileIterator();
+        currentIterator = answer;
+		return answer;
 	}
 	
-	private void init (InputStream stream, File file) throws IOException {
+	/**
+	 * Iterates over the reads of the file without creating new objects for each read.
+	 * The iterator returns always the same view, which is updated with the data of the next read
+	 * each time that hasNext or next are called. Consumers that need to keep reads must copy them.
+	 * The load mode and the sequence type of this reader are not used by this iterator
+	 * @return Iterator<RawReadView> Iterator over views of the reads in the file
+	 */
+	public Iterator<RawReadView> viewsIterator() {
+		if (in == null) {
+            throw new IllegalStateException("File reader is closed");
+        }
+        if (currentIterator != null) {
+            throw new IllegalStateException("Iteration in progress");
+        }
+        RawReadViewsIterator answer = new RawReadViewsIterator();
+        currentIterator = answer;
+		return answer;
+	}
+	
+	private void init (InputStream stream, File file, int numThreads) throws IOException {
 		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
 		if(file!=null) {
 			stream = new FileInputStream(file);
 			if(file.getName().endsWith(".gz")) {
-				stream = new ConcatGZIPInputStream(stream);
+				if(numThreads>1) stream = new ParallelBlockCompressedInputStream(stream, numThreads);
+				else stream = new ConcatGZIPInputStream(stream);
 			}
 		}
-		in = new BufferedReader(new InputStreamReader(stream));
+		in = stream;
 	}
 	/**
-	 * Loads a raw read from the given BufferedReader
-	 * @param in buffer to read
-	 * @return RawRead
-	 * @throws IOException if the buffer can not be read
+	 * Parses the next read from the buffer and updates the given view with its data
+	 * @param view View to update
+	 * @return boolean true if a read was loaded, false if the end of the input was reached
+	 * @throws IOException if the stream can not be read
 	 */
-	private RawRead load (BufferedReader in) throws IOException {
-		String id = in.readLine();
-		if(id==null) return null;
-		CharSequence seq = in.readLine();
-		if(seq==null) return null;
-		String plus = in.readLine();
-		if(plus==null) return null;
-		String qs = in.readLine();
-		if(qs==null) return null;
-		
+	private boolean loadView (RawReadView view) throws IOException {
+		int recordStart = position;
+		//Offset relative to the start of the read
+		int offset = 0;
+		for(int i=0;i<4;i++) {
+			int lineStart = offset;
+			int lineEnd;
+			while(true) {
+				int idx = indexOfNewLine(recordStart+offset);
+				if(idx>=0) {
+					lineEnd = idx-recordStart;
+					offset = lineEnd+1;
+					break;
+				}
+				offset = limit-recordStart;
+				boolean moreData = fillBuffer(recordStart);
+				recordStart = 0;
+				if(!moreData) {
+					if(offset==lineStart) {
+						//Incomplete reads at the end of the input are ignored
+						position = limit;
+						return false;
+					}
+					lineEnd = offset;
+					break;
+				}
+			}
+			if(lineEnd>lineStart && buffer[recordStart+lineEnd-1]=='\r') lineEnd--;
+			lineStarts[i] = lineStart;
+			lineEnds[i] = lineEnd;
+		}
+		position = recordStart+offset;
+		view.setRecord(buffer, recordStart+lineStarts[0], recordStart+lineEnds[0], recordStart+lineStarts[1], recordStart+lineEnds[1], recordStart+lineStarts[3], recordStart+lineEnds[3]);
+		return true;
+	}
+	
+	private int indexOfNewLine(int from) {
+		for(int i=from;i<limit;i++) {
+			if(buffer[i]=='\n') return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Moves the data starting at the given position to the start of the buffer and reads more data from the stream.
+	 * The buffer grows if it is full of data that must be kept
+	 * @param keepFrom First position of the data to keep
+	 * @return boolean true if more data was read, false if the end of the input was reached
+	 * @throws IOException if the stream can not be read
+	 */
+	private boolean fillBuffer(int keepFrom) throws IOException {
+		int kept = limit-keepFrom;
+		if(keepFrom>0) System.arraycopy(buffer, keepFrom, buffer, 0, kept);
+		else if(kept==buffer.length) buffer = Arrays.copyOf(buffer, 2*buffer.length);
+		position = 0;
+		limit = kept;
+		if(endOfInput) return false;
+		int n = in.read(buffer, limit, buffer.length-limit);
+		if(n<0) {
+			endOfInput = true;
+			return false;
+		}
+		limit+=n;
+		return true;
+	}
+	
+	/**
+	 * Creates a new read with the data of the given view
+	 * @param view Data of the read
+	 * @return RawRead Read with the data required by the load mode of this reader
+	 */
+	private RawRead load (RawReadView view) {
+		//Sequence objects are created directly from the buffer
+		CharSequence seq = view.getCharacters();
 		if(sequenceType!=null) {
 			try {
 				seq = charSequenceConstructor.newInstance(seq);
 			} catch (Exception e) {
 				throw new RuntimeException("Can not invoke char sequence constructor",e);
 			}
+		} else {
+			seq = seq.toString();
 		}
 		
 		if(loadMode == LOAD_MODE_MINIMAL) return new RawRead(null, seq, null);
-		else if (loadMode == LOAD_MODE_QUALITY) return new RawRead(null, seq, qs);
-		else return new RawRead(id.substring(1), seq, qs);
+		else if (loadMode == LOAD_MODE_QUALITY) return new RawRead(null, seq, view.getQualityScores());
+		else return new RawRead(view.getName(), seq, view.getQualityScores());
 	}
 	
 	private boolean passFilters (RawRead read) {
@@ -171,6 +287,7 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
 	}
 	
 	private class FastqFileIterator implements Iterator<RawRead> {
+		private final RawReadView view = new RawReadView();
 		private RawRead nextRecord;
 		public FastqFileIterator() {
 			nextRecord = loadRecord();
@@ -192,11 +309,11 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
 			RawRead read;
 			while(true) {
 				try {
-					read = load(in);
+					if(!loadView(view)) return null;
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
-				if(read==null) return null;
+				read = load(view);
 				if(passFilters(read)) return read;
 			} 
 		}
@@ -205,4 +322,34 @@ public class FastqFileReader implements Iterable<RawRead>,Closeable  {
 			throw new UnsupportedOperationException("Remove not supported by FastqFileIterator");
 		}
 	}
+	
+	private class RawReadViewsIterator implements Iterator<RawReadView> {
+		private final RawReadView view = new RawReadView();
+		private boolean loaded = false;
+		private boolean finished = false;
+		
+		@Override
+		public boolean hasNext() {
+			if(!loaded && !finished) {
+				try {
+					loaded = loadView(view);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				finished = !loaded;
+			}
+			return loaded;
+		}
+
+		@Override
+		public RawReadView next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			loaded = false;
+			return view;
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not supported by RawReadViewsIterator");
+		}
+	}
 }
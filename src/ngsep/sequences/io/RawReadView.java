@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences.io;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import ngsep.sequences.RawRead;
+
+/**
+ * Read of a fastq file viewed directly from the buffer of the reader that loaded it.
+ * The same object is updated with the data of each read loaded by the reader, which means
+ * that its data is valid only until the iterator that returned it moves to the next read.
+ * Consumers that need to keep reads should call toRawRead or copy the values that they need.
+ * Names and quality scores are decoded only when requested
+ * @author Jorge Duitama
+ */
+public class RawReadView {
+	//Bytes are mapped one to one to characters, as in charAt of the read characters
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+	private final ReadCharacters characters = new ReadCharacters();
+	private byte [] buffer;
+	private int idStart;
+	private int idEnd;
+	private int sequenceStart;
+	private int sequenceEnd;
+	private int qualityStart;
+	private int qualityEnd;
+
+	RawReadView () {
+
+	}
+
+	void setRecord(byte [] buffer, int idStart, int idEnd, int sequenceStart, int sequenceEnd, int qualityStart, int qualityEnd) {
+		this.buffer = buffer;
+		this.idStart = idStart;
+		this.idEnd = idEnd;
+		this.sequenceStart = sequenceStart;
+		this.sequenceEnd = sequenceEnd;
+		this.qualityStart = qualityStart;
+		this.qualityEnd = qualityEnd;
+	}
+
+	/**
+	 * @return String New string with the id of the read without the initial character
+	 */
+	public String getName() {
+		int start = Math.min(idStart+1, idEnd);
+		return new String(buffer, start, idEnd-start, CHARSET);
+	}
+	/**
+	 * Returns a view of the read sequence. The returned object is reused for every read
+	 * and its toString method creates an independent copy of the sequence
+	 * @return CharSequence Sequence of the read
+	 */
+	public CharSequence getCharacters() {
+		return characters;
+	}
+	/**
+	 * @return int Length of the read sequence
+	 */
+	public int getLength() {
+		return sequenceEnd-sequenceStart;
+	}
+	/**
+	 * @return String New string with the quality scores of the read
+	 */
+	public String getQualityScores() {
+		return new String(buffer, qualityStart, qualityEnd-qualityStart, CHARSET);
+	}
+	/**
+	 * Copies the data of this view to a new read
+	 * @return RawRead Independent read with the id, sequence and quality scores of this view
+	 */
+	public RawRead toRawRead() {
+		return new RawRead(getName(), characters.toString(), getQualityScores());
+	}
+
+	private class ReadCharacters implements CharSequence {
+		@Override
+		public int length() {
+			return sequenceEnd-sequenceStart;
+		}
+		@Override
+		public char charAt(int index) {
+			if(index<0 || index>=sequenceEnd-sequenceStart) throw new IndexOutOfBoundsException("Index: "+index+" length: "+(sequenceEnd-sequenceStart));
+			return (char)(buffer[sequenceStart+index] & 0xFF);
+		}
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if(start<0 || end>sequenceEnd-sequenceStart || start>end) throw new IndexOutOfBoundsException("Start: "+start+" end: "+end+" length: "+(sequenceEnd-sequenceStart));
+			return new String(buffer, sequenceStart+start, end-start, CHARSET);
+		}
+		@Override
+		public String toString() {
+			return new String(buffer, sequenceStart, sequenceEnd-sequenceStart, CHARSET);
+		}
+	}
+}
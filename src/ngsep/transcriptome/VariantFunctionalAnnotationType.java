@@ -66,6 +66,10 @@ public class VariantFunctionalAnnotationType {
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesByName = null;
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesByNgsep2Name = null;
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesBySOAccession = null;
+	//Types are loaded when the class is initialized to allow concurrent lookups
+	static {
+		loadTypes();
+	}
 	private VariantFunctionalAnnotationType(String name, String ngsep2Name, String soAccession, boolean coding) {
 		super();
 		this.name = name;
@@ -114,20 +118,16 @@ public class VariantFunctionalAnnotationType {
 		}
 	}
 	public static VariantFunctionalAnnotationType getTypeByName(String name) {
-		if(annotationTypesByName==null) loadTypes();
 		return annotationTypesByName.get(name);
 	}
 	public static VariantFunctionalAnnotationType getTypeByNgsep2Name(String name) {
-		if(annotationTypesByName==null) loadTypes();
 		return annotationTypesByNgsep2Name.get(name);
 	}
 	public static VariantFunctionalAnnotationType getTypeBySOAccession(String accessionId) {
-		if(annotationTypesByName==null) loadTypes();
 		return annotationTypesByNgsep2Name.get(accessionId);
 	}
 	
 	public static boolean isTypeCoding(String name) {
-		if(annotationTypesByName==null) loadTypes();
 		if(name == null) throw new NullPointerException("Name can not be null");
 		VariantFunctionalAnnotationType type = annotationTypesByName.get(name);
 		if(type==null) return false;
@@ -139,14 +139,12 @@ public class VariantFunctionalAnnotationType {
 	}
 	
 	public static VariantFunctionalAnnotationType getTypeBySearchKey(String key) {
-		if(annotationTypesByName==null) loadTypes();
 		VariantFunctionalAnnotationType answer = getTypeByName(key);
 		if(answer == null) answer = getTypeBySOAccession(key);
 		if(answer == null) answer = getTypeByNgsep2Name(key);
 		return answer;
 	}
 	public static int getNumberSupportedTypes () {
-		if(annotationTypesByName==null) loadTypes();
 		return annotationTypesByName.size();
 	}
 
@@ -181,7 +179,6 @@ public class VariantFunctionalAnnotationType {
 		return new Comparator<VariantFunctionalAnnotation>() {
 			@Override
 			public int compare(VariantFunctionalAnnotation a1, VariantFunctionalAnnotation a2) {
-				if(annotationPriorities==null) loadTypes();
 				Integer p1 = annotationPriorities.get(a1.getTypeName());
 				Integer p2 = annotationPriorities.get(a2.getTypeName());
 				if(p1==null) throw new IllegalArgumentException("Unrecognized annotation type: "+a1.getTypeName());
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import ngsep.hmm.PrimitiveHMMCalculator;
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
 import ngsep.math.NumberArrays;
@@ -154,31 +155,31 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		getLog().info("Trained internal haploid model ");
 		int n = getSteps();
 		int kD = getNumStates();
-		Double [][] logTransitionsStep = new Double [kD][kD];
+		double [] logTransitionsStep = new double [kD*kD];
 		for(int step=0;step<n-1;step++) {
 			for(int i = 0;i<kD; i++) {
 				HaplotypePairHMMState statePair1 = (HaplotypePairHMMState)getState(i);
 				for(int j = 0;j<kD; j++) {
 					HaplotypePairHMMState statePair2 = (HaplotypePairHMMState)getState(j);
-					Double t1 = haploidBaseHMM.getTransition(statePair1.getIndex1(), statePair2.getIndex1(), step);
-					if(t1==null) {
-						getLog().info("WARN: Zero transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
+					double t1 = haploidBaseHMM.getLogTransition(statePair1.getIndex1(), statePair2.getIndex1(), step);
+					if(t1==Double.NEGATIVE_INFINITY) {
+						getLog().info("WARN: Zero transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+LogMath.toObjectLog(t1));
 					}
 					else if(statePair1.getIndex1()!=statePair2.getIndex1() && t1 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
 					}
-					Double t2 = haploidBaseHMM.getTransition(statePair1.getIndex2(), statePair2.getIndex2(), step);
-					if(t2==null) {
-						getLog().info("WARN: Zero transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
+					double t2 = haploidBaseHMM.getLogTransition(statePair1.getIndex2(), statePair2.getIndex2(), step);
+					if(t2==Double.NEGATIVE_INFINITY) {
+						getLog().info("WARN: Zero transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+LogMath.toObjectLog(t2));
 					}
 					else if(statePair1.getIndex2()!=statePair2.getIndex2() && t2 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
 					}
-					logTransitionsStep[i][j] = LogMath.logProduct(t1, t2);
+					logTransitionsStep[i*kD+j] = t1+t2;
 				}
 			}
 			//getLog().info("Setting transitions for step: "+step);
-			setTransitions(logTransitionsStep, step);
+			setTransitions(logTransitionsStep, 0, step);
 		}
 		getLog().info("Trained diploid model ");
 	}
@@ -186,24 +187,27 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	public void calculateGenotypePosteriors(List<CalledSNV> genotypes, double[][] genotypePosteriors) {
 		int m = genotypes.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(genotypes);
-		Double [][] backwardLogs=calculateBackward(genotypes);
+		PrimitiveHMMCalculator calculator = getCalculator();
+		calculator.calculateForwardBackward(genotypes);
+		double [] forwardLogs = calculator.getForwardLogs();
+		double [] backwardLogs = calculator.getBackwardLogs();
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
-			Double log2 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
+			double log2 = Double.NEGATIVE_INFINITY;
+			int row = i*k;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOREF, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HETERO, i)));
-				log2 = LogMath.logSum(log2, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOALT, i)));
+				double fTimesB = forwardLogs[row+j]+backwardLogs[row+j];
+				log0 = LogMath.logSumPrimitive(log0, fTimesB+getLogEmission(j, CalledSNV.GENOTYPE_HOMOREF, i));
+				log1 = LogMath.logSumPrimitive(log1, fTimesB+getLogEmission(j, CalledSNV.GENOTYPE_HETERO, i));
+				log2 = LogMath.logSumPrimitive(log2, fTimesB+getLogEmission(j, CalledSNV.GENOTYPE_HOMOALT, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			logSum = LogMath.logSum(logSum, log2);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
-			double prob2 = LogMath.power10(LogMath.logProduct(log2, -logSum));
+			double logSum = LogMath.logSumPrimitive(log0, log1);
+			logSum = LogMath.logSumPrimitive(logSum, log2);
+			double prob0 = Math.pow(10, log0-logSum);
+			double prob1 = Math.pow(10, log1-logSum);
+			double prob2 = Math.pow(10, log2-logSum);
 			double sum = prob0 + prob1 + prob2;
 			prob0/=sum;
 			prob1/=sum;
@@ -213,6 +217,11 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 			genotypePosteriors[i][2] = prob2;
 		}
 	}
+	
+	@Override
+	public double getLogEmission(int state, Object value, int step) {
+		return ((HaplotypePairHMMState)getState(state)).getLogEmission(value, step);
+	}
 
 	/**
 	 * 
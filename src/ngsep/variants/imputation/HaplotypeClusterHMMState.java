@@ -138,19 +138,20 @@ public class HaplotypeClusterHMMState implements HMMState {
 	}
 	/**
 	 * Changes the allele probabilities. Useful method for HMM training 
-	 * @param logProbs Matrix with as many rows as sites and with two columns, one for allele zero and another for allele 1
+	 * @param logProbs Matrix with as many rows as sites and with two columns, one for allele zero and another for allele 1.
+	 * Zero probabilities are represented as Double.NEGATIVE_INFINITY
 	 * @param updateKnownSites True if probabilities should be updated for sites in which the
 	 * haplotype was provided as an input
 	 */
-	public void setEmissionLogProbs(Double [][] logProbs, boolean updateKnownSites) {
+	public void setEmissionLogProbs(double [][] logProbs, boolean updateKnownSites) {
 		for(int i=0;i<logProbs.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
-				Double sum = LogMath.logSum(logProbs[i][0], logProbs[i][1]);
-				if(sum!=null) {
-					//sum == null implies that the expected counts for both allele are equal to zero, 
+				double sum = LogMath.logSumPrimitive(logProbs[i][0], logProbs[i][1]);
+				if(sum!=Double.NEGATIVE_INFINITY) {
+					//Zero sum implies that the expected counts for both allele are equal to zero, 
 					//so the genotype information can not be used to reestimate emissions
-					allele0Logs[i] = LogMath.logProduct(logProbs[i][0], -sum);
-					allele1Logs[i] = LogMath.logProduct(logProbs[i][1], -sum);
+					allele0Logs[i] = LogMath.toObjectLog(logProbs[i][0] - sum);
+					allele1Logs[i] = LogMath.toObjectLog(logProbs[i][1] - sum);
 				}
 			}
 		}
@@ -158,19 +159,25 @@ public class HaplotypeClusterHMMState implements HMMState {
 
 	@Override
 	public Double getEmission(Object value, int step) {
-		if(value == null) return null;
+		return LogMath.toObjectLog(getLogEmission(value, step));
+	}
+	
+	/**
+	 * Primitive version of the getEmission method
+	 * @param value that will be emitted
+	 * @param step At which the value is emitted
+	 * @return double log10 of the probability of observing the given value. Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	public double getLogEmission(Object value, int step) {
+		if(value == null) return Double.NEGATIVE_INFINITY;
 		byte b = (byte) value;
 		//TODO: take into account genotype quality
 		//System.out.println("Allele: "+b+" allele 0 log: "+allele0Logs[step]+" allele 1 log: "+allele1Logs[step]);
 		Double answer = null;
 		if(b==0) answer = allele0Logs[step];
 		else if(b==1) answer = allele1Logs[step];
-		if(answer == null) {
-			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
-		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
-		}
-		return answer;
+		if(answer == null) return LOGPROB_UNEXPECTED;
+		return answer + LOGPROB_EXPECTED;
 	}
 
 	public static List<HaplotypeClusterHMMState> createEmptyStates(int m, int k) {
@@ -3,6 +3,7 @@ package ngsep.variants.imputation;
 import java.util.ArrayList;
 import java.util.List;
 
+import ngsep.hmm.PrimitiveHMMCalculator;
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
 import ngsep.variants.CalledGenomicVariant;
@@ -13,7 +14,7 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 	private boolean updateEmissionKnownSites = false;
 	
 	//Local arrays to save reallocation over many runs
-	private Double [][][] logEmissions = new Double [0][0][0];
+	private double [][][] logEmissions = new double [0][0][0];
 	
 	
 	public HaplotypeClustersHMM(List<? extends HaplotypeClusterHMMState> states, int numMarkers) {
@@ -45,21 +46,26 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 		int m = getSteps();
 		if(logEmissions.length!=k || logEmissions[0].length!=m) {
 			getLog().info("Creating array for emissions of dimensions "+k+" x "+m+" x 2");
-			logEmissions = new Double [k][m][2];
+			logEmissions = new double [k][m][2];
 		}
 		for(int j=0;j<logEmissions.length;j++) {
 			for(int i=0;i<logEmissions[j].length;i++) {
-				logEmissions[j][i][0] = logEmissions[j][i][1] = null;
+				logEmissions[j][i][0] = logEmissions[j][i][1] = Double.NEGATIVE_INFINITY;
 			}
 		}
 	}
 
 	@Override
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, double logPosterior) {
 		if(datum == null || !(datum instanceof Byte)) return;
 		byte allele = (Byte)datum;
 		if(allele != CalledGenomicVariant.ALLELE_REFERENCE && allele!=CalledGenomicVariant.ALLELE_ALTERNATIVE) return;
-		logEmissions[stateIndex][step][allele] = LogMath.logSum(logEmissions[stateIndex][step][allele], logPosterior);
+		logEmissions[stateIndex][step][allele] = LogMath.logSumPrimitive(logEmissions[stateIndex][step][allele], logPosterior);
+	}
+	
+	@Override
+	public double getLogEmission(int state, Object value, int step) {
+		return ((HaplotypeClusterHMMState)getState(state)).getLogEmission(value, step);
 	}
 
 	@Override
@@ -74,22 +80,23 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 		Byte b1 = 1;
 		int m = haplotype.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(haplotype);
-		Double [][] backwardLogs=calculateBackward(haplotype);
-		//calculateForward(haplotype, forwardLogs);
-		//calculateBackward(haplotype, backwardLogs);
+		PrimitiveHMMCalculator calculator = getCalculator();
+		calculator.calculateForwardBackward(haplotype);
+		double [] forwardLogs = calculator.getForwardLogs();
+		double [] backwardLogs = calculator.getBackwardLogs();
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
+			int row = i*k;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, b0, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, b1, i)));
+				double fTimesB = forwardLogs[row+j]+backwardLogs[row+j];
+				log0 = LogMath.logSumPrimitive(log0, fTimesB+getLogEmission(j, b0, i));
+				log1 = LogMath.logSumPrimitive(log1, fTimesB+getLogEmission(j, b1, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
+			double logSum = LogMath.logSumPrimitive(log0, log1);
+			double prob0 = Math.pow(10, log0-logSum);
+			double prob1 = Math.pow(10, log1-logSum);
 			double sum = prob0 + prob1;
 			prob0/=sum;
 			prob1/=sum;
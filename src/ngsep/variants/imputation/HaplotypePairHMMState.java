@@ -41,26 +41,31 @@ public class HaplotypePairHMMState implements HMMState {
 
 	@Override
 	public Double getEmission(Object value, int step) {
+		return LogMath.toObjectLog(getLogEmission(value, step));
+	}
+	
+	/**
+	 * Primitive version of the getEmission method
+	 * @param value that will be emitted
+	 * @param step At which the value is emitted
+	 * @return double log10 of the probability of observing the given value. Double.NEGATIVE_INFINITY if the probability is zero
+	 */
+	public double getLogEmission(Object value, int step) {
 		Byte genotype = getGenotype (value);
-		Double answer = null;
+		double answer = Double.NEGATIVE_INFINITY;
 		if(genotype!=null) {
 			byte a0 = 0;
 			byte a1 = 1;
-			if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a0, step));
-			else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a1, step));
+			if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = state1.getLogEmission(a0, step) + state2.getLogEmission(a0, step);
+			else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = state1.getLogEmission(a1, step) + state2.getLogEmission(a1, step);
 			else if(genotype==CalledSNV.GENOTYPE_HETERO) {
-				double p1 = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a1, step));
-				double p2 = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a0, step));
-				answer = LogMath.logSum(p1, p2);
+				double p1 = state1.getLogEmission(a0, step) + state2.getLogEmission(a1, step);
+				double p2 = state1.getLogEmission(a1, step) + state2.getLogEmission(a0, step);
+				answer = LogMath.logSumPrimitive(p1, p2);
 			}
 		}
-		
-		if(answer == null) {
-			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
-		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
-		}
-		return answer;
+		if(answer == Double.NEGATIVE_INFINITY) return HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
+		return answer + HaplotypeClusterHMMState.LOGPROB_EXPECTED;
 	}
 
 	private Byte getGenotype(Object value) {
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+
+/**
+ * Stores genotype calls of variants added one at a time as codes of two bits per call and retrieves
+ * the codes of one sample for all variants. Codes are accumulated in memory for blocks of consecutive variants.
+ * Each block is written to a temporary file organized by sample, so that the codes of a sample within a block
+ * are contiguous. Only the coordinates and the first two alleles of each variant are kept in memory.
+ * Genotype codes are the same used by GenotypeMatrixChunk
+ * @author Jorge Duitama
+ */
+public class GenotypeCodesTransposer implements Closeable {
+	
+	//Maximum number of bytes of codes kept in memory before they are written to the temporary file
+	private static final int MAX_BYTES_CHUNK = 16*1024*1024;
+	private static final int MIN_VARIANTS_CHUNK = 1024;
+	private static final int MAX_VARIANTS_CHUNK = 1024*1024;
+	private static final byte TYPE_BIALLELIC = 1;
+	private static final byte TYPE_SNV = 2;
+	
+	private int numSamples;
+	private int variantsPerChunk;
+	private File file;
+	private OutputStream out;
+	private RandomAccessFile in;
+	private long position = 0;
+	//Codes of the current chunk for each sample
+	private byte [][] chunkCodes;
+	private int chunkVariants = 0;
+	private List<Long> chunkOffsets = new ArrayList<>();
+	private List<Integer> chunkSizes = new ArrayList<>();
+	
+	//Variants information
+	private int numVariants = 0;
+	private Map<String,String> stringsPool = new HashMap<>();
+	private String [] sequenceNames = new String[MIN_VARIANTS_CHUNK];
+	private int [] firsts = new int[MIN_VARIANTS_CHUNK];
+	private byte [] types = new byte[MIN_VARIANTS_CHUNK];
+	private String [] references = new String[MIN_VARIANTS_CHUNK];
+	private String [] alternatives = new String[MIN_VARIANTS_CHUNK];
+	
+	/**
+	 * Creates a new transposer
+	 * @param numSamples Number of calls of each variant
+	 * @param directory Directory to create the temporary file. If null, the default temporary directory is used
+	 * @throws IOException If the temporary file can not be created
+	 */
+	public GenotypeCodesTransposer(int numSamples, File directory) throws IOException {
+		this.numSamples = numSamples;
+		variantsPerChunk = MAX_VARIANTS_CHUNK;
+		if(numSamples>0) variantsPerChunk = (int)Math.max(MIN_VARIANTS_CHUNK, Math.min(MAX_VARIANTS_CHUNK, 4L*MAX_BYTES_CHUNK/numSamples)); 
+		variantsPerChunk -= variantsPerChunk%4;
+		chunkCodes = new byte[numSamples][variantsPerChunk/4];
+		file = File.createTempFile("genotypes", ".ngsep.tmp", directory);
+		file.deleteOnExit();
+		out = new BufferedOutputStream(new FileOutputStream(file), 1024*1024);
+	}
+	
+	/**
+	 * @return int Number of samples
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+	
+	/**
+	 * @return int Number of variants added
+	 */
+	public int getNumVariants() {
+		return numVariants;
+	}
+	
+	/**
+	 * Adds the calls of a new variant
+	 * @param variant Variant to add
+	 * @param calls Genotype calls of the variant in the order of the samples
+	 * @throws IOException If the codes can not be saved in the temporary file
+	 */
+	public void addVariant(GenomicVariant variant, List<CalledGenomicVariant> calls) throws IOException {
+		if(in!=null) throw new IllegalStateException("Variants can not be added after codes are retrieved");
+		if(calls.size()!=numSamples) throw new IllegalArgumentException("Expected "+numSamples+" calls for variant at "+variant.getSequenceName()+":"+variant.getFirst()+" but got "+calls.size());
+		if(numVariants==firsts.length) {
+			int capacity = 2*numVariants;
+			sequenceNames = Arrays.copyOf(sequenceNames, capacity);
+			firsts = Arrays.copyOf(firsts, capacity);
+			types = Arrays.copyOf(types, capacity);
+			references = Arrays.copyOf(references, capacity);
+			alternatives = Arrays.copyOf(alternatives, capacity);
+		}
+		sequenceNames[numVariants] = getPooledString(variant.getSequenceName());
+		firsts[numVariants] = variant.getFirst();
+		byte type = 0;
+		if(variant.isBiallelic()) type|=TYPE_BIALLELIC;
+		if(variant.isSNV()) type|=TYPE_SNV;
+		types[numVariants] = type;
+		String [] alleles = variant.getAlleles();
+		if(alleles.length>0) references[numVariants] = getPooledString(alleles[0]);
+		if(alleles.length>1) alternatives[numVariants] = getPooledString(alleles[1]);
+		numVariants++;
+		
+		int byteIdx = chunkVariants/4;
+		int shift = 2*(chunkVariants%4);
+		for(int i=0;i<numSamples;i++) {
+			chunkCodes[i][byteIdx] |= getGenotypeCode(calls.get(i))<<shift;
+		}
+		chunkVariants++;
+		if(chunkVariants==variantsPerChunk) writeChunk();
+	}
+	private String getPooledString(String value) {
+		String pooled = stringsPool.get(value);
+		if(pooled!=null) return pooled;
+		//Avoids retaining long alleles of a few variants
+		if(stringsPool.size()<100000) stringsPool.put(value, value);
+		return value;
+	}
+	
+	/**
+	 * Calculates the genotype code for the given call
+	 * @param call Genotype call
+	 * @return byte Genotype code as defined in GenotypeMatrixChunk
+	 */
+	public static byte getGenotypeCode(CalledGenomicVariant call) {
+		if(call.isUndecided()) return GenotypeMatrixChunk.GENOTYPE_CODE_UNDECIDED;
+		if(call.isHeterozygous()) return GenotypeMatrixChunk.GENOTYPE_CODE_HETERO;
+		if(call.isHomozygousReference()) return GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF;
+		return GenotypeMatrixChunk.GENOTYPE_CODE_HOMOALT;
+	}
+	
+	private void writeChunk() throws IOException {
+		if(chunkVariants==0) return;
+		int bytesSample = (chunkVariants+3)/4;
+		chunkOffsets.add(position);
+		chunkSizes.add(chunkVariants);
+		for(int i=0;i<numSamples;i++) {
+			out.write(chunkCodes[i], 0, bytesSample);
+			Arrays.fill(chunkCodes[i], 0, bytesSample, (byte)0);
+		}
+		position+=(long)bytesSample*numSamples;
+		chunkVariants = 0;
+	}
+	
+	/**
+	 * Loads the genotype codes of the given sample for all variants. After the first call to this method
+	 * new variants can not be added
+	 * @param sampleIdx Index of the sample
+	 * @param codes Array to store the codes. Its length must be at least the number of variants
+	 * @throws IOException If the temporary file can not be read
+	 */
+	public void loadSampleCodes(int sampleIdx, byte [] codes) throws IOException {
+		if(sampleIdx<0 || sampleIdx>=numSamples) throw new IllegalArgumentException("Invalid sample index "+sampleIdx+". Number of samples: "+numSamples);
+		if(in==null) {
+			writeChunk();
+			out.close();
+			out = null;
+			chunkCodes = null;
+			in = new RandomAccessFile(file, "r");
+		}
+		byte [] buffer = new byte[(variantsPerChunk+3)/4];
+		int variantIdx = 0;
+		for(int i=0;i<chunkOffsets.size();i++) {
+			int size = chunkSizes.get(i);
+			int bytesSample = (size+3)/4;
+			in.seek(chunkOffsets.get(i)+(long)sampleIdx*bytesSample);
+			in.readFully(buffer, 0, bytesSample);
+			for(int j=0;j<size;j++) {
+				codes[variantIdx++] = (byte)((buffer[j/4]>>(2*(j%4)))&3);
+			}
+		}
+	}
+	
+	public String getSequenceName(int variantIdx) {
+		return sequenceNames[variantIdx];
+	}
+	
+	public int getFirst(int variantIdx) {
+		return firsts[variantIdx];
+	}
+	
+	public boolean isBiallelic(int variantIdx) {
+		return (types[variantIdx] & TYPE_BIALLELIC)!=0;
+	}
+	
+	public boolean isSNV(int variantIdx) {
+		return (types[variantIdx] & TYPE_SNV)!=0;
+	}
+	
+	/**
+	 * @param variantIdx Index of the variant
+	 * @return String First allele of the variant
+	 */
+	public String getReference(int variantIdx) {
+		return references[variantIdx];
+	}
+	
+	/**
+	 * @param variantIdx Index of the variant
+	 * @return String Second allele of the variant. Null if the variant has only one allele
+	 */
+	public String getAlternative(int variantIdx) {
+		return alternatives[variantIdx];
+	}
+
+	/**
+	 * Closes and deletes the temporary file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if(out!=null) out.close();
+			if(in!=null) in.close();
+		} finally {
+			out = null;
+			in = null;
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ngsep.variants.CalledGenomicVariant;
+
+/**
+ * Block of consecutive variants of a binary genotype matrix file. Columns are kept in the bytes
+ * read from the file and decoded on demand, so that analyses can visit genotype codes, depths and
+ * genotype qualities as primitive values without creating objects for each call.
+ * Records with at most two alleles and the same ploidy (one or two) for every sample keep one
+ * genotype code of two bits per sample. Other records keep the alleles copy number and the phased alleles of each sample
+ * @author Jorge Duitama
+ */
+public class GenotypeMatrixChunk {
+	
+	public static final byte GENOTYPE_CODE_UNDECIDED = 0;
+	public static final byte GENOTYPE_CODE_HOMOREF = 1;
+	public static final byte GENOTYPE_CODE_HETERO = 2;
+	public static final byte GENOTYPE_CODE_HOMOALT = 3;
+	
+	//Flags of each record
+	static final byte FLAG_EXPLICIT = 1;
+	static final byte FLAG_CNV = 2;
+	static final byte FLAG_HAPLOID = 4;
+	static final byte FLAG_GQ = 8;
+	static final byte FLAG_DP = 16;
+	static final byte FLAG_ACN = 32;
+	//Flags of each sample within records with explicit genotypes
+	static final byte SAMPLE_FLAG_PHASED = 1;
+	static final byte SAMPLE_FLAG_UNDECIDED = 2;
+	
+	private int numSamples;
+	private int numVariants;
+	private byte [] data;
+	private String [] sequenceNames;
+	private int [] sequenceIdxs;
+	private int [] firsts;
+	private int [] lasts;
+	private byte [] numAlleles;
+	private byte [] flags;
+	private byte [] valueWidths;
+	private short [] explicitWidths;
+	private int [] siteOffsets;
+	private int [] genotypeOffsets;
+	private int [] gqOffsets;
+	private int [] dpOffsets;
+	
+	/**
+	 * Decodes the columns of a chunk written by GenotypeMatrixFileWriter
+	 * @param numSamples Number of samples of the file
+	 * @param data Bytes of the chunk
+	 */
+	GenotypeMatrixChunk(int numSamples, byte [] data) {
+		this.numSamples = numSamples;
+		this.data = data;
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		numVariants = buffer.getInt();
+		sequenceNames = new String [buffer.getInt()];
+		for(int i=0;i<sequenceNames.length;i++) sequenceNames[i] = readString(buffer);
+		sequenceIdxs = readInts(buffer);
+		firsts = readInts(buffer);
+		lasts = readInts(buffer);
+		numAlleles = readBytes(buffer);
+		flags = readBytes(buffer);
+		valueWidths = readBytes(buffer);
+		explicitWidths = new short[numVariants];
+		buffer.getInt();
+		for(int i=0;i<numVariants;i++) explicitWidths[i] = buffer.getShort();
+		
+		siteOffsets = new int [numVariants];
+		int end = buffer.getInt()+buffer.position();
+		for(int i=0;i<numVariants;i++) {
+			siteOffsets[i] = buffer.position();
+			buffer.position(buffer.position()+4+buffer.getInt(buffer.position()));
+		}
+		checkColumnEnd(buffer, end);
+		
+		genotypeOffsets = new int [numVariants];
+		int offset = buffer.getInt(); 
+		end = buffer.position()+offset;
+		offset = buffer.position();
+		for(int i=0;i<numVariants;i++) {
+			genotypeOffsets[i] = offset;
+			if((flags[i] & FLAG_EXPLICIT)!=0) offset+=numSamples*explicitWidths[i];
+			else offset+=(numSamples+3)/4;
+		}
+		buffer.position(offset);
+		checkColumnEnd(buffer, end);
+		gqOffsets = loadValueOffsets(buffer, FLAG_GQ, 0);
+		dpOffsets = loadValueOffsets(buffer, FLAG_DP, 4);
+	}
+	private int[] loadValueOffsets(ByteBuffer buffer, byte flag, int widthShift) {
+		int [] offsets = new int [numVariants];
+		int end = buffer.getInt()+buffer.position();
+		int offset = buffer.position();
+		for(int i=0;i<numVariants;i++) {
+			offsets[i] = offset;
+			if((flags[i] & flag)!=0) offset+=numSamples*getWidth(i, widthShift);
+		}
+		buffer.position(offset);
+		checkColumnEnd(buffer, end);
+		return offsets;
+	}
+	private void checkColumnEnd(ByteBuffer buffer, int end) {
+		if(buffer.position()!=end) throw new IllegalStateException("Corrupted genotype matrix chunk. Column ends at "+buffer.position()+" expected: "+end);
+	}
+	private static String readString (ByteBuffer buffer) {
+		int length = buffer.getInt();
+		String answer = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position()+length);
+		return answer;
+	}
+	private int [] readInts(ByteBuffer buffer) {
+		buffer.getInt();
+		int [] answer = new int [numVariants];
+		for(int i=0;i<numVariants;i++) answer[i] = buffer.getInt();
+		return answer;
+	}
+	private byte [] readBytes(ByteBuffer buffer) {
+		buffer.getInt();
+		byte [] answer = new byte [numVariants];
+		buffer.get(answer);
+		return answer;
+	}
+	
+	/**
+	 * @return int Number of variants in this chunk
+	 */
+	public int getNumVariants() {
+		return numVariants;
+	}
+	/**
+	 * @return int Number of samples of each variant
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+	public String getSequenceName(int variantIdx) {
+		return sequenceNames[sequenceIdxs[variantIdx]];
+	}
+	public int getFirst(int variantIdx) {
+		return firsts[variantIdx];
+	}
+	public int getLast(int variantIdx) {
+		return lasts[variantIdx];
+	}
+	public int getNumAlleles(int variantIdx) {
+		return numAlleles[variantIdx];
+	}
+	/**
+	 * Returns the first eight columns of the VCF record of the given variant
+	 * @param variantIdx Index of the variant within the chunk
+	 * @return String Tab separated columns from CHROM to INFO
+	 */
+	public String getSiteColumns(int variantIdx) {
+		int offset = siteOffsets[variantIdx];
+		int length = ByteBuffer.wrap(data).getInt(offset);
+		return new String(data, offset+4, length, StandardCharsets.UTF_8);
+	}
+	/**
+	 * @param variantIdx Index of the variant within the chunk
+	 * @return boolean True if the genotypes of the given variant are stored as codes of two bits 
+	 */
+	public boolean isPacked(int variantIdx) {
+		return (flags[variantIdx] & FLAG_EXPLICIT)==0;
+	}
+	/**
+	 * @param variantIdx Index of the variant within the chunk
+	 * @return boolean True if the calls of the given variant are calls of copy number variants
+	 */
+	public boolean isCNV(int variantIdx) {
+		return (flags[variantIdx] & FLAG_CNV)!=0;
+	}
+	public boolean hasGenotypeQualities(int variantIdx) {
+		return (flags[variantIdx] & FLAG_GQ)!=0;
+	}
+	public boolean hasReadDepths(int variantIdx) {
+		return (flags[variantIdx] & FLAG_DP)!=0;
+	}
+	/**
+	 * @param variantIdx Index of the variant within the chunk
+	 * @return boolean True if the alleles copy number was part of the format of the original record
+	 */
+	public boolean hasAllelesCopyNumber(int variantIdx) {
+		return (flags[variantIdx] & FLAG_ACN)!=0;
+	}
+	
+	/**
+	 * Returns the genotype code of the given sample at the given variant. Alternative alleles of multiallelic variants are not distinguished 
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return byte One of the constants GENOTYPE_CODE_UNDECIDED, GENOTYPE_CODE_HOMOREF, GENOTYPE_CODE_HETERO or GENOTYPE_CODE_HOMOALT
+	 */
+	public byte getGenotypeCode(int variantIdx, int sampleIdx) {
+		if(isPacked(variantIdx)) {
+			int b = data[genotypeOffsets[variantIdx]+sampleIdx/4];
+			return (byte) ((b >> (2*(sampleIdx%4))) & 3);
+		}
+		byte [] called = getIndexesCalledAlleles(variantIdx, sampleIdx);
+		if(called.length==0) return GENOTYPE_CODE_UNDECIDED;
+		//Calls of CNVs are homozygous reference if the number of copies is the normal ploidy
+		if(isCNV(variantIdx)) return called[0]==CalledGenomicVariant.DEFAULT_PLOIDY?GENOTYPE_CODE_HOMOREF:GENOTYPE_CODE_HOMOALT;
+		if(called.length>1) return GENOTYPE_CODE_HETERO;
+		if(called[0]==0) return GENOTYPE_CODE_HOMOREF;
+		return GENOTYPE_CODE_HOMOALT;
+	}
+	/**
+	 * Copies the genotype codes of the given variant packed as four codes per byte. The code of sample i
+	 * is located at the bits 2*(i%4) and 2*(i%4)+1 of the byte i/4
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param dest Array to store the codes. Its length must be at least (numSamples+3)/4
+	 */
+	public void copyPackedGenotypeCodes(int variantIdx, byte [] dest) {
+		int length = (numSamples+3)/4;
+		if(isPacked(variantIdx)) {
+			System.arraycopy(data, genotypeOffsets[variantIdx], dest, 0, length);
+			return;
+		}
+		for(int i=0;i<length;i++) dest[i] = 0;
+		for(int i=0;i<numSamples;i++) {
+			dest[i/4] |= getGenotypeCode(variantIdx, i) << (2*(i%4));
+		}
+	}
+	/**
+	 * Returns the number of copies of the genotype call of the given sample
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return byte Total copy number of the call
+	 */
+	public byte getCopyNumber(int variantIdx, int sampleIdx) {
+		if(isPacked(variantIdx)) return getPackedPloidy(variantIdx);
+		return data[getExplicitOffset(variantIdx, sampleIdx)+1];
+	}
+	/**
+	 * Returns the indexes of the alleles called for the given sample. For copy number variants
+	 * the only index is the number of copies called
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return byte[] Sorted indexes of the called alleles. Empty if the call is undecided
+	 */
+	public byte [] getIndexesCalledAlleles(int variantIdx, int sampleIdx) {
+		if(isPacked(variantIdx)) {
+			byte code = getGenotypeCode(variantIdx, sampleIdx);
+			if(code == GENOTYPE_CODE_HOMOREF) return new byte [] {0};
+			if(code == GENOTYPE_CODE_HETERO) return new byte [] {0,1};
+			if(code == GENOTYPE_CODE_HOMOALT) return new byte [] {1};
+			return new byte[0];
+		}
+		int offset = getExplicitOffset(variantIdx, sampleIdx);
+		if((data[offset] & SAMPLE_FLAG_UNDECIDED)!=0) return new byte[0];
+		if(isCNV(variantIdx)) return new byte [] {data[offset+2]};
+		int n = numAlleles[variantIdx];
+		int count = 0;
+		for(int j=0;j<n;j++) if(data[offset+2+j]>0) count++;
+		byte [] answer = new byte[count];
+		count = 0;
+		for(int j=0;j<n;j++) if(data[offset+2+j]>0) answer[count++] = (byte)j;
+		return answer;
+	}
+	/**
+	 * Returns the copy number of each allele for the given sample
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return byte[] Copy number of each allele. All values are zero if the call is undecided 
+	 */
+	public byte [] getAllelesCopyNumber(int variantIdx, int sampleIdx) {
+		int n = numAlleles[variantIdx];
+		byte [] answer = new byte[n];
+		if(isPacked(variantIdx)) {
+			byte code = getGenotypeCode(variantIdx, sampleIdx);
+			byte ploidy = getPackedPloidy(variantIdx);
+			if(code == GENOTYPE_CODE_HOMOREF) answer[0] = ploidy;
+			else if(code == GENOTYPE_CODE_HETERO) answer[0] = answer[1] = 1;
+			else if(code == GENOTYPE_CODE_HOMOALT) answer[1] = ploidy;
+			return answer;
+		}
+		int offset = getExplicitOffset(variantIdx, sampleIdx);
+		if((data[offset] & SAMPLE_FLAG_UNDECIDED)!=0 || isCNV(variantIdx)) return answer;
+		System.arraycopy(data, offset+2, answer, 0, n);
+		return answer;
+	}
+	/**
+	 * Returns the phased alleles of the given sample 
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return byte[] Indexes of the alleles in phase order. Null if the call is not phased
+	 */
+	public byte [] getIndexesPhasedAlleles(int variantIdx, int sampleIdx) {
+		if(isPacked(variantIdx)) return null;
+		int offset = getExplicitOffset(variantIdx, sampleIdx);
+		if((data[offset] & SAMPLE_FLAG_PHASED)==0) return null;
+		int phasedStart = offset+2+numAlleles[variantIdx];
+		byte [] answer = new byte[data[phasedStart]];
+		System.arraycopy(data, phasedStart+1, answer, 0, answer.length);
+		return answer;
+	}
+	/**
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return short Genotype quality of the call. Zero if the variant does not have genotype qualities
+	 */
+	public short getGenotypeQuality(int variantIdx, int sampleIdx) {
+		if(!hasGenotypeQualities(variantIdx)) return 0;
+		return (short)getValue(gqOffsets[variantIdx], getWidth(variantIdx, 0), sampleIdx);
+	}
+	/**
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample
+	 * @return int Read depth of the call. Zero if the variant does not have read depths
+	 */
+	public int getReadDepth(int variantIdx, int sampleIdx) {
+		if(!hasReadDepths(variantIdx)) return 0;
+		return getValue(dpOffsets[variantIdx], getWidth(variantIdx, 4), sampleIdx);
+	}
+	
+	private byte getPackedPloidy(int variantIdx) {
+		return (flags[variantIdx] & FLAG_HAPLOID)!=0?1:CalledGenomicVariant.DEFAULT_PLOIDY;
+	}
+	private int getExplicitOffset(int variantIdx, int sampleIdx) {
+		return genotypeOffsets[variantIdx] + sampleIdx*explicitWidths[variantIdx];
+	}
+	private int getWidth(int variantIdx, int shift) {
+		return (valueWidths[variantIdx] >> shift) & 15;
+	}
+	private int getValue(int offset, int width, int sampleIdx) {
+		int pos = offset + sampleIdx*width;
+		if(width == 1) return data[pos] & 0xFF;
+		if(width == 2) return ((data[pos] & 0xFF) << 8) | (data[pos+1] & 0xFF);
+		return ((data[pos] & 0xFF) << 24) | ((data[pos+1] & 0xFF) << 16) | ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+	}
+}
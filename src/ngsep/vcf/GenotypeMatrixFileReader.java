@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads binary genotype matrix files created with GenotypeMatrixFileWriter. Chunks can be loaded
+ * sequentially through the iterator or by index. Records as VCFRecord objects can be obtained 
+ * opening the file with VCFFileReader 
+ * @author Jorge Duitama
+ */
+public class GenotypeMatrixFileReader implements Iterable<GenotypeMatrixChunk>,Closeable {
+	private RandomAccessFile file;
+	private String filename;
+	private int numSamples;
+	private byte [] headerBytes;
+	private VCFFileHeader header = null;
+	private long [] chunkOffsets;
+	private int [] chunkSizes;
+	
+	public GenotypeMatrixFileReader (String filename) throws IOException {
+		this(new File(filename));
+	}
+	public GenotypeMatrixFileReader (File file) throws IOException {
+		this.filename = file.getName();
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			loadMetadata();
+		} catch (IOException|RuntimeException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Tells if the given file is a binary genotype matrix
+	 * @param file File to check
+	 * @return boolean True if the file starts with the magic string of genotype matrix files
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isGenotypeMatrixFile(File file) throws IOException {
+		byte [] magic = new byte[GenotypeMatrixFileWriter.MAGIC.length];
+		try (InputStream in = new FileInputStream(file)) {
+			int read = 0;
+			while(read<magic.length) {
+				int n = in.read(magic, read, magic.length-read);
+				if(n<0) return false;
+				read+=n;
+			}
+		}
+		return Arrays.equals(magic, GenotypeMatrixFileWriter.MAGIC);
+	}
+	
+	private void loadMetadata() throws IOException {
+		byte [] magic = new byte[GenotypeMatrixFileWriter.MAGIC.length];
+		long length = file.length();
+		if(length<2*magic.length+24) throw new IOException("File "+filename+" is not a genotype matrix");
+		file.readFully(magic);
+		if(!Arrays.equals(magic, GenotypeMatrixFileWriter.MAGIC)) throw new IOException("File "+filename+" is not a genotype matrix");
+		int version = file.readInt();
+		if(version!=GenotypeMatrixFileWriter.FORMAT_VERSION) throw new IOException("Unsupported version "+version+" for genotype matrix in file "+filename+". Expected version: "+GenotypeMatrixFileWriter.FORMAT_VERSION);
+		numSamples = file.readInt();
+		headerBytes = new byte[file.readInt()];
+		file.readFully(headerBytes);
+		file.seek(length-magic.length-8);
+		long indexOffset = file.readLong();
+		file.readFully(magic);
+		if(!Arrays.equals(magic, GenotypeMatrixFileWriter.MAGIC)) throw new IOException("Genotype matrix file "+filename+" is truncated");
+		file.seek(indexOffset);
+		int numChunks = file.readInt();
+		chunkOffsets = new long[numChunks];
+		chunkSizes = new int[numChunks];
+		for(int i=0;i<numChunks;i++) {
+			chunkOffsets[i] = file.readLong();
+			chunkSizes[i] = file.readInt();
+		}
+	}
+	
+	/**
+	 * @return InputStream Stream with the header of the VCF file used to build the matrix
+	 */
+	InputStream openHeader() {
+		return new ByteArrayInputStream(headerBytes);
+	}
+	
+	/**
+	 * @return VCFFileHeader Header of the VCF file used to build the matrix
+	 * @throws IOException If the header can not be loaded
+	 */
+	public VCFFileHeader getHeader() throws IOException {
+		if(header == null) {
+			try (VCFFileReader reader = new VCFFileReader(openHeader())) {
+				header = reader.getHeader();
+			}
+		}
+		return header;
+	}
+	
+	public int getNumSamples() {
+		return numSamples;
+	}
+	
+	public int getNumChunks() {
+		return chunkOffsets.length;
+	}
+	
+	/**
+	 * @return long Total number of variants in the file
+	 */
+	public long getNumVariants() {
+		long answer = 0;
+		for(int size:chunkSizes) answer+=size;
+		return answer;
+	}
+	
+	/**
+	 * Loads the chunk with the given index
+	 * @param i Index of the chunk
+	 * @return GenotypeMatrixChunk Chunk with the given index
+	 * @throws IOException If the chunk can not be read
+	 */
+	public GenotypeMatrixChunk loadChunk(int i) throws IOException {
+		file.seek(chunkOffsets[i]);
+		byte [] data = new byte[file.readInt()];
+		file.readFully(data);
+		GenotypeMatrixChunk chunk = new GenotypeMatrixChunk(numSamples, data);
+		if(chunk.getNumVariants()!=chunkSizes[i]) throw new IOException("Corrupted chunk "+i+" in genotype matrix file "+filename);
+		return chunk;
+	}
+	
+	@Override
+	public Iterator<GenotypeMatrixChunk> iterator() {
+		return new Iterator<GenotypeMatrixChunk>() {
+			private int nextChunk = 0;
+			@Override
+			public boolean hasNext() {
+				return nextChunk<chunkOffsets.length;
+			}
+
+			@Override
+			public GenotypeMatrixChunk next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				try {
+					return loadChunk(nextChunk++);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+	
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+
+/**
+ * Writes genotype calls in a binary file organized in chunks of consecutive variants. Within each chunk
+ * the data is stored by columns: variant coordinates, site information of the VCF records, genotypes,
+ * genotype qualities and read depths. Genotypes of biallelic records are packed as codes of two bits per sample.
+ * Only the format fields GT, ACN, GQ and DP are retained. The file has the following layout:
+ * an eight bytes magic string, the format version, the number of samples, the VCF header, the chunks,
+ * an index with the start and number of variants of each chunk, the start of the index and the magic string again.
+ * Files can be read with GenotypeMatrixFileReader or directly with VCFFileReader
+ * @author Jorge Duitama
+ */
+public class GenotypeMatrixFileWriter implements Closeable {
+	
+	public static final int FORMAT_VERSION = 1;
+	public static final int DEF_MAX_VARIANTS_CHUNK = 4096;
+	//Chunks are closed when the genotype data reaches this number of bytes
+	private static final int MAX_BYTES_CHUNK = 4*1024*1024;
+	static final byte [] MAGIC = "NGSEPGTM".getBytes(StandardCharsets.US_ASCII);
+	
+	private DataOutputStream out;
+	private long position = 0;
+	private int numSamples;
+	private List<Long> chunkOffsets = new ArrayList<>();
+	private List<Integer> chunkSizes = new ArrayList<>();
+	
+	//Site columns are written with the same code used to write VCF files
+	private VCFFileWriter siteWriter = new VCFFileWriter();
+	private ByteArrayOutputStream siteBytes = new ByteArrayOutputStream();
+	private PrintStream sitePrinter = new PrintStream(siteBytes, false, "UTF-8");
+	
+	//Columns of the current chunk
+	private int numVariants = 0;
+	private Map<String,Integer> sequenceIdxs = new HashMap<>();
+	private List<String> sequenceNames = new ArrayList<>();
+	private Column sequenceColumn = new Column();
+	private Column firstColumn = new Column();
+	private Column lastColumn = new Column();
+	private Column allelesColumn = new Column();
+	private Column flagsColumn = new Column();
+	private Column widthsColumn = new Column();
+	private Column explicitWidthsColumn = new Column();
+	private Column siteColumn = new Column();
+	private Column genotypesColumn = new Column();
+	private Column gqColumn = new Column();
+	private Column dpColumn = new Column();
+	
+	/**
+	 * Creates a new file and writes the given header
+	 * @param filename Name of the file to create
+	 * @param header Header of the VCF file that will be converted. It must contain the samples of the records that will be written
+	 * @throws IOException If the file can not be created
+	 */
+	public GenotypeMatrixFileWriter(String filename, VCFFileHeader header) throws IOException {
+		numSamples = header.getSamples().size();
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		PrintStream headerOut = new PrintStream(headerBytes, false, "UTF-8");
+		header.print(headerOut);
+		headerOut.flush();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1048576));
+		out.write(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(numSamples);
+		out.writeInt(headerBytes.size());
+		headerBytes.writeTo(out);
+		position = MAGIC.length+12+headerBytes.size();
+	}
+	
+	/**
+	 * Adds the given record to the file
+	 * @param record Record to add. The calls must follow the order of the samples in the header
+	 * @throws IOException If the record has a wrong number of calls or if the data can not be written
+	 */
+	public void addRecord(VCFRecord record) throws IOException {
+		GenomicVariant var = record.getVariant();
+		List<CalledGenomicVariant> calls = record.getCalls();
+		if(calls.size()!=numSamples) throw new IOException("Can not write record at "+var.getSequenceName()+":"+var.getFirst()+". Number of calls "+calls.size()+" is different than the number of samples "+numSamples);
+		Integer seqIdx = sequenceIdxs.get(var.getSequenceName());
+		if(seqIdx == null) {
+			seqIdx = sequenceNames.size();
+			sequenceIdxs.put(var.getSequenceName(), seqIdx);
+			sequenceNames.add(var.getSequenceName());
+		}
+		sequenceColumn.out.writeInt(seqIdx);
+		firstColumn.out.writeInt(var.getFirst());
+		lastColumn.out.writeInt(var.getLast());
+		int numAlleles = var.getAlleles().length;
+		allelesColumn.out.writeByte(numAlleles);
+		writeSiteColumns(record);
+		
+		byte flags = 0;
+		for(int idx:record.getFieldsFormat()) {
+			if(idx == VCFRecord.FORMAT_IDX_GQ) flags |= GenotypeMatrixChunk.FLAG_GQ;
+			else if(idx == VCFRecord.FORMAT_IDX_DP) flags |= GenotypeMatrixChunk.FLAG_DP;
+			else if(idx == VCFRecord.FORMAT_IDX_ACN) flags |= GenotypeMatrixChunk.FLAG_ACN;
+		}
+		boolean cnv = var.getType() == GenomicVariant.TYPE_CNV;
+		if(cnv) flags |= GenotypeMatrixChunk.FLAG_CNV;
+		byte ploidy = getPackedPloidy(calls, numAlleles, cnv);
+		int explicitWidth = 0;
+		if(ploidy == 0) {
+			flags |= GenotypeMatrixChunk.FLAG_EXPLICIT;
+			explicitWidth = writeExplicitGenotypes(calls, numAlleles, cnv);
+		} else {
+			if(ploidy == 1) flags |= GenotypeMatrixChunk.FLAG_HAPLOID;
+			writePackedGenotypes(calls);
+		}
+		explicitWidthsColumn.out.writeShort(explicitWidth);
+		int widths = 0;
+		if((flags & GenotypeMatrixChunk.FLAG_GQ)!=0) {
+			int [] values = new int [numSamples];
+			for(int i=0;i<numSamples;i++) values[i] = calls.get(i).getGenotypeQuality();
+			widths |= writeValues(values, gqColumn);
+		}
+		if((flags & GenotypeMatrixChunk.FLAG_DP)!=0) {
+			int [] values = new int [numSamples];
+			for(int i=0;i<numSamples;i++) values[i] = calls.get(i).getTotalReadDepth();
+			widths |= writeValues(values, dpColumn) << 4;
+		}
+		flagsColumn.out.writeByte(flags);
+		widthsColumn.out.writeByte(widths);
+		numVariants++;
+		int genotypeBytes = genotypesColumn.bytes.size()+gqColumn.bytes.size()+dpColumn.bytes.size();
+		if(numVariants == DEF_MAX_VARIANTS_CHUNK || genotypeBytes >= MAX_BYTES_CHUNK) writeChunk();
+	}
+
+	private void writeSiteColumns(VCFRecord record) throws IOException {
+		VCFRecord siteRecord = new VCFRecord(record.getVariant(), record.getFilters(), record.getInfoFields(), new int[0], new ArrayList<CalledGenomicVariant>(), null);
+		siteBytes.reset();
+		siteWriter.printVCFRecord(siteRecord, sitePrinter);
+		sitePrinter.flush();
+		byte [] site = siteBytes.toByteArray();
+		int length = site.length;
+		while(length>0 && (site[length-1]=='\n' || site[length-1]=='\r')) length--;
+		siteColumn.out.writeInt(length);
+		siteColumn.out.write(site, 0, length);
+	}
+
+	/**
+	 * Calculates the ploidy of the calls if they can be stored as codes of two bits
+	 * @return byte Common ploidy of the calls. Zero if the calls must be stored explicitly
+	 */
+	private byte getPackedPloidy(List<CalledGenomicVariant> calls, int numAlleles, boolean cnv) {
+		if(cnv || numAlleles>2 || numSamples==0) return 0;
+		byte ploidy = calls.get(0).getCopyNumber();
+		if(ploidy!=1 && ploidy!=2) return 0;
+		for(CalledGenomicVariant call:calls) {
+			if(call.getCopyNumber()!=ploidy || call.isPhased()) return 0;
+		}
+		return ploidy;
+	}
+	
+	private void writePackedGenotypes(List<CalledGenomicVariant> calls) throws IOException {
+		byte [] packed = new byte [(numSamples+3)/4];
+		for(int i=0;i<numSamples;i++) {
+			byte [] called = calls.get(i).getIndexesCalledAlleles();
+			int code = GenotypeMatrixChunk.GENOTYPE_CODE_UNDECIDED;
+			if(called.length>1) code = GenotypeMatrixChunk.GENOTYPE_CODE_HETERO;
+			else if (called.length==1) code = (called[0]==0)?GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF:GenotypeMatrixChunk.GENOTYPE_CODE_HOMOALT;
+			packed[i/4] |= code << (2*(i%4));
+		}
+		genotypesColumn.out.write(packed);
+	}
+	
+	/**
+	 * Writes for each sample a fixed width block with flags, the total copy number, the copy number of each allele,
+	 * the number of phased alleles and the phased alleles if the call is phased. Calls of CNVs store the called number of copies instead of the alleles copy number
+	 * @return int Width of the block of each sample
+	 */
+	private int writeExplicitGenotypes(List<CalledGenomicVariant> calls, int numAlleles, boolean cnv) throws IOException {
+		int width = 3;
+		if(!cnv) {
+			int maxPhased = 0;
+			for(CalledGenomicVariant call:calls) {
+				if(call.isPhased()) maxPhased = Math.max(maxPhased, call.getIndexesPhasedAlleles().length);
+			}
+			if(maxPhased>Byte.MAX_VALUE) throw new IOException("Can not write "+maxPhased+" phased alleles at "+calls.get(0).getSequenceName()+":"+calls.get(0).getFirst()+". Maximum: "+Byte.MAX_VALUE);
+			width = 3+numAlleles+maxPhased;
+		}
+		byte [] block = new byte [width];
+		for(CalledGenomicVariant call:calls) {
+			for(int j=0;j<width;j++) block[j] = 0;
+			byte [] called = call.getIndexesCalledAlleles();
+			if(called.length==0) block[0] |= GenotypeMatrixChunk.SAMPLE_FLAG_UNDECIDED;
+			block[1] = call.getCopyNumber();
+			if(cnv) {
+				if(called.length>0) block[2] = called[0];
+			} else if(called.length>0) {
+				byte [] allelesCN = call.getAllelesCopyNumber();
+				System.arraycopy(allelesCN, 0, block, 2, Math.min(allelesCN.length, numAlleles));
+				if(call.isPhased()) {
+					//The number of phased alleles is kept because it may differ from the total copy number
+					byte [] phased = call.getIndexesPhasedAlleles();
+					block[0] |= GenotypeMatrixChunk.SAMPLE_FLAG_PHASED;
+					block[2+numAlleles] = (byte)phased.length;
+					System.arraycopy(phased, 0, block, 3+numAlleles, phased.length);
+				}
+			}
+			genotypesColumn.out.write(block);
+		}
+		return width;
+	}
+	
+	/**
+	 * Writes the given values with the minimum number of bytes needed for the largest value
+	 * @return int Number of bytes used for each value
+	 */
+	private int writeValues(int [] values, Column column) throws IOException {
+		int width = 1;
+		for(int value:values) {
+			if(value < 0 || value > 65535) {
+				width = 4;
+				break;
+			}
+			if(value > 255) width = 2;
+		}
+		for(int value:values) {
+			if(width == 1) column.out.writeByte(value);
+			else if(width == 2) column.out.writeShort(value);
+			else column.out.writeInt(value);
+		}
+		return width;
+	}
+	
+	private void writeChunk() throws IOException {
+		if(numVariants == 0) return;
+		ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+		DataOutputStream chunk = new DataOutputStream(chunkBytes);
+		chunk.writeInt(numVariants);
+		chunk.writeInt(sequenceNames.size());
+		for(String name:sequenceNames) {
+			byte [] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			chunk.writeInt(nameBytes.length);
+			chunk.write(nameBytes);
+		}
+		Column [] columns = {sequenceColumn, firstColumn, lastColumn, allelesColumn, flagsColumn, widthsColumn, explicitWidthsColumn, siteColumn, genotypesColumn, gqColumn, dpColumn};
+		for(Column column:columns) {
+			column.out.flush();
+			chunk.writeInt(column.bytes.size());
+			column.bytes.writeTo(chunk);
+			column.bytes.reset();
+		}
+		chunk.flush();
+		chunkOffsets.add(position);
+		chunkSizes.add(numVariants);
+		out.writeInt(chunkBytes.size());
+		chunkBytes.writeTo(out);
+		position+=4+chunkBytes.size();
+		numVariants = 0;
+		sequenceIdxs.clear();
+		sequenceNames.clear();
+	}
+	
+	/**
+	 * Writes the last chunk and the index of the chunks and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		if(out == null) return;
+		try {
+			writeChunk();
+			long indexOffset = position;
+			out.writeInt(chunkOffsets.size());
+			for(int i=0;i<chunkOffsets.size();i++) {
+				out.writeLong(chunkOffsets.get(i));
+				out.writeInt(chunkSizes.get(i));
+			}
+			out.writeLong(indexOffset);
+			out.write(MAGIC);
+		} finally {
+			out.close();
+			out = null;
+		}
+	}
+	
+	private static class Column {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+	}
+}
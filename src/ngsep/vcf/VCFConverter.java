@@ -21,7 +21,6 @@ package ngsep.vcf;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -59,6 +58,7 @@ public class VCFConverter {
 	private boolean printPhase = false;
 	private boolean printDarwin = false;
 	private boolean printTreeMix= false;
+	private boolean printBinaryMatrix = false;
 	private String populationFile=null;
 	private boolean printJoinMap= false;
 	private String idParent1 = null;
@@ -110,6 +110,8 @@ public class VCFConverter {
 				converter.printJoinMap = true;
 			} else if ("-printPhase".equals(args[i])) {
 				converter.printPhase = true;
+			} else if ("-printBinaryMatrix".equals(args[i])) {
+				converter.printBinaryMatrix = true;
 			} else if ("-p1".equals(args[i])) {
 				i++;
 				converter.idParent1 = args[i];
@@ -140,18 +142,27 @@ public class VCFConverter {
 		PrintStream outHapmap = null;
 		PrintStream outJoinMap = null;
 		PrintStream outTreemix = null;
-		//Load the matrix if at least one format need the matrix to be transposed
-		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printEmma || printPlink || printHaploview || printPowerMarker || printFlapjack || printEigensoft || printDarwin;
+		PrintStream outEmma = null;
+		PrintStream outEigensoftGenotypes = null;
+		PrintStream outEigensoftSNPs = null;
+		GenotypeMatrixFileWriter outBinaryMatrix = null;
+		//Keep the genotype codes if at least one format needs the matrix to be transposed
+		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printPlink || printHaploview || printPowerMarker || printFlapjack || printDarwin;
 		boolean loadMatrixSeqName = printPhase;
-		List<List<CalledGenomicVariant>> callsPerVariant = new ArrayList<List<CalledGenomicVariant>>();
+		GenotypeCodesTransposer genotypes = null;
 		List<String> sampleIds = null;
 		try {
 			reader = new VCFFileReader(vcfFile);
 			if(log!=null)reader.setLog(log);
-			reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			//The binary matrix retains genotype qualities and read depths
+			if(!printBinaryMatrix) reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			reader.setLazyGenotypes(true);
 			VCFFileHeader header = reader.getHeader();
 			sampleIds = header.getSampleIds();
 			Iterator<VCFRecord> it = reader.iterator();
+			if(loadMatrix || loadMatrixSeqName) {
+				genotypes = new GenotypeCodesTransposer(sampleIds.size(), null);
+			}
 			//Print header for formats that do not need transposition
 			if(printMatrix) {
 				outMatrix = new PrintStream(prefix+"_genotypes.txt");
@@ -161,6 +172,17 @@ public class VCFConverter {
 				outHapmap = new PrintStream(prefix+"_hmp.txt");
 				printHapmapHeader (sampleIds,outHapmap);
 			}
+			if(printEmma) {
+				outEmma = new PrintStream(prefix+"_emma.in");
+			}
+			if(printEigensoft) {
+				outEigensoftGenotypes = new PrintStream(prefix+"_eigensoft.geno");
+				outEigensoftSNPs = new PrintStream(prefix+"_eigensoft.snp");
+				printEigensoftIndividuals(sampleIds, prefix+"_eigensoft.ind");
+			}
+			if(printBinaryMatrix) {
+				outBinaryMatrix = new GenotypeMatrixFileWriter(prefix+"_genotypes.ngm", header);
+			}
 			Map<String, List<Integer>> groupsWithSampleIdxs = null;
 			if(printTreeMix) {
 				outTreemix = new PrintStream(prefix+"_treemix.txt");
@@ -186,28 +208,43 @@ public class VCFConverter {
 				outJoinMap=new PrintStream(prefix+"_joinmap.txt");
 				printJoinMapHeader(sampleIds, outJoinMap, ip1, ip2);		
 			}
-					
+			
+			String eigensoftLastSeqName = null;
+			int eigensoftSeqNumber = 0;
 			int n=0;
 			while(it.hasNext()) {
 				VCFRecord record = it.next();
-				List<CalledGenomicVariant> calls = record.getCalls();
-				//Adds the calls for the new variant if needed
-				if(loadMatrix) callsPerVariant.add(calls);
+				GenomicVariant variant = record.getVariant();
+				//Adds the genotype codes of the new variant if needed
+				if(loadMatrix) genotypes.addVariant(variant, record.getCalls());
 				//PHASE converter. Loads the variants only for the sequence name requested by the user
-				else if (loadMatrixSeqName && record.getVariant().getSequenceName().equals(sequenceName)) callsPerVariant.add(calls); 
+				else if (loadMatrixSeqName && variant.getSequenceName().equals(sequenceName)) genotypes.addVariant(variant, record.getCalls()); 
 				//Print genotypes for the current variant for formats that do not need transposition
 				if(outMatrix!=null)printGenotypesMatrix(record,outMatrix);
 				if(outHapmap!=null)printHapmap(record,outHapmap);
-				if(outTreemix!=null && record.getVariant().isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
+				if(outEmma!=null && variant.isBiallelic()) printEmma(record, outEmma);
+				if(outEigensoftGenotypes!=null && variant.isBiallelic()) {
+					if(!variant.getSequenceName().equals(eigensoftLastSeqName)) {
+						eigensoftSeqNumber++;
+						eigensoftLastSeqName = variant.getSequenceName();
+					}
+					printEigensoft(record, eigensoftSeqNumber, outEigensoftGenotypes, outEigensoftSNPs);
+				}
+				if(outTreemix!=null && variant.isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
 				if(outJoinMap!=null)printJoinMap(record, outJoinMap, ip1, ip2);
+				if(outBinaryMatrix!=null) outBinaryMatrix.addRecord(record);
 				n++;
 				if (progressNotifier!=null && n%1000==0) {
 					int progress = n/1000;
 					if (!progressNotifier.keepRunning(progress)) {
+						if(genotypes!=null) genotypes.close();
 						return;
 					}
 				}
 			}
+		} catch (IOException|RuntimeException e) {
+			if(genotypes!=null) genotypes.close();
+			throw e;
 		} finally {
 			if(reader!=null) reader.close();
 			if(outMatrix!=null) {
@@ -218,6 +255,18 @@ public class VCFConverter {
 				outHapmap.flush();
 				outHapmap.close();
 			}
+			if(outEmma!=null) {
+				outEmma.flush();
+				outEmma.close();
+			}
+			if(outEigensoftGenotypes!=null) {
+				outEigensoftGenotypes.flush();
+				outEigensoftGenotypes.close();
+			}
+			if(outEigensoftSNPs!=null) {
+				outEigensoftSNPs.flush();
+				outEigensoftSNPs.close();
+			}
 			if (outTreemix!=null) {
 				outTreemix.flush();
 				outTreemix.close();
@@ -226,25 +275,28 @@ public class VCFConverter {
 				outJoinMap.flush();
 				outJoinMap.close();
 			}
+			if (outBinaryMatrix!=null) outBinaryMatrix.close();
 		}
 		
 		
 		
-		if(!loadMatrix && !loadMatrixSeqName) return;
-		System.out.println("Loaded "+callsPerVariant.size()+" calls");
-		//Print formats that require transposition
-		if(printFasta) printFasta(sampleIds,callsPerVariant,prefix+"_aln.fa");
-		if(printDarwin)printDarwin(sampleIds, callsPerVariant, prefix);
-		if(printStructure) printStructure(sampleIds,callsPerVariant,prefix+"_structure.in");
-		if(printrrBLUP) printrrBLUP(sampleIds,callsPerVariant,prefix);
-		if(printSpagedi) printSpagedi(sampleIds, callsPerVariant, prefix+"_spagedi.in");
-		if(printEmma) printEmma(callsPerVariant, prefix+"_emma.in");
-		if(printPlink) printPlink(sampleIds,callsPerVariant,prefix,true);
-		if(printHaploview) printPlink(sampleIds,callsPerVariant,prefix,false);
-		if(printPowerMarker) printPowerMarker(sampleIds,callsPerVariant,prefix);
-		if(printFlapjack) printFlapjack(sampleIds,callsPerVariant,prefix);
-		if(printEigensoft) printEigensoft(sampleIds,callsPerVariant,prefix);
-		if(printPhase) printPhase(sampleIds,callsPerVariant,prefix+"_"+sequenceName+"_phase.inp");
+		if(genotypes==null) return;
+		try {
+			System.out.println("Loaded genotype calls for "+genotypes.getNumVariants()+" variants");
+			//Print formats that require transposition
+			if(printFasta) printFasta(sampleIds,genotypes,prefix+"_aln.fa");
+			if(printDarwin)printDarwin(sampleIds, genotypes, prefix);
+			if(printStructure) printStructure(sampleIds,genotypes,prefix+"_structure.in");
+			if(printrrBLUP) printrrBLUP(sampleIds,genotypes,prefix);
+			if(printSpagedi) printSpagedi(sampleIds, genotypes, prefix+"_spagedi.in");
+			if(printPlink) printPlink(sampleIds,genotypes,prefix,true);
+			if(printHaploview) printPlink(sampleIds,genotypes,prefix,false);
+			if(printPowerMarker) printPowerMarker(sampleIds,genotypes,prefix);
+			if(printFlapjack) printFlapjack(sampleIds,genotypes,prefix);
+			if(printPhase) printPhase(sampleIds,genotypes,prefix+"_"+sequenceName+"_phase.inp");
+		} finally {
+			genotypes.close();
+		}
 	}
 	
 	public Logger getLog() {
@@ -431,6 +483,16 @@ public class VCFConverter {
 
 	
 
+	public boolean isPrintBinaryMatrix() {
+		return printBinaryMatrix;
+	}
+
+
+	public void setPrintBinaryMatrix(boolean printBinaryMatrix) {
+		this.printBinaryMatrix = printBinaryMatrix;
+	}
+
+
 	public String getIdParent1() {
 		return idParent1;
 	}
@@ -447,41 +509,35 @@ public class VCFConverter {
 		this.idParent2 = idParent2;
 	}
 
-	private void printFlapjack(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
+	private void printFlapjack(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outPrefix) throws IOException {
+		int numVariants = genotypes.getNumVariants();
 		PrintStream outMap = new PrintStream(outPrefix+"_flapjack.map");
 		PrintStream outGenotypes = new PrintStream(outPrefix+"_flapjack.gen");
 		outMap.println("# fjFile = MAP");
 		outGenotypes.println("# fjFile = GENOTYPE");
 		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				
-				String [] alleles = calledVar.getCalledAlleles(); 
-				String allele = "-";
-				if(!calledVar.isUndecided()) {
-					if(alleles.length>=2) {
-						allele = ""+alleles[0]+"/"+alleles[1];
-					} else {
-						allele = ""+alleles[0];
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					String markerId = "Marker"+snpId;
-					outMap.println(markerId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					outGenotypes.print("\t"+markerId);
-					snpId++;
-				}
-			}
+		for(int j=0;j<numVariants;j++) {
+			if(!genotypes.isBiallelic(j)) continue;
+			String markerId = "Marker"+snpId;
+			outMap.println(markerId+"\t"+genotypes.getSequenceName(j)+"\t"+genotypes.getFirst(j));
+			outGenotypes.print("\t"+markerId);
+			snpId++;
 		}
 		outGenotypes.println();
-		for(int i=0;i<sequences.length;i++) {
-			outGenotypes.println(sequences[i].toString());
+		byte [] codes = new byte[numVariants];
+		for(int i=0;i<sampleIds.size();i++) {
+			genotypes.loadSampleCodes(i, codes);
+			StringBuilder line = new StringBuilder(sampleIds.get(i));
+			for(int j=0;j<numVariants;j++) {
+				if(!genotypes.isBiallelic(j)) continue;
+				line.append("\t");
+				byte code = codes[j];
+				if(code == GenotypeMatrixChunk.GENOTYPE_CODE_UNDECIDED) line.append("-");
+				else if(code == GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF) line.append(genotypes.getReference(j));
+				else if(code == GenotypeMatrixChunk.GENOTYPE_CODE_HETERO) line.append(genotypes.getReference(j)+"/"+genotypes.getAlternative(j));
+				else line.append(genotypes.getAlternative(j));
+			}
+			outGenotypes.println(line.toString());
 		}
 		outMap.flush();
 		outMap.close();
@@ -489,175 +545,111 @@ public class VCFConverter {
 		outGenotypes.close();	
 	}
 	
-	private void printPowerMarker(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
+	private void printPowerMarker(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outPrefix) throws IOException {
 		PrintStream out = new PrintStream(outPrefix+"_powermarker.in");
 		PrintStream outSNPs = new PrintStream(outPrefix+"_powermarker.snp");
 		out.print("Sample");
 		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
-			}
+		for(int j=0;j<genotypes.getNumVariants();j++) {
+			if(!genotypes.isBiallelic(j)) continue;
+			out.print("\t"+snpId+"\t"+snpId);
+			outSNPs.println(snpId+"\t"+genotypes.getSequenceName(j)+"\t"+genotypes.getFirst(j));
+			snpId++;
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
+		String [] encodedCodes = {"-9\t-9","0\t0","0\t1","1\t1"};
+		printSamplesCodes(sampleIds, genotypes, true, encodedCodes, "\t", out);
 		out.flush();
 		out.close();
 		outSNPs.flush();
 		outSNPs.close();
 		
 	}
-	private void printPlink(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix, boolean includeChrInMap) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i)+"\t"+sampleIds.get(i)+"\t0\t0\t0\t0");
+	private void printPlink(List<String> sampleIds,GenotypeCodesTransposer genotypes, String prefix, boolean includeChrInMap) throws IOException {
+		int numVariants = genotypes.getNumVariants();
 		PrintStream outMap;
 		if(includeChrInMap) outMap = new PrintStream(prefix+".map");
 		else outMap = new PrintStream(prefix+".info");
 		String currentChr = null;
 		int chrN = 0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()==0) continue;
-			CalledGenomicVariant firstCall = callsVariant.get(0);
-			if(!firstCall.isBiallelic() || !firstCall.isSNV() ) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				if(i==0) {
-					String seqName = calledVar.getSequenceName();
-					if(!seqName.equals(currentChr)) {
-						chrN++;
-						currentChr = seqName;
-					}
-					if(includeChrInMap) outMap.print(""+chrN+"\t");
-					outMap.println(calledVar.getSequenceName()+"_"+calledVar.getFirst()+"\t"+calledVar.getFirst());
-				}
-				String [] calledAlleles = calledVar.getCalledAlleles(); 
-				String allele = "0 0";
-				if(!calledVar.isUndecided()) {
-					if(calledAlleles.length>=2) {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[1];
-					} else {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[0];
-					}
-				}
-				sequences[i].append("\t"+allele);
+		for(int j=0;j<numVariants;j++) {
+			if(!genotypes.isBiallelic(j) || !genotypes.isSNV(j)) continue;
+			String seqName = genotypes.getSequenceName(j);
+			if(!seqName.equals(currentChr)) {
+				chrN++;
+				currentChr = seqName;
 			}
+			if(includeChrInMap) outMap.print(""+chrN+"\t");
+			outMap.println(seqName+"_"+genotypes.getFirst(j)+"\t"+genotypes.getFirst(j));
 		}
 		outMap.flush();
 		outMap.close();
 		PrintStream out = new PrintStream(prefix+".ped");
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
+		byte [] codes = new byte[numVariants];
+		for(int i=0;i<sampleIds.size();i++) {
+			genotypes.loadSampleCodes(i, codes);
+			StringBuilder line = new StringBuilder(sampleIds.get(i)+"\t"+sampleIds.get(i)+"\t0\t0\t0\t0");
+			for(int j=0;j<numVariants;j++) {
+				if(!genotypes.isBiallelic(j) || !genotypes.isSNV(j)) continue;
+				line.append("\t");
+				byte code = codes[j];
+				if(code == GenotypeMatrixChunk.GENOTYPE_CODE_UNDECIDED) line.append("0 0");
+				else if(code == GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF) line.append(genotypes.getReference(j)+" "+genotypes.getReference(j));
+				else if(code == GenotypeMatrixChunk.GENOTYPE_CODE_HETERO) line.append(genotypes.getReference(j)+" "+genotypes.getAlternative(j));
+				else line.append(genotypes.getAlternative(j)+" "+genotypes.getAlternative(j));
+			}
+			out.println(line.toString());
 		}
 		out.flush();
 		out.close();
 		
 	}
-	private void printEigensoft(List<String> sampleIds, List<List<CalledGenomicVariant>> selectedCalls, String outPrefix) throws IOException {
-		PrintStream outGenotype = new PrintStream(outPrefix+"_eigensoft.geno");
-		PrintStream outSNP = new PrintStream(outPrefix+"_eigensoft.snp");
-		int chrNum = 0;
-		String lastChr = "";
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) outGenotype.print("9");
-				else if (calledVar.isHomozygousReference()) outGenotype.print("2");
-				else if (calledVar.isHeterozygous()) outGenotype.print("1");
-				else outGenotype.print("0");
-				if(i==0) {
-					if(!lastChr.equals(calledVar.getSequenceName())) {
-						chrNum++;
-						lastChr = calledVar.getSequenceName();
-					}
-					outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",calledVar.getSequenceName()+"_"+calledVar.getFirst(),chrNum,calledVar.getFirst(),calledVar.getReference(),calledVar.getAlleles()[1]);
-				}
-			}
-			outGenotype.println();
+	private void printEigensoft(VCFRecord record, int seqNumber, PrintStream outGenotype, PrintStream outSNP) throws IOException {
+		GenomicVariant var = record.getVariant();
+		List<CalledGenomicVariant> calls = record.getCalls();
+		for(int i=0;i<calls.size();i++) {
+			CalledGenomicVariant calledVar = calls.get(i);
+			if(calledVar.isUndecided()) outGenotype.print("9");
+			else if (calledVar.isHomozygousReference()) outGenotype.print("2");
+			else if (calledVar.isHeterozygous()) outGenotype.print("1");
+			else outGenotype.print("0");
 		}
-		outGenotype.flush();
-		outGenotype.close();
-		outSNP.flush();
-		outSNP.close();
-		PrintStream outInd = new PrintStream(outPrefix+"_eigensoft.ind");
+		outGenotype.println();
+		outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",var.getSequenceName()+"_"+var.getFirst(),seqNumber,var.getFirst(),var.getReference(),var.getAlleles()[1]);
+	}
+	
+	private void printEigensoftIndividuals(List<String> sampleIds, String outFile) throws IOException {
+		PrintStream outInd = new PrintStream(outFile);
 		for(String sampleId:sampleIds) {
 			outInd.printf("%39s U Control\n", sampleId);
 		}
 		outInd.flush();
 		outInd.close();
 	}
-	private void printEmma(List<List<CalledGenomicVariant>> selectedCalls, String outFile) throws IOException {
-		PrintStream out = new PrintStream(outFile);
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				if(i>0) out.print("\t");
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) out.print("NA");
-				else if (calledVar.isHomozygousReference()) out.print("0");
-				else if (calledVar.isHeterozygous()) out.print("0.5");
-				else out.print("1");
-			}
-			out.println();
+	private void printEmma(VCFRecord record, PrintStream out) throws IOException {
+		List<CalledGenomicVariant> calls = record.getCalls();
+		for(int i=0;i<calls.size();i++) {
+			if(i>0) out.print("\t");
+			CalledGenomicVariant calledVar = calls.get(i);
+			if(calledVar.isUndecided()) out.print("NA");
+			else if (calledVar.isHomozygousReference()) out.print("0");
+			else if (calledVar.isHeterozygous()) out.print("0.5");
+			else out.print("1");
 		}
-		out.flush();
-		out.close();
-		
+		out.println();
 	}
-	private void printSpagedi(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "0,0";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "1,2";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1,1";
-					} else {
-						allele = "2,2";
-					}
-				}
-				sequences[i].append("\t"+allele);
-			}
-		}
+	private void printSpagedi(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outFile) throws IOException {
+		int numVariants = genotypes.getNumVariants();
 		PrintStream out = new PrintStream(outFile);
-		out.println(""+sampleIds.size()+"\t0\t0\t"+calls.size()+"\t1\t2");
+		out.println(""+sampleIds.size()+"\t0\t0\t"+numVariants+"\t1\t2");
 		out.println("0");
 		out.print("Ind");
-		for(int i=0;i<calls.size();i++) {
+		for(int i=0;i<numVariants;i++) {
 			out.print("\tSNP_"+(i+1));
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
+		String [] encodedCodes = {"0,0","1,1","1,2","2,2"};
+		printSamplesCodes(sampleIds, genotypes, true, encodedCodes, "\t", out);
 		out.println("END");
 		out.flush();
 		out.close();
@@ -730,36 +722,41 @@ public class VCFConverter {
 		out.println();	
 	}
 		
-	private void printStructure(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9 -9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0 1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0 0";
-					} else {
-						allele = "1 1";
-					}
-				}
-				sequences[i].append(" "+allele);
-			}
-		}
+	private void printStructure(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outFile) throws IOException {
 		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
+		String [] encodedCodes = {"-9 -9","0 0","0 1","1 1"};
+		printSamplesCodes(sampleIds, genotypes, true, encodedCodes, " ", out);
 		out.flush();
 		out.close();
 	}
 	
-	private void printrrBLUP(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix) throws IOException {
+	/**
+	 * Prints one line per sample with the sample id followed by the encoded genotype codes of the sample
+	 * @param sampleIds Ids of the samples. If null, lines do not start with the sample id
+	 * @param genotypes Genotype codes to print
+	 * @param onlyBiallelic Tells if only biallelic variants should be printed
+	 * @param encodedCodes Text to print for each genotype code
+	 * @param separator Separator to print before each genotype
+	 * @param out Stream to print the lines
+	 * @throws IOException If the genotype codes can not be loaded
+	 */
+	private void printSamplesCodes(List<String> sampleIds, GenotypeCodesTransposer genotypes, boolean onlyBiallelic, String [] encodedCodes, String separator, PrintStream out) throws IOException {
+		int numVariants = genotypes.getNumVariants();
+		byte [] codes = new byte[numVariants];
+		for(int i=0;i<genotypes.getNumSamples();i++) {
+			genotypes.loadSampleCodes(i, codes);
+			StringBuilder line = new StringBuilder();
+			if(sampleIds!=null) line.append(sampleIds.get(i));
+			for(int j=0;j<numVariants;j++) {
+				if(onlyBiallelic && !genotypes.isBiallelic(j)) continue;
+				line.append(separator);
+				line.append(encodedCodes[codes[j]]);
+			}
+			out.println(line.toString());
+		}
+	}
+	
+	private void printrrBLUP(List<String> sampleIds,GenotypeCodesTransposer genotypes, String prefix) throws IOException {
 		String outFile = prefix+"_rrBLUP.in";
 		String outSamples = prefix+"_rrBLUP_samples.txt";
 		PrintStream outS = new PrintStream(outSamples);
@@ -768,95 +765,47 @@ public class VCFConverter {
 		}
 		outS.flush();
 		outS.close();
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "NA";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1";
-					} else {
-						allele = "-1";
-					}
-				}
-				if(i>=0) sequences[i].append(" ");
-				sequences[i].append(allele);
-			}
-		}
 		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
+		String [] encodedCodes = {"NA","1","0","-1"};
+		printSamplesCodes(null, genotypes, true, encodedCodes, " ", out);
 		out.flush();
 		out.close();
 	}
 	
-	private void printFasta(List<String> sampleIds, List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String [] alleles = calledVar.getAlleles();
+	private void printFasta(List<String> sampleIds, GenotypeCodesTransposer genotypes, String outFile) throws IOException {
+		int numVariants = genotypes.getNumVariants();
+		byte [] codes = new byte[numVariants];
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		PrintStream out = new PrintStream(outFile);
+		for(int i=0;i<sampleIds.size();i++) {
+			genotypes.loadSampleCodes(i, codes);
+			StringBuilder sequence = new StringBuilder();
+			for(int j=0;j<numVariants;j++) {
+				if(!genotypes.isBiallelic(j)) continue;
 				char call = 'N';
-				if(calledVar.isHomozygousReference()) {
-					call = alleles[0].charAt(0);
-				} else if (calledVar.isHomozygous()) {
-					call = alleles[1].charAt(0);
+				if(codes[j]==GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF) {
+					call = genotypes.getReference(j).charAt(0);
+				} else if (codes[j]==GenotypeMatrixChunk.GENOTYPE_CODE_HOMOALT) {
+					call = genotypes.getAlternative(j).charAt(0);
 				} 
-				sequences[i].append(call);
+				sequence.append(call);
 			}
+			DNAMaskedSequence seq = new DNAMaskedSequence(sequence.toString());
+			handler.saveSequence(new QualifiedSequence(sampleIds.get(i), seq), out, 100);
 		}
-		FastaSequencesHandler handler = new FastaSequencesHandler();
-		List<QualifiedSequence> seqsList = new ArrayList<QualifiedSequence>();
-		for(int i=0;i<sequences.length;i++) {
-			String seqId = sampleIds.get(i);
-			DNAMaskedSequence seq = new DNAMaskedSequence(sequences[i].toString());
-			seqsList.add(new QualifiedSequence(seqId, seq));
-		}
-		PrintStream out = new PrintStream(outFile);
-		handler.saveSequences(seqsList, out, 100);
 		out.flush();
 		out.close();
 	}
 	
-	private void printPhase(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[2*sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
+	private void printPhase(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outFile) throws IOException {
+		int numVariants = genotypes.getNumVariants();
 		StringBuilder linePositions = new StringBuilder("P");
 		int nSites =0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			GenomicVariant variant = callsVariant.get(0);
-			if(!variant.getSequenceName().equals(sequenceName)) continue;
+		for(int j=0;j<numVariants;j++) {
+			if(!genotypes.isBiallelic(j)) continue;
+			if(!genotypes.getSequenceName(j).equals(sequenceName)) continue;
 			nSites++;
-			linePositions.append(" "+variant.getFirst());
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele1 = "?";
-				String allele2 = "?";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele1 = "0";
-						allele2 = "1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele1 = "0";
-						allele2 = "0";
-					} else {
-						allele1 = "1";
-						allele2 = "1";
-					}
-				}
-				sequences[2*i].append(allele1);
-				sequences[2*i+1].append(allele2);
-			}
+			linePositions.append(" "+genotypes.getFirst(j));
 		}
 		if(nSites==0) throw new IOException("No biallelic variants found for the given sequence name");
 		PrintStream out = new PrintStream(outFile);
@@ -865,10 +814,32 @@ public class VCFConverter {
 		out.println(linePositions);
 		for(int i=0;i<nSites;i++) out.print("S");
 		out.println();
+		byte [] codes = new byte[numVariants];
 		for(int i=0;i<sampleIds.size();i++) {
+			genotypes.loadSampleCodes(i, codes);
+			StringBuilder sequence1 = new StringBuilder();
+			StringBuilder sequence2 = new StringBuilder();
+			for(int j=0;j<numVariants;j++) {
+				if(!genotypes.isBiallelic(j)) continue;
+				if(!genotypes.getSequenceName(j).equals(sequenceName)) continue;
+				char allele1 = '?';
+				char allele2 = '?';
+				if(codes[j]==GenotypeMatrixChunk.GENOTYPE_CODE_HETERO) {
+					allele1 = '0';
+					allele2 = '1';
+				} else if (codes[j]==GenotypeMatrixChunk.GENOTYPE_CODE_HOMOREF) {
+					allele1 = '0';
+					allele2 = '0';
+				} else if (codes[j]==GenotypeMatrixChunk.GENOTYPE_CODE_HOMOALT) {
+					allele1 = '1';
+					allele2 = '1';
+				}
+				sequence1.append(allele1);
+				sequence2.append(allele2);
+			}
 			out.println("#"+sampleIds.get(i));
-			out.println(sequences[2*i].toString());
-			out.println(sequences[2*i+1].toString());
+			out.println(sequence1.toString());
+			out.println(sequence2.toString());
 		}
 		out.flush();
 		out.close();
@@ -911,39 +882,20 @@ public class VCFConverter {
 
 	
 	
-	private void printDarwin(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
+	private void printDarwin(List<String> sampleIds,GenotypeCodesTransposer genotypes, String outPrefix) throws IOException {
+		int numVariants = genotypes.getNumVariants();
 		PrintStream out = new PrintStream(outPrefix+"_Darwin.in");
 		PrintStream outSNPs = new PrintStream(outPrefix+"_Darwin.snp");
-		out.println(sampleIds.size()+"\t"+(2*calls.size()));
+		out.println(sampleIds.size()+"\t"+(2*numVariants));
 		out.print("N");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
-			}
+		for(int j=0;j<numVariants;j++) {
+			int snpId = j+1;
+			out.print("\t"+snpId+"\t"+snpId);
+			outSNPs.println(snpId+"\t"+genotypes.getSequenceName(j)+"\t"+genotypes.getFirst(j));
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
+		String [] encodedCodes = {"-9\t-9","0\t0","0\t1","1\t1"};
+		printSamplesCodes(sampleIds, genotypes, false, encodedCodes, "\t", out);
 		out.flush();
 		out.close();
 		outSNPs.flush();
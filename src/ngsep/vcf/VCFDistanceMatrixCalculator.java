@@ -1,9 +1,14 @@
 package ngsep.vcf;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.clustering.DistanceMatrix;
@@ -24,10 +29,18 @@ public class VCFDistanceMatrixCalculator {
 	public static final int DISTANCE_SOURCE_COPY_NUMBER=2;
 	public static final int DISTANCE_SOURCE_ALLELE_DEPTH=3;
 	
+	public static final int DEF_NUM_THREADS = 1;
+	//Maximum number of variants and of dosages stored in each batch of variants
+	private static final int MAX_VARIANTS_BATCH = 4096;
+	private static final int MAX_BATCH_VALUES = 16*1024*1024;
+	//Variants with larger dosages are processed without bit planes
+	private static final int MAX_PACKED_LEVEL = 8;
+	
 	private Logger log = Logger.getLogger(VCFDistanceMatrixCalculator.class.getName());
 	private ProgressNotifier progressNotifier=null;
 	
 	private int ploidy = 2;
+	private int numThreads = DEF_NUM_THREADS;
 	private int matrixType = 0;
 	private int distanceSource = DISTANCE_SOURCE_GENOTYPES_SIMPLE;
 
@@ -60,6 +73,9 @@ public class VCFDistanceMatrixCalculator {
 	
 	 /**
 	  * Process a vcf file to generate a SNVs distance matrix.
+	  * Variants are processed in batches. Distances are calculated only for pairs j<k and each thread
+	  * processes a different group of rows of the matrix. If the distance source produces discrete dosages, the dosages
+	  * of each sample are encoded as bit planes of 64 variants and distances are calculated counting bits
 	  * @param vcfFile VCF filename.
 	  * @throws IOException
 	  */
@@ -68,12 +84,12 @@ public class VCFDistanceMatrixCalculator {
 		 double distanceMatrix[][];
 		 
 		 int numSamples;
-		 try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile)) {
+		 try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, numThreads)) {
+			if(distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE) vcfFileReader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			else if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) vcfFileReader.setLoadMode(VCFFileReader.LOAD_MODE_COPY_NUMBER);
 			Iterator<VCFRecord> iteratorRecords = vcfFileReader.iterator();
 			samples = vcfFileReader.getHeader().getSampleIds();
 			numSamples = samples.size();
-			distanceMatrix = new double[numSamples][numSamples];
-			int genotypePerSamplesComparison[][] = new int[numSamples][numSamples];
 			
 			int n = ploidy;
 			if(n<2){
@@ -87,66 +103,30 @@ public class VCFDistanceMatrixCalculator {
 				ploidyLevels[y] = (1.0f/n) * y;
 			}
 			
-			//Iterate over every variant in VCF file
-			while(iteratorRecords.hasNext()){
-				VCFRecord vcfRecord = iteratorRecords.next();
-				GenomicVariant var = vcfRecord.getVariant();
-				String [] alleles = var.getAlleles();
-					
-				List<CalledGenomicVariant> genotypeCalls = vcfRecord.getCalls();
-				float numericGenotypes[] = new float[genotypeCalls.size()];
-				Arrays.fill(numericGenotypes, CalledSNV.GENOTYPE_UNDECIDED);
-		    	//Calculate dosage for each sample
-		    	for (int i=0;i<genotypeCalls.size();i++) {
-		    		CalledGenomicVariant call = genotypeCalls.get(i);
-		    		if(call.isUndecided()) continue;
-		    		if(distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE) {
-		    			byte [] idxCalledAlleles = call.getIndexesCalledAlleles();
-		    			//TODO: Improve for heterozygous in multiallelic
-		    			if (idxCalledAlleles.length==1) numericGenotypes[i] = idxCalledAlleles[0];
-		    			else numericGenotypes[i] = (idxCalledAlleles[0]+idxCalledAlleles[1])/alleles.length;
-		    		} else if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) {
-		    			byte [] acn = call.getAllelesCopyNumber();
-		    			numericGenotypes[i] = 0;
-		    			for(int j=0;j<acn.length;j++) {
-		    				numericGenotypes[i]+=j*acn[j];
-		    			}
-		    			numericGenotypes[i]/=2.0;
-		    		} else if(distanceSource == DISTANCE_SOURCE_COPY_NUMBER) {
-		    			numericGenotypes[i] = call.getCopyNumber();
-		    		} else if(distanceSource == DISTANCE_SOURCE_ALLELE_DEPTH) {
-		    			if(!var.isBiallelic()) continue;
-		    			VariantCallReport report = call.getCallReport();
-		    			if(report == null) continue;
-		    			float countRef = report.getCount(alleles[0]);
-			    		float countAlt = report.getCount(alleles[1]);
-			    		//Depends of ploidy assign a value to dosage
-			    		if((countRef + countAlt) > 0){
-			    			float dosage = countRef / (countRef + countAlt);
-					    	numericGenotypes[i] = roundToArray(dosage, ploidyLevels);
-		    			}
-		    		}
-		    	}
-		    	
-		    	//calculate distance samples x samples for all SNVs
-		    	for(int j=0;j<numSamples;j++){
-		    		for(int k=0;k<numSamples;k++){
-		    			if(numericGenotypes[j]==CalledSNV.GENOTYPE_UNDECIDED || numericGenotypes[k]==CalledSNV.GENOTYPE_UNDECIDED ) continue;
-		    			//distance between pair of genotypes for a single variant
-	    			    distanceMatrix[j][k] += Math.abs(numericGenotypes[j]-numericGenotypes[k]);
-	    				//matrix needed to save value by how divide
-	    				genotypePerSamplesComparison[j][k]++;
-			    	}
-		    	}		    	
+			PairwiseDistancesCalculator calculator = new PairwiseDistancesCalculator(numSamples, distanceSource != DISTANCE_SOURCE_ALLELE_DEPTH);
+			float numericGenotypes[] = new float[numSamples];
+			int dosageLevels[] = new int[numSamples];
+			try {
+				//Iterate over every variant in VCF file
+				while(iteratorRecords.hasNext()){
+					VCFRecord vcfRecord = iteratorRecords.next();
+					List<CalledGenomicVariant> genotypeCalls = vcfRecord.getCalls();
+					if(distanceSource == DISTANCE_SOURCE_ALLELE_DEPTH) {
+						calculateAlleleDepthDosages(vcfRecord.getVariant(), genotypeCalls, ploidyLevels, numericGenotypes);
+						calculator.addVariant(numericGenotypes);
+					} else {
+						calculateDosageLevels(vcfRecord.getVariant(), genotypeCalls, dosageLevels);
+						calculator.addVariant(dosageLevels);
+					}
+				}
+				calculator.processBatch();
+			} finally {
+				calculator.close();
 			}
 			//Normalize genetic distance value depending number of samples x samples per Variant found genotyped (Omit missing values)
-			for(int j=0;j<numSamples;j++){
-	    		for(int k=0;k<numSamples;k++){
-					if(genotypePerSamplesComparison[j][k] > 0){
-						distanceMatrix[j][k] = distanceMatrix[j][k]/genotypePerSamplesComparison[j][k];
-					}
-		    	}
-	    	}
+			double scale = 1;
+			if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) scale = 0.5;
+			distanceMatrix = calculator.calculateDistances(scale);
 		}
 		
 		
@@ -159,6 +139,275 @@ public class VCFDistanceMatrixCalculator {
 	
 	}
 	 
+	/**
+	 * Calculates discrete dosages of the calls of a variant for the sources based on genotype calls or copy numbers.
+	 * The dosage of the source of allele copy numbers is calculated multiplied by two to obtain an integer value
+	 * @param var Variant
+	 * @param genotypeCalls Calls for the variant
+	 * @param dosageLevels Array to store the dosage of each call. Undecided calls are marked with a negative value
+	 */
+	private void calculateDosageLevels(GenomicVariant var, List<CalledGenomicVariant> genotypeCalls, int [] dosageLevels) {
+		String [] alleles = var.getAlleles();
+		for (int i=0;i<genotypeCalls.size();i++) {
+			dosageLevels[i] = CalledSNV.GENOTYPE_UNDECIDED;
+			CalledGenomicVariant call = genotypeCalls.get(i);
+			if(call.isUndecided()) continue;
+			if(distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE) {
+				byte [] idxCalledAlleles = call.getIndexesCalledAlleles();
+				//TODO: Improve for heterozygous in multiallelic
+				if (idxCalledAlleles.length==1) dosageLevels[i] = idxCalledAlleles[0];
+				else dosageLevels[i] = (idxCalledAlleles[0]+idxCalledAlleles[1])/alleles.length;
+			} else if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) {
+				byte [] acn = call.getAllelesCopyNumber();
+				dosageLevels[i] = 0;
+				for(int j=0;j<acn.length;j++) {
+					dosageLevels[i]+=j*acn[j];
+				}
+			} else if(distanceSource == DISTANCE_SOURCE_COPY_NUMBER) {
+				dosageLevels[i] = call.getCopyNumber();
+			}
+		}
+	}
+	/**
+	 * Calculates the dosages of the calls of a variant from the allele depths
+	 * @param var Variant
+	 * @param genotypeCalls Calls for the variant
+	 * @param ploidyLevels Possible dosages
+	 * @param numericGenotypes Array to store the dosage of each call. Undecided calls are marked with a negative value
+	 */
+	private void calculateAlleleDepthDosages(GenomicVariant var, List<CalledGenomicVariant> genotypeCalls, float [] ploidyLevels, float [] numericGenotypes) {
+		String [] alleles = var.getAlleles();
+		Arrays.fill(numericGenotypes, CalledSNV.GENOTYPE_UNDECIDED);
+		if(!var.isBiallelic()) return;
+		for (int i=0;i<genotypeCalls.size();i++) {
+			CalledGenomicVariant call = genotypeCalls.get(i);
+			if(call.isUndecided()) continue;
+			VariantCallReport report = call.getCallReport();
+			if(report == null) continue;
+			float countRef = report.getCount(alleles[0]);
+			float countAlt = report.getCount(alleles[1]);
+			//Depends of ploidy assign a value to dosage
+			if((countRef + countAlt) > 0){
+				float dosage = countRef / (countRef + countAlt);
+				numericGenotypes[i] = roundToArray(dosage, ploidyLevels);
+			}
+		}
+	}
+	
+	/**
+	 * Accumulates distances between pairs of samples over batches of variants. Only pairs j<k are stored.
+	 * Discrete dosages are stored for each sample and each block of 64 variants as one word with the variants called for the sample
+	 * and one word for each dosage level d with the variants having a dosage of at least d. Then, the absolute difference between two dosages
+	 * is the number of levels in which exactly one of the two dosages is present 
+	 */
+	private class PairwiseDistancesCalculator {
+		private int numSamples;
+		private boolean discrete;
+		private int batchSize;
+		private int numVariants = 0;
+		//Dosages of the current batch by sample
+		private byte [][] batchLevels;
+		private int maxBatchLevel = 0;
+		private float [][] batchDosages;
+		//Totals for each pair
+		private long [] levelDifferences;
+		private double [] differences;
+		private int [] counts;
+		private ExecutorService pool = null;
+		
+		public PairwiseDistancesCalculator(int numSamples, boolean discrete) {
+			this.numSamples = numSamples;
+			this.discrete = discrete;
+			batchSize = Math.max(64, Math.min(MAX_VARIANTS_BATCH, (MAX_BATCH_VALUES/Math.max(1, numSamples))/64*64));
+			if(discrete) {
+				batchLevels = new byte[numSamples][batchSize];
+				levelDifferences = new long[getNumPairs()];
+			} else {
+				batchDosages = new float[numSamples][batchSize];
+				differences = new double[getNumPairs()];
+			}
+			counts = new int[getNumPairs()];
+			if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		}
+		private int getNumPairs() {
+			return (int)((long)numSamples*(numSamples-1)/2);
+		}
+		/**
+		 * @param j First sample
+		 * @return int Index in the arrays of totals of the pair (j,j+1)
+		 */
+		private int getRowStart(int j) {
+			return (int)((long)j*(2L*numSamples-j-1)/2);
+		}
+		
+		public void addVariant(int [] dosageLevels) {
+			int maxLevel = 0;
+			for(int level:dosageLevels) maxLevel = Math.max(maxLevel, level);
+			if(maxLevel>MAX_PACKED_LEVEL) {
+				addVariantLargeLevels(dosageLevels);
+				return;
+			}
+			maxBatchLevel = Math.max(maxBatchLevel, maxLevel);
+			for(int j=0;j<numSamples;j++) batchLevels[j][numVariants] = (byte) dosageLevels[j];
+			numVariants++;
+			if(numVariants==batchSize) processBatch();
+		}
+		/**
+		 * Adds the differences of a variant with dosages that can not be represented with bit planes 
+		 */
+		private void addVariantLargeLevels(int [] dosageLevels) {
+			for(int j=0;j<numSamples;j++) {
+				if(dosageLevels[j]<0) continue;
+				int rowStart = getRowStart(j)-j-1;
+				for(int k=j+1;k<numSamples;k++) {
+					if(dosageLevels[k]<0) continue;
+					levelDifferences[rowStart+k]+=Math.abs(dosageLevels[j]-dosageLevels[k]);
+					counts[rowStart+k]++;
+				}
+			}
+		}
+		
+		public void addVariant(float [] dosages) {
+			for(int j=0;j<numSamples;j++) batchDosages[j][numVariants] = dosages[j];
+			numVariants++;
+			if(numVariants==batchSize) processBatch();
+		}
+		
+		/**
+		 * Adds the distances of the variants in the current batch
+		 */
+		public void processBatch() {
+			if(numVariants == 0) return;
+			long [][] bitPlanes = null;
+			if(discrete) bitPlanes = buildBitPlanes();
+			//Rows are split in groups with similar numbers of pairs
+			int numGroups = (pool==null)?1:4*numThreads;
+			long pairsPerGroup = ((long)numSamples*(numSamples-1)/2)/numGroups+1;
+			List<int []> groups = new ArrayList<>();
+			int first = 0;
+			long pairs = 0;
+			for(int j=0;j<numSamples;j++) {
+				pairs+=numSamples-j-1;
+				if(pairs>=pairsPerGroup || j==numSamples-1) {
+					groups.add(new int [] {first, j+1});
+					first = j+1;
+					pairs = 0;
+				}
+			}
+			final long [][] planes = bitPlanes;
+			if(pool == null) {
+				for(int [] group:groups) processRows(planes, group[0], group[1]);
+			} else {
+				List<Future<?>> futures = new ArrayList<>();
+				for(int [] group:groups) futures.add(pool.submit(() -> processRows(planes, group[0], group[1])));
+				for(Future<?> future:futures) waitTask(future);
+			}
+			numVariants = 0;
+			maxBatchLevel = 0;
+		}
+		private void processRows(long [][] bitPlanes, int firstRow, int lastRow) {
+			if(bitPlanes!=null) processRowsBitPlanes(bitPlanes, firstRow, lastRow);
+			else processRowsDosages(firstRow, lastRow);
+		}
+		private void waitTask(Future<?> future) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while calculating distances", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new RuntimeException("Error calculating distances", cause);
+			}
+		}
+		/**
+		 * Encodes the dosages of the current batch
+		 * @return long[][] For each sample, the words of each block of 64 variants
+		 */
+		private long [][] buildBitPlanes() {
+			int wordsPerBlock = maxBatchLevel+1;
+			int numBlocks = (numVariants+63)/64;
+			long [][] bitPlanes = new long[numSamples][numBlocks*wordsPerBlock];
+			for(int j=0;j<numSamples;j++) {
+				byte [] levels = batchLevels[j];
+				long [] planes = bitPlanes[j];
+				for(int v=0;v<numVariants;v++) {
+					int level = levels[v];
+					if(level<0) continue;
+					int offset = (v>>6)*wordsPerBlock;
+					long bit = 1L<<(v&63);
+					for(int d=0;d<=level;d++) planes[offset+d]|=bit;
+				}
+			}
+			return bitPlanes;
+		}
+		private void processRowsBitPlanes(long [][] bitPlanes, int firstRow, int lastRow) {
+			int wordsPerBlock = maxBatchLevel+1;
+			for(int j=firstRow;j<lastRow;j++) {
+				long [] planesJ = bitPlanes[j];
+				int rowStart = getRowStart(j)-j-1;
+				for(int k=j+1;k<numSamples;k++) {
+					long [] planesK = bitPlanes[k];
+					long difference = 0;
+					int count = 0;
+					for(int offset=0;offset<planesJ.length;offset+=wordsPerBlock) {
+						long called = planesJ[offset] & planesK[offset];
+						if(called == 0) continue;
+						count+=Long.bitCount(called);
+						for(int d=1;d<wordsPerBlock;d++) {
+							difference+=Long.bitCount((planesJ[offset+d] ^ planesK[offset+d]) & called);
+						}
+					}
+					levelDifferences[rowStart+k]+=difference;
+					counts[rowStart+k]+=count;
+				}
+			}
+		}
+		private void processRowsDosages(int firstRow, int lastRow) {
+			for(int j=firstRow;j<lastRow;j++) {
+				float [] dosagesJ = batchDosages[j];
+				int rowStart = getRowStart(j)-j-1;
+				for(int k=j+1;k<numSamples;k++) {
+					float [] dosagesK = batchDosages[k];
+					double difference = differences[rowStart+k];
+					int count = 0;
+					for(int v=0;v<numVariants;v++) {
+						if(dosagesJ[v]==CalledSNV.GENOTYPE_UNDECIDED || dosagesK[v]==CalledSNV.GENOTYPE_UNDECIDED ) continue;
+						//distance between pair of genotypes for a single variant
+						difference += Math.abs(dosagesJ[v]-dosagesK[v]);
+						count++;
+					}
+					differences[rowStart+k] = difference;
+					counts[rowStart+k]+=count;
+				}
+			}
+		}
+		
+		/**
+		 * Builds the symmetric matrix of average distances
+		 * @param scale Factor to transform dosage levels to dosages
+		 * @return double[][] Matrix of distances
+		 */
+		public double [][] calculateDistances(double scale) {
+			double [][] distanceMatrix = new double[numSamples][numSamples];
+			for(int j=0;j<numSamples;j++){
+				int rowStart = getRowStart(j)-j-1;
+				for(int k=j+1;k<numSamples;k++){
+					int count = counts[rowStart+k];
+					if(count > 0){
+						double difference = discrete?levelDifferences[rowStart+k]*scale:differences[rowStart+k];
+						distanceMatrix[j][k] = distanceMatrix[k][j] = difference/count;
+					}
+				}
+			}
+			return distanceMatrix;
+		}
+		
+		public void close() {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
 
 	/**
 	  * Assign real dosage value depending of ploidy.
@@ -211,4 +460,14 @@ public class VCFDistanceMatrixCalculator {
 	public void setDistanceSource(Integer distanceSource) {
 		this.setDistanceSource(distanceSource.intValue());
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be a positive number. Invalid value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 }
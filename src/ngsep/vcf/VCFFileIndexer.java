@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import ngsep.genome.GenomicRegion;
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.io.ParseUtils;
+import ngsep.variants.GenomicVariantAnnotation;
+
+/**
+ * Builds a coordinates index for a VCF file compressed in BGZF format. The index is saved in the tabix format
+ * next to the VCF file, which allows to query the file by genomic coordinates using the method
+ * VCFFileReader.query. Files written with VCFFileWriter.openBlockCompressedOutput can be indexed while they are written
+ * @author Jorge Duitama
+ */
+public class VCFFileIndexer {
+	public static final String INDEX_EXTENSION = ".tbi";
+	
+	private Logger log = Logger.getLogger(VCFFileIndexer.class.getName());
+	
+	public static void main(String[] args) throws Exception {
+		VCFFileIndexer instance = new VCFFileIndexer();
+		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
+		String vcfFile = args[i++];
+		instance.buildIndex(vcfFile);
+	}
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		if (log == null) throw new NullPointerException("Log can not be null");
+		this.log = log;
+	}
+	
+	/**
+	 * Returns the file with the index of the given VCF file
+	 * @param vcfFile Compressed VCF file
+	 * @return File Index file related to the given file
+	 */
+	public static File getIndexFile(File vcfFile) {
+		return new File(vcfFile.getPath()+INDEX_EXTENSION);
+	}
+	
+	/**
+	 * Builds the index of the given file and saves it in the file vcfFile.tbi
+	 * @param vcfFile VCF file compressed in BGZF format and sorted by genomic coordinates
+	 * @throws IOException If the file can not be read, if it is not compressed with BGZF or if it is not sorted
+	 */
+	public void buildIndex(String vcfFile) throws IOException {
+		File file = new File(vcfFile);
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			if(!BlockCompressedInputStream.isValidFile(in)) throw new IOException("File "+vcfFile+" is not compressed in BGZF format");
+		}
+		log.info("Building index for file "+vcfFile);
+		TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+		int n=0;
+		Index index;
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(file)) {
+			long pointer = 0;
+			for(String line = in.readLine();line!=null;pointer = in.getFilePointer(),line = in.readLine()) {
+				if(line.length()==0 || line.charAt(0)=='#') continue;
+				IndexedRegion region = parseRegion(line);
+				if(region==null) throw new IOException("Can not index file "+vcfFile+". Invalid VCF record: "+line);
+				try {
+					indexCreator.addFeature(region, pointer);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Can not index file "+vcfFile+". Records must be sorted by genomic coordinates. "+e.getMessage());
+				}
+				n++;
+				if(n%1000000==0) log.info("Indexed "+n+" records. Last position: "+region.getChr()+":"+region.getStart());
+			}
+			index = indexCreator.finalizeIndex(pointer);
+		}
+		index.writeBasedOnFeatureFile(file);
+		log.info("Indexed "+n+" records. Index saved to "+getIndexFile(file).getName());
+	}
+	
+	private IndexedRegion parseRegion(String line) {
+		String [] items = ParseUtils.parseString(line, '\t');
+		if(items.length<8) return null;
+		int first;
+		try {
+			first = Integer.parseInt(items[1]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		int last = first + items[3].length() - 1;
+		//The END info field overrides the length of the reference allele
+		String info = items[7];
+		String endPrefix = GenomicVariantAnnotation.ATTRIBUTE_END+"=";
+		int idx = info.startsWith(endPrefix)?0:info.indexOf(";"+endPrefix);
+		if(idx>0) idx++;
+		if(idx>=0) {
+			int start = idx+endPrefix.length();
+			int end = info.indexOf(';', start);
+			if(end<0) end = info.length();
+			try {
+				last = Integer.parseInt(info.substring(start, end));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		if(last<first) last = first;
+		return new IndexedRegion(items[0], first, last);
+	}
+	
+	/**
+	 * Region of a VCF record added to the index
+	 */
+	static class IndexedRegion implements Feature {
+		private String sequenceName;
+		private int first;
+		private int last;
+		public IndexedRegion(String sequenceName, int first, int last) {
+			this.sequenceName = sequenceName;
+			this.first = first;
+			this.last = last;
+		}
+		public IndexedRegion(GenomicRegion region) {
+			this(region.getSequenceName(), region.getFirst(), region.getLast());
+		}
+		@Override
+		public String getChr() {
+			return sequenceName;
+		}
+		@Override
+		public int getStart() {
+			return first;
+		}
+		@Override
+		public int getEnd() {
+			return last;
+		}
+	}
+}
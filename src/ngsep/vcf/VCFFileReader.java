@@ -26,16 +26,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
+import htsjdk.tribble.readers.TabixReader;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
 import ngsep.main.io.ConcatGZIPInputStream;
+import ngsep.main.io.ParallelBlockCompressedInputStream;
 import ngsep.main.io.ParseUtils;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -63,21 +71,46 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	
 	private BufferedReader in;
+	private File file = null;
+	//Random access reader opened on demand to answer queries on indexed files
+	private TabixReader indexReader = null;
+	//Reader of the records if the file is a binary genotype matrix
+	private GenotypeMatrixFileReader matrixReader = null;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private VCFFileHeader header = new VCFFileHeader();
 	
-	private VCFFileIterator currentIterator = null;
+	private Iterator<VCFRecord> currentIterator = null;
 	
 	private int loadMode = LOAD_MODE_CALLINFO;
 	
+	private boolean lazyGenotypes = false;
+	
 	public VCFFileReader (String filename) throws IOException {
-		init(null,new File(filename));
+		init(null,new File(filename),1);
 	}
 	public VCFFileReader (File file) throws IOException {
-		init(null,file);
+		init(null,file,1);
 	}
 	public VCFFileReader (InputStream stream) throws IOException {
-		init(stream,null);
+		init(stream,null,1);
+	}
+	/**
+	 * Creates a reader that inflates gzip compressed files with the given number of threads
+	 * @param filename Name of the VCF file
+	 * @param numThreads Number of threads to inflate the file. If it is 1, data is inflated by the thread reading the records
+	 * @throws IOException If the file can not be opened
+	 */
+	public VCFFileReader (String filename, int numThreads) throws IOException {
+		init(null,new File(filename),numThreads);
+	}
+	/**
+	 * Creates a reader that inflates gzip compressed files with the given number of threads
+	 * @param file VCF file
+	 * @param numThreads Number of threads to inflate the file. If it is 1, data is inflated by the thread reading the records
+	 * @throws IOException If the file can not be opened
+	 */
+	public VCFFileReader (File file, int numThreads) throws IOException {
+		init(null,file,numThreads);
 	}
 	
 	public Logger getLog() {
@@ -96,6 +129,19 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		this.loadMode = loadMode;
 	}
 	
+	public boolean isLazyGenotypes() {
+		return lazyGenotypes;
+	}
+	/**
+	 * Changes the way in which genotype calls are loaded. If true, each record keeps its text and
+	 * the call of each sample is decoded the first time that it is requested. This saves time
+	 * for processes that do not visit every call of every record
+	 * @param lazyGenotypes True if calls should be decoded on demand 
+	 */
+	public void setLazyGenotypes(boolean lazyGenotypes) {
+		this.lazyGenotypes = lazyGenotypes;
+	}
+	
 	public QualifiedSequenceList getSequences() {
 		return sequences;
 	}
@@ -109,7 +155,67 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 
 	@Override
 	public void close() throws IOException {
-		in.close();		
+		in.close();
+		if(indexReader!=null) indexReader.close();
+		if(matrixReader!=null) matrixReader.close();
+		indexReader = null;
+	}
+	
+	/**
+	 * Tells if the records of this file can be queried by genomic coordinates. This requires a block compressed (BGZF) file
+	 * with an index in the tabix format. The index can be created by VCFFileWriter while the file is written
+	 * or afterwards with VCFFileIndexer
+	 * @return boolean True if this reader was created from a file with an index
+	 */
+	public boolean isIndexed() {
+		return file!=null && VCFFileIndexer.getIndexFile(file).exists();
+	}
+	
+	/**
+	 * Returns the records of this file overlapping the given region. This method does not interfere with
+	 * the iteration over the complete file started with the iterator method
+	 * @param sequenceName Name of the sequence to query
+	 * @param first First position of the region (1-based, included)
+	 * @param last Last position of the region (1-based, included)
+	 * @return Iterator<VCFRecord> Iterator over the records overlapping the given region in the order of the file
+	 * @throws IOException If the file is not indexed or the index can not be read
+	 */
+	public Iterator<VCFRecord> query(String sequenceName, int first, int last) throws IOException {
+		return query(Collections.singletonList(new GenomicRegionImpl(sequenceName, first, last)));
+	}
+	
+	/**
+	 * Returns the records of this file overlapping at least one of the given regions.
+	 * Records overlapping more than one region are returned only once
+	 * @param regions Regions to query. Regions on sequences not present in the file are ignored
+	 * @return Iterator<VCFRecord> Iterator over the records overlapping the given regions in the order of the file
+	 * @throws IOException If the file is not indexed or the index can not be read
+	 */
+	public Iterator<VCFRecord> query(Collection<? extends GenomicRegion> regions) throws IOException {
+		if(file==null) throw new IOException("Queries by genomic coordinates require a file. This reader was created from a stream");
+		if(!isIndexed()) throw new IOException("Index not found for file "+file.getName()+". Files must be compressed with BGZF and indexed before running queries");
+		if(indexReader == null) indexReader = new TabixReader(file.getAbsolutePath(), VCFFileIndexer.getIndexFile(file).getAbsolutePath());
+		//Sort regions according to the order of the sequences in the file and merge overlapping regions
+		List<GenomicRegion> sortedRegions = new ArrayList<>();
+		for(GenomicRegion r:regions) {
+			if(indexReader.chr2tid(r.getSequenceName())>=0) sortedRegions.add(r);
+		}
+		Collections.sort(sortedRegions, (r1,r2) -> {
+			int cmp = indexReader.chr2tid(r1.getSequenceName()) - indexReader.chr2tid(r2.getSequenceName());
+			if(cmp!=0) return cmp;
+			return r1.getFirst() - r2.getFirst();
+		});
+		List<GenomicRegion> mergedRegions = new ArrayList<>();
+		GenomicRegionImpl lastRegion = null;
+		for(GenomicRegion r:sortedRegions) {
+			if(lastRegion!=null && lastRegion.getSequenceName().equals(r.getSequenceName()) && r.getFirst()<=lastRegion.getLast()+1) {
+				if(r.getLast()>lastRegion.getLast()) lastRegion.setLast(r.getLast());
+				continue;
+			}
+			lastRegion = new GenomicRegionImpl(r.getSequenceName(), r.getFirst(), r.getLast());
+			mergedRegions.add(lastRegion);
+		}
+		return new VCFQueryIterator(mergedRegions);
 	}
 	
 	
@@ -122,16 +228,25 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
         if (currentIterator != null) {
             throw new IllegalStateException("Iteration in progress");
         }
-        currentIterator = new VCFFileIterator(); 
+        if(matrixReader!=null) currentIterator = new GenotypeMatrixIterator();
+        else currentIterator = new VCFFileIterator(); 
 		return currentIterator;
 	}
 	
-	private void init (InputStream stream, File file) throws IOException {
+	private void init (InputStream stream, File file, int numThreads) throws IOException {
 		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
 		if(file!=null) {
-			stream = new FileInputStream(file);
-			if(file.getName().endsWith(".gz")) {
-				stream = new ConcatGZIPInputStream(stream);
+			this.file = file;
+			if(GenotypeMatrixFileReader.isGenotypeMatrixFile(file)) {
+				//Records are decoded from the binary file. Only the header is read as text
+				matrixReader = new GenotypeMatrixFileReader(file);
+				stream = matrixReader.openHeader();
+			} else {
+				stream = new FileInputStream(file);
+				if(file.getName().endsWith(".gz")) {
+					if(numThreads>1) stream = new ParallelBlockCompressedInputStream(stream, numThreads);
+					else stream = new ConcatGZIPInputStream(stream);
+				}
 			}
 		}
 		in = new BufferedReader(new InputStreamReader(stream));
@@ -150,44 +265,103 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	
 	private VCFRecord loadVCFRecord (String line) {
-		String [] items = ParseUtils.parseString(line,'\t');
-		if(items.length<8) {
+		//Only site columns are split. Genotype columns are located by their offsets within the line
+		int [] columnStarts = findColumnStarts(line);
+		int numColumns = columnStarts.length-1;
+		if(numColumns<8) {
 			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
 			return null;
 		}
+		String [] items = new String[Math.min(numColumns, 9)];
+		for(int i=0;i<items.length;i++) items[i] = line.substring(columnStarts[i], columnStarts[i+1]-1);
 		GenomicVariant variant = loadGenomicVariant(items);
 		if(variant == null) return null;
 		List<String> filters = loadFilters(items[6]);
 		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
 		
 		//if(variant.getType() == GenomicVariant.TYPE_UNDETERMINED && items[3].length()>1) variant.setType(GenomicVariant.TYPE_INDEL);
-		List<CalledGenomicVariant> calls = new ArrayList<CalledGenomicVariant>();
 		List<Sample> samples = header.getSamples();
 		
-		if(items.length==8) {
+		if(numColumns==8) {
 			if (samples.size()>0) {
 				log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
 				return null;
 			}
-			return new VCFRecord(variant, filters, infoFields, new int [0], calls, header);
+			return new VCFRecord(variant, filters, infoFields, new int [0], new ArrayList<CalledGenomicVariant>(), header);
 		}
 		//If genotype information is present
 		int[] formatInput = loadInputFormat(items[8]);
-		if(items.length-9!=samples.size()) {
+		if(numColumns-9!=samples.size()) {
 			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
 			return null;
 		}
+		boolean checkCN = loadMode!=LOAD_MODE_MINIMAL && variant.getType()<=GenomicVariant.TYPE_STR;
+		if(lazyGenotypes) {
+			List<CalledGenomicVariant> calls = new VCFLazyCallsList(variant, formatInput, line, Arrays.copyOfRange(columnStarts, 9, columnStarts.length), samples);
+			VCFRecord record = new VCFRecord(variant, filters, infoFields, makeLoadFormat (formatInput,false), calls, header);
+			if(checkCN) record.setCopyNumberFormatPending();
+			return record;
+		}
+		List<CalledGenomicVariant> calls = new ArrayList<CalledGenomicVariant>(samples.size());
 		boolean nonDefaultCN = false;
-		for(int i=9;i<items.length;i++) {
-			String [] itemsSample = ParseUtils.parseString(items[i], ':');
+		for(int i=9;i<numColumns;i++) {
 			Sample s = samples.get(i-9);
-			CalledGenomicVariant call = loadCalledVariant(variant,formatInput,itemsSample,s); 
+			CalledGenomicVariant call = loadCalledVariant(variant,formatInput,line,columnStarts[i],columnStarts[i+1]-1,s); 
 			calls.add(call);
 			if(call.getCopyNumber()!=CalledGenomicVariant.DEFAULT_PLOIDY) nonDefaultCN = true;
 		}
-		int [] formatLoad = makeLoadFormat (formatInput,loadMode!=LOAD_MODE_MINIMAL && nonDefaultCN && variant.getType()<=GenomicVariant.TYPE_STR);	
+		int [] formatLoad = makeLoadFormat (formatInput,checkCN && nonDefaultCN);	
 		return new VCFRecord(variant, filters, infoFields, formatLoad, calls, header);
 	}
+	/**
+	 * Creates the record for a variant of a binary genotype matrix. Calls are decoded the first time that they are requested 
+	 * @param chunk Chunk of the genotype matrix
+	 * @param variantIdx Index of the variant within the chunk
+	 * @return VCFRecord record for the given variant. Null if the site information could not be loaded
+	 */
+	private VCFRecord loadVCFRecord (GenotypeMatrixChunk chunk, int variantIdx) {
+		String [] items = ParseUtils.parseString(chunk.getSiteColumns(variantIdx), '\t');
+		if(items.length!=8) {
+			log.severe("Could not load site information of variant at "+chunk.getSequenceName(variantIdx)+":"+chunk.getFirst(variantIdx)+". Expected 8 columns but found "+items.length);
+			return null;
+		}
+		GenomicVariant variant = loadGenomicVariant(items);
+		if(variant == null) return null;
+		List<String> filters = loadFilters(items[6]);
+		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
+		List<Sample> samples = header.getSamples();
+		if(chunk.getNumSamples()==0) return new VCFRecord(variant, filters, infoFields, new int [0], new ArrayList<CalledGenomicVariant>(), header);
+		List<Integer> formatList = new ArrayList<>();
+		formatList.add(VCFRecord.FORMAT_IDX_GT);
+		if(chunk.hasGenotypeQualities(variantIdx) && isLoaded(VCFRecord.FORMAT_IDX_GQ)) formatList.add(VCFRecord.FORMAT_IDX_GQ);
+		if(chunk.hasReadDepths(variantIdx) && isLoaded(VCFRecord.FORMAT_IDX_DP)) formatList.add(VCFRecord.FORMAT_IDX_DP);
+		if(chunk.hasAllelesCopyNumber(variantIdx) && isLoaded(VCFRecord.FORMAT_IDX_ACN)) formatList.add(VCFRecord.FORMAT_IDX_ACN);
+		int [] format = new int [formatList.size()];
+		for(int i=0;i<format.length;i++) format[i] = formatList.get(i);
+		List<CalledGenomicVariant> calls = new GenotypeMatrixCallsList(variant, format, chunk, variantIdx, samples);
+		VCFRecord record = new VCFRecord(variant, filters, infoFields, format, calls, header);
+		if(loadMode!=LOAD_MODE_MINIMAL && variant.getType()<=GenomicVariant.TYPE_STR) record.setCopyNumberFormatPending();
+		return record;
+	}
+	/**
+	 * Finds the first character of each tab separated column of the given line
+	 * @param line Line to analyze
+	 * @return int[] Start of each column. The last entry is a sentinel equal to the line length plus one
+	 */
+	private int [] findColumnStarts(String line) {
+		int n = line.length();
+		int numColumns = 1;
+		for(int i=0;i<n;i++) {
+			if(line.charAt(i)=='\t') numColumns++;
+		}
+		int [] answer = new int [numColumns+1];
+		int j=1;
+		for(int i=0;i<n;i++) {
+			if(line.charAt(i)=='\t') answer[j++] = i+1;
+		}
+		answer[numColumns] = n+1;
+		return answer;
+	}
 	
 	private GenomicVariant loadGenomicVariant(String[] items) {
 		QualifiedSequence seq;
@@ -297,28 +471,47 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		Arrays.fill(answer, -1);
 		for(int i=0;i<itemsFormat.length;i++) {
 			Integer index = VCFRecord.KNOWN_FORMAT_FIELDS_MAP.get(itemsFormat[i]);
-			if(index!=null) {
-				if(loadMode == LOAD_MODE_MINIMAL && index != VCFRecord.FORMAT_IDX_GT) continue;
-				if(loadMode == LOAD_MODE_COPY_NUMBER && index != VCFRecord.FORMAT_IDX_GT && index != VCFRecord.FORMAT_IDX_ACN) continue;
-				if(loadMode == LOAD_MODE_QUALITY && index != VCFRecord.FORMAT_IDX_GT && index != VCFRecord.FORMAT_IDX_ACN && index != VCFRecord.FORMAT_IDX_GQ) continue;
-				answer[i] = index;
-			}
+			if(index!=null && isLoaded(index)) answer[i] = index;
 		}
 		return answer;
 	}
-	private CalledGenomicVariant loadCalledVariant(GenomicVariant variant,int [] format, String[] itemsSample, Sample sample) {
+	/**
+	 * Tells if the format field with the given index is loaded according to the current load mode
+	 * @param index Index of a known format field
+	 * @return boolean True if the field should be loaded
+	 */
+	private boolean isLoaded(int index) {
+		if(loadMode == LOAD_MODE_MINIMAL) return index == VCFRecord.FORMAT_IDX_GT;
+		if(loadMode == LOAD_MODE_COPY_NUMBER) return index == VCFRecord.FORMAT_IDX_GT || index == VCFRecord.FORMAT_IDX_ACN;
+		if(loadMode == LOAD_MODE_QUALITY) return index == VCFRecord.FORMAT_IDX_GT || index == VCFRecord.FORMAT_IDX_ACN || index == VCFRecord.FORMAT_IDX_GQ;
+		return true;
+	}
+	/**
+	 * Loads the genotype call of one sample. Only the fields that can be loaded according to the format are extracted
+	 * @param variant Variant called
+	 * @param format Indexes of the known format fields of the record. Fields not loaded have negative values 
+	 * @param line Text of the record
+	 * @param start First character of the genotype column within the line
+	 * @param end Character after the last character of the genotype column 
+	 * @param sample Sample to load
+	 * @return CalledGenomicVariant call loaded from the record
+	 */
+	private CalledGenomicVariant loadCalledVariant(GenomicVariant variant,int [] format, String line, int start, int end, Sample sample) {
 		String sampleId = sample.getId();
-		if(itemsSample.length>format.length) {
-			log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". Sample information does not match format");
-			CalledGenomicVariantImpl answer = new CalledGenomicVariantImpl(variant,new byte[0]);
-			answer.setSampleId(sampleId);
-			answer.updateAllelesCopyNumberFromCounts(sample.getNormalPloidy());
-			return answer;
-		}
 		String [] knownItemsSample = new String [VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY.length];
-		Arrays.fill(knownItemsSample, null);
-		for(int i=0;i<itemsSample.length;i++) {
-			if(format[i]>=0)knownItemsSample[format[i]] = itemsSample[i];
+		int fieldStart = start;
+		for(int i=0;fieldStart<=end;i++) {
+			int fieldEnd = fieldStart;
+			while(fieldEnd<end && line.charAt(fieldEnd)!=':') fieldEnd++;
+			if(i>=format.length) {
+				log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". Sample information does not match format");
+				CalledGenomicVariantImpl answer = new CalledGenomicVariantImpl(variant,new byte[0]);
+				answer.setSampleId(sampleId);
+				answer.updateAllelesCopyNumberFromCounts(sample.getNormalPloidy());
+				return answer;
+			}
+			if(format[i]>=0) knownItemsSample[format[i]] = line.substring(fieldStart, fieldEnd);
+			fieldStart = fieldEnd+1;
 		}
 		//Load genotype field
 		String [] alleles = variant.getAlleles();
@@ -466,6 +659,60 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return answer;
 		
 	}
+	/**
+	 * Creates the genotype call of one sample from the data of a binary genotype matrix
+	 * @param variant Variant called
+	 * @param format Indexes of the format fields that should be loaded
+	 * @param chunk Chunk of the genotype matrix
+	 * @param variantIdx Index of the variant within the chunk
+	 * @param sampleIdx Index of the sample to load
+	 * @param sample Sample to load
+	 * @return CalledGenomicVariant call loaded from the matrix
+	 */
+	private CalledGenomicVariant loadCalledVariant(GenomicVariant variant, int [] format, GenotypeMatrixChunk chunk, int variantIdx, int sampleIdx, Sample sample) {
+		String sampleId = sample.getId();
+		byte [] calledAlleleIds = chunk.getIndexesCalledAlleles(variantIdx, sampleIdx);
+		CalledGenomicVariant answer;
+		if(variant instanceof SNV) {
+			byte genotype = CalledSNV.GENOTYPE_HOMOREF;
+			if(calledAlleleIds.length==0) genotype = CalledSNV.GENOTYPE_UNDECIDED;
+			else if(calledAlleleIds.length>1) genotype=CalledSNV.GENOTYPE_HETERO;
+			else if (calledAlleleIds[0]>0) genotype = CalledSNV.GENOTYPE_HOMOALT;
+			answer = new CalledSNV((SNV)variant, genotype);
+		} else if (variant.getType() == GenomicVariant.TYPE_CNV) {
+			if(calledAlleleIds.length==1) answer = new CalledCNV(variant, calledAlleleIds[0]);
+			else answer = new CalledCNV(variant);
+		} else {
+			CalledGenomicVariantImpl cv = new CalledGenomicVariantImpl(variant, calledAlleleIds);
+			cv.setCallReport(new VariantCallReport(variant.getAlleles(), null, null));
+			answer = cv;
+		}
+		answer.setSampleId(sampleId);
+		for(int idx:format) {
+			if(idx == VCFRecord.FORMAT_IDX_GQ) answer.setGenotypeQuality(chunk.getGenotypeQuality(variantIdx, sampleIdx));
+			else if(idx == VCFRecord.FORMAT_IDX_DP) answer.setTotalReadDepth(chunk.getReadDepth(variantIdx, sampleIdx));
+		}
+		if(variant.getType() == GenomicVariant.TYPE_CNV) return answer;
+		byte totalCopyNumber = chunk.getCopyNumber(variantIdx, sampleIdx);
+		try {
+			if(answer.isUndecided()) answer.updateAllelesCopyNumberFromCounts(totalCopyNumber);
+			else answer.setAllelesCopyNumber(chunk.getAllelesCopyNumber(variantIdx, sampleIdx));
+		} catch (IllegalArgumentException e) {
+			log.severe("Can not load alleles copy number for sample "+sampleId+" at genomic variant "+variant.getSequenceName()+":"+variant.getFirst()+". "+e.getMessage());
+			answer.updateAllelesCopyNumberFromCounts(totalCopyNumber);
+		}
+		byte [] phasedAlleles = chunk.getIndexesPhasedAlleles(variantIdx, sampleIdx);
+		if(phasedAlleles!=null) {
+			if(answer instanceof CalledSNV && phasedAlleles.length == 2) {
+				((CalledSNV)answer).setPhasingCN2(phasedAlleles[0]==1);
+			} else if (answer instanceof CalledGenomicVariantImpl) {
+				((CalledGenomicVariantImpl)answer).setPhasedAlleles(phasedAlleles);
+			} else {
+				log.severe("Can not load phasing information for sample "+sampleId+" at genomic variant "+variant.getSequenceName()+":"+variant.getFirst()+". Phasing of SNVs with high copy number still not supported");
+			}
+		}
+		return answer;
+	}
 	private Double loadSingleNumber (String value, String formatField, String sampleId, GenomicVariant var, boolean integer) {
 		if(value==null || NO_INFO_CHAR.equals(value)) return null;
 		try {
@@ -647,4 +894,215 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		}
 	}
 
+	/**
+	 * List of calls decoded the first time that they are requested
+	 */
+	private abstract class LazyCallsList extends AbstractList<CalledGenomicVariant> implements RandomAccess {
+		private CalledGenomicVariant [] calls;
+		private int decodedCalls = 0;
+		
+		public LazyCallsList(int numCalls) {
+			calls = new CalledGenomicVariant[numCalls];
+		}
+		
+		/**
+		 * Decodes the call with the given index
+		 * @param index Index of the call to decode
+		 * @return CalledGenomicVariant decoded call
+		 */
+		protected abstract CalledGenomicVariant decodeCall(int index);
+		
+		/**
+		 * Releases the data used to decode the calls. Called when all calls are decoded 
+		 */
+		protected abstract void releaseData();
+
+		@Override
+		public CalledGenomicVariant get(int index) {
+			CalledGenomicVariant call = calls[index];
+			if(call == null) {
+				call = decodeCall(index);
+				set(index, call);
+			}
+			return call;
+		}
+		
+		@Override
+		public CalledGenomicVariant set(int index, CalledGenomicVariant call) {
+			if(call == null) throw new NullPointerException("Calls can not be null");
+			CalledGenomicVariant previous = calls[index];
+			calls[index] = call;
+			if(previous == null) {
+				decodedCalls++;
+				if(decodedCalls == calls.length) releaseData();
+			}
+			return previous;
+		}
+
+		@Override
+		public int size() {
+			return calls.length;
+		}
+	}
+	
+	/**
+	 * List of calls decoded from the text of a record the first time that they are requested
+	 */
+	private class VCFLazyCallsList extends LazyCallsList {
+		private GenomicVariant variant;
+		private int [] format;
+		private List<Sample> samples;
+		//Released when all calls are decoded
+		private String line;
+		private int [] sampleStarts;
+		
+		public VCFLazyCallsList(GenomicVariant variant, int[] format, String line, int[] sampleStarts, List<Sample> samples) {
+			super(sampleStarts.length-1);
+			this.variant = variant;
+			this.format = format;
+			this.line = line;
+			this.sampleStarts = sampleStarts;
+			this.samples = samples;
+		}
+
+		@Override
+		protected CalledGenomicVariant decodeCall(int index) {
+			return loadCalledVariant(variant, format, line, sampleStarts[index], sampleStarts[index+1]-1, samples.get(index));
+		}
+
+		@Override
+		protected void releaseData() {
+			line = null;
+			sampleStarts = null;
+		}
+	}
+	
+	/**
+	 * List of calls decoded from a chunk of a binary genotype matrix the first time that they are requested
+	 */
+	private class GenotypeMatrixCallsList extends LazyCallsList {
+		private GenomicVariant variant;
+		private int [] format;
+		private List<Sample> samples;
+		//Released when all calls are decoded
+		private GenotypeMatrixChunk chunk;
+		private int variantIdx;
+		
+		public GenotypeMatrixCallsList(GenomicVariant variant, int[] format, GenotypeMatrixChunk chunk, int variantIdx, List<Sample> samples) {
+			super(chunk.getNumSamples());
+			this.variant = variant;
+			this.format = format;
+			this.chunk = chunk;
+			this.variantIdx = variantIdx;
+			this.samples = samples;
+		}
+
+		@Override
+		protected CalledGenomicVariant decodeCall(int index) {
+			return loadCalledVariant(variant, format, chunk, variantIdx, index, samples.get(index));
+		}
+
+		@Override
+		protected void releaseData() {
+			chunk = null;
+		}
+	}
+	
+	/**
+	 * Iterator over the records of a binary genotype matrix
+	 */
+	private class GenotypeMatrixIterator implements Iterator<VCFRecord> {
+		private Iterator<GenotypeMatrixChunk> chunks = matrixReader.iterator();
+		private GenotypeMatrixChunk currentChunk = null;
+		private int nextVariantIdx = 0;
+		private VCFRecord nextRecord;
+		public GenotypeMatrixIterator() {
+			nextRecord = loadRecord();
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+
+		private VCFRecord loadRecord() {
+			while(true) {
+				while(currentChunk==null || nextVariantIdx==currentChunk.getNumVariants()) {
+					if(!chunks.hasNext()) return null;
+					currentChunk = chunks.next();
+					nextVariantIdx = 0;
+				}
+				VCFRecord answer = loadVCFRecord(currentChunk, nextVariantIdx);
+				nextVariantIdx++;
+				if(answer !=null) return answer;
+			}
+		}
+	}
+	
+	/**
+	 * Iterator over the records overlapping a list of sorted non overlapping regions
+	 */
+	private class VCFQueryIterator implements Iterator<VCFRecord> {
+		private List<GenomicRegion> regions;
+		private int nextRegion = 0;
+		private GenomicRegion currentRegion = null;
+		private TabixReader.Iterator currentQuery = null;
+		private int lastPreviousRegion = 0;
+		private VCFRecord nextRecord;
+		public VCFQueryIterator(List<GenomicRegion> regions) {
+			this.regions = regions;
+			nextRecord = loadRecord();
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+
+		private VCFRecord loadRecord() {
+			try {
+				while(true) {
+					if(currentQuery == null) {
+						if(nextRegion>=regions.size()) return null;
+						GenomicRegion previousRegion = currentRegion;
+						currentRegion = regions.get(nextRegion);
+						nextRegion++;
+						currentQuery = indexReader.query(currentRegion.getSequenceName(), Math.max(0, currentRegion.getFirst()-1), currentRegion.getLast());
+						if(previousRegion!=null && !previousRegion.getSequenceName().equals(currentRegion.getSequenceName())) previousRegion = null;
+						lastPreviousRegion = (previousRegion!=null)?previousRegion.getLast():0;
+					}
+					String line = currentQuery.next();
+					if(line==null) {
+						currentQuery = null;
+						continue;
+					}
+					VCFRecord answer = loadVCFRecord(line);
+					if(answer==null) continue;
+					//Records starting before the end of the previous region were already returned by the previous query
+					if(answer.getFirst()<=lastPreviousRegion) continue;
+					return answer;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not supported by VCFQueryIterator");
+		}
+	}
 }
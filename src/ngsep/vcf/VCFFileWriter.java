@@ -19,12 +19,21 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Logger;
 
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import ngsep.main.io.ByteArrayTextBuilder;
+import ngsep.main.io.ParallelBlockCompressedOutputStream;
 import ngsep.main.io.ParseUtils;
 import ngsep.variants.CalledCNV;
 import ngsep.variants.CalledGenomicVariant;
@@ -35,13 +44,122 @@ import ngsep.variants.Sample;
 import ngsep.variants.VariantCallReport;
 
 public class VCFFileWriter {
+	private Logger log = Logger.getLogger(VCFFileWriter.class.getName());
 	
+	//Attributes to write block compressed (BGZF) files
+	private File compressedFile = null;
+	private ParallelBlockCompressedOutputStream compressedStream = null;
+	private PrintStream compressedOut = null;
+	private TabixIndexCreator indexCreator = null;
+	//Records are added to the index when the blocks containing them are compressed and written
+	private ArrayDeque<IndexedRecordPosition> recordsToIndex = new ArrayDeque<>();
+	private int numThreads = ParallelBlockCompressedOutputStream.DEF_NUM_THREADS;
+	
+	//Records are formatted in this buffer and written to the output streams in blocks
+	private static final int RECORDS_BLOCK_SIZE = 65536;
+	private final ByteArrayTextBuilder recordsBuffer = new ByteArrayTextBuilder();
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		if (log == null) throw new NullPointerException("Log can not be null");
+		this.log = log;
+	}
+	/**
+	 * @return the number of threads used to compress block compressed files
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * @param numThreads the number of threads used to compress block compressed files
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be a positive number");
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Opens a block compressed (BGZF) file to write VCF records. BGZF files can be decompressed with gzip
+	 * and can be queried by genomic coordinates if they are indexed. Records printed to the returned stream
+	 * through this writer are indexed on the fly if createIndex is true. The index is written
+	 * in the tabix format in the file filename.tbi when the stream is closed with the method closeBlockCompressedOutput.
+	 * Blocks are compressed with the number of threads of this writer
+	 * @param filename Name of the file to create
+	 * @param createIndex Tells if a coordinates index should be built while records are written
+	 * @return PrintStream Stream to print the header and the records of the file
+	 * @throws IOException If the file can not be created
+	 */
+	public PrintStream openBlockCompressedOutput(String filename, boolean createIndex) throws IOException {
+		if(compressedOut!=null) throw new IllegalStateException("A block compressed file is already open in this writer: "+compressedFile.getName());
+		compressedFile = new File(filename);
+		compressedStream = new ParallelBlockCompressedOutputStream(filename, numThreads);
+		compressedOut = new PrintStream(compressedStream);
+		if(createIndex) {
+			indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+			compressedStream.setTrackFilePointers(true);
+		}
+		return compressedOut;
+	}
+	
+	/**
+	 * Closes the block compressed file opened with openBlockCompressedOutput and writes the index if it was requested
+	 * @throws IOException If the file or its index can not be written
+	 */
+	public void closeBlockCompressedOutput() throws IOException {
+		if(compressedOut==null) return;
+		try {
+			compressedOut.flush();
+			addWrittenRecordsToIndex();
+			Index index = null;
+			if(indexCreator!=null) index = indexCreator.finalizeIndex(compressedStream.getFilePointer());
+			compressedOut.close();
+			if(compressedOut.checkError()) throw new IOException("Error writing block compressed file "+compressedFile.getName());
+			if(index!=null) index.writeBasedOnFeatureFile(compressedFile);
+		} finally {
+			compressedOut = null;
+			compressedStream = null;
+			indexCreator = null;
+			recordsToIndex.clear();
+			compressedFile = null;
+		}
+	}
+	
+	/**
+	 * Prints the given records. Records are formatted together in blocks to reduce the number of writes to the stream
+	 * @param records VCF records to print
+	 * @param out Stream to print the records
+	 */
 	public void printVCFRecords (List<VCFRecord> records, PrintStream out) {
+		ByteArrayTextBuilder buffer = recordsBuffer;
+		buffer.reset();
 		for(VCFRecord record:records) {
-			printVCFRecord(record, out);
+			encodeVCFRecord(record, buffer, out);
+			if(buffer.length()>=RECORDS_BLOCK_SIZE) buffer.flush(out);
 		}
+		buffer.flush(out);
+		if(out==compressedOut) addWrittenRecordsToIndex();
 	}
 	public void printVCFRecord (VCFRecord record, PrintStream out) {
+		ByteArrayTextBuilder buffer = recordsBuffer;
+		buffer.reset();
+		encodeVCFRecord(record, buffer, out);
+		buffer.flush(out);
+		if(out==compressedOut) addWrittenRecordsToIndex();
+	}
+	private void encodeVCFRecord (VCFRecord record, ByteArrayTextBuilder buffer, PrintStream out) {
+		if(indexCreator!=null && out==compressedOut) {
+			recordsToIndex.add(new IndexedRecordPosition(record.getVariant(), compressedStream.getPosition()+buffer.length()));
+		}
+		encodeVCFRecord(record, buffer);
+	}
+	/**
+	 * Formats the given record as a line of text in the given buffer
+	 * @param record VCF record to format
+	 * @param out Buffer to append the formatted record
+	 */
+	private void encodeVCFRecord (VCFRecord record, ByteArrayTextBuilder out) {
 		GenomicVariant var = record.getVariant();
 		//Add type as annotation if still not added
 		byte type = var.getType();
@@ -64,46 +182,60 @@ public class VCFFileWriter {
 			}
 		}
 		
-		out.println();
+		out.appendLineSeparator();
 	}
 	
-	private void printFilters(List<String> filters, PrintStream out) {
-		out.print("\t");
+	private void addWrittenRecordsToIndex() {
+		long writtenPosition = compressedStream.getWrittenPosition();
+		while(indexCreator!=null && !recordsToIndex.isEmpty() && recordsToIndex.peekFirst().position<=writtenPosition) {
+			IndexedRecordPosition record = recordsToIndex.pollFirst();
+			try {
+				indexCreator.addFeature(record.region, compressedStream.getFilePointer(record.position));
+			} catch (IllegalArgumentException e) {
+				//Records are not sorted. The file is written without index
+				log.warning("Can not index file "+compressedFile.getName()+". "+e.getMessage());
+				indexCreator = null;
+				recordsToIndex.clear();
+			}
+		}
+	}
+	private void printFilters(List<String> filters, ByteArrayTextBuilder out) {
+		out.append('\t');
 		if(filters==null || filters.size()==0) {
-			out.print(VCFFileReader.NO_INFO_CHAR);
+			out.append(VCFFileReader.NO_INFO_CHAR);
 			return;
 		}
 		boolean printed = false;
 		for(String filter:filters) {
-			if(printed) out.print(";");
+			if(printed) out.append(';');
 			printed = true;
-			out.print(filter);
+			out.append(filter);
 		}
 	}
-	private void printBasicVariantInfo(GenomicVariant var,PrintStream out) {
-		out.print(var.getSequenceName()+"\t");
-		out.print(var.getFirst()+"\t");
+	private void printBasicVariantInfo(GenomicVariant var,ByteArrayTextBuilder out) {
+		out.append(var.getSequenceName()).append('\t');
+		out.append(var.getFirst()).append('\t');
 		String id = var.getId();
 		if(id==null) {
 			id = VCFFileReader.NO_INFO_CHAR;
 		}
-		out.print(id+"\t");
+		out.append(id).append('\t');
 		
 		String [] alleles = var.getAlleles();
-		out.print(alleles[0]+"\t");
-		if(alleles.length==1) out.print(VCFFileReader.NO_INFO_CHAR);
+		out.append(alleles[0]).append('\t');
+		if(alleles.length==1) out.append(VCFFileReader.NO_INFO_CHAR);
 		else {
 			//Starts at 1 to ignore the reference allele
 			for(int i=1;i<alleles.length;i++) {
-				if(i>1) out.print(",");
-				out.print(alleles[i]);
+				if(i>1) out.append(',');
+				out.append(alleles[i]);
 			}
 		}
-		out.print("\t");
-		out.print(var.getVariantQS());
+		out.append('\t');
+		out.append(var.getVariantQS());
 	}
-	private void printInfoField(List<GenomicVariantAnnotation> info, PrintStream out) {
-		out.print("\t");
+	private void printInfoField(List<GenomicVariantAnnotation> info, ByteArrayTextBuilder out) {
+		out.append('\t');
 		DecimalFormat fmt = ParseUtils.ENGLISHFMT;
 		boolean printed = false;
 		for(GenomicVariantAnnotation ann:info) {
@@ -111,53 +243,53 @@ public class VCFFileWriter {
 			if(value == null) continue;
 			if(value instanceof Boolean) {
 				if((Boolean) value) {
-					if(printed) out.print(";");
+					if(printed) out.append(';');
 					printed = true;
-					out.print(ann.getAttribute());
+					out.append(ann.getAttribute());
 				}
 			} else if (value instanceof Collection<?>) {
 				Collection<?> values = (Collection<?>)value;
 				if(values.size()>0) {
-					if(printed) out.print(";");
+					if(printed) out.append(';');
 					printed = true;
-					out.print(ann.getAttribute()+"=");
+					out.append(ann.getAttribute()).append('=');
 				}
 				Iterator<?> it = values.iterator();
 				for(int i=0;it.hasNext();i++) {
 					Object o = it.next();
-					if(i>0) out.print(",");
+					if(i>0) out.append(',');
 					if(o instanceof Double) {
-						out.print(fmt.format(o));
+						out.append((Double)o, fmt);
 					} else {
-						out.print(o.toString());
+						out.append(o.toString());
 					}
 					
 				}
 			} else if (value instanceof Double) {
-				if(printed) out.print(";");
+				if(printed) out.append(';');
 				printed = true;
 				double valN = (Double)value;
-				out.print(ann.getAttribute()+"="+fmt.format(valN));
+				out.append(ann.getAttribute()).append('=').append(valN, fmt);
 			} else {
-				if(printed) out.print(";");
+				if(printed) out.append(';');
 				printed = true;
-				out.print(ann.getAttribute()+"="+ann.getValue().toString());
+				out.append(ann.getAttribute()).append('=').append(value.toString());
 			}
 		}
-		if(!printed) out.print(VCFFileReader.NO_INFO_CHAR);
+		if(!printed) out.append(VCFFileReader.NO_INFO_CHAR);
 	}
-	private void printGenotypeFormat(PrintStream out, int [] format) {
+	private void printGenotypeFormat(ByteArrayTextBuilder out, int [] format) {
 		//Genotype format
-		out.print("\t");
+		out.append('\t');
 		for(int f=0;f<format.length;f++) {
-			if(f>0) out.print(":");
+			if(f>0) out.append(':');
 			int formatIdx = format[f];
 			String formatName = VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[formatIdx];
-			out.print(formatName);
+			out.append(formatName);
 		}
 	}
-	private void printGenotypeInfo(CalledGenomicVariant var, PrintStream out, int [] format, byte ploidy) {
-		out.print("\t");
+	private void printGenotypeInfo(CalledGenomicVariant var, ByteArrayTextBuilder out, int [] format, byte ploidy) {
+		out.append('\t');
 		String[] alleles = var.getAlleles();
 		VariantCallReport report = var.getCallReport();
 		CalledCNV cnv = null;
@@ -166,26 +298,26 @@ public class VCFFileWriter {
 		}
 		byte [] idxsCalledAlleles = var.getIndexesCalledAlleles();
 		for(int f=0;f<format.length;f++) {
-			if(f>0) out.print(":");
+			if(f>0) out.append(':');
 			int formatIdx = format[f];
 			if(formatIdx == VCFRecord.FORMAT_IDX_GT) {
 				boolean phased = var.isPhased();
 				if (idxsCalledAlleles.length == 0) {
 					//Undecided call
-					out.print(".");
-					if(ploidy>1) out.print ("/."); 
+					out.append('.');
+					if(ploidy>1) out.append("/."); 
 					/*for(int i=1;i<ploidy;i++) {
 						out.print ("/.");
 					}*/
 				} else if(idxsCalledAlleles.length == 1) {
 					//Homozygous call
 					int idAllele = idxsCalledAlleles[0];
-					out.print(""+idAllele);
+					out.append(idAllele);
 					if(phased) {
 						for(int i=1;i<ploidy;i++) {
-							out.print ("|"+idAllele);
+							out.append('|').append(idAllele);
 						}
-					} else if(ploidy>1) out.print ("/"+idAllele);
+					} else if(ploidy>1) out.append('/').append(idAllele);
 				} else {
 					//Heterozygous call
 					byte [] finalAlleles = idxsCalledAlleles;
@@ -193,8 +325,8 @@ public class VCFFileWriter {
 					for(int i=0;i<finalAlleles.length;i++) {
 						//Since v2.1.4, alleles are not explicitly written with copy number anymore. Allele copy numbers are saved in the new format field Local Allele Copy Numbers (ACN)
 						int idAllele = finalAlleles[i];
-						if(i>0) out.print((phased?"|":"/"));
-						out.print(""+idAllele);
+						if(i>0) out.append(phased?'|':'/');
+						out.append(idAllele);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_PL) {
@@ -202,12 +334,12 @@ public class VCFFileWriter {
 				
 				for(int j=0;j<alleles.length;j++) {
 					for(int i=0;i<=j;i++) {
-						if(i>0 || j>0) out.print (",");
+						if(i>0 || j>0) out.append(',');
 						int condPhred = 0;
 						if(report!=null && report.logConditionalsPresent()) {
 							condPhred = (int) Math.round(-10*report.getLogConditionalProbability(alleles[i], alleles[j]));
 						}
-						out.print(condPhred);
+						out.append(condPhred);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_GL) {
@@ -215,94 +347,94 @@ public class VCFFileWriter {
 				
 				for(int j=0;j<alleles.length;j++) {
 					for(int i=0;i<=j;i++) {
-						if(i>0 || j>0) out.print (",");
+						if(i>0 || j>0) out.append(',');
 						double logCond = 0;
 						if(report!=null && report.logConditionalsPresent()) {
 							logCond = report.getLogConditionalProbability(alleles[i], alleles[j]);
 						}
-						out.print(ParseUtils.ENGLISHFMT.format(logCond));
+						out.append(logCond, ParseUtils.ENGLISHFMT);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_GQ) {
 				//Phred of the genotype posterior
-				out.print(var.getGenotypeQuality());
+				out.append(var.getGenotypeQuality());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_ACN) {
 				//Local alleles copy number
 				byte totalCopyNumber = var.getCopyNumber();
 				if(totalCopyNumber == 0) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
 				byte [] varAllelesCopyNumber = var.getAllelesCopyNumber();
 				if(var.isUndecided()) varAllelesCopyNumber[0] = totalCopyNumber;
 				for(int j=0;j<varAllelesCopyNumber.length;j++) {
-					if(j>0) out.print (",");
-					out.print(""+varAllelesCopyNumber[j]);
+					if(j>0) out.append(',');
+					out.append(varAllelesCopyNumber[j]);
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_DP) {
 				//Read depth
-				out.print(var.getTotalReadDepth());
+				out.append(var.getTotalReadDepth());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_ADP) {
 				if(report!=null && report.countsPresent()) {
 					for(int i=0;i<alleles.length;i++) {
-						if(i>0) out.print(",");
-						out.print(report.getCount(alleles[i]));
+						if(i>0) out.append(',');
+						out.append(report.getCount(alleles[i]));
 					}
 				} else {
 					for(int i=0;i<alleles.length;i++) {
-						if(i>0) out.print(",");
-						out.print("0");
+						if(i>0) out.append(',');
+						out.append('0');
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_BSDP) {
 				if(var==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
 				int [] allCounts = var.getAllCounts();
 				if(allCounts == null) {
-					out.print("0,0,0,0");
+					out.append("0,0,0,0");
 					continue;
 				}
 				for(int i=0;i<allCounts.length;i++) {
-					if(i>0) out.print(",");
-					out.print(allCounts[i]);
+					if(i>0) out.append(',');
+					out.append(allCounts[i]);
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_RNC) {
 				//Num copies
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(ParseUtils.ENGLISHFMT.format(cnv.getNumCopies()));
+				out.append(cnv.getNumCopies(), ParseUtils.ENGLISHFMT);
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTADF) {
 				//Num tandem duplication fragments
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTandemFragments());
+				out.append(cnv.getTandemFragments());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTRDF) {
 				//Num trans duplication fragments
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTransDupFragments());
+				out.append(cnv.getTransDupFragments());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_TGEN) {
 				//Text genotype
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTextGenotype());
+				out.append(cnv.getTextGenotype());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NSF) {
 				//TODO: NSF is more for SVs than for only CNVs
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					out.append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTotalReadDepth());
+				out.append(cnv.getTotalReadDepth());
 			} 
 		}
 	}
@@ -310,4 +442,14 @@ public class VCFFileWriter {
 		header.print(out);
 	}
 	
+	private static class IndexedRecordPosition {
+		private final VCFFileIndexer.IndexedRegion region;
+		//Uncompressed position of the record in the block compressed file
+		private final long position;
+		public IndexedRecordPosition(GenomicVariant var, long position) {
+			this.region = new VCFFileIndexer.IndexedRegion(var);
+			this.position = position;
+		}
+	}
+	
 }
@@ -27,9 +27,14 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
@@ -49,6 +54,9 @@ import ngsep.variants.Sample;
 public class VCFFilter {
 	
 	private Logger log = Logger.getLogger(VCFFilter.class.getName());
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of records filtered together by each thread
+	private static final int RECORDS_BATCH_SIZE = 1000;
     // Genotype filters
     private int minGenotypeQuality = 0;
     private int minCoverage = 0;
@@ -76,6 +84,7 @@ public class VCFFilter {
     private ReferenceGenome genome = null;
     
     private ProgressNotifier progressNotifier=null;
+    private int numThreads = DEF_NUM_THREADS;
 
     public static void main(String[] args) throws Exception {
 		VCFFilter filter = new VCFFilter();
@@ -106,6 +115,28 @@ public class VCFFilter {
 		this.log = log;
 	}
 
+	/**
+	 * @return the number of threads used to filter records
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to filter records
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param numThreads the number of threads used to filter records
+	 */
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+
 	public int getMinGenotypeQuality() {
 		return minGenotypeQuality;
 	}
@@ -402,7 +433,7 @@ public class VCFFilter {
 	public void processVariantsFile(String vcfFile, PrintStream out) throws IOException {
 		VCFFileReader reader = null;
 		try {
-			reader = new VCFFileReader(vcfFile);
+			reader = new VCFFileReader(vcfFile, numThreads);
 			processVariantsFile(reader, out);
 		} finally {
 			if(reader!=null) reader.close();
@@ -421,6 +452,8 @@ public class VCFFilter {
 		VCFFileWriter writer = new VCFFileWriter();
 		
 		if(log!=null) reader.setLog(log);
+		//Calls are decoded only for records passing the distance and site filters
+		reader.setLazyGenotypes(true);
 		VCFFileHeader header = reader.getHeader();
 		VCFFileHeader outHeader = header.cloneEmpty();
 		List<Sample> inSamples = header.getSamples();
@@ -431,44 +464,111 @@ public class VCFFilter {
 			if(selectedSamples[i]) outHeader.addSample(s,inSampleIdsWithHeader.contains(s.getId()));
 		}
 		writer.printHeader(outHeader, out);
-		Iterator<VCFRecord> it = reader.iterator();
-		int lastPos = -minDistance;
-		String lastSeqName = null;
-		VCFRecord lastRecord = null;
-		int n=0;
-		while (it.hasNext()) {
-			VCFRecord record = it.next();
-			VCFRecord vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
-			GenomicVariant gv = vr.getVariant();
-			if (!gv.getSequenceName().equals(lastSeqName)) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
-				lastSeqName = gv.getSequenceName();
-				lastPos = gv.getLast();
-				continue;
-			}
-			// Distance filter
-			int first = gv.getFirst();
-			if (minDistance <= 0 || first - lastPos > minDistance) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
-				lastRecord = vr;
-			} else {
-				lastRecord = null;
-			}
-			lastSeqName = gv.getSequenceName();
-			lastPos = gv.getLast();
-			n++;
-			if (progressNotifier!=null && n%1000==0) {
-				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					out.flush();
-					return;
+		Iterator<VCFRecord> it;
+		//Indexed files are only read within the selected regions
+		if(regionsToSelect!=null && reader.isIndexed()) it = reader.query(regionsToSelect.asList());
+		else it = reader.iterator();
+		ExecutorService pool = null;
+		if(numThreads>1) {
+			log.info("Filtering records in batches of "+RECORDS_BATCH_SIZE+" with "+numThreads+" threads");
+			pool = Executors.newFixedThreadPool(numThreads);
+		}
+		//Only a limited number of batches is filtered ahead of the writing to bound memory usage
+		int maxBatchesInProgress = 2*numThreads;
+		//Without threads each record is printed as soon as it passes the distance filter
+		int batchSize = (pool!=null)?RECORDS_BATCH_SIZE:1;
+		LinkedList<Future<List<VCFRecord>>> futures = new LinkedList<>();
+		List<VCFRecord> batch = new ArrayList<>(batchSize);
+		try {
+			int lastPos = -minDistance;
+			String lastSeqName = null;
+			VCFRecord lastRecord = null;
+			int n=0;
+			while (it.hasNext()) {
+				VCFRecord record = it.next();
+				GenomicVariant gv = record.getVariant();
+				if (!gv.getSequenceName().equals(lastSeqName)) {
+					if(lastRecord!=null) batch.add(lastRecord);
+					lastRecord = record;
+					lastSeqName = gv.getSequenceName();
+					lastPos = gv.getLast();
+				} else {
+					// Distance filter
+					int first = gv.getFirst();
+					if (minDistance <= 0 || first - lastPos > minDistance) {
+						if(lastRecord!=null) batch.add(lastRecord);
+						lastRecord = record;
+					} else {
+						lastRecord = null;
+					}
+					lastSeqName = gv.getSequenceName();
+					lastPos = gv.getLast();
+					n++;
+					if (progressNotifier!=null && n%1000==0) {
+						int progress = n/1000;
+						if (!progressNotifier.keepRunning(progress)) {
+							processBatch(batch, selectedSamples, outHeader, pool, futures, writer, out);
+							while(!futures.isEmpty()) printFirstBatch(futures, writer, out);
+							out.flush();
+							return;
+						}
+					}
+				}
+				if(batch.size()==batchSize) {
+					processBatch(batch, selectedSamples, outHeader, pool, futures, writer, out);
+					batch = new ArrayList<>(batchSize);
+					//Waits for the oldest batch if too many batches are in progress
+					while(futures.size()>=maxBatchesInProgress) printFirstBatch(futures, writer, out);
 				}
 			}
+			if(lastRecord!=null) batch.add(lastRecord);
+			processBatch(batch, selectedSamples, outHeader, pool, futures, writer, out);
+			while(!futures.isEmpty()) printFirstBatch(futures, writer, out);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
-		if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
 		out.flush();
     }
+	
+	private void processBatch(List<VCFRecord> batch, boolean [] selectedSamples, VCFFileHeader outHeader, ExecutorService pool, LinkedList<Future<List<VCFRecord>>> futures, VCFFileWriter writer, PrintStream out) {
+		if(pool==null) {
+			for(VCFRecord record:filterBatch(batch, selectedSamples, outHeader)) writer.printVCFRecord(record, out);
+		} else if(batch.size()>0) {
+			futures.add(pool.submit(() -> filterBatch(batch, selectedSamples, outHeader)));
+		}
+	}
+	
+	private void printFirstBatch(LinkedList<Future<List<VCFRecord>>> futures, VCFFileWriter writer, PrintStream out) throws IOException {
+		List<VCFRecord> filtered;
+		try {
+			filtered = futures.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while filtering variants", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error filtering variants", cause);
+		}
+		for(VCFRecord record:filtered) writer.printVCFRecord(record, out);
+	}
+	
+	/**
+	 * Applies the site, genotype and population filters to the given records
+	 * @param batch Records passing the distance filter
+	 * @param selectedSamples Samples to keep
+	 * @param outHeader Header of the output records
+	 * @return List<VCFRecord> Output records passing the filters in the same order of the input
+	 */
+	private List<VCFRecord> filterBatch(List<VCFRecord> batch, boolean [] selectedSamples, VCFFileHeader outHeader) {
+		List<VCFRecord> answer = new ArrayList<>(batch.size());
+		for(VCFRecord record:batch) {
+			if (!passSiteFilters(record)) continue;
+			VCFRecord vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
+			if (passFilters(vr)) answer.add(vr);
+		}
+		return answer;
+	}
 
 	private boolean[] calculateSelectedSamples(List<Sample> inSamples) {
 		boolean[]  answer = new boolean[inSamples.size()];
@@ -483,17 +583,33 @@ public class VCFFilter {
 		return answer;
 	}
 
+	/**
+	 * Checks the filters that do not depend on the genotype calls
+	 * @param record to check
+	 * @return boolean True if the record passes the filters on the variant information
+	 */
+	private boolean passSiteFilters(VCFRecord record) {
+		GenomicVariant var = record.getVariant();
+    	if(keepOnlySNVs && !(var instanceof SNV)) return false;
+    	if(geneId!=null && !isInGene(record)) return false;
+    	//System.out.println("Passed Gene");
+    	if(annotations!=null && !hasAnnotation(record)) return false;
+    	//System.out.println("Passed Annotation");
+    	if (regionsToFilter!=null && regionsToFilter.findSpanningRegions(var).size()>0) return false;
+    	//System.out.println("Passed regions to filter");
+    	if (regionsToSelect!=null && regionsToSelect.findSpanningRegions(var).size()==0) return false;
+    	//System.out.println("Passed regions to select");
+    	if (filterGCContent(var)) return false;
+    	//System.out.println("Passed GCContent");
+    	return true;
+	}
+	
 	private boolean passFilters(VCFRecord record) {
     	if (record == null) return false;
     	GenomicVariant var = record.getVariant();
-    	if(keepOnlySNVs && !(var instanceof SNV)) return false;
     	//System.out.println("Passing filters for record: "+record.getVariant().getSequenceName()+": "+record.getVariant().getFirst());
 		if(maxCNVs>=0 && calculateNumCNVs(record)>maxCNVs) return false;
 		//System.out.println("Passed CNVs");
-    	if(geneId!=null && !isInGene(record)) return false;
-    	//System.out.println("Passed Gene");
-    	if(annotations!=null && !hasAnnotation(record)) return false;
-    	//System.out.println("Passed Annotation");
     	//TODO: Do not recalculate by default
     	DiversityStatistics divStats = DiversityStatistics.calculateDiversityStatistics(record.getCalls(), false);
     	int numCalledAlleles = divStats.getNumCalledAlleles();
@@ -515,12 +631,6 @@ public class VCFFilter {
     	//System.out.println("Passed MAF");
     	if (oh < minOH || oh> maxOH) return false;
     	//System.out.println("Passed OH");
-    	if (regionsToFilter!=null && regionsToFilter.findSpanningRegions(var).size()>0) return false;
-    	//System.out.println("Passed regions to filter");
-    	if (regionsToSelect!=null && regionsToSelect.findSpanningRegions(var).size()==0) return false;
-    	//System.out.println("Passed regions to select");
-    	if (filterGCContent(var)) return false;
-    	//System.out.println("Passed GCContent");
     	//Update annotations if passes filters
     	record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_SAMPLES_GENOTYPED, divStats.getNumSamplesGenotyped()));
 		record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_NUMBER_ALLELES, divStats.getNumCalledAlleles()));
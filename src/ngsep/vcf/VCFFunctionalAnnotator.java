@@ -21,9 +21,15 @@ package ngsep.vcf;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.ReferenceGenome;
@@ -34,6 +40,7 @@ import ngsep.transcriptome.VariantAnnotationParameters;
 import ngsep.transcriptome.VariantFunctionalAnnotation;
 import ngsep.transcriptome.VariantFunctionalAnnotationType;
 import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
+import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantAnnotation;
 
@@ -44,8 +51,12 @@ import ngsep.variants.GenomicVariantAnnotation;
  */
 public class VCFFunctionalAnnotator {
 	private Logger log = Logger.getLogger(VCFFunctionalAnnotator.class.getName());
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of records annotated together by each thread
+	private static final int RECORDS_BATCH_SIZE = 1000;
 	private Transcriptome transcriptome;
 	private VariantAnnotationParameters parameters = new VariantAnnotationParameters();
+	private int numThreads = DEF_NUM_THREADS;
 	
 	private ProgressNotifier progressNotifier=null;
 	
@@ -154,6 +165,28 @@ public class VCFFunctionalAnnotator {
 		this.setSpliceRegionExonOffset(spliceRegionExonOffset.intValue());
 	}
 	
+	/**
+	 * @return the number of threads used to annotate records
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to annotate records
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param numThreads the number of threads used to annotate records
+	 */
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+	
 	public Logger getLog() {
 		return log;
 	}
@@ -184,28 +217,91 @@ public class VCFFunctionalAnnotator {
 		transcriptome.fillSequenceTranscripts(genome);
 	}
 	public void annotate(String variantsFile,PrintStream out) throws IOException {
-		try (VCFFileReader in = new VCFFileReader(variantsFile)){
+		try (VCFFileReader in = new VCFFileReader(variantsFile, numThreads)){
 			VCFFileWriter writer = new VCFFileWriter(); 
 			in.setLog(log);
+			//Annotations only need the variant information. Calls are decoded when records are printed or by the annotation threads
+			in.setLazyGenotypes(true);
 			writer.printHeader(in.getHeader(),out);
 			Iterator<VCFRecord> it = in.iterator();
-			int n=0;
-			while (it.hasNext()) {
-				VCFRecord record = it.next();
-				if(record.getVariant().getAlleles().length>=2) annotate(record);
-				writer.printVCFRecord(record, out);
-				n++;
-				if (progressNotifier!=null && n%1000==0) {
-					int progress = n/1000;
-					if (!progressNotifier.keepRunning(progress)) {
-						out.flush();
-						return;
+			ExecutorService pool = null;
+			if(numThreads>1) {
+				log.info("Annotating records in batches of "+RECORDS_BATCH_SIZE+" with "+numThreads+" threads");
+				pool = Executors.newFixedThreadPool(numThreads);
+			}
+			//Only a limited number of batches is annotated ahead of the writing to bound memory usage
+			int maxBatchesInProgress = 2*numThreads;
+			//Without threads each record is printed as soon as it is annotated
+			int batchSize = (pool!=null)?RECORDS_BATCH_SIZE:1;
+			LinkedList<Future<List<VCFRecord>>> futures = new LinkedList<>();
+			List<VCFRecord> batch = new ArrayList<>(batchSize);
+			try {
+				int n=0;
+				while (it.hasNext()) {
+					batch.add(it.next());
+					n++;
+					if (progressNotifier!=null && n%1000==0) {
+						int progress = n/1000;
+						if (!progressNotifier.keepRunning(progress)) {
+							processBatch(batch, pool, futures, writer, out);
+							while(!futures.isEmpty()) printFirstBatch(futures, writer, out);
+							out.flush();
+							return;
+						}
+					}
+					if(batch.size()==batchSize) {
+						processBatch(batch, pool, futures, writer, out);
+						batch = new ArrayList<>(batchSize);
+						//Waits for the oldest batch if too many batches are in progress
+						while(futures.size()>=maxBatchesInProgress) printFirstBatch(futures, writer, out);
 					}
 				}
+				processBatch(batch, pool, futures, writer, out);
+				while(!futures.isEmpty()) printFirstBatch(futures, writer, out);
+			} finally {
+				if(pool!=null) pool.shutdownNow();
 			}
 		}
 		out.flush();
 	}
+	
+	private void processBatch(List<VCFRecord> batch, ExecutorService pool, LinkedList<Future<List<VCFRecord>>> futures, VCFFileWriter writer, PrintStream out) {
+		if(pool==null) {
+			writer.printVCFRecords(annotateBatch(batch), out);
+		} else if(batch.size()>0) {
+			futures.add(pool.submit(() -> annotateBatch(batch)));
+		}
+	}
+	
+	private void printFirstBatch(LinkedList<Future<List<VCFRecord>>> futures, VCFFileWriter writer, PrintStream out) throws IOException {
+		List<VCFRecord> annotated;
+		try {
+			annotated = futures.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while annotating variants", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error annotating variants", cause);
+		}
+		writer.printVCFRecords(annotated, out);
+	}
+	
+	/**
+	 * Annotates the given records
+	 * @param batch Records to annotate
+	 * @return List<VCFRecord> The same list of records after adding the annotations
+	 */
+	private List<VCFRecord> annotateBatch(List<VCFRecord> batch) {
+		for(VCFRecord record:batch) {
+			if(record.getVariant().getAlleles().length>=2) annotate(record);
+			//Genotype calls are decoded here so that the writing thread only needs to print them
+			List<CalledGenomicVariant> calls = record.getCalls();
+			for(int i=0;i<calls.size();i++) calls.get(i);
+		}
+		return batch;
+	}
 
 	public void annotate(VCFRecord record) {
 		GenomicVariant v = record.getVariant();
@@ -165,6 +165,9 @@ public class VCFRecord implements GenomicRegion {
 	private Map<String,GenomicVariantAnnotation> infoFields = new LinkedHashMap<String, GenomicVariantAnnotation>();
 	private List<CalledGenomicVariant> calls;
 	private int [] fieldsFormat;
+	//True if the copy number field should be added to the format when a call has a non default copy number.
+	//Used when calls are decoded on demand
+	private boolean copyNumberFormatPending = false;
 	private VCFFileHeader header;
 	public VCFRecord(GenomicVariant variant, List<String> filters,List<GenomicVariantAnnotation> infoFields, int [] format, List<CalledGenomicVariant> calls, VCFFileHeader header) {
 		this.variant = variant;
@@ -246,10 +249,29 @@ public class VCFRecord implements GenomicRegion {
 		infoFields.remove(key);
 	}
 	public int[] getFieldsFormat() {
+		if(copyNumberFormatPending) {
+			copyNumberFormatPending = false;
+			for(CalledGenomicVariant call:calls) {
+				if(call.getCopyNumber()!=CalledGenomicVariant.DEFAULT_PLOIDY) {
+					fieldsFormat = Arrays.copyOf(fieldsFormat, fieldsFormat.length+1);
+					fieldsFormat[fieldsFormat.length-1] = FORMAT_IDX_ACN;
+					break;
+				}
+			}
+		}
 		return fieldsFormat;
 	}
 	public void setFieldsFormat(int[] fieldsFormat) {
 		this.fieldsFormat = fieldsFormat;
+		copyNumberFormatPending = false;
+	}
+	/**
+	 * Delays the decision of including the copy number in the format until the format is requested.
+	 * This avoids decoding the calls of records loaded on demand only to build the format
+	 */
+	void setCopyNumberFormatPending() {
+		for(int idx:fieldsFormat) if(idx == FORMAT_IDX_ACN) return;
+		copyNumberFormatPending = true;
 	}
 	public VCFFileHeader getHeader() {
 		return header;
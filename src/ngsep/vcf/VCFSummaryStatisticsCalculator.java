@@ -131,6 +131,7 @@ public class VCFSummaryStatisticsCalculator {
 	public void runStatistics(VCFFileReader in, PrintStream out) throws IOException {
 		if(log!=null)in.setLog(log);
 		in.setLoadMode(VCFFileReader.LOAD_MODE_COPY_NUMBER);
+		in.setLazyGenotypes(true);
 		List<String> sampleIds = in.getHeader().getSampleIds();
 		initStatistics(sampleIds);
 		Iterator<VCFRecord> it = in.iterator();
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import ngsep.genome.ReferenceGenome;
+
+/**
+ * Compares the variants called by the MultisampleVariantsDetector processing the genome sequentially
+ * with the variants called processing small shards in parallel. Simulated samples have indels crossing
+ * the borders of the shards and SNVs close to the end of the indels
+ * @author Jorge Duitama
+ */
+public class MultisampleVariantsDetectorShardsTest {
+	private static final String SEQ_NAME = "chr1";
+	private static final int SEQ_LENGTH = 12000;
+	private static final int SHARD_LENGTH = 1000;
+	private static final int NUM_SAMPLES = 3;
+	private static final int READ_LENGTH = 100;
+	private static final int COVERAGE = 20;
+	private static final char [] BASES = {'A','C','G','T'};
+
+	private final Random random = new Random(27);
+	private final StringBuilder reference = new StringBuilder();
+	//Alternative alleles by reference position. Deletions start with '-' followed by the number of deleted bases
+	//Insertions start with '+' followed by the bases inserted after the position
+	private final TreeMap<Integer, String> events = new TreeMap<>();
+
+	public static void main(String[] args) throws Exception {
+		new MultisampleVariantsDetectorShardsTest().testShardBorders();
+		System.out.println("MultisampleVariantsDetectorShardsTest passed");
+	}
+
+	public void testShardBorders() throws IOException {
+		File dir = Files.createTempDirectory("ngsepShards").toFile();
+		try {
+			simulateEvents();
+			String refFile = new File(dir, "ref.fa").getAbsolutePath();
+			try (PrintStream out = new PrintStream(refFile)) {
+				out.println(">"+SEQ_NAME);
+				for(int i=0;i<reference.length();i+=60) out.println(reference.substring(i, Math.min(i+60, reference.length())));
+			}
+			String bamFile = new File(dir, "reads.bam").getAbsolutePath();
+			simulateReads(bamFile);
+			ReferenceGenome genome = new ReferenceGenome(refFile);
+			List<String> sequential = callVariants(genome, bamFile, new File(dir, "sequential.vcf").getAbsolutePath(), 1);
+			List<String> sharded = callVariants(genome, bamFile, new File(dir, "sharded.vcf").getAbsolutePath(), 3);
+			int bordersCrossed = 0;
+			for(String line:sequential) {
+				String [] items = line.split("\t");
+				int first = Integer.parseInt(items[1]);
+				int last = first+items[3].length()-1;
+				if((first-1)/SHARD_LENGTH != (last-1)/SHARD_LENGTH) bordersCrossed++;
+			}
+			if(bordersCrossed<3) throw new AssertionError("Expected at least three indels crossing shard borders. Found: "+bordersCrossed);
+			if(!sequential.equals(sharded)) {
+				throw new AssertionError("Sharded calls differ from sequential calls.\nSequential: "+sequential+"\nSharded: "+sharded);
+			}
+		} finally {
+			for(File f:dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+
+	private void simulateEvents() {
+		for(int i=0;i<SEQ_LENGTH;i++) reference.append(BASES[random.nextInt(4)]);
+		//Indels crossing or touching the borders of the shards and SNVs close to their ends
+		events.put(995, "-10");
+		events.put(1008, snv(1008));
+		events.put(1998, "-5");
+		events.put(2004, snv(2004));
+		events.put(3000, "+TGA");
+		events.put(3002, snv(3002));
+		events.put(3997, "+GGCATT");
+		events.put(4999, "-3");
+		events.put(5004, snv(5004));
+		events.put(6990, "-15");
+		events.put(7006, snv(7006));
+		events.put(8001, snv(8001));
+		events.put(8003, "-4");
+		while(events.size()<40) {
+			int pos = 50+random.nextInt(SEQ_LENGTH-100);
+			if(events.subMap(pos-20, pos+20).isEmpty()) events.put(pos, snv(pos));
+		}
+	}
+
+	private String snv(int pos) {
+		char ref = reference.charAt(pos-1);
+		char alt = ref;
+		while(alt==ref) alt = BASES[random.nextInt(4)];
+		return ""+alt;
+	}
+
+	private void simulateReads(String bamFile) throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord(SEQ_NAME, SEQ_LENGTH));
+		for(int s=0;s<NUM_SAMPLES;s++) {
+			SAMReadGroupRecord readGroup = new SAMReadGroupRecord("RG"+s);
+			readGroup.setSample("S"+s);
+			header.addReadGroup(readGroup);
+		}
+		List<SAMRecord> records = new ArrayList<>();
+		char [] qualities = new char[READ_LENGTH];
+		Arrays.fill(qualities, '?');
+		String qualityString = new String(qualities);
+		for(int s=0;s<NUM_SAMPLES;s++) {
+			for(int h=0;h<2;h++) {
+				//Sample 0 is homozygous for every event, sample 1 is heterozygous and sample 2 has half of the events
+				StringBuilder haplotype = new StringBuilder();
+				List<Integer> refPositions = new ArrayList<>();
+				buildHaplotype(s, h, haplotype, refPositions);
+				int numReads = haplotype.length()*COVERAGE/READ_LENGTH/2;
+				for(int r=0;r<numReads;r++) {
+					int start = random.nextInt(haplotype.length()-READ_LENGTH+1);
+					int refFirst = refPositions.get(start);
+					if(refFirst<0 || refPositions.get(start+READ_LENGTH-1)<0) continue;
+					SAMRecord record = new SAMRecord(header);
+					record.setReadName("S"+s+"_H"+h+"_"+r);
+					record.setReferenceName(SEQ_NAME);
+					record.setAlignmentStart(refFirst);
+					record.setCigarString(buildCigar(refPositions, start));
+					record.setReadString(haplotype.substring(start, start+READ_LENGTH));
+					record.setBaseQualityString(qualityString);
+					record.setMappingQuality(60);
+					record.setAttribute("RG", "RG"+s);
+					records.add(record);
+				}
+			}
+		}
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, new File(bamFile));
+		for(SAMRecord record:records) writer.addAlignment(record);
+		writer.close();
+	}
+
+	private void buildHaplotype(int sample, int hap, StringBuilder haplotype, List<Integer> refPositions) {
+		int eventIdx = 0;
+		int deletedUntil = 0;
+		for(int pos=1;pos<=SEQ_LENGTH;pos++) {
+			if(pos<=deletedUntil) continue;
+			String event = events.get(pos);
+			boolean carried = false;
+			if(event!=null) {
+				carried = sample==0 || (sample==1 && hap==0) || (sample==2 && eventIdx%2==0);
+				eventIdx++;
+			}
+			char base = reference.charAt(pos-1);
+			if(carried && event.length()==1) base = event.charAt(0);
+			haplotype.append(base);
+			refPositions.add(pos);
+			if(!carried || event.length()==1) continue;
+			if(event.charAt(0)=='-') {
+				deletedUntil = pos+Integer.parseInt(event.substring(1));
+			} else {
+				for(int i=1;i<event.length();i++) {
+					haplotype.append(event.charAt(i));
+					refPositions.add(-1);
+				}
+			}
+		}
+	}
+
+	private String buildCigar(List<Integer> refPositions, int start) {
+		StringBuilder cigar = new StringBuilder();
+		char lastOp = 0;
+		int count = 0;
+		int lastRefPos = refPositions.get(start)-1;
+		for(int i=start;i<start+READ_LENGTH;i++) {
+			int refPos = refPositions.get(i);
+			char op = 'M';
+			if(refPos<0) {
+				op = 'I';
+			} else if (refPos>lastRefPos+1) {
+				if(count>0) cigar.append(count).append(lastOp);
+				cigar.append(refPos-lastRefPos-1).append('D');
+				count = 0;
+			}
+			if(op!=lastOp && count>0) {
+				cigar.append(count).append(lastOp);
+				count = 0;
+			}
+			lastOp = op;
+			count++;
+			if(refPos>=0) lastRefPos = refPos;
+		}
+		cigar.append(count).append(lastOp);
+		return cigar.toString();
+	}
+
+	private List<String> callVariants(ReferenceGenome genome, String bamFile, String outFile, int numThreads) throws IOException {
+		MultisampleVariantsDetector detector = new MultisampleVariantsDetector();
+		Logger log = Logger.getAnonymousLogger();
+		log.setLevel(Level.WARNING);
+		detector.setLog(log);
+		detector.setGenome(genome);
+		detector.setAlignmentFiles(Arrays.asList(bamFile));
+		detector.setOutFilename(outFile);
+		detector.setNumThreads(numThreads);
+		detector.setShardLength(SHARD_LENGTH);
+		detector.findVariants();
+		List<String> records = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(outFile))) {
+			String line;
+			while((line=in.readLine())!=null) {
+				if(!line.startsWith("#")) records.add(line);
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+/**
+ * Tests the behavior of the k-mers map when the table reaches its maximum capacity
+ * @author Jorge Duitama
+ */
+public class LongKmersMapImplTest {
+	private static final int MAX_CAPACITY = 64;
+
+	public static void main(String[] args) {
+		LongKmersMapImplTest test = new LongKmersMapImplTest();
+		test.testLoadIncreasesAtMaximumCapacity();
+		test.testFullTable();
+		test.testInvalidMaximumCapacity();
+		System.out.println("LongKmersMapImplTest passed");
+	}
+
+	public void testLoadIncreasesAtMaximumCapacity() {
+		LongKmersMapImpl map = new LongKmersMapImpl(15, false, 0, MAX_CAPACITY);
+		//The table can not grow beyond the maximum capacity but it keeps accepting k-mers above the maximum load
+		for(int i=0;i<MAX_CAPACITY-1;i++) {
+			for(int j=0;j<=i%3;j++) map.addOcurrance(code(i));
+		}
+		assertEquals(MAX_CAPACITY-1, map.size());
+		for(int i=0;i<MAX_CAPACITY-1;i++) assertEquals(i%3+1, map.getCount(code(i)));
+		//Absent k-mers can still be queried in a table with a single empty slot
+		assertEquals(0, map.getCount(code(MAX_CAPACITY+5)));
+		map.setCount(code(MAX_CAPACITY+5), 0);
+		//Existing k-mers can be updated when the table is full
+		map.addOcurrance(code(0));
+		map.setCount(code(1), 10);
+		assertEquals(2, map.getCount(code(0)));
+		assertEquals(10, map.getCount(code(1)));
+		//Filtering releases slots for new k-mers
+		map.filterKmers(2);
+		int retained = map.size();
+		map.addOcurrance(code(MAX_CAPACITY+5));
+		assertEquals(retained+1, map.size());
+		assertEquals(1, map.getCount(code(MAX_CAPACITY+5)));
+	}
+
+	public void testFullTable() {
+		LongKmersMapImpl map = new LongKmersMapImpl(21, true, 0, MAX_CAPACITY);
+		int added = 0;
+		try {
+			for(int i=0;i<2*MAX_CAPACITY;i++) {
+				map.addOcurrance(code(i));
+				added++;
+			}
+			throw new AssertionError("Expected failure after filling a table with maximum capacity "+MAX_CAPACITY);
+		} catch (IllegalStateException e) {
+			if(!e.getMessage().startsWith("Maximum capacity of the k-mers map reached")) throw new AssertionError("Unexpected error message: "+e.getMessage());
+		}
+		//The k-mer that did not fit is not stored and the previous counts are kept
+		if(added>=MAX_CAPACITY) throw new AssertionError("Table with "+MAX_CAPACITY+" slots stored "+added+" entries");
+		assertEquals(0, map.getCount(code(added)));
+		for(int i=0;i<added;i++) {
+			if(map.getCount(code(i))<1) throw new AssertionError("Count lost for k-mer "+i+" after filling the table");
+		}
+	}
+
+	public void testInvalidMaximumCapacity() {
+		int [] invalid = {0, 8, 100, 1<<31};
+		for(int maxCapacity:invalid) {
+			try {
+				new LongKmersMapImpl(21, false, 0, maxCapacity);
+				throw new AssertionError("Maximum capacity "+maxCapacity+" should be rejected");
+			} catch (IllegalArgumentException e) {
+				//Expected
+			}
+		}
+	}
+
+	private static long code(int i) {
+		//Spread codes over the whole range of 15-mers and 21-mers
+		return (i*0x9E3779B1L) & ((1L<<30)-1);
+	}
+
+	private static void assertEquals(int expected, int actual) {
+		if(expected!=actual) throw new AssertionError("Expected: "+expected+" actual: "+actual);
+	}
+}
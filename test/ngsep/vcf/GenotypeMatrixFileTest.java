@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import ngsep.variants.CalledCNV;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.CalledGenomicVariantImpl;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.GenomicVariantAnnotation;
+import ngsep.variants.GenomicVariantImpl;
+
+/**
+ * Writes a VCF file with biallelic, multiallelic and CNV records as a binary genotype matrix and compares
+ * the records loaded from the matrix with the records loaded from the VCF file
+ * @author Jorge Duitama
+ */
+public class GenotypeMatrixFileTest {
+	private static final int NUM_SAMPLES = 5;
+	//Enough records to fill more than one chunk
+	private static final int NUM_RECORDS = GenotypeMatrixFileWriter.DEF_MAX_VARIANTS_CHUNK+1000;
+	private static final int RECORD_TYPES = 6;
+
+	private static final String [] DIPLOID_GENOTYPES = {"0/0","0/1","1/1","./."};
+	private static final String [] PHASED_GENOTYPES = {"0|1","1|0","0|0","1|1","./."};
+	private static final String [] HAPLOID_GENOTYPES = {"0","1","."};
+	private static final String [] MULTIALLELIC_GENOTYPES = {"0/2","1|2","2|1","2/2","0/1","./."};
+	private static final String [] TRIPLOID_GENOTYPES = {"0|1|1:1,2,0","0/0/1:2,1,0","1|2|0:1,1,1","2/2/2:0,0,3"};
+	private static final String [] CNV_GENOTYPES = {"0","1","."};
+
+	private final Random random = new Random(42);
+
+	public static void main(String[] args) throws Exception {
+		GenotypeMatrixFileTest test = new GenotypeMatrixFileTest();
+		File dir = Files.createTempDirectory("ngsepGenotypeMatrix").toFile();
+		try {
+			test.testRoundTrip(dir);
+			test.testPhasedAllelesDifferentFromCopyNumber(dir);
+			test.testCNVCalls(dir);
+		} finally {
+			for(File f:dir.listFiles()) f.delete();
+			dir.delete();
+		}
+		System.out.println("GenotypeMatrixFileTest passed");
+	}
+
+	public void testRoundTrip(File dir) throws IOException {
+		File vcfFile = new File(dir, "variants.vcf");
+		File matrixFile = new File(dir, "variants.ngm");
+		simulateVCF(vcfFile);
+		try (VCFFileReader in = new VCFFileReader(vcfFile);
+			 GenotypeMatrixFileWriter out = new GenotypeMatrixFileWriter(matrixFile.getAbsolutePath(), in.getHeader())) {
+			for(VCFRecord record:in) out.addRecord(record);
+		}
+		VCFFileWriter writer = new VCFFileWriter();
+		try (VCFFileReader expectedIn = new VCFFileReader(vcfFile);
+			 VCFFileReader actualIn = new VCFFileReader(matrixFile);
+			 GenotypeMatrixFileReader matrix = new GenotypeMatrixFileReader(matrixFile)) {
+			assertEquals(NUM_SAMPLES, matrix.getNumSamples());
+			assertEquals(NUM_RECORDS, (int)matrix.getNumVariants());
+			if(matrix.getNumChunks()<2) throw new AssertionError("Expected more than one chunk. Found: "+matrix.getNumChunks());
+			assertEquals(NUM_SAMPLES, actualIn.getHeader().getSamples().size());
+			Iterator<VCFRecord> expectedIt = expectedIn.iterator();
+			Iterator<VCFRecord> actualIt = actualIn.iterator();
+			int i = 0;
+			for(GenotypeMatrixChunk chunk:matrix) {
+				for(int v=0;v<chunk.getNumVariants();v++,i++) {
+					if(!expectedIt.hasNext() || !actualIt.hasNext()) throw new AssertionError("Missing records after "+i+" records");
+					VCFRecord expected = expectedIt.next();
+					VCFRecord actual = actualIt.next();
+					String expectedLine = print(writer, expected);
+					String actualLine = print(writer, actual);
+					if(!expectedLine.equals(actualLine)) throw new AssertionError("Different record "+i+"\nExpected: "+expectedLine+"\nActual: "+actualLine);
+					compareChunk(expected, chunk, v, i);
+				}
+			}
+			if(expectedIt.hasNext() || actualIt.hasNext()) throw new AssertionError("Different number of records. Matrix variants: "+i);
+		}
+	}
+
+	/**
+	 * Calls with a number of phased alleles different from the copy number can only be created programmatically
+	 */
+	public void testPhasedAllelesDifferentFromCopyNumber(File dir) throws IOException {
+		File matrixFile = new File(dir, "phased.ngm");
+		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+		header.addDefaultSample("S0");
+		GenomicVariantImpl variant = new GenomicVariantImpl("chr1", 10, Arrays.asList("A","AT","ATT"));
+		CalledGenomicVariantImpl call = new CalledGenomicVariantImpl(variant, new byte [] {0,1}) {
+			@Override
+			public boolean isPhased() {
+				return true;
+			}
+			@Override
+			public byte[] getIndexesPhasedAlleles() {
+				return new byte [] {1,0};
+			}
+		};
+		call.setAllelesCopyNumber(new byte [] {1,2,0});
+		List<CalledGenomicVariant> calls = new ArrayList<>();
+		calls.add(call);
+		int [] format = {VCFRecord.FORMAT_IDX_GT, VCFRecord.FORMAT_IDX_ACN};
+		VCFRecord record = new VCFRecord(variant, new ArrayList<String>(), new ArrayList<GenomicVariantAnnotation>(), format, calls, header);
+		try (GenotypeMatrixFileWriter out = new GenotypeMatrixFileWriter(matrixFile.getAbsolutePath(), header)) {
+			out.addRecord(record);
+		}
+		try (GenotypeMatrixFileReader matrix = new GenotypeMatrixFileReader(matrixFile)) {
+			GenotypeMatrixChunk chunk = matrix.loadChunk(0);
+			assertEquals(3, chunk.getCopyNumber(0, 0));
+			assertArrayEquals(new byte [] {1,2,0}, chunk.getAllelesCopyNumber(0, 0), "alleles copy number");
+			assertArrayEquals(new byte [] {1,0}, chunk.getIndexesPhasedAlleles(0, 0), "phased alleles");
+		}
+	}
+
+	/**
+	 * The VCF reader only accepts allele indexes in the genotype field. Calls with more copies are created programmatically
+	 */
+	public void testCNVCalls(File dir) throws IOException {
+		File matrixFile = new File(dir, "cnvs.ngm");
+		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+		//Negative values represent undecided calls
+		byte [] copies = {0,1,2,3,4,-1};
+		for(int s=0;s<copies.length;s++) header.addDefaultSample("S"+s);
+		GenomicVariantImpl variant = new GenomicVariantImpl("chr1", 1000, Arrays.asList("N","<CNV>"));
+		variant.setType(GenomicVariant.TYPE_CNV);
+		List<CalledGenomicVariant> calls = new ArrayList<>();
+		for(byte c:copies) calls.add(c<0?new CalledCNV(variant):new CalledCNV(variant, c));
+		int [] format = {VCFRecord.FORMAT_IDX_GT};
+		VCFRecord record = new VCFRecord(variant, new ArrayList<String>(), new ArrayList<GenomicVariantAnnotation>(), format, calls, header);
+		try (GenotypeMatrixFileWriter out = new GenotypeMatrixFileWriter(matrixFile.getAbsolutePath(), header)) {
+			out.addRecord(record);
+		}
+		try (GenotypeMatrixFileReader matrix = new GenotypeMatrixFileReader(matrixFile)) {
+			GenotypeMatrixChunk chunk = matrix.loadChunk(0);
+			if(!chunk.isCNV(0)) throw new AssertionError("Record should be a CNV");
+			for(int s=0;s<copies.length;s++) {
+				CalledGenomicVariant call = calls.get(s);
+				assertArrayEquals(call.getIndexesCalledAlleles(), chunk.getIndexesCalledAlleles(0, s), "CNV call of sample "+s);
+				assertEquals(GenotypeCodesTransposer.getGenotypeCode(call), chunk.getGenotypeCode(0, s), "CNV genotype code of sample "+s);
+			}
+		}
+	}
+
+	private void simulateVCF(File vcfFile) throws IOException {
+		try (PrintStream out = new PrintStream(vcfFile)) {
+			out.println("##fileformat=VCFv4.2");
+			out.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+			for(int s=0;s<NUM_SAMPLES;s++) out.print("\tS"+s);
+			out.println();
+			for(int i=0;i<NUM_RECORDS;i++) {
+				String sequenceName = (i<NUM_RECORDS/2)?"chr1":"chr2";
+				int pos = 100+10*(i%(NUM_RECORDS/2));
+				int type = i%RECORD_TYPES;
+				StringBuilder line = new StringBuilder();
+				line.append(sequenceName).append('\t').append(pos).append("\t.\t");
+				if(type==3) line.append("ACG\tA,ACGTT\t30\tPASS\t.\tGT:GQ:DP");
+				else if(type==4) line.append("ACG\tA,ACGTT\t.\t.\tNS=3\tGT:GQ:DP:ACN");
+				else if(type==5) line.append("N\t<CNV>\t.\tPASS\tTYPE=CNV;END="+(pos+500)+"\tGT:DP");
+				else line.append("A\tG\t40\tPASS\t.\t").append(type==2?"GT:DP":"GT:GQ:DP");
+				for(int s=0;s<NUM_SAMPLES;s++) {
+					line.append('\t');
+					if(type==0) line.append(select(DIPLOID_GENOTYPES));
+					else if(type==1) line.append(select(PHASED_GENOTYPES));
+					else if(type==2) line.append(select(HAPLOID_GENOTYPES));
+					else if(type==3) line.append(select(MULTIALLELIC_GENOTYPES));
+					else if(type==4) {
+						String [] items = select(TRIPLOID_GENOTYPES).split(":");
+						line.append(items[0]).append(':').append(random.nextInt(100)).append(':').append(random.nextInt(100)).append(':').append(items[1]);
+						continue;
+					}
+					else line.append(select(CNV_GENOTYPES));
+					if(type!=2 && type!=5) line.append(':').append(random.nextInt(100));
+					//Some depths need four bytes
+					line.append(':').append(random.nextInt(20)==0?70000+random.nextInt(1000):random.nextInt(300));
+				}
+				out.println(line);
+			}
+		}
+	}
+
+	private String select(String [] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private void compareChunk(VCFRecord expected, GenotypeMatrixChunk chunk, int v, int recordIdx) {
+		String id = "record "+recordIdx;
+		assertEquals(expected.getSequenceName(), chunk.getSequenceName(v), id);
+		assertEquals(expected.getFirst(), chunk.getFirst(v), id);
+		assertEquals(expected.getLast(), chunk.getLast(v), id);
+		assertEquals(expected.getVariant().getAlleles().length, chunk.getNumAlleles(v), id);
+		int type = recordIdx%RECORD_TYPES;
+		if(chunk.isPacked(v) != (type==0 || type==2)) throw new AssertionError("Unexpected packing of "+id);
+		if(chunk.isCNV(v) != (type==5)) throw new AssertionError("Unexpected CNV flag of "+id);
+		List<CalledGenomicVariant> calls = expected.getCalls();
+		byte [] codes = new byte[(NUM_SAMPLES+3)/4];
+		chunk.copyPackedGenotypeCodes(v, codes);
+		for(int s=0;s<NUM_SAMPLES;s++) {
+			CalledGenomicVariant call = calls.get(s);
+			String callId = id+" sample "+s;
+			assertArrayEquals(call.getIndexesCalledAlleles(), chunk.getIndexesCalledAlleles(v, s), callId+" called alleles");
+			byte code = GenotypeCodesTransposer.getGenotypeCode(call);
+			assertEquals(code, chunk.getGenotypeCode(v, s), callId+" genotype code");
+			assertEquals(code, (codes[s/4] >> (2*(s%4))) & 3, callId+" packed genotype code");
+			assertEquals(call.getTotalReadDepth(), chunk.getReadDepth(v, s), callId+" read depth");
+			if(type!=2 && type!=5) assertEquals(call.getGenotypeQuality(), chunk.getGenotypeQuality(v, s), callId+" genotype quality");
+			if(type==5) continue;
+			assertEquals(call.getCopyNumber(), chunk.getCopyNumber(v, s), callId+" copy number");
+			if(!call.isUndecided()) assertArrayEquals(call.getAllelesCopyNumber(), chunk.getAllelesCopyNumber(v, s), callId+" alleles copy number");
+			assertArrayEquals(call.isPhased()?call.getIndexesPhasedAlleles():null, chunk.getIndexesPhasedAlleles(v, s), callId+" phased alleles");
+		}
+	}
+
+	private static String print(VCFFileWriter writer, VCFRecord record) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		writer.printVCFRecord(record, out);
+		out.flush();
+		return bytes.toString();
+	}
+
+	private static void assertEquals(Object expected, Object actual, String id) {
+		if(!expected.equals(actual)) throw new AssertionError("Expected: "+expected+" actual: "+actual+" for "+id);
+	}
+
+	private static void assertEquals(int expected, int actual) {
+		if(expected!=actual) throw new AssertionError("Expected: "+expected+" actual: "+actual);
+	}
+
+	private static void assertEquals(int expected, int actual, String id) {
+		if(expected!=actual) throw new AssertionError("Expected: "+expected+" actual: "+actual+" for "+id);
+	}
+
+	private static void assertArrayEquals(byte [] expected, byte [] actual, String id) {
+		if(!Arrays.equals(expected, actual)) throw new AssertionError("Expected: "+Arrays.toString(expected)+" actual: "+Arrays.toString(actual)+" for "+id);
+	}
+}